@@ -0,0 +1,119 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.bulk;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import spiralcraft.oauth.util.AsyncUtil;
+
+/**
+ * <p>Runs an operation, such as a resource request, for each of a large
+ *   number of items, such as user Sessions, concurrently.
+ * </p>
+ * 
+ * <p>The number of operations in flight is capped overall and for each 
+ *   provider, so one slow or rate limited provider can't occupy every
+ *   slot. Items waiting for a provider that is at its limit don't hold 
+ *   up items for other providers. By default operations run on a virtual
+ *   thread each where the JVM supports it.
+ * </p>
+ * 
+ * <p>A BulkExecutor may be shared by any number of concurrent runs, which
+ *   are limited independently.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class BulkExecutor
+{
+  private volatile Executor executor;
+  private int maxConcurrency=64;
+  private int maxConcurrencyPerProvider=16;
+  private final ConcurrentHashMap<String,Integer> providerLimits
+    =new ConcurrentHashMap<String,Integer>();
+  
+  /**
+   * The Executor that runs the operations. Defaults to a virtual thread per
+   *   operation where the JVM supports it, otherwise a shared daemon 
+   *   thread pool.
+   * 
+   * @param executor
+   */
+  public void setExecutor(Executor executor)
+  { this.executor=executor;
+  }
+  
+  /**
+   * The maximum number of operations in flight in a run. Defaults to 64.
+   * 
+   * @param maxConcurrency
+   */
+  public void setMaxConcurrency(int maxConcurrency)
+  { this.maxConcurrency=Math.max(1,maxConcurrency);
+  }
+  
+  public int getMaxConcurrency()
+  { return maxConcurrency;
+  }
+  
+  /**
+   * The maximum number of operations in flight in a run to any one 
+   *   provider that has no specific limit. Defaults to 16.
+   * 
+   * @param maxConcurrencyPerProvider
+   */
+  public void setMaxConcurrencyPerProvider(int maxConcurrencyPerProvider)
+  { this.maxConcurrencyPerProvider=Math.max(1,maxConcurrencyPerProvider);
+  }
+  
+  /**
+   * The maximum number of operations in flight in a run to the provider
+   *   with the specified key, as returned by BulkOperation.providerKey()
+   * 
+   * @param providerKey
+   * @param limit
+   */
+  public void setProviderLimit(String providerKey,int limit)
+  { providerLimits.put(providerKey,Math.max(1,limit));
+  }
+  
+  int providerLimit(String providerKey)
+  {
+    Integer limit=providerLimits.get(providerKey);
+    return limit!=null?limit:maxConcurrencyPerProvider;
+  }
+  
+  Executor executor()
+  {
+    Executor executor=this.executor;
+    return executor!=null?executor:AsyncUtil.defaultExecutor();
+  }
+  
+  /**
+   * Start running the operation for each item
+   * 
+   * @return The run, which delivers the outcomes in completion order
+   */
+  public <S,R> BulkRun<S,R> submit
+    (Collection<? extends S> items,BulkOperation<S,R> operation)
+  {
+    BulkRun<S,R> run=new BulkRun<S,R>(this,items,operation);
+    run.start();
+    return run;
+  }
+}
@@ -0,0 +1,37 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.bulk;
+
+/**
+ * The work performed for each item of a bulk run, such as a resource 
+ *   request made with one user's Session
+ * 
+ * @author mike
+ *
+ * @param <S> The item type, eg. a Session
+ * @param <R> The result type
+ */
+public interface BulkOperation<S,R>
+{
+  R execute(S item)
+    throws Exception;
+  
+  /**
+   * The provider the item's request goes to, which determines the 
+   *   per-provider concurrency limit that applies. May return null if
+   *   all items go to the same provider.
+   */
+  String providerKey(S item);
+}
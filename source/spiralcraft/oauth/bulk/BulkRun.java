@@ -0,0 +1,371 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.bulk;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A bulk run in progress, started by BulkExecutor.submit().
+ * </p>
+ * 
+ * <p>The Outcome of each item is delivered through take() or poll() in 
+ *   the order the operations complete. Outcomes that aren't taken are
+ *   retained until they are.
+ * </p>
+ * 
+ * <p>The progress counters may be read at any time from any thread.
+ * </p>
+ * 
+ * @author mike
+ *
+ * @param <S> The item type
+ * @param <R> The result type
+ */
+public class BulkRun<S,R>
+{
+  private static class ProviderQueue<S>
+  {
+    final String key;
+    final int limit;
+    final ArrayDeque<S> items=new ArrayDeque<S>();
+    int inFlight;
+    
+    ProviderQueue(String key,int limit)
+    { 
+      this.key=key;
+      this.limit=limit;
+    }
+  }
+  
+  private final BulkOperation<S,R> operation;
+  private final Executor executor;
+  private final int maxConcurrency;
+  private final List<ProviderQueue<S>> providers
+    =new ArrayList<ProviderQueue<S>>();
+  private final LinkedBlockingQueue<Outcome<S,R>> outcomes
+    =new LinkedBlockingQueue<Outcome<S,R>>();
+  private final int total;
+  
+  private int nextProvider;
+  private int queued;
+  private int inFlight;
+  private int completed;
+  private int succeeded;
+  private int failed;
+  private int skipped;
+  private int delivered;
+  private boolean cancelled;
+  private long startNanos;
+  private long endNanos;
+  
+  BulkRun
+    (BulkExecutor bulkExecutor
+    ,Collection<? extends S> items
+    ,BulkOperation<S,R> operation
+    )
+  {
+    this.operation=operation;
+    this.executor=bulkExecutor.executor();
+    this.maxConcurrency=bulkExecutor.getMaxConcurrency();
+    
+    LinkedHashMap<String,ProviderQueue<S>> queues
+      =new LinkedHashMap<String,ProviderQueue<S>>();
+    for (S item:items)
+    {
+      String key=operation.providerKey(item);
+      if (key==null)
+      { key="";
+      }
+      ProviderQueue<S> queue=queues.get(key);
+      if (queue==null)
+      { 
+        queue=new ProviderQueue<S>(key,bulkExecutor.providerLimit(key));
+        queues.put(key,queue);
+      }
+      queue.items.add(item);
+    }
+    providers.addAll(queues.values());
+    total=items.size();
+    queued=total;
+  }
+  
+  void start()
+  {
+    synchronized (this)
+    { 
+      startNanos=System.nanoTime();
+      if (total==0)
+      { endNanos=startNanos;
+      }
+    }
+    dispatch();
+  }
+  
+  /**
+   * The next outcome, waiting for an operation to complete if necessary
+   * 
+   * @return The outcome, or null if every outcome has been delivered
+   */
+  public Outcome<S,R> take()
+    throws InterruptedException
+  {
+    synchronized (this)
+    {
+      if (delivered>=total-skipped)
+      { return null;
+      }
+      delivered++;
+    }
+    return outcomes.take();
+  }
+  
+  /**
+   * The next outcome, waiting up to the specified time for an operation to
+   *   complete
+   * 
+   * @return The outcome, or null if none completed in time or every 
+   *   outcome has been delivered
+   */
+  public Outcome<S,R> poll(long timeout,TimeUnit unit)
+    throws InterruptedException
+  {
+    synchronized (this)
+    {
+      if (delivered>=total-skipped)
+      { return null;
+      }
+    }
+    Outcome<S,R> outcome=outcomes.poll(timeout,unit);
+    if (outcome!=null)
+    {
+      synchronized (this)
+      { delivered++;
+      }
+    }
+    return outcome;
+  }
+  
+  /**
+   * Wait for every started operation to complete
+   */
+  public synchronized void await()
+    throws InterruptedException
+  {
+    while (!isDone())
+    { wait();
+    }
+  }
+  
+  /**
+   * Don't start the operations for the items still queued. Operations in
+   *   flight run to completion.
+   */
+  public synchronized void cancel()
+  {
+    cancelled=true;
+    for (ProviderQueue<S> provider:providers)
+    { provider.items.clear();
+    }
+    skipped+=queued;
+    queued=0;
+    checkDone();
+  }
+  
+  public int getTotal()
+  { return total;
+  }
+  
+  public synchronized int getQueued()
+  { return queued;
+  }
+  
+  public synchronized int getInFlight()
+  { return inFlight;
+  }
+  
+  public synchronized int getCompleted()
+  { return completed;
+  }
+  
+  public synchronized int getSucceeded()
+  { return succeeded;
+  }
+  
+  public synchronized int getFailed()
+  { return failed;
+  }
+  
+  /**
+   * The number of items not run because the run was cancelled
+   */
+  public synchronized int getSkipped()
+  { return skipped;
+  }
+  
+  public synchronized boolean isDone()
+  { return completed+skipped>=total;
+  }
+  
+  /**
+   * The time since the run started, or the duration of a finished run
+   */
+  public synchronized long getElapsedMillis()
+  { 
+    long end=endNanos!=0?endNanos:System.nanoTime();
+    return (end-startNanos)/1000000;
+  }
+  
+  /**
+   * The average number of operations completed per second
+   */
+  public synchronized double getThroughput()
+  {
+    long elapsed=getElapsedMillis();
+    return elapsed>0?completed*1000.0/elapsed:0;
+  }
+  
+  @Override
+  public synchronized String toString()
+  { 
+    return super.toString()
+      +": total="+total
+      +" queued="+queued
+      +" inFlight="+inFlight
+      +" succeeded="+succeeded
+      +" failed="+failed
+      +" skipped="+skipped
+      +" elapsed="+getElapsedMillis()+"ms"
+      +" throughput="+String.format("%.1f",getThroughput())+"/s";
+  }
+  
+  /**
+   * Start operations while there is capacity overall and in some 
+   *   provider with queued items, taking providers in turn
+   */
+  private void dispatch()
+  {
+    List<Runnable> ready=new ArrayList<Runnable>();
+    synchronized (this)
+    {
+      while (!cancelled && inFlight<maxConcurrency)
+      {
+        ProviderQueue<S> provider=nextReady();
+        if (provider==null)
+        { break;
+        }
+        S item=provider.items.poll();
+        provider.inFlight++;
+        inFlight++;
+        queued--;
+        ready.add(task(provider,item));
+      }
+    }
+    
+    for (Runnable task:ready)
+    { 
+      try
+      { executor.execute(task);
+      }
+      catch (RejectedExecutionException x)
+      { task.run();
+      }
+    }
+  }
+  
+  private ProviderQueue<S> nextReady()
+  {
+    int count=providers.size();
+    for (int i=0;i<count;i++)
+    {
+      ProviderQueue<S> provider=providers.get((nextProvider+i)%count);
+      if (!provider.items.isEmpty() && provider.inFlight<provider.limit)
+      { 
+        nextProvider=(nextProvider+i+1)%count;
+        return provider;
+      }
+    }
+    return null;
+  }
+  
+  private Runnable task(final ProviderQueue<S> provider,final S item)
+  {
+    return new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        long start=System.nanoTime();
+        R result=null;
+        Throwable failure=null;
+        try
+        { result=operation.execute(item);
+        }
+        catch (Exception x)
+        { failure=x;
+        }
+        catch (Error x)
+        { 
+          complete(provider,item,null,x,System.nanoTime()-start);
+          throw x;
+        }
+        complete(provider,item,result,failure,System.nanoTime()-start);
+      }
+    };
+  }
+  
+  private void complete
+    (ProviderQueue<S> provider
+    ,S item
+    ,R result
+    ,Throwable failure
+    ,long elapsedNanos
+    )
+  {
+    synchronized (this)
+    {
+      provider.inFlight--;
+      inFlight--;
+      completed++;
+      if (failure==null)
+      { succeeded++;
+      }
+      else
+      { failed++;
+      }
+      outcomes.add(new Outcome<S,R>(item,result,failure,elapsedNanos));
+      checkDone();
+    }
+    dispatch();
+  }
+  
+  private void checkDone()
+  {
+    if (completed+skipped>=total)
+    { 
+      if (endNanos==0)
+      { endNanos=System.nanoTime();
+      }
+      notifyAll();
+    }
+  }
+}
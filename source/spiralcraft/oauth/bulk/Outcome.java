@@ -0,0 +1,76 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.bulk;
+
+/**
+ * The result or failure of the operation for one item of a bulk run
+ * 
+ * @author mike
+ *
+ * @param <S> The item type
+ * @param <R> The result type
+ */
+public class Outcome<S,R>
+{
+  private final S item;
+  private final R result;
+  private final Throwable failure;
+  private final long elapsedNanos;
+  
+  Outcome(S item,R result,Throwable failure,long elapsedNanos)
+  {
+    this.item=item;
+    this.result=result;
+    this.failure=failure;
+    this.elapsedNanos=elapsedNanos;
+  }
+  
+  public S getItem()
+  { return item;
+  }
+  
+  /**
+   * The value returned by the operation, or null if it failed
+   */
+  public R getResult()
+  { return result;
+  }
+  
+  /**
+   * The exception thrown by the operation, or null if it succeeded
+   */
+  public Throwable getFailure()
+  { return failure;
+  }
+  
+  public boolean isSuccess()
+  { return failure==null;
+  }
+  
+  /**
+   * How long the operation ran, in milliseconds
+   */
+  public long getElapsedMillis()
+  { return elapsedNanos/1000000;
+  }
+  
+  @Override
+  public String toString()
+  { 
+    return super.toString()+": "+item
+      +(failure!=null?" failed: "+failure:" -> "+result)
+      +" ("+getElapsedMillis()+"ms)";
+  }
+}
@@ -0,0 +1,165 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.http;
+
+/**
+ * A point-in-time view of Transport activity for a single host
+ * 
+ * @author mike
+ *
+ */
+public class HostStatistics
+{
+  private final String host;
+  private final int maxConnections;
+  private final int activeConnections;
+  private final int idleConnections;
+  private final int peakConnections;
+  private final int waitingRequests;
+  private final long requests;
+  private final long failures;
+  private final long totalWaitMillis;
+  private final long totalRequestMillis;
+  private final long bytesReceived;
+  private final long newConnections;
+  private final long reusedConnections;
+  
+  HostStatistics
+    (String host
+    ,int maxConnections
+    ,int activeConnections
+    ,int idleConnections
+    ,int peakConnections
+    ,int waitingRequests
+    ,long requests
+    ,long failures
+    ,long totalWaitMillis
+    ,long totalRequestMillis
+    ,long bytesReceived
+    ,long newConnections
+    ,long reusedConnections
+    )
+  {
+    this.host=host;
+    this.maxConnections=maxConnections;
+    this.activeConnections=activeConnections;
+    this.idleConnections=idleConnections;
+    this.peakConnections=peakConnections;
+    this.waitingRequests=waitingRequests;
+    this.requests=requests;
+    this.failures=failures;
+    this.totalWaitMillis=totalWaitMillis;
+    this.totalRequestMillis=totalRequestMillis;
+    this.bytesReceived=bytesReceived;
+    this.newConnections=newConnections;
+    this.reusedConnections=reusedConnections;
+  }
+  
+  /**
+   * The scheme and authority of the host
+   */
+  public String getHost()
+  { return host;
+  }
+  
+  public int getMaxConnections()
+  { return maxConnections;
+  }
+  
+  /**
+   * Connections currently carrying a request
+   */
+  public int getActiveConnections()
+  { return activeConnections;
+  }
+  
+  /**
+   * Connections released to the platform keep-alive cache that have not 
+   *   yet been reused or expired
+   */
+  public int getIdleConnections()
+  { return idleConnections;
+  }
+  
+  /**
+   * The highest number of concurrently active connections observed
+   */
+  public int getPeakConnections()
+  { return peakConnections;
+  }
+  
+  /**
+   * Requests currently waiting for a connection to become available
+   */
+  public int getWaitingRequests()
+  { return waitingRequests;
+  }
+  
+  public long getRequests()
+  { return requests;
+  }
+  
+  public long getFailures()
+  { return failures;
+  }
+  
+  /**
+   * The total time requests have spent waiting for a connection
+   */
+  public long getTotalWaitMillis()
+  { return totalWaitMillis;
+  }
+  
+  public long getTotalRequestMillis()
+  { return totalRequestMillis;
+  }
+  
+  public long getBytesReceived()
+  { return bytesReceived;
+  }
+  
+  /**
+   * Requests that found no idle connection and established a new one
+   */
+  public long getNewConnections()
+  { return newConnections;
+  }
+  
+  /**
+   * Requests served by an idle connection from the keep-alive cache
+   */
+  public long getReusedConnections()
+  { return reusedConnections;
+  }
+  
+  @Override
+  public String toString()
+  {
+    return super.toString()
+      +": host="+host
+      +" active="+activeConnections+"/"+maxConnections
+      +" idle="+idleConnections
+      +" peak="+peakConnections
+      +" waiting="+waitingRequests
+      +" requests="+requests
+      +" failures="+failures
+      +" waitMillis="+totalWaitMillis
+      +" requestMillis="+totalRequestMillis
+      +" bytesReceived="+bytesReceived
+      +" new="+newConnections
+      +" reused="+reusedConnections
+      ;
+  }
+}
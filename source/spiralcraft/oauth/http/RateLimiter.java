@@ -0,0 +1,503 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+import spiralcraft.oauth.util.ExpiringCache;
+import spiralcraft.time.Clock;
+
+/**
+ * <p>Paces the resource requests of a Client to stay within the quotas of
+ *   the provider.
+ * </p>
+ * 
+ * <p>Requests draw from a token bucket for the Client and one for each
+ *   access token, when rates are configured, and wait when a bucket is 
+ *   empty. The quota the provider reports in X-RateLimit-* or RateLimit-*
+ *   headers is tracked for each access token, and requests are held 
+ *   until the reset time when it is exhausted. A 429 Too Many Requests 
+ *   response holds requests until its Retry-After time (or an 
+ *   exponential backoff) and is retried up to maxRetries times.
+ * </p>
+ * 
+ * <p>A request that would have to wait longer than maxWait fails with an
+ *   IOException instead, and gives back the permits it took.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class RateLimiter
+{
+  private static final ClassLog log
+    =ClassLog.getInstance(RateLimiter.class);
+  
+  private static final long IDLE_TIME=10*60*1000;
+  
+  /**
+   * A token bucket and the quota reported by the provider for one scope
+   */
+  private static final class Bucket
+  {
+    private double rate;
+    private double capacity;
+    private double permits;
+    private long refilledAt;
+    private long blockedUntil;
+    private long limit=-1;
+    private long remaining=-1;
+    private long resetAt;
+    
+    /**
+     * When the bucket expires from the cache if it isn't used
+     */
+    volatile long idleUntil;
+    
+    Bucket(double requestsPerSecond,int burst,long now)
+    { 
+      configure(requestsPerSecond,burst);
+      this.refilledAt=now;
+    }
+    
+    synchronized void configure(double requestsPerSecond,int burst)
+    {
+      this.rate=requestsPerSecond/1000;
+      this.capacity=Math.max(1,burst);
+      this.permits=capacity;
+    }
+    
+    /**
+     * Take a permit, which may be owed against future refills
+     * 
+     * @return The time in ms to wait before the request may be sent
+     */
+    synchronized long reserve(long now)
+    {
+      long wait=Math.max(0,blockedUntil-now);
+      if (rate>0)
+      {
+        permits
+          =Math.min(capacity,permits+(now-refilledAt)*rate);
+        refilledAt=now;
+        permits-=1;
+        if (permits<0)
+        { wait=Math.max(wait,(long) Math.ceil(-permits/rate));
+        }
+      }
+      return wait;
+    }
+    
+    /**
+     * Return a permit taken by a request that will not be sent
+     */
+    synchronized void refund()
+    { 
+      if (rate>0)
+      { permits=Math.min(capacity,permits+1);
+      }
+    }
+    
+    synchronized void block(long until)
+    { blockedUntil=Math.max(blockedUntil,until);
+    }
+    
+    /**
+     * Record a reported quota, holding requests until the reset time if
+     *   it is exhausted and enforce is set
+     */
+    synchronized void quota
+      (long limit,long remaining,long resetAt,boolean enforce)
+    {
+      if (limit>=0)
+      { this.limit=limit;
+      }
+      if (remaining>=0)
+      { 
+        this.remaining=remaining;
+        this.resetAt=resetAt;
+        if (enforce && remaining==0 && resetAt>0)
+        { block(resetAt);
+        }
+      }
+    }
+  }
+  
+  private final Bucket clientBucket;
+  private final ExpiringCache<String,Bucket> tokenBuckets
+    =new ExpiringCache<String,Bucket>(10000);
+  private volatile double tokenRequestsPerSecond;
+  private volatile int tokenBurst=1;
+  private volatile long maxWait=60000;
+  private volatile int maxRetries=2;
+  private volatile long backoff=1000;
+  private volatile Level logLevel=Level.INFO;
+  
+  private final AtomicLong throttled=new AtomicLong();
+  private final AtomicLong waitMillis=new AtomicLong();
+  private final AtomicLong rateLimited=new AtomicLong();
+  private final AtomicLong retries=new AtomicLong();
+  
+  public RateLimiter()
+  { clientBucket=new Bucket(0,1,Clock.instance().approxTimeMillis());
+  }
+  
+  /**
+   * The sustained rate of requests allowed for the Client as a whole, 
+   *   and the number that may be sent at once after a quiet period.
+   *   A rate of 0 (the default) is unlimited.
+   */
+  public void setRateLimit(double requestsPerSecond,int burst)
+  { clientBucket.configure(requestsPerSecond,burst);
+  }
+  
+  /**
+   * The sustained rate of requests allowed for each access token, and
+   *   the number that may be sent at once after a quiet period. A rate of
+   *   0 (the default) is unlimited.
+   */
+  public void setTokenRateLimit(double requestsPerSecond,int burst)
+  { 
+    this.tokenRequestsPerSecond=requestsPerSecond;
+    this.tokenBurst=burst;
+    tokenBuckets.clear();
+  }
+  
+  /**
+   * The longest time in milliseconds a request will wait to be sent 
+   *   before failing. Defaults to 60000.
+   */
+  public void setMaxWait(long maxWait)
+  { this.maxWait=maxWait;
+  }
+  
+  /**
+   * The number of times a request refused with 429 Too Many Requests 
+   *   will be retried. Defaults to 2.
+   */
+  public void setMaxRetries(int maxRetries)
+  { this.maxRetries=maxRetries;
+  }
+  
+  /**
+   * The initial wait in milliseconds before retrying a 429 response that
+   *   has no Retry-After header, doubled for each further retry. Defaults
+   *   to 1000.
+   */
+  public void setBackoff(long backoff)
+  { this.backoff=backoff;
+  }
+  
+  public void setLogLevel(Level logLevel)
+  { this.logLevel=logLevel;
+  }
+  
+  /**
+   * Wait until a request may be sent
+   * 
+   * @param scope The access token the request is made with, or null
+   */
+  public void acquire(String scope)
+    throws IOException
+  {
+    long now=Clock.instance().approxTimeMillis();
+    long wait=clientBucket.reserve(now);
+    Bucket tokenBucket=tokenBucket(scope,now);
+    if (tokenBucket!=null)
+    { wait=Math.max(wait,tokenBucket.reserve(now));
+    }
+    if (wait<=0)
+    { return;
+    }
+    
+    if (wait>maxWait)
+    { 
+      refund(tokenBucket);
+      throw new IOException
+        ("Rate limit would delay request by "+wait+"ms");
+    }
+    if (logLevel.isFine())
+    { log.fine("Delaying request by "+wait+"ms");
+    }
+    throttled.incrementAndGet();
+    waitMillis.addAndGet(wait);
+    try
+    { Thread.sleep(wait);
+    }
+    catch (InterruptedException x)
+    { 
+      refund(tokenBucket);
+      Thread.currentThread().interrupt();
+      InterruptedIOException ix
+        =new InterruptedIOException("Interrupted waiting for rate limit");
+      ix.initCause(x);
+      throw ix;
+    }
+  }
+  
+  /**
+   * Record the quota reported by a response
+   * 
+   * @param scope The access token the request was made with, or null
+   * @param attempt The number of times the request has been retried
+   * @return Whether the request was refused for exceeding a rate limit
+   *   and should be retried
+   */
+  public boolean update
+    (String scope,int status,Map<String,List<String>> headers,int attempt)
+  {
+    long now=Clock.instance().approxTimeMillis();
+    Bucket bucket=tokenBucket(scope,now);
+    if (bucket==null)
+    { bucket=clientBucket;
+    }
+    
+    long remaining
+      =parseCount
+        (header(headers,"X-RateLimit-Remaining","RateLimit-Remaining"));
+    if (remaining>=0)
+    {
+      long limit
+        =parseCount(header(headers,"X-RateLimit-Limit","RateLimit-Limit"));
+      long resetAt
+        =parseReset
+          (header(headers,"X-RateLimit-Reset","RateLimit-Reset"),now);
+      bucket.quota(limit,remaining,resetAt,true);
+      if (bucket!=clientBucket)
+      { clientBucket.quota(limit,remaining,resetAt,false);
+      }
+    }
+    
+    if (status!=429)
+    { return false;
+    }
+    
+    rateLimited.incrementAndGet();
+    long retryAt=parseRetryAfter(header(headers,"Retry-After"),now);
+    if (retryAt==0)
+    { retryAt=now+(backoff<<Math.min(attempt,16));
+    }
+    bucket.block(retryAt);
+    if (logLevel.isFine())
+    { log.fine("Rate limited until "+retryAt);
+    }
+    
+    if (attempt>=maxRetries || retryAt-now>maxWait)
+    { return false;
+    }
+    retries.incrementAndGet();
+    return true;
+  }
+  
+  /**
+   * The request limit of the current period last reported by the 
+   *   provider, or -1 if none has been
+   */
+  public long getLimit()
+  { 
+    synchronized (clientBucket)
+    { return clientBucket.limit;
+    }
+  }
+  
+  /**
+   * The number of requests remaining in the current period last reported
+   *   by the provider for any access token, or -1 if none has been
+   */
+  public long getRemaining()
+  { 
+    synchronized (clientBucket)
+    { return clientBucket.remaining;
+    }
+  }
+  
+  /**
+   * The number of requests remaining in the current period last reported
+   *   by the provider for the access token, or -1 if none has been
+   */
+  public long getRemaining(String scope)
+  {
+    Bucket bucket=tokenBuckets.get(scope);
+    if (bucket==null)
+    { return -1;
+    }
+    synchronized (bucket)
+    { return bucket.remaining;
+    }
+  }
+  
+  /**
+   * The time in milliseconds since the epoch at which the provider last
+   *   reported the current period ends, or 0 if it hasn't
+   */
+  public long getResetAt()
+  { 
+    synchronized (clientBucket)
+    { return clientBucket.resetAt;
+    }
+  }
+  
+  /**
+   * The number of requests that were delayed
+   */
+  public long getThrottled()
+  { return throttled.get();
+  }
+  
+  /**
+   * The total time in milliseconds requests were delayed
+   */
+  public long getWaitMillis()
+  { return waitMillis.get();
+  }
+  
+  /**
+   * The number of 429 Too Many Requests responses received
+   */
+  public long getRateLimited()
+  { return rateLimited.get();
+  }
+  
+  /**
+   * The number of requests retried after a 429 response
+   */
+  public long getRetries()
+  { return retries.get();
+  }
+  
+  @Override
+  public String toString()
+  {
+    return super.toString()
+      +": remaining="+getRemaining()
+      +" limit="+getLimit()
+      +" throttled="+throttled.get()
+      +" waitMillis="+waitMillis.get()
+      +" rateLimited="+rateLimited.get()
+      +" retries="+retries.get();
+  }
+  
+  private void refund(Bucket tokenBucket)
+  {
+    clientBucket.refund();
+    if (tokenBucket!=null)
+    { tokenBucket.refund();
+    }
+  }
+  
+  private Bucket tokenBucket(String scope,long now)
+  {
+    if (scope==null)
+    { return null;
+    }
+    Bucket bucket=tokenBuckets.get(scope);
+    if (bucket==null)
+    { 
+      // Concurrent first requests must share one bucket
+      Bucket created=new Bucket(tokenRequestsPerSecond,tokenBurst,now);
+      created.idleUntil=now+IDLE_TIME;
+      bucket=tokenBuckets.putIfAbsent(scope,created,created.idleUntil);
+      if (bucket==null)
+      { return created;
+      }
+    }
+    if (bucket.idleUntil-now<IDLE_TIME/2)
+    {
+      // Renew the idle expiry once it is half spent, not on every request
+      long idleUntil=now+IDLE_TIME;
+      if (tokenBuckets.renew(scope,bucket,idleUntil))
+      { bucket.idleUntil=idleUntil;
+      }
+    }
+    return bucket;
+  }
+  
+  private static String header
+    (Map<String,List<String>> headers,String... names)
+  {
+    for (String name:names)
+    {
+      String value=Response.header(headers,name);
+      if (value!=null)
+      { return value;
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * The leading integer of a count header, which may be followed by a
+   *   policy description, eg. "100, 100;w=60"
+   */
+  static long parseCount(String value)
+  {
+    if (value==null)
+    { return -1;
+    }
+    int end=0;
+    value=value.trim();
+    while (end<value.length() && Character.isDigit(value.charAt(end)))
+    { end++;
+    }
+    return end>0?Long.parseLong(value.substring(0,end)):-1;
+  }
+  
+  /**
+   * The reset time, given either as seconds from now or, by some 
+   *   providers, as seconds since the epoch
+   */
+  static long parseReset(String value,long now)
+  {
+    long seconds=parseCount(value);
+    if (seconds<0)
+    { return 0;
+    }
+    return seconds>1000000000L?seconds*1000:now+seconds*1000;
+  }
+  
+  /**
+   * The Retry-After time, given either as seconds from now or as an
+   *   HTTP date
+   */
+  static long parseRetryAfter(String value,long now)
+  {
+    if (value==null)
+    { return 0;
+    }
+    long seconds=parseCount(value);
+    if (seconds>=0)
+    { return now+seconds*1000;
+    }
+    try
+    {
+      return ZonedDateTime.parse
+        (value.trim(),DateTimeFormatter.RFC_1123_DATE_TIME)
+        .toInstant()
+        .toEpochMilli();
+    }
+    catch (DateTimeParseException x)
+    { return 0;
+    }
+  }
+}
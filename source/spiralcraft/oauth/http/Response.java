@@ -0,0 +1,182 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+import spiralcraft.vfs.url.URLAccessException;
+import spiralcraft.vfs.url.URLMessage;
+
+/**
+ * A fully buffered HTTP response returned by the Transport
+ * 
+ * @author mike
+ *
+ */
+public class Response
+{
+  private static final Charset UTF8=Charset.forName("UTF-8");
+  
+  private final URI uri;
+  private final int status;
+  private final String reason;
+  private final Map<String,List<String>> headers;
+  private final byte[] content;
+  
+  public Response
+    (URI uri
+    ,int status
+    ,String reason
+    ,Map<String,List<String>> headers
+    ,byte[] content
+    )
+  {
+    this.uri=uri;
+    this.status=status;
+    this.reason=reason;
+    this.headers=headers;
+    this.content=content;
+  }
+  
+  public URI getURI()
+  { return uri;
+  }
+  
+  public int getStatus()
+  { return status;
+  }
+  
+  public String getReason()
+  { return reason;
+  }
+  
+  public boolean isError()
+  { return status>=400;
+  }
+  
+  /**
+   * Whether the provider refused the request with 429 Too Many Requests
+   */
+  public boolean isRateLimited()
+  { return status==429;
+  }
+  
+  /**
+   * The response headers, keyed by field name. As returned by 
+   *   HttpURLConnection, the status line is keyed by null.
+   */
+  public Map<String,List<String>> getHeaders()
+  { return headers;
+  }
+  
+  /**
+   * The first value of the named header, matched without regard to case
+   */
+  public String getHeader(String name)
+  { return header(headers,name);
+  }
+  
+  /**
+   * The first value of the named header in a header map, matched without
+   *   regard to case
+   */
+  public static String header(Map<String,List<String>> headers,String name)
+  {
+    for (Map.Entry<String,List<String>> entry:headers.entrySet())
+    {
+      if (entry.getKey()!=null 
+          && entry.getKey().equalsIgnoreCase(name)
+          && !entry.getValue().isEmpty()
+          )
+      { return entry.getValue().get(0);
+      }
+    }
+    return null;
+  }
+  
+  public byte[] getContent()
+  { return content;
+  }
+  
+  public int getContentLength()
+  { return content.length;
+  }
+  
+  /**
+   * A new stream over the buffered content
+   */
+  public InputStream getInputStream()
+  { return new ByteArrayInputStream(content);
+  }
+  
+  /**
+   * The content decoded with the charset declared in the Content-Type
+   *   header, defaulting to UTF-8
+   */
+  public String getContentAsString()
+  { 
+    Charset charset=UTF8;
+    String contentType=getHeader("Content-Type");
+    if (contentType!=null)
+    {
+      int pos=contentType.toLowerCase().indexOf("charset=");
+      if (pos>=0)
+      { 
+        String name=contentType.substring(pos+8).trim();
+        int end=name.indexOf(';');
+        if (end>=0)
+        { name=name.substring(0,end).trim();
+        }
+        if (name.startsWith("\"") && name.endsWith("\"") && name.length()>1)
+        { name=name.substring(1,name.length()-1);
+        }
+        try
+        { charset=Charset.forName(name);
+        }
+        catch (IllegalArgumentException x)
+        { // Use the default
+        }
+      }
+    }
+    return new String(content,charset);
+  }
+  
+  public URLMessage toURLMessage()
+  { return new URLMessage(getInputStream(),content.length,headers);
+  }
+  
+  /**
+   * The exception to report for an error status
+   */
+  public URLAccessException toException()
+  {
+    return new URLAccessException
+      ("Connection returned remote error "+status+" "+reason
+        +" from URI: "+uri
+      ,null
+      ,toURLMessage()
+      );
+  }
+  
+  @Override
+  public String toString()
+  { return super.toString()+": "+status+" "+reason+" ("+uri+")";
+  }
+}
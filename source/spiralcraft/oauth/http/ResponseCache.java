@@ -0,0 +1,371 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.http;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import spiralcraft.codec.text.Base64Codec;
+import spiralcraft.time.Clock;
+
+/**
+ * <p>A bounded in-memory cache of the buffered responses to resource GETs,
+ *   governed by the Cache-Control, ETag and Last-Modified headers of each
+ *   response.
+ * </p>
+ * 
+ * <p>A response is reused without a request while it is fresh according
+ *   to its max-age. Once stale, it is revalidated with If-None-Match (or
+ *   If-Modified-Since) and reused when the provider returns 304 Not 
+ *   Modified. Each user of a cached response reads its own stream over
+ *   the content, so nothing parsed from it is shared.
+ * </p>
+ * 
+ * <p>Entries are scoped to the access token that retrieved them unless 
+ *   the caller stores them in the shared scope, which responses marked
+ *   "private" are never stored in. Tokens are held only as a SHA-256 
+ *   digest. The least recently used entries are evicted when the cache is
+ *   full.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class ResponseCache
+{
+  /**
+   * A cached response and its validators
+   */
+  public static final class Entry
+  {
+    private final Response response;
+    private final String etag;
+    private final String lastModified;
+    private final long freshUntil;
+    
+    Entry(Response response,String etag,String lastModified,long freshUntil)
+    {
+      this.response=response;
+      this.etag=etag;
+      this.lastModified=lastModified;
+      this.freshUntil=freshUntil;
+    }
+    
+    public Response getResponse()
+    { return response;
+    }
+    
+    /**
+     * Whether the entry may be used without revalidation
+     */
+    public boolean isFresh()
+    { return Clock.instance().approxTimeMillis()<freshUntil;
+    }
+    
+    /**
+     * The headers that make a request conditional on the entry being
+     *   out of date
+     */
+    public Map<String,String> conditionalHeaders()
+    {
+      Map<String,String> headers=new LinkedHashMap<String,String>();
+      if (etag!=null)
+      { headers.put("If-None-Match",etag);
+      }
+      else if (lastModified!=null)
+      { headers.put("If-Modified-Since",lastModified);
+      }
+      return headers;
+    }
+  }
+  
+  private final LinkedHashMap<String,Entry> entries;
+  private volatile int maxEntries;
+  private final AtomicLong hits=new AtomicLong();
+  private final AtomicLong misses=new AtomicLong();
+  private final AtomicLong revalidations=new AtomicLong();
+  private final AtomicLong evictions=new AtomicLong();
+  
+  public ResponseCache(int maxEntries)
+  { 
+    this.maxEntries=maxEntries;
+    this.entries
+      =new LinkedHashMap<String,Entry>(16,0.75f,true)
+      {
+        private static final long serialVersionUID=1L;
+
+        @Override
+        protected boolean removeEldestEntry
+          (Map.Entry<String,ResponseCache.Entry> eldest)
+        {
+          if (size()>ResponseCache.this.maxEntries)
+          { 
+            evictions.incrementAndGet();
+            return true;
+          }
+          return false;
+        }
+      };
+  }
+  
+  public void setMaxEntries(int maxEntries)
+  { this.maxEntries=maxEntries;
+  }
+  
+  /**
+   * The cache key for a resource retrieved with the specified access 
+   *   token, or for the shared scope if the token is null
+   */
+  public static String key(String accessToken,URI uri)
+  { return (accessToken!=null?digest(accessToken):"*")+" "+uri;
+  }
+  
+  /**
+   * The entry for the key, counted as a hit if it is fresh and as a miss
+   *   otherwise. A stale entry is returned so the request can be made 
+   *   conditional on it.
+   */
+  public Entry lookup(String key)
+  {
+    Entry entry;
+    synchronized (entries)
+    { entry=entries.get(key);
+    }
+    if (entry!=null && entry.isFresh())
+    { hits.incrementAndGet();
+    }
+    else
+    { misses.incrementAndGet();
+    }
+    return entry;
+  }
+  
+  /**
+   * Renew a stale entry from a 304 Not Modified response
+   * 
+   * @return The cached response
+   */
+  public Response revalidated(String key,Entry entry,Response response)
+  {
+    revalidations.incrementAndGet();
+    CacheControl control=new CacheControl(response.getHeaders());
+    if (control.noStore)
+    { remove(key);
+    }
+    else
+    {
+      String etag=response.getHeader("ETag");
+      String lastModified=response.getHeader("Last-Modified");
+      store
+        (key
+        ,new Entry
+          (entry.response
+          ,etag!=null?etag:entry.etag
+          ,lastModified!=null?lastModified:entry.lastModified
+          ,control.freshUntil()
+          )
+        );
+    }
+    return entry.response;
+  }
+  
+  /**
+   * Cache a successful response, if it permits it
+   * 
+   * @param key A key from key()
+   */
+  public void put(String key,Response response)
+  {
+    if (response.getStatus()!=200)
+    { return;
+    }
+    
+    CacheControl control=new CacheControl(response.getHeaders());
+    String etag=response.getHeader("ETag");
+    String lastModified=response.getHeader("Last-Modified");
+    long freshUntil=control.freshUntil();
+    if (control.noStore
+        || (control.isPrivate && key.startsWith("* "))
+        || (etag==null 
+            && lastModified==null 
+            && freshUntil<=Clock.instance().approxTimeMillis()
+            )
+        )
+    { 
+      remove(key);
+      return;
+    }
+    store(key,new Entry(response,etag,lastModified,freshUntil));
+  }
+  
+  public void remove(String key)
+  {
+    synchronized (entries)
+    { entries.remove(key);
+    }
+  }
+  
+  public void clear()
+  {
+    synchronized (entries)
+    { entries.clear();
+    }
+  }
+  
+  public int size()
+  {
+    synchronized (entries)
+    { return entries.size();
+    }
+  }
+  
+  /**
+   * The number of lookups that found a fresh entry
+   */
+  public long getHits()
+  { return hits.get();
+  }
+  
+  /**
+   * The number of lookups that found no entry or a stale one
+   */
+  public long getMisses()
+  { return misses.get();
+  }
+  
+  /**
+   * The number of stale entries renewed by a 304 Not Modified response
+   */
+  public long getRevalidations()
+  { return revalidations.get();
+  }
+  
+  public long getEvictions()
+  { return evictions.get();
+  }
+  
+  @Override
+  public String toString()
+  {
+    return super.toString()
+      +": size="+size()
+      +" hits="+hits.get()
+      +" misses="+misses.get()
+      +" revalidations="+revalidations.get()
+      +" evictions="+evictions.get();
+  }
+  
+  private void store(String key,Entry entry)
+  {
+    synchronized (entries)
+    { entries.put(key,entry);
+    }
+  }
+  
+  private static String digest(String token)
+  {
+    try
+    {
+      return Base64Codec.encodeBytes
+        (MessageDigest.getInstance("SHA-256")
+          .digest(token.getBytes(StandardCharsets.UTF_8))
+        );
+    }
+    catch (GeneralSecurityException x)
+    { throw new RuntimeException("SHA-256 not available",x);
+    }
+  }
+  
+  /**
+   * The directives of the Cache-Control headers of a response that affect
+   *   a private cache
+   */
+  private static class CacheControl
+  {
+    boolean noStore;
+    boolean noCache;
+    boolean isPrivate;
+    long maxAge=-1;
+    long age;
+    
+    CacheControl(Map<String,List<String>> headers)
+    {
+      for (Map.Entry<String,List<String>> header:headers.entrySet())
+      {
+        String name=header.getKey();
+        if (name==null)
+        { continue;
+        }
+        if (name.equalsIgnoreCase("Cache-Control"))
+        {
+          for (String value:header.getValue())
+          { parse(value);
+          }
+        }
+        else if (name.equalsIgnoreCase("Age") && !header.getValue().isEmpty())
+        { age=parseSeconds(header.getValue().get(0));
+        }
+      }
+    }
+    
+    private void parse(String value)
+    {
+      for (String directive:value.split(","))
+      {
+        directive=directive.trim().toLowerCase();
+        if (directive.equals("no-store"))
+        { noStore=true;
+        }
+        else if (directive.equals("no-cache"))
+        { noCache=true;
+        }
+        else if (directive.equals("private"))
+        { isPrivate=true;
+        }
+        else if (directive.startsWith("max-age="))
+        { maxAge=parseSeconds(directive.substring(8));
+        }
+      }
+    }
+    
+    private static long parseSeconds(String value)
+    {
+      try
+      { return Math.max(0,Long.parseLong(value.trim()));
+      }
+      catch (NumberFormatException x)
+      { return 0;
+      }
+    }
+    
+    /**
+     * The time until which a response may be used without revalidation
+     */
+    long freshUntil()
+    {
+      long now=Clock.instance().approxTimeMillis();
+      if (noCache || maxAge<=age)
+      { return now;
+      }
+      return now+(maxAge-age)*1000;
+    }
+  }
+}
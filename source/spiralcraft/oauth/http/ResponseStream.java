@@ -0,0 +1,135 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>An HTTP response whose body is read directly from the connection, 
+ *   returned by Transport.open() for responses too large to buffer.
+ * </p>
+ * 
+ * <p>The connection counts against the host's connection limit until the
+ *   stream is closed, so it must always be closed. A stream read to the
+ *   end returns the connection to the keep-alive cache.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class ResponseStream
+  implements Closeable
+{
+  private final URI uri;
+  private final int status;
+  private final String reason;
+  private final Map<String,List<String>> headers;
+  private final InputStream in;
+  
+  ResponseStream
+    (URI uri
+    ,int status
+    ,String reason
+    ,Map<String,List<String>> headers
+    ,InputStream in
+    )
+  {
+    this.uri=uri;
+    this.status=status;
+    this.reason=reason;
+    this.headers=headers;
+    this.in=in;
+  }
+  
+  public URI getURI()
+  { return uri;
+  }
+  
+  public int getStatus()
+  { return status;
+  }
+  
+  public String getReason()
+  { return reason;
+  }
+  
+  public boolean isError()
+  { return status>=400;
+  }
+  
+  /**
+   * Whether the provider refused the request with 429 Too Many Requests
+   */
+  public boolean isRateLimited()
+  { return status==429;
+  }
+  
+  public Map<String,List<String>> getHeaders()
+  { return headers;
+  }
+  
+  /**
+   * The first value of the named header, matched without regard to case
+   */
+  public String getHeader(String name)
+  { return Response.header(headers,name);
+  }
+  
+  /**
+   * The body, as it arrives from the connection
+   */
+  public InputStream getInputStream()
+  { return in;
+  }
+  
+  /**
+   * Read the rest of the body and close the stream, eg. to report an error
+   *   status
+   */
+  public Response buffer()
+    throws IOException
+  {
+    try
+    {
+      ByteArrayOutputStream out=new ByteArrayOutputStream(1024);
+      byte[] buffer=new byte[8192];
+      int count;
+      while ((count=in.read(buffer))>=0)
+      { out.write(buffer,0,count);
+      }
+      return new Response(uri,status,reason,headers,out.toByteArray());
+    }
+    finally
+    { in.close();
+    }
+  }
+  
+  @Override
+  public void close()
+    throws IOException
+  { in.close();
+  }
+  
+  @Override
+  public String toString()
+  { return super.toString()+": "+status+" "+reason+" ("+uri+")";
+  }
+}
@@ -0,0 +1,576 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+
+/**
+ * <p>A thread-safe HTTP transport shared by all the sessions of a client.
+ * </p>
+ * 
+ * <p>Connections are persistent- responses are always read to completion
+ *   and the connection is released rather than closed, so the platform
+ *   keep-alive cache can hand the warm (TLS) connection to the next 
+ *   request for the same host. Responses opened for streaming hold their
+ *   connection until the stream is closed. The number of concurrent 
+ *   connections to each host is bounded, and requests beyond the bound
+ *   wait for a free connection.
+ * </p>
+ * 
+ * <p>Idle connections are retained and expired by the platform keep-alive
+ *   cache, which retains up to http.maxConnections (default 5) idle 
+ *   connections per host for http.keepAlive.time.server seconds (default 5)
+ *   unless the server's Keep-Alive header says otherwise. The per-host 
+ *   connection bound defaults to the same limit, so every connection 
+ *   opened during a burst can be kept for reuse. Connections opened beyond
+ *   the keep-alive limit are closed when released. The idle and reuse
+ *   counts reported in the statistics track the connections released to
+ *   the cache under those limits.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class Transport
+{
+  private static final ClassLog log
+    =ClassLog.getInstance(Transport.class);
+  
+  /**
+   * The number of idle connections per host the platform keep-alive cache
+   *   retains
+   */
+  public static final int KEEP_ALIVE_LIMIT
+    =Math.max(1,Integer.getInteger("http.maxConnections",5));
+  
+  /**
+   * The time in milliseconds the platform keep-alive cache retains an
+   *   idle connection when the server does not specify a Keep-Alive timeout
+   */
+  public static final long KEEP_ALIVE_MILLIS
+    =1000L*Integer.getInteger("http.keepAlive.time.server",5);
+  
+  private final ConcurrentHashMap<String,HostPool> pools
+    =new ConcurrentHashMap<String,HostPool>();
+  
+  private volatile int connectTimeout=10000;
+  private volatile int readTimeout=30000;
+  private volatile int maxConnectionsPerHost=KEEP_ALIVE_LIMIT;
+  private volatile int connectionWaitTimeout=30000;
+  private volatile Level logLevel=Level.INFO;
+  
+  /**
+   * The maximum time in milliseconds to wait for a connection to be 
+   *   established. Defaults to 10 seconds.
+   */
+  public void setConnectTimeout(int connectTimeout)
+  { this.connectTimeout=connectTimeout;
+  }
+  
+  public int getConnectTimeout()
+  { return connectTimeout;
+  }
+  
+  /**
+   * The maximum time in milliseconds to wait for data from the server.
+   *   Defaults to 30 seconds.
+   */
+  public void setReadTimeout(int readTimeout)
+  { this.readTimeout=readTimeout;
+  }
+  
+  public int getReadTimeout()
+  { return readTimeout;
+  }
+  
+  /**
+   * The maximum number of concurrent connections to a single host. 
+   *   Defaults to the platform keep-alive limit, http.maxConnections 
+   *   (default 5). A larger value allows more concurrent requests, but the
+   *   connections beyond the keep-alive limit are closed after use and 
+   *   must be re-established (including the TLS handshake) for the next
+   *   burst. Changes apply to hosts contacted after the change.
+   */
+  public void setMaxConnectionsPerHost(int maxConnectionsPerHost)
+  { this.maxConnectionsPerHost=maxConnectionsPerHost;
+  }
+  
+  public int getMaxConnectionsPerHost()
+  { return maxConnectionsPerHost;
+  }
+  
+  /**
+   * The maximum time in milliseconds a request will wait for a connection
+   *   to a busy host to become available. Defaults to 30 seconds.
+   */
+  public void setConnectionWaitTimeout(int connectionWaitTimeout)
+  { this.connectionWaitTimeout=connectionWaitTimeout;
+  }
+  
+  public void setLogLevel(Level logLevel)
+  { this.logLevel=logLevel;
+  }
+  
+  /**
+   * Execute a request and buffer the complete response. HTTP error
+   *   statuses are returned in the Response and do not throw.
+   * 
+   * @param verb The request method
+   * @param uri The request URI
+   * @param headers Additional request headers, or null
+   * @param contentType The content type of the body, or null
+   * @param body The request body, or null for no body
+   */
+  public Response execute
+    (String verb
+    ,URI uri
+    ,Map<String,String> headers
+    ,String contentType
+    ,byte[] body
+    )
+    throws IOException
+  {
+    HostPool pool=pool(uri);
+    pool.acquire();
+    long start=System.nanoTime();
+    boolean success=false;
+    HttpURLConnection connection=null;
+    try
+    {
+      connection=connect(verb,uri,headers,contentType,body);
+      int status=connection.getResponseCode();
+      InputStream in
+        =status>=400
+        ?connection.getErrorStream()
+        :connection.getInputStream()
+        ;
+      byte[] content
+        =in!=null
+        ?readFully(in,connection.getContentLength())
+        :new byte[0]
+        ;
+      pool.bytesReceived.addAndGet(content.length);
+      
+      Response response
+        =new Response
+          (uri
+          ,status
+          ,connection.getResponseMessage()
+          ,connection.getHeaderFields()
+          ,content
+          );
+      if (logLevel.isFine())
+      { log.fine(verb+" "+uri+" -> "+status);
+      }
+      success=true;
+      return response;
+    }
+    finally
+    { 
+      if (!success)
+      { 
+        pool.failures.incrementAndGet();
+        if (connection!=null)
+        { 
+          // Don't return a connection in an unknown state to the cache
+          connection.disconnect();
+        }
+      }
+      pool.release(System.nanoTime()-start,success);
+    }
+  }
+  
+  /**
+   * <p>Execute a request and return as soon as the response headers 
+   *   arrive, leaving the body to be read from the connection.
+   * </p>
+   * 
+   * <p>The connection is held until the returned stream is closed.
+   * </p>
+   * 
+   * @see #execute(String,URI,Map,String,byte[])
+   */
+  public ResponseStream open
+    (String verb
+    ,URI uri
+    ,Map<String,String> headers
+    ,String contentType
+    ,byte[] body
+    )
+    throws IOException
+  {
+    HostPool pool=pool(uri);
+    pool.acquire();
+    long start=System.nanoTime();
+    boolean success=false;
+    HttpURLConnection connection=null;
+    try
+    {
+      connection=connect(verb,uri,headers,contentType,body);
+      int status=connection.getResponseCode();
+      InputStream in
+        =status>=400
+        ?connection.getErrorStream()
+        :connection.getInputStream()
+        ;
+      if (in==null)
+      { in=new ByteArrayInputStream(new byte[0]);
+      }
+      
+      ResponseStream response
+        =new ResponseStream
+          (uri
+          ,status
+          ,connection.getResponseMessage()
+          ,connection.getHeaderFields()
+          ,new ConnectionInputStream(in,pool,start)
+          );
+      if (logLevel.isFine())
+      { log.fine(verb+" "+uri+" -> "+status+" (streaming)");
+      }
+      success=true;
+      return response;
+    }
+    finally
+    { 
+      if (!success)
+      { 
+        pool.failures.incrementAndGet();
+        if (connection!=null)
+        { connection.disconnect();
+        }
+        pool.release(System.nanoTime()-start,false);
+      }
+    }
+  }
+  
+  private HttpURLConnection connect
+    (String verb
+    ,URI uri
+    ,Map<String,String> headers
+    ,String contentType
+    ,byte[] body
+    )
+    throws IOException
+  {
+    HttpURLConnection connection
+      =(HttpURLConnection) uri.toURL().openConnection();
+    connection.setRequestMethod(verb);
+    connection.setConnectTimeout(connectTimeout);
+    connection.setReadTimeout(readTimeout);
+    connection.setUseCaches(false);
+    connection.setDoInput(true);
+    if (headers!=null)
+    {
+      for (Map.Entry<String,String> header:headers.entrySet())
+      { connection.setRequestProperty(header.getKey(),header.getValue());
+      }
+    }
+    if (contentType!=null)
+    { connection.setRequestProperty("Content-Type",contentType);
+    }
+    if (body!=null)
+    {
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(body.length);
+      OutputStream out=connection.getOutputStream();
+      out.write(body);
+      out.close();
+    }
+    return connection;
+  }
+  
+  /**
+   * Read the stream to the end and close it, which returns the underlying
+   *   connection to the keep-alive cache.
+   */
+  private byte[] readFully(InputStream in,int contentLength)
+    throws IOException
+  {
+    try
+    {
+      ByteArrayOutputStream out
+        =new ByteArrayOutputStream(contentLength>0?contentLength:1024);
+      byte[] buffer=new byte[8192];
+      int count;
+      while ((count=in.read(buffer))>=0)
+      { out.write(buffer,0,count);
+      }
+      return out.toByteArray();
+    }
+    finally
+    { in.close();
+    }
+  }
+  
+  private HostPool pool(URI uri)
+  {
+    String key=uri.getScheme()+"://"+uri.getAuthority();
+    HostPool pool=pools.get(key);
+    if (pool==null)
+    { 
+      pool=new HostPool(key,maxConnectionsPerHost);
+      HostPool existing=pools.putIfAbsent(key,pool);
+      if (existing!=null)
+      { pool=existing;
+      }
+    }
+    return pool;
+  }
+  
+  /**
+   * A snapshot of the statistics for each host contacted
+   */
+  public List<HostStatistics> getStatistics()
+  {
+    ArrayList<HostStatistics> ret=new ArrayList<HostStatistics>();
+    for (HostPool pool:pools.values())
+    { ret.add(pool.snapshot());
+    }
+    return Collections.unmodifiableList(ret);
+  }
+  
+  /**
+   * Counts the bytes of a streamed body and releases the connection when
+   *   closed
+   */
+  private static class ConnectionInputStream
+    extends FilterInputStream
+  {
+    private final HostPool pool;
+    private final long start;
+    private boolean closed;
+    private volatile boolean exhausted;
+    
+    ConnectionInputStream(InputStream in,HostPool pool,long start)
+    { 
+      super(in);
+      this.pool=pool;
+      this.start=start;
+    }
+    
+    @Override
+    public int read()
+      throws IOException
+    {
+      int b=super.read();
+      if (b>=0)
+      { pool.bytesReceived.incrementAndGet();
+      }
+      else
+      { exhausted=true;
+      }
+      return b;
+    }
+    
+    @Override
+    public int read(byte[] buffer,int offset,int length)
+      throws IOException
+    {
+      int count=super.read(buffer,offset,length);
+      if (count>0)
+      { pool.bytesReceived.addAndGet(count);
+      }
+      else if (count<0)
+      { exhausted=true;
+      }
+      return count;
+    }
+    
+    @Override
+    public void close()
+      throws IOException
+    {
+      synchronized (this)
+      {
+        if (closed)
+        { return;
+        }
+        closed=true;
+      }
+      try
+      { super.close();
+      }
+      finally
+      { 
+        // A body abandoned before the end leaves the connection in a
+        //   state the platform may not be able to reuse
+        pool.release(System.nanoTime()-start,exhausted);
+      }
+    }
+  }
+  
+  private class HostPool
+  {
+    final String host;
+    final int maxConnections;
+    final Semaphore permits;
+    final AtomicInteger active=new AtomicInteger();
+    final AtomicInteger waiting=new AtomicInteger();
+    final AtomicInteger peakActive=new AtomicInteger();
+    final AtomicLong requests=new AtomicLong();
+    final AtomicLong failures=new AtomicLong();
+    final AtomicLong waitNanos=new AtomicLong();
+    final AtomicLong requestNanos=new AtomicLong();
+    final AtomicLong bytesReceived=new AtomicLong();
+    final AtomicLong reused=new AtomicLong();
+    final AtomicLong opened=new AtomicLong();
+    
+    /**
+     * Release times of the connections presumed idle in the platform 
+     *   keep-alive cache, most recent last
+     */
+    private final ArrayDeque<Long> idle=new ArrayDeque<Long>();
+    
+    HostPool(String host,int maxConnections)
+    { 
+      this.host=host;
+      this.maxConnections=maxConnections;
+      this.permits=new Semaphore(maxConnections,true);
+    }
+    
+    void acquire()
+      throws IOException
+    {
+      if (!permits.tryAcquire())
+      {
+        long start=System.nanoTime();
+        waiting.incrementAndGet();
+        try
+        {
+          if (!permits.tryAcquire(connectionWaitTimeout,TimeUnit.MILLISECONDS))
+          { 
+            failures.incrementAndGet();
+            throw new IOException
+              ("Timed out waiting for a connection to "+host
+              +" ("+maxConnections+" in use)"
+              );
+          }
+        }
+        catch (InterruptedException x)
+        { 
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException
+            ("Interrupted waiting for a connection to "+host);
+        }
+        finally
+        { 
+          waiting.decrementAndGet();
+          waitNanos.addAndGet(System.nanoTime()-start);
+        }
+      }
+      requests.incrementAndGet();
+      if (takeIdle())
+      { reused.incrementAndGet();
+      }
+      else
+      { opened.incrementAndGet();
+      }
+      int current=active.incrementAndGet();
+      int peak;
+      while (current>(peak=peakActive.get())
+            && !peakActive.compareAndSet(peak,current)
+            )
+      {
+      }
+    }
+    
+    /**
+     * @param keptAlive Whether the response was read to completion, which
+     *   returns the connection to the keep-alive cache
+     */
+    void release(long elapsedNanos,boolean keptAlive)
+    {
+      requestNanos.addAndGet(elapsedNanos);
+      if (keptAlive)
+      { putIdle();
+      }
+      active.decrementAndGet();
+      permits.release();
+    }
+    
+    private synchronized boolean takeIdle()
+    { 
+      expireIdle();
+      return idle.pollLast()!=null;
+    }
+    
+    private synchronized void putIdle()
+    {
+      expireIdle();
+      if (idle.size()>=KEEP_ALIVE_LIMIT)
+      { 
+        // The cache is full and closes the connection
+        return;
+      }
+      idle.addLast(System.currentTimeMillis());
+    }
+    
+    private synchronized int idleCount()
+    { 
+      expireIdle();
+      return idle.size();
+    }
+    
+    private void expireIdle()
+    {
+      long cutoff=System.currentTimeMillis()-KEEP_ALIVE_MILLIS;
+      Long oldest;
+      while ((oldest=idle.peekFirst())!=null && oldest<cutoff)
+      { idle.pollFirst();
+      }
+    }
+    
+    HostStatistics snapshot()
+    {
+      return new HostStatistics
+        (host
+        ,maxConnections
+        ,active.get()
+        ,idleCount()
+        ,peakActive.get()
+        ,waiting.get()
+        ,requests.get()
+        ,failures.get()
+        ,TimeUnit.NANOSECONDS.toMillis(waitNanos.get())
+        ,TimeUnit.NANOSECONDS.toMillis(requestNanos.get())
+        ,bytesReceived.get()
+        ,opened.get()
+        ,reused.get()
+        );
+    }
+  }
+}
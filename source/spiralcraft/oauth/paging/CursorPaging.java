@@ -0,0 +1,76 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.paging;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * <p>Follows an opaque cursor returned in the page body, eg.
+ *   "paging.cursors.after" or "next_cursor", by passing it back in a 
+ *   query parameter. When the body carries the complete URI of the next
+ *   page instead, eg. "paging.next", use nextURIPath.
+ * </p>
+ * 
+ * <p>The last page is the one without a cursor (or with an empty one), or
+ *   with no records.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class CursorPaging
+  extends Paging
+{
+  private final String path;
+  private final String parameter;
+  
+  /**
+   * @param cursorPath The dotted path to the cursor in the page body
+   * @param cursorParameter The query parameter that carries the cursor
+   */
+  public CursorPaging(String cursorPath,String cursorParameter)
+  { 
+    this.path=cursorPath;
+    this.parameter=cursorParameter;
+  }
+  
+  /**
+   * Follow the complete URI of the next page found at the dotted path in
+   *   the page body
+   */
+  public static CursorPaging nextURIPath(String nextURIPath)
+  { return new CursorPaging(nextURIPath,null);
+  }
+  
+  @Override
+  public Set<String> getValuePaths()
+  { return Collections.singleton(path);
+  }
+  
+  @Override
+  public URI next(Page<?> page)
+  {
+    String cursor=page.getValue(path);
+    if (cursor==null || cursor.isEmpty() || page.getItems().isEmpty())
+    { return null;
+    }
+    return parameter!=null
+      ?withParameter(page.getURI(),parameter,cursor)
+      :page.getURI().resolve(cursor)
+      ;
+  }
+}
@@ -0,0 +1,103 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.paging;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Follows the rel="next" link of the RFC 8288 Link response header, 
+ *   as used by GitHub and many REST APIs.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class LinkPaging
+  extends Paging
+{
+  @Override
+  public URI next(Page<?> page)
+  {
+    for (Map.Entry<String,List<String>> header:page.getHeaders().entrySet())
+    {
+      if (header.getKey()==null || !header.getKey().equalsIgnoreCase("Link"))
+      { continue;
+      }
+      for (String value:header.getValue())
+      {
+        String next=findNext(value);
+        if (next!=null)
+        { return page.getURI().resolve(next);
+        }
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Find the target of the rel="next" link in a Link header value
+   */
+  static String findNext(String value)
+  {
+    int pos=0;
+    while (true)
+    {
+      int open=value.indexOf('<',pos);
+      if (open<0)
+      { return null;
+      }
+      int close=value.indexOf('>',open);
+      if (close<0)
+      { return null;
+      }
+      
+      // Parameters run to the next link, which begins with ",<"
+      int end=value.indexOf('<',close);
+      String params
+        =end<0?value.substring(close+1):value.substring(close+1,end);
+      params=params.trim();
+      if (end>=0 && params.endsWith(","))
+      { params=params.substring(0,params.length()-1);
+      }
+      for (String param:params.split(";"))
+      {
+        param=param.trim();
+        if (param.regionMatches(true,0,"rel",0,3))
+        {
+          String rel=param.substring(3).trim();
+          if (rel.startsWith("="))
+          { 
+            rel=rel.substring(1).trim();
+            if (rel.startsWith("\"") && rel.endsWith("\"") && rel.length()>1)
+            { rel=rel.substring(1,rel.length()-1);
+            }
+            for (String type:rel.split(" "))
+            {
+              if (type.equalsIgnoreCase("next"))
+              { return value.substring(open+1,close).trim();
+              }
+            }
+          }
+        }
+      }
+      if (end<0)
+      { return null;
+      }
+      pos=end;
+    }
+  }
+}
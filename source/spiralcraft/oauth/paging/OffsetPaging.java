@@ -0,0 +1,80 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.paging;
+
+import java.net.URI;
+
+/**
+ * <p>Advances a numeric offset query parameter by the number of records
+ *   on each page.
+ * </p>
+ * 
+ * <p>The last page is the one with fewer records than the page size, or
+ *   with none when the page size isn't known. The page size is read from 
+ *   the limit query parameter of the first URI when configured.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class OffsetPaging
+  extends Paging
+{
+  private final String offsetParameter;
+  private final String limitParameter;
+  
+  /**
+   * @param offsetParameter The query parameter that carries the offset
+   *   of the first record, eg. "offset" or "start"
+   * @param limitParameter The query parameter that carries the page size,
+   *   eg. "limit", or null
+   */
+  public OffsetPaging(String offsetParameter,String limitParameter)
+  { 
+    this.offsetParameter=offsetParameter;
+    this.limitParameter=limitParameter;
+  }
+  
+  @Override
+  public URI next(Page<?> page)
+  {
+    int count=page.getItems().size();
+    if (count==0)
+    { return null;
+    }
+    
+    URI uri=page.getURI();
+    long limit
+      =limitParameter!=null?parse(getParameter(uri,limitParameter)):-1;
+    if (limit>0 && count<limit)
+    { return null;
+    }
+    long offset=Math.max(0,parse(getParameter(uri,offsetParameter)));
+    return withParameter(uri,offsetParameter,Long.toString(offset+count));
+  }
+  
+  private static long parse(String value)
+  {
+    if (value==null)
+    { return -1;
+    }
+    try
+    { return Long.parseLong(value.trim());
+    }
+    catch (NumberFormatException x)
+    { return -1;
+    }
+  }
+}
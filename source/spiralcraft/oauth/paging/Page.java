@@ -0,0 +1,85 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.paging;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import spiralcraft.oauth.http.Response;
+
+/**
+ * <p>One page of a paged resource: its records, its response headers and
+ *   the body values the Paging asked for, such as a cursor.
+ * </p>
+ * 
+ * @author mike
+ *
+ * @param <T> The record type
+ */
+public class Page<T>
+{
+  private final URI uri;
+  private final Map<String,List<String>> headers;
+  private final List<T> items;
+  private final Map<String,String> values;
+  
+  Page
+    (URI uri
+    ,Map<String,List<String>> headers
+    ,List<T> items
+    ,Map<String,String> values
+    )
+  {
+    this.uri=uri;
+    this.headers=headers;
+    this.items=items;
+    this.values=values;
+  }
+  
+  /**
+   * The URI this page was requested from
+   */
+  public URI getURI()
+  { return uri;
+  }
+  
+  public Map<String,List<String>> getHeaders()
+  { return headers;
+  }
+  
+  /**
+   * The first value of the named response header, matched without 
+   *   regard to case
+   */
+  public String getHeader(String name)
+  { return Response.header(headers,name);
+  }
+  
+  /**
+   * The records on this page
+   */
+  public List<T> getItems()
+  { return items;
+  }
+  
+  /**
+   * The scalar body value found at a dotted path requested by the Paging,
+   *   or null if it was absent or null
+   */
+  public String getValue(String path)
+  { return values.get(path);
+  }
+}
@@ -0,0 +1,135 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.paging;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import spiralcraft.oauth.http.Response;
+import spiralcraft.oauth.util.JsonArrayStream;
+import spiralcraft.oauth.util.JsonReader;
+
+/**
+ * Reads the records and the requested values of a page in one pass, 
+ *   skipping the rest of the body
+ * 
+ * @author mike
+ *
+ */
+class PageReader<T>
+{
+  private final String itemsPath;
+  private final Set<String> valuePaths;
+  private final JsonArrayStream.ElementReader<T> elementReader;
+  
+  PageReader
+    (String itemsPath
+    ,Set<String> valuePaths
+    ,JsonArrayStream.ElementReader<T> elementReader
+    )
+  {
+    this.itemsPath=itemsPath!=null?itemsPath:"";
+    this.valuePaths=valuePaths;
+    this.elementReader=elementReader;
+  }
+  
+  Page<T> read(URI uri,Response response)
+    throws IOException
+  {
+    List<T> items=new ArrayList<T>();
+    Map<String,String> values=new HashMap<String,String>();
+    JsonReader reader
+      =new JsonReader
+        (new InputStreamReader
+          (response.getInputStream(),StandardCharsets.UTF_8)
+        );
+    try
+    { visit(reader,"",items,values);
+    }
+    finally
+    { reader.close();
+    }
+    return new Page<T>(uri,response.getHeaders(),items,values);
+  }
+  
+  private void visit
+    (JsonReader reader
+    ,String path
+    ,List<T> items
+    ,Map<String,String> values
+    )
+    throws IOException
+  {
+    JsonReader.Token token=reader.peek();
+    if (path.equals(itemsPath))
+    {
+      if (token==JsonReader.Token.NULL)
+      { reader.nextNull();
+      }
+      else
+      {
+        reader.beginArray();
+        while (reader.hasNext())
+        { items.add(elementReader.read(reader));
+        }
+        reader.endArray();
+      }
+    }
+    else if (valuePaths.contains(path)
+            && token!=JsonReader.Token.BEGIN_OBJECT
+            && token!=JsonReader.Token.BEGIN_ARRAY
+            )
+    { values.put(path,reader.nextScalar());
+    }
+    else if (token==JsonReader.Token.BEGIN_OBJECT && leadsToWanted(path))
+    {
+      reader.beginObject();
+      while (reader.hasNext())
+      {
+        String name=reader.nextName();
+        visit(reader,path.isEmpty()?name:path+"."+name,items,values);
+      }
+      reader.endObject();
+    }
+    else
+    { reader.skipValue();
+    }
+  }
+  
+  private boolean leadsToWanted(String path)
+  {
+    if (path.isEmpty())
+    { return true;
+    }
+    String prefix=path+".";
+    if (itemsPath.startsWith(prefix))
+    { return true;
+    }
+    for (String valuePath:valuePaths)
+    {
+      if (valuePath.startsWith(prefix))
+      { return true;
+      }
+    }
+    return false;
+  }
+}
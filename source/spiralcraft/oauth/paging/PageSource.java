@@ -0,0 +1,37 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.paging;
+
+import java.io.IOException;
+import java.net.URI;
+
+import spiralcraft.oauth.http.Response;
+
+/**
+ * Performs the authorized request for one page of a paged resource
+ * 
+ * @author mike
+ *
+ */
+public interface PageSource
+{
+  /**
+   * Request the page at the specified URI
+   * 
+   * @throws IOException if the request fails or returns an error status
+   */
+  Response fetch(URI uri)
+    throws IOException;
+}
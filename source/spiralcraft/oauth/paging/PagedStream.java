@@ -0,0 +1,315 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.paging;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import spiralcraft.oauth.http.Response;
+import spiralcraft.oauth.util.JsonArrayStream;
+import spiralcraft.oauth.util.SingleFlight;
+
+/**
+ * <p>Iterates over the records of every page of a paged resource as one
+ *   stream, following the Paging from each page to the next.
+ * </p>
+ * 
+ * <p>Pages are requested on an Executor ahead of the consumer: as soon as
+ *   a page arrives and the URI of the following page is known, that page
+ *   is requested, so the next round trip overlaps the processing of the
+ *   current page. The look-ahead bounds how many pages are held beyond 
+ *   the one being read.
+ * </p>
+ * 
+ * <p>Request and parse errors surface from hasNext() and next() as an 
+ *   UncheckedIOException, after the records of the preceding pages. 
+ *   Iteration stops after maxPages pages, or if a page links to itself.
+ * </p>
+ * 
+ * @author mike
+ *
+ * @param <T> The record type
+ */
+public class PagedStream<T>
+  implements Iterator<T>,Closeable
+{
+  private final PageSource source;
+  private final Paging paging;
+  private final PageReader<T> pageReader;
+  private final Executor executor;
+  private final ArrayDeque<CompletableFuture<Page<T>>> pages
+    =new ArrayDeque<CompletableFuture<Page<T>>>();
+  private int lookahead=1;
+  private int maxPages=Integer.MAX_VALUE;
+  
+  private URI nextURI;
+  private boolean fetching;
+  private boolean closed;
+  private int pagesRequested;
+  private int pagesRead;
+  private Iterator<T> current=Collections.<T>emptyList().iterator();
+  private long count;
+  
+  /**
+   * @param source Performs the page requests
+   * @param first The URI of the first page
+   * @param itemsPath The dotted path to the records array in each page, 
+   *   or null if each page is the array
+   * @param paging Finds the next page
+   * @param elementReader Converts each record
+   * @param executor Runs the page requests
+   */
+  public PagedStream
+    (PageSource source
+    ,URI first
+    ,String itemsPath
+    ,Paging paging
+    ,JsonArrayStream.ElementReader<T> elementReader
+    ,Executor executor
+    )
+  {
+    this.source=source;
+    this.nextURI=first;
+    this.paging=paging;
+    this.pageReader
+      =new PageReader<T>(itemsPath,paging.getValuePaths(),elementReader);
+    this.executor=executor;
+  }
+  
+  /**
+   * The number of pages requested ahead of the page being read. Defaults
+   *   to 1. With 0, each page is requested only when the reader reaches
+   *   it. Set before iteration begins.
+   * 
+   * @param lookahead
+   */
+  public void setLookahead(int lookahead)
+  { this.lookahead=Math.max(0,lookahead);
+  }
+  
+  /**
+   * The maximum number of pages to read
+   * 
+   * @param maxPages
+   */
+  public void setMaxPages(int maxPages)
+  { this.maxPages=maxPages;
+  }
+  
+  /**
+   * The number of records returned so far
+   */
+  public long getCount()
+  { return count;
+  }
+  
+  /**
+   * The number of pages received so far
+   */
+  public int getPageCount()
+  { return pagesRead;
+  }
+  
+  @Override
+  public boolean hasNext()
+  {
+    while (!current.hasNext())
+    {
+      fill(true);
+      CompletableFuture<Page<T>> next;
+      synchronized (this)
+      { 
+        if (closed)
+        { return false;
+        }
+        next=pages.poll();
+      }
+      if (next==null)
+      { 
+        close();
+        return false;
+      }
+      fill(false);
+      
+      try
+      { current=SingleFlight.await(next).getItems().iterator();
+      }
+      catch (IOException x)
+      { throw fail(x);
+      }
+      catch (RuntimeException x)
+      { 
+        close();
+        throw x;
+      }
+      catch (Exception x)
+      { throw fail(new IOException(x));
+      }
+      pagesRead++;
+    }
+    return true;
+  }
+  
+  @Override
+  public T next()
+  {
+    if (!hasNext())
+    { throw new NoSuchElementException();
+    }
+    count++;
+    return current.next();
+  }
+  
+  @Override
+  public void remove()
+  { throw new UnsupportedOperationException();
+  }
+  
+  /**
+   * Pass each remaining record to the handler, then close the stream
+   * 
+   * @return The number of records handled
+   */
+  public long drainTo(JsonArrayStream.ElementHandler<? super T> handler)
+    throws IOException
+  {
+    long start=count;
+    try
+    {
+      while (hasNext())
+      { handler.element(next());
+      }
+    }
+    catch (UncheckedIOException x)
+    { throw x.getCause();
+    }
+    finally
+    { close();
+    }
+    return count-start;
+  }
+  
+  /**
+   * Stop reading. Requests in flight complete but are discarded.
+   */
+  @Override
+  public synchronized void close()
+  {
+    closed=true;
+    pages.clear();
+    current=Collections.<T>emptyList().iterator();
+  }
+  
+  /**
+   * Request the next page if its URI is known and the look-ahead allows
+   * 
+   * @param demand Whether the reader needs the next page now, which 
+   *   requests it when none is pending whatever the look-ahead
+   */
+  private void fill(boolean demand)
+  {
+    final URI uri;
+    final CompletableFuture<Page<T>> future
+      =new CompletableFuture<Page<T>>();
+    synchronized (this)
+    {
+      if (closed 
+          || fetching 
+          || nextURI==null 
+          || (pages.size()>=lookahead && !(demand && pages.isEmpty()))
+          || pagesRequested>=maxPages
+          )
+      { return;
+      }
+      uri=nextURI;
+      nextURI=null;
+      fetching=true;
+      pagesRequested++;
+      pages.add(future);
+    }
+    
+    try
+    {
+      executor.execute
+        (new Runnable()
+        {
+          @Override
+          public void run()
+          { fetch(uri,future);
+          }
+        }
+        );
+    }
+    catch (RejectedExecutionException x)
+    { failed(future,new IOException("Paging stopped",x));
+    }
+  }
+  
+  private void failed(CompletableFuture<Page<T>> future,Throwable x)
+  {
+    synchronized (this)
+    { fetching=false;
+    }
+    future.completeExceptionally(x);
+  }
+  
+  private void fetch(URI uri,CompletableFuture<Page<T>> future)
+  {
+    Page<T> page;
+    URI next;
+    try
+    {
+      Response response=source.fetch(uri);
+      page=pageReader.read(uri,response);
+      next=paging.next(page);
+      if (next!=null && next.equals(uri))
+      { next=null;
+      }
+    }
+    catch (Exception x)
+    {
+      failed(future,x);
+      return;
+    }
+    catch (Error x)
+    {
+      failed(future,x);
+      throw x;
+    }
+    
+    synchronized (this)
+    { 
+      fetching=false;
+      nextURI=next;
+    }
+    future.complete(page);
+    fill(false);
+  }
+  
+  private UncheckedIOException fail(IOException x)
+  {
+    close();
+    return new UncheckedIOException(x);
+  }
+}
@@ -0,0 +1,115 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.paging;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collections;
+import java.util.Set;
+
+import spiralcraft.util.URIUtil;
+
+/**
+ * <p>Determines the URI of the page that follows a page of a paged 
+ *   resource.
+ * </p>
+ * 
+ * <p>Implementations are stateless and may be shared.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public abstract class Paging
+{
+  /**
+   * The dotted paths of the scalar body values next() needs, which are
+   *   captured as the page is read
+   */
+  public Set<String> getValuePaths()
+  { return Collections.emptySet();
+  }
+  
+  /**
+   * The URI of the next page, or null if this is the last page
+   */
+  public abstract URI next(Page<?> page)
+    throws IOException;
+  
+  /**
+   * Replace the named query parameter of the URI, or add it if absent
+   */
+  public static URI withParameter(URI uri,String name,String value)
+  {
+    String encodedName=encode(name);
+    StringBuilder query=new StringBuilder();
+    String rawQuery=uri.getRawQuery();
+    if (rawQuery!=null)
+    {
+      for (String pair:rawQuery.split("&"))
+      {
+        if (pair.isEmpty() 
+            || pair.equals(encodedName) 
+            || pair.startsWith(encodedName+"=")
+            )
+        { continue;
+        }
+        query.append(pair).append('&');
+      }
+    }
+    query.append(encodedName).append('=').append(encode(value));
+    return URIUtil.replaceRawQuery(uri,query.toString());
+  }
+  
+  /**
+   * The decoded value of the named query parameter of the URI, or null
+   */
+  public static String getParameter(URI uri,String name)
+  {
+    String rawQuery=uri.getRawQuery();
+    if (rawQuery==null)
+    { return null;
+    }
+    String prefix=encode(name)+"=";
+    for (String pair:rawQuery.split("&"))
+    {
+      if (pair.startsWith(prefix))
+      { 
+        try
+        { 
+          return URLDecoder.decode
+            (pair.substring(prefix.length()),"UTF-8");
+        }
+        catch (UnsupportedEncodingException x)
+        { throw new RuntimeException(x);
+        }
+      }
+    }
+    return null;
+  }
+  
+  private static String encode(String value)
+  {
+    try
+    { return URLEncoder.encode(value,"UTF-8");
+    }
+    catch (UnsupportedEncodingException x)
+    { throw new RuntimeException(x);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.session;
+
+import java.security.GeneralSecurityException;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * <p>Keeps the entire session state in a sealed cookie, so that the server
+ *   holds no per-user state.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class CookieSessionPersistence<S extends PersistentSession>
+  extends SessionPersistence<S>
+{
+  private final SealedCookie cookie;
+  
+  public CookieSessionPersistence(Factory<S> factory,SealedCookie cookie)
+  { 
+    super(factory);
+    this.cookie=cookie;
+  }
+  
+  @Override
+  protected byte[] load(HttpServletRequest request,Binding<S> binding)
+  { 
+    StateSealer.Unsealed contents=cookie.open(request);
+    if (contents==null)
+    { return null;
+    }
+    binding.renew=cookie.isRenewalDue(contents);
+    return contents.getData();
+  }
+  
+  @Override
+  protected void store(Binding<S> binding,byte[] data)
+    throws GeneralSecurityException
+  { cookie.write(binding.request,binding.response,data);
+  }
+  
+  @Override
+  protected boolean writesResponse()
+  { return true;
+  }
+}
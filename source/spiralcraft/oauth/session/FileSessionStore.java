@@ -0,0 +1,135 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.session;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * <p>A SessionStore that keeps each session's state in a file in a 
+ *   directory, which may be on a shared filesystem. Intended for 
+ *   development and small deployments.
+ * </p>
+ * 
+ * <p>File names are derived from a hash of the session id. Files are
+ *   replaced atomically, so a reader never sees a partial write.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class FileSessionStore
+  implements SessionStore
+{
+  private static final char[] HEX="0123456789abcdef".toCharArray();
+  
+  private Path directory;
+  
+  public FileSessionStore()
+  {
+  }
+  
+  public FileSessionStore(File directory)
+  { setDirectory(directory);
+  }
+  
+  /**
+   * The directory that holds the session files, which is created if it
+   *   doesn't exist
+   */
+  public void setDirectory(File directory)
+  { this.directory=directory.toPath();
+  }
+  
+  @Override
+  public byte[] load(String id)
+    throws IOException
+  {
+    try
+    { return Files.readAllBytes(path(id));
+    }
+    catch (NoSuchFileException x)
+    { return null;
+    }
+  }
+  
+  @Override
+  public void save(String id,byte[] state)
+    throws IOException
+  {
+    Files.createDirectories(directory);
+    Path target=path(id);
+    Path temp=Files.createTempFile(directory,".session",".tmp");
+    try
+    {
+      Files.write(temp,state);
+      try
+      { 
+        Files.move
+          (temp
+          ,target
+          ,StandardCopyOption.REPLACE_EXISTING
+          ,StandardCopyOption.ATOMIC_MOVE
+          );
+      }
+      catch (AtomicMoveNotSupportedException x)
+      { Files.move(temp,target,StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    finally
+    { Files.deleteIfExists(temp);
+    }
+  }
+  
+  @Override
+  public void remove(String id)
+    throws IOException
+  { Files.deleteIfExists(path(id));
+  }
+  
+  private Path path(String id)
+    throws IOException
+  {
+    if (directory==null)
+    { throw new IOException("No directory configured for FileSessionStore");
+    }
+    
+    byte[] digest;
+    try
+    { 
+      digest=MessageDigest.getInstance("SHA-256")
+        .digest(id.getBytes(StandardCharsets.UTF_8));
+    }
+    catch (GeneralSecurityException x)
+    { throw new IOException("Error hashing session id",x);
+    }
+    
+    char[] name=new char[digest.length*2];
+    for (int i=0;i<digest.length;i++)
+    {
+      name[i*2]=HEX[(digest[i] >> 4) & 0x0F];
+      name[i*2+1]=HEX[digest[i] & 0x0F];
+    }
+    return directory.resolve(new String(name)+".session");
+  }
+}
@@ -0,0 +1,146 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.session;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import spiralcraft.time.Clock;
+
+/**
+ * <p>A SessionStore that keeps state in memory, for a single node or for
+ *   testing. Entries not accessed within the idle timeout are discarded,
+ *   as are the least recently accessed entries when the store is full.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class MemorySessionStore
+  implements SessionStore
+{
+  private static class Entry
+  {
+    final byte[] state;
+    volatile long accessedAt;
+    
+    Entry(byte[] state,long accessedAt)
+    { 
+      this.state=state;
+      this.accessedAt=accessedAt;
+    }
+  }
+  
+  private final ConcurrentHashMap<String,Entry> entries
+    =new ConcurrentHashMap<String,Entry>();
+  private long idleTimeout=24*60*60*1000L;
+  private int maxEntries=100000;
+  
+  /**
+   * How long in milliseconds an entry is kept after it was last loaded or 
+   *   saved. Defaults to 24 hours. 0 disables expiration.
+   */
+  public void setIdleTimeout(long idleTimeout)
+  { this.idleTimeout=idleTimeout;
+  }
+  
+  /**
+   * The maximum number of entries. Defaults to 100000.
+   */
+  public void setMaxEntries(int maxEntries)
+  { this.maxEntries=maxEntries;
+  }
+  
+  public int size()
+  { return entries.size();
+  }
+  
+  @Override
+  public byte[] load(String id)
+  {
+    Entry entry=entries.get(id);
+    if (entry==null)
+    { return null;
+    }
+    
+    long now=Clock.instance().approxTimeMillis();
+    if (idleTimeout>0 && now-entry.accessedAt>idleTimeout)
+    { 
+      entries.remove(id,entry);
+      return null;
+    }
+    entry.accessedAt=now;
+    return entry.state;
+  }
+  
+  @Override
+  public void save(String id,byte[] state)
+  {
+    entries.put(id,new Entry(state,Clock.instance().approxTimeMillis()));
+    if (entries.size()>maxEntries)
+    { trim();
+    }
+  }
+  
+  @Override
+  public void remove(String id)
+  { entries.remove(id);
+  }
+  
+  /**
+   * Discard expired entries, then the least recently accessed until the
+   *   store is back under capacity
+   */
+  private synchronized void trim()
+  {
+    long now=Clock.instance().approxTimeMillis();
+    if (idleTimeout>0)
+    {
+      for (Iterator<Entry> it=entries.values().iterator();it.hasNext();)
+      {
+        if (now-it.next().accessedAt>idleTimeout)
+        { it.remove();
+        }
+      }
+    }
+    
+    while (entries.size()>maxEntries)
+    {
+      String oldestId=null;
+      long oldest=Long.MAX_VALUE;
+      for (Map.Entry<String,Entry> entry:entries.entrySet())
+      {
+        if (entry.getValue().accessedAt<oldest)
+        { 
+          oldest=entry.getValue().accessedAt;
+          oldestId=entry.getKey();
+        }
+      }
+      if (oldestId==null)
+      { break;
+      }
+      
+      // Remove everything as old as the oldest to bound the scans
+      long cutoff=oldest;
+      for (Iterator<Entry> it=entries.values().iterator();it.hasNext();)
+      {
+        if (it.next().accessedAt<=cutoff)
+        { it.remove();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,40 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.session;
+
+import java.io.IOException;
+
+/**
+ * <p>A session whose authentication state can be kept outside of the JVM
+ *   in a compact binary form
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public interface PersistentSession
+{
+  /**
+   * Encode the state of the session in a versioned binary form
+   */
+  byte[] exportState()
+    throws IOException;
+  
+  /**
+   * Restore state produced by exportState()
+   */
+  void importState(byte[] data)
+    throws IOException;
+}
@@ -0,0 +1,208 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.session;
+
+import java.security.GeneralSecurityException;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+import spiralcraft.time.Clock;
+
+/**
+ * <p>Stores a small amount of binary state in an encrypted, authenticated
+ *   cookie (see StateSealer) so that it can be recovered on any node 
+ *   without server side storage.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class SealedCookie
+{
+  private static final ClassLog log
+    =ClassLog.getInstance(SealedCookie.class);
+  
+  /**
+   * Browsers are only required to store 4096 bytes per cookie, including
+   *   its name and attributes
+   */
+  private static final int MAX_VALUE_LENGTH=3800;
+  
+  /**
+   * The default seal max age in seconds, one day
+   */
+  public static final int DEFAULT_SEAL_MAX_AGE=24*60*60;
+  
+  private final String name;
+  private final StateSealer sealer;
+  private String path;
+  private String domain;
+  private int maxAge=-1;
+  private int sealMaxAge=DEFAULT_SEAL_MAX_AGE;
+  private boolean secure=true;
+  
+  /**
+   * @param name The cookie name, which is also bound to the sealed data
+   * @param keys The base64 encoded AES keys, current key first
+   */
+  public SealedCookie(String name,String ... keys)
+    throws GeneralSecurityException
+  {
+    this.name=name;
+    this.sealer=new StateSealer(keys);
+    sealer.setMaxAge(sealMaxAge*1000L);
+  }
+  
+  public String getName()
+  { return name;
+  }
+  
+  /**
+   * The cookie path. Defaults to the context path of the web application.
+   * 
+   * @param path
+   */
+  public void setPath(String path)
+  { this.path=path;
+  }
+  
+  public void setDomain(String domain)
+  { this.domain=domain;
+  }
+  
+  /**
+   * The cookie lifetime in seconds in the browser. The default of -1 
+   *   makes it a browser session cookie.
+   */
+  public void setMaxAge(int maxAge)
+  { this.maxAge=maxAge;
+  }
+  
+  /**
+   * <p>The time in seconds after it was sealed that the server stops 
+   *   accepting a cookie, whatever its lifetime in the browser, so a 
+   *   captured cookie can't be replayed indefinitely. Defaults to one day.
+   * </p>
+   * 
+   * <p>State that is still in use is resealed once half this time has 
+   *   passed (see isRenewalDue()).
+   * </p>
+   * 
+   * @throws IllegalArgumentException if sealMaxAge is not positive
+   */
+  public void setSealMaxAge(int sealMaxAge)
+  { 
+    if (sealMaxAge<=0)
+    { throw new IllegalArgumentException("sealMaxAge must be positive");
+    }
+    this.sealMaxAge=sealMaxAge;
+    sealer.setMaxAge(sealMaxAge*1000L);
+  }
+  
+  /**
+   * Whether state read from the cookie has used half its seal max age and
+   *   should be sealed again to stay valid
+   */
+  public boolean isRenewalDue(StateSealer.Unsealed contents)
+  { 
+    return Clock.instance().approxTimeMillis()-contents.getSealedAt()
+      >sealMaxAge*500L;
+  }
+  
+  /**
+   * Whether the cookie is only sent over HTTPS. Defaults to true.
+   */
+  public void setSecure(boolean secure)
+  { this.secure=secure;
+  }
+  
+  /**
+   * Recover the state from the request, if it carries a valid cookie
+   * 
+   * @return The state, or null if there is no cookie or it can't be
+   *   verified
+   */
+  public byte[] read(HttpServletRequest request)
+  {
+    StateSealer.Unsealed contents=open(request);
+    return contents!=null?contents.getData():null;
+  }
+  
+  /**
+   * Recover the state from the request, with the time it was sealed
+   * 
+   * @return The state, or null if there is no cookie or it can't be
+   *   verified
+   */
+  public StateSealer.Unsealed open(HttpServletRequest request)
+  {
+    Cookie[] cookies=request.getCookies();
+    if (cookies==null)
+    { return null;
+    }
+    for (Cookie cookie:cookies)
+    {
+      if (name.equals(cookie.getName()))
+      { 
+        StateSealer.Unsealed contents=sealer.open(cookie.getValue(),name);
+        if (contents!=null)
+        { return contents;
+        }
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Set the cookie to the sealed state, or remove it if the state is null
+   */
+  public void write
+    (HttpServletRequest request,HttpServletResponse response,byte[] data)
+    throws GeneralSecurityException
+  {
+    Cookie cookie;
+    if (data==null)
+    { 
+      cookie=new Cookie(name,"");
+      cookie.setMaxAge(0);
+    }
+    else
+    {
+      String value=sealer.seal(data,name);
+      if (value.length()>MAX_VALUE_LENGTH)
+      { 
+        log.log
+          (Level.WARNING
+          ,"Sealed cookie "+name+" is "+value.length()
+          +" bytes and may be discarded by the browser"
+          );
+      }
+      cookie=new Cookie(name,value);
+      cookie.setMaxAge(maxAge);
+    }
+    cookie.setPath
+      (path!=null?path:SessionPersistence.contextPath(request));
+    if (domain!=null)
+    { cookie.setDomain(domain);
+    }
+    cookie.setSecure(secure);
+    cookie.setHttpOnly(true);
+    response.addCookie(cookie);
+  }
+}
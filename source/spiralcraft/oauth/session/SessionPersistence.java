@@ -0,0 +1,245 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.session;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+
+/**
+ * <p>Keeps a web user's session outside of the HTTP session. The session is
+ *   rebuilt from its persisted state once per request, and the state is
+ *   written back only if it has changed.
+ * </p>
+ * 
+ * @author mike
+ *
+ * @param <S> The session type
+ */
+public abstract class SessionPersistence<S extends PersistentSession>
+{
+  protected static final ClassLog log
+    =ClassLog.getInstance(SessionPersistence.class);
+  
+  /**
+   * Creates empty sessions
+   */
+  public interface Factory<S>
+  {
+    S newSession();
+  }
+  
+  /**
+   * The session rebuilt for a request, and the state last persisted
+   */
+  protected static class Binding<S>
+  {
+    protected final HttpServletRequest request;
+    protected final HttpServletResponse response;
+    protected S session;
+    protected byte[] saved;
+    protected String id;
+    
+    /**
+     * Whether the state must be stored again even if it hasn't changed
+     */
+    protected boolean renew;
+    
+    Binding(HttpServletRequest request,HttpServletResponse response)
+    { 
+      this.request=request;
+      this.response=response;
+    }
+  }
+  
+  private final Factory<S> factory;
+  private final String attribute
+    =getClass().getName()+".binding."+System.identityHashCode(this);
+  
+  protected SessionPersistence(Factory<S> factory)
+  { this.factory=factory;
+  }
+  
+  /**
+   * Rebuild the session for the request, if it has one. This must be 
+   *   called with the response before the request is processed for 
+   *   changes to be written back.
+   */
+  public S bind(HttpServletRequest request,HttpServletResponse response)
+  { return binding(request,response).session;
+  }
+  
+  /**
+   * The session for the request
+   * 
+   * @param create Whether to create a session if the request has none
+   */
+  public S get(HttpServletRequest request,boolean create)
+  {
+    Binding<S> binding=binding(request,null);
+    if (binding.session==null && create)
+    { 
+      binding.session=factory.newSession();
+      created(request,binding);
+    }
+    return binding.session;
+  }
+  
+  /**
+   * Persist the session's state if it has changed since it was read or
+   *   last saved
+   */
+  public void save(HttpServletRequest request)
+  {
+    @SuppressWarnings("unchecked")
+    Binding<S> binding=(Binding<S>) request.getAttribute(attribute);
+    if (binding==null || binding.response==null)
+    { return;
+    }
+    
+    try
+    {
+      byte[] data=binding.session!=null?binding.session.exportState():null;
+      boolean changed=!Arrays.equals(data,binding.saved);
+      if (!changed && !binding.renew)
+      { return;
+      }
+      if (writesResponse() && binding.response.isCommitted())
+      { 
+        if (!changed)
+        { 
+          // Renewal can wait for a later request
+          return;
+        }
+        log.log
+          (Level.WARNING
+          ,"Response committed before session state could be saved"
+          );
+        return;
+      }
+      store(binding,data);
+      binding.saved=data;
+      binding.renew=false;
+    }
+    catch (IOException x)
+    { log.log(Level.WARNING,"Error saving session state",x);
+    }
+    catch (GeneralSecurityException x)
+    { log.log(Level.WARNING,"Error saving session state",x);
+    }
+  }
+  
+  /**
+   * Give the request's session a new identity once it has authenticated,
+   *   so an identifier planted before authentication (session fixation)
+   *   doesn't carry over. The state is saved under the new identity by
+   *   the next save().
+   */
+  public void renew(HttpServletRequest request)
+  {
+    @SuppressWarnings("unchecked")
+    Binding<S> binding=(Binding<S>) request.getAttribute(attribute);
+    if (binding==null || binding.response==null || binding.session==null)
+    { return;
+    }
+    
+    try
+    { renew(request,binding);
+    }
+    catch (IOException x)
+    { log.log(Level.WARNING,"Error renewing session",x);
+    }
+  }
+  
+  /**
+   * The path for cookies that belong to the request's web application, 
+   *   so that applications on the same host don't share them
+   */
+  public static String contextPath(HttpServletRequest request)
+  {
+    String path=request.getContextPath();
+    return path!=null && !path.isEmpty()?path:"/";
+  }
+  
+  private Binding<S> binding
+    (HttpServletRequest request,HttpServletResponse response)
+  {
+    @SuppressWarnings("unchecked")
+    Binding<S> binding=(Binding<S>) request.getAttribute(attribute);
+    if (binding==null)
+    {
+      binding=new Binding<S>(request,response);
+      try
+      {
+        byte[] data=load(request,binding);
+        if (data!=null)
+        {
+          S session=factory.newSession();
+          session.importState(data);
+          binding.session=session;
+          binding.saved=data;
+        }
+      }
+      catch (IOException x)
+      { log.log(Level.WARNING,"Discarding unreadable session state",x);
+      }
+      request.setAttribute(attribute,binding);
+    }
+    return binding;
+  }
+  
+  /**
+   * Read the persisted state for the request
+   * 
+   * @return The state, or null if there is none
+   */
+  protected abstract byte[] load
+    (HttpServletRequest request,Binding<S> binding)
+    throws IOException;
+  
+  /**
+   * Persist the state, or remove it if data is null
+   */
+  protected abstract void store(Binding<S> binding,byte[] data)
+    throws IOException,GeneralSecurityException;
+  
+  /**
+   * Whether storing state modifies the response, and so must happen 
+   *   before it is committed
+   */
+  protected abstract boolean writesResponse();
+  
+  /**
+   * Replace the identity of the session, if it has one apart from its 
+   *   state
+   */
+  protected void renew(HttpServletRequest request,Binding<S> binding)
+    throws IOException
+  {
+  }
+  
+  /**
+   * Called when a new session is created for a request
+   */
+  protected void created(HttpServletRequest request,Binding<S> binding)
+  {
+  }
+}
@@ -0,0 +1,44 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.session;
+
+import java.io.IOException;
+
+/**
+ * <p>Stores encoded session state (see PersistentSession) by session id,
+ *   so that it can be shared by all the nodes serving an application.
+ * </p>
+ * 
+ * <p>Implementations must be thread-safe. The state arrays passed to and
+ *   returned from a store are not modified by the caller afterwards.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public interface SessionStore
+{
+  /**
+   * @return The state last saved for the id, or null if there is none
+   */
+  byte[] load(String id)
+    throws IOException;
+  
+  void save(String id,byte[] state)
+    throws IOException;
+  
+  void remove(String id)
+    throws IOException;
+}
@@ -0,0 +1,262 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.session;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import spiralcraft.time.Clock;
+
+/**
+ * <p>Seals data with AES-GCM so it can be handed to an untrusted party
+ *   (eg. in a cookie) and later verified and recovered.
+ * </p>
+ * 
+ * <p>Keys are supplied in order of preference. Data is always sealed with
+ *   the first key, and unsealed with whichever configured key it was 
+ *   sealed with, so keys can be rotated by adding a new key at the front
+ *   and dropping the oldest once everything sealed with it has expired.
+ * </p>
+ * 
+ * <p>The sealed form is base64url( version | keyId | iv | ciphertext ). 
+ *   The plaintext is prefixed with the time it was sealed, which is used
+ *   to reject stale data, and a caller supplied context (eg. a cookie name)
+ *   is bound as associated data so data sealed for one purpose can't be
+ *   substituted for another.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class StateSealer
+{
+  private static final int VERSION=1;
+  private static final int IV_LENGTH=12;
+  private static final int TAG_BITS=128;
+  private static final String TRANSFORMATION="AES/GCM/NoPadding";
+  
+  private static final Base64.Encoder ENCODER
+    =Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER=Base64.getUrlDecoder();
+  
+  /**
+   * Data recovered from its sealed form, with the time it was sealed
+   */
+  public static final class Unsealed
+  {
+    private final byte[] data;
+    private final long sealedAt;
+    
+    Unsealed(byte[] data,long sealedAt)
+    {
+      this.data=data;
+      this.sealedAt=sealedAt;
+    }
+    
+    public byte[] getData()
+    { return data;
+    }
+    
+    /**
+     * The time in milliseconds since the epoch the data was sealed
+     */
+    public long getSealedAt()
+    { return sealedAt;
+    }
+  }
+  
+  private static class Key
+  {
+    final byte id;
+    final SecretKeySpec spec;
+    
+    Key(byte[] bytes)
+      throws GeneralSecurityException
+    {
+      if (bytes.length!=16 && bytes.length!=24 && bytes.length!=32)
+      { 
+        throw new GeneralSecurityException
+          ("AES key must be 16, 24 or 32 bytes, not "+bytes.length);
+      }
+      spec=new SecretKeySpec(bytes,"AES");
+      id=MessageDigest.getInstance("SHA-256").digest(bytes)[0];
+    }
+  }
+  
+  private final List<Key> keys=new ArrayList<Key>();
+  private final SecureRandom random=new SecureRandom();
+  private final ThreadLocal<Cipher> threadCipher=new ThreadLocal<Cipher>();
+  private long maxAge;
+  
+  /**
+   * @param base64Keys The AES keys, base64 encoded, current key first
+   */
+  public StateSealer(String ... base64Keys)
+    throws GeneralSecurityException
+  {
+    for (String base64Key:base64Keys)
+    { 
+      base64Key=base64Key.trim();
+      if (!base64Key.isEmpty())
+      {
+        try
+        { keys.add(new Key(Base64.getMimeDecoder().decode(base64Key)));
+        }
+        catch (IllegalArgumentException x)
+        { throw new GeneralSecurityException("Malformed key",x);
+        }
+      }
+    }
+    if (keys.isEmpty())
+    { throw new GeneralSecurityException("No sealing keys configured");
+    }
+  }
+  
+  /**
+   * The maximum age in milliseconds of sealed data that will be accepted,
+   *   or 0 for no limit.
+   */
+  public void setMaxAge(long maxAge)
+  { this.maxAge=maxAge;
+  }
+  
+  public String seal(byte[] data,String context)
+    throws GeneralSecurityException
+  {
+    Key key=keys.get(0);
+    byte[] iv=new byte[IV_LENGTH];
+    random.nextBytes(iv);
+    
+    Cipher cipher=cipher();
+    cipher.init
+      (Cipher.ENCRYPT_MODE,key.spec,new GCMParameterSpec(TAG_BITS,iv));
+    cipher.updateAAD(context.getBytes(StandardCharsets.UTF_8));
+    
+    ByteBuffer plaintext=ByteBuffer.allocate(8+data.length);
+    plaintext.putLong(Clock.instance().approxTimeMillis());
+    plaintext.put(data);
+    plaintext.flip();
+    
+    ByteBuffer sealed
+      =ByteBuffer.allocate
+        (2+IV_LENGTH+cipher.getOutputSize(plaintext.remaining()));
+    sealed.put((byte) VERSION);
+    sealed.put(key.id);
+    sealed.put(iv);
+    cipher.doFinal(plaintext,sealed);
+    return ENCODER.encodeToString
+      (sealed.position()==sealed.capacity()
+      ?sealed.array()
+      :Arrays.copyOf(sealed.array(),sealed.position())
+      );
+  }
+  
+  /**
+   * Verify and recover sealed data
+   * 
+   * @return The data, or null if it was not sealed with a current key, 
+   *   has been tampered with, or has expired
+   */
+  public byte[] unseal(String sealed,String context)
+  {
+    Unsealed unsealed=open(sealed,context);
+    return unsealed!=null?unsealed.getData():null;
+  }
+  
+  /**
+   * Verify and recover sealed data along with the time it was sealed
+   * 
+   * @return The data, or null if it was not sealed with a current key, 
+   *   has been tampered with, or has expired
+   */
+  public Unsealed open(String sealed,String context)
+  {
+    byte[] bytes;
+    try
+    { bytes=DECODER.decode(sealed);
+    }
+    catch (IllegalArgumentException x)
+    { return null;
+    }
+    if (bytes.length<2+IV_LENGTH+TAG_BITS/8+8 || bytes[0]!=VERSION)
+    { return null;
+    }
+    
+    for (Key key:keys)
+    {
+      if (key.id==bytes[1])
+      {
+        byte[] plaintext=decrypt(key,bytes,context);
+        if (plaintext!=null)
+        {
+          ByteBuffer buffer=ByteBuffer.wrap(plaintext);
+          long sealedAt=buffer.getLong();
+          if (maxAge>0 
+              && Clock.instance().approxTimeMillis()-sealedAt>maxAge
+              )
+          { return null;
+          }
+          byte[] data=new byte[buffer.remaining()];
+          buffer.get(data);
+          return new Unsealed(data,sealedAt);
+        }
+      }
+    }
+    return null;
+  }
+  
+  private byte[] decrypt(Key key,byte[] bytes,String context)
+  {
+    try
+    {
+      Cipher cipher=cipher();
+      cipher.init
+        (Cipher.DECRYPT_MODE
+        ,key.spec
+        ,new GCMParameterSpec(TAG_BITS,bytes,2,IV_LENGTH)
+        );
+      cipher.updateAAD(context.getBytes(StandardCharsets.UTF_8));
+      return cipher.doFinal(bytes,2+IV_LENGTH,bytes.length-2-IV_LENGTH);
+    }
+    catch (GeneralSecurityException x)
+    { 
+      // Includes AEADBadTagException for forged or corrupted data
+      return null;
+    }
+  }
+  
+  private Cipher cipher()
+    throws GeneralSecurityException
+  {
+    Cipher cipher=threadCipher.get();
+    if (cipher==null)
+    {
+      cipher=Cipher.getInstance(TRANSFORMATION);
+      threadCipher.set(cipher);
+    }
+    return cipher;
+  }
+}
@@ -0,0 +1,175 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.session;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import spiralcraft.log.Level;
+
+/**
+ * <p>Keeps session state in a SessionStore, identified by a random id 
+ *   held in a cookie.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class StoreSessionPersistence<S extends PersistentSession>
+  extends SessionPersistence<S>
+{
+  private static final int ID_LENGTH=18;
+  
+  private final SessionStore store;
+  private final String cookieName;
+  private final SecureRandom random=new SecureRandom();
+  private String path;
+  private boolean secure=true;
+  
+  public StoreSessionPersistence
+    (Factory<S> factory,SessionStore store,String cookieName)
+  { 
+    super(factory);
+    this.store=store;
+    this.cookieName=cookieName;
+  }
+  
+  /**
+   * The path of the session id cookie. Defaults to the context path of 
+   *   the web application.
+   * 
+   * @param path
+   */
+  public void setPath(String path)
+  { this.path=path;
+  }
+  
+  public void setSecure(boolean secure)
+  { this.secure=secure;
+  }
+  
+  @Override
+  protected byte[] load(HttpServletRequest request,Binding<S> binding)
+    throws IOException
+  {
+    Cookie[] cookies=request.getCookies();
+    if (cookies!=null)
+    {
+      for (Cookie cookie:cookies)
+      {
+        if (cookieName.equals(cookie.getName()) 
+            && isValidId(cookie.getValue())
+            )
+        { 
+          byte[] data=store.load(cookie.getValue());
+          if (data!=null)
+          { binding.id=cookie.getValue();
+          }
+          // An unknown id is never adopted- a new session gets a new 
+          //   random id
+          return data;
+        }
+      }
+    }
+    return null;
+  }
+  
+  @Override
+  protected void created(HttpServletRequest request,Binding<S> binding)
+  {
+    if (binding.id!=null)
+    { return;
+    }
+    
+    byte[] id=new byte[ID_LENGTH];
+    random.nextBytes(id);
+    binding.id=Base64.getUrlEncoder().withoutPadding().encodeToString(id);
+    
+    HttpServletResponse response=binding.response;
+    if (response==null || response.isCommitted())
+    { 
+      log.log(Level.WARNING,"Unable to set session id cookie "+cookieName);
+      return;
+    }
+    
+    Cookie cookie=new Cookie(cookieName,binding.id);
+    cookie.setPath(path!=null?path:contextPath(request));
+    cookie.setSecure(secure);
+    cookie.setHttpOnly(true);
+    response.addCookie(cookie);
+  }
+  
+  /**
+   * Discard the stored state under the old id and issue a new id
+   */
+  @Override
+  protected void renew(HttpServletRequest request,Binding<S> binding)
+    throws IOException
+  {
+    if (binding.id!=null)
+    { 
+      store.remove(binding.id);
+      binding.id=null;
+    }
+    binding.saved=null;
+    created(request,binding);
+  }
+  
+  @Override
+  protected void store(Binding<S> binding,byte[] data)
+    throws IOException
+  {
+    if (binding.id==null)
+    { return;
+    }
+    if (data==null)
+    { store.remove(binding.id);
+    }
+    else
+    { store.save(binding.id,data);
+    }
+  }
+  
+  @Override
+  protected boolean writesResponse()
+  { return false;
+  }
+  
+  private static boolean isValidId(String id)
+  {
+    if (id==null || id.length()!=(ID_LENGTH*4)/3)
+    { return false;
+    }
+    for (int i=0;i<id.length();i++)
+    {
+      char chr=id.charAt(i);
+      if (!((chr>='A' && chr<='Z')
+            || (chr>='a' && chr<='z')
+            || (chr>='0' && chr<='9')
+            || chr=='-'
+            || chr=='_'
+            )
+         )
+      { return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,161 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+
+/**
+ * <p>Support for running blocking provider calls asynchronously
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class AsyncUtil
+{
+  private static final ClassLog log
+    =ClassLog.getInstance(AsyncUtil.class);
+  
+  private static volatile ExecutorService defaultExecutor;
+  
+  /**
+   * <p>The executor used for asynchronous calls when none is configured.
+   * </p>
+   * 
+   * <p>On a JVM that supports virtual threads this creates a virtual thread
+   *   per call, so a blocked call does not hold a platform thread. Otherwise
+   *   calls run on a shared pool of daemon threads that grows on demand and
+   *   releases idle threads. 
+   * </p>
+   */
+  public static Executor defaultExecutor()
+  {
+    ExecutorService executor=defaultExecutor;
+    if (executor==null)
+    {
+      synchronized (AsyncUtil.class)
+      {
+        executor=defaultExecutor;
+        if (executor==null)
+        {
+          executor=newVirtualThreadExecutor();
+          if (executor==null)
+          { 
+            executor
+              =Executors.newCachedThreadPool(daemonThreadFactory("oauth-call-"));
+          }
+          defaultExecutor=executor;
+        }
+      }
+    }
+    return executor;
+  }
+  
+  /**
+   * Create an executor that starts a new virtual thread for each task, or
+   *   return null if virtual threads are not available in this JVM.
+   */
+  public static ExecutorService newVirtualThreadExecutor()
+  {
+    try
+    {
+      Method method
+        =Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) method.invoke(null);
+    }
+    catch (NoSuchMethodException x)
+    { return null;
+    }
+    catch (Exception x)
+    { 
+      // Preview feature not enabled, or otherwise unusable
+      log.log(Level.FINE,"Virtual threads not available",x);
+      return null;
+    }
+  }
+  
+  /**
+   * A ThreadFactory for numbered daemon threads
+   */
+  public static ThreadFactory daemonThreadFactory(final String namePrefix)
+  {
+    return new ThreadFactory()
+    {
+      private final AtomicInteger count=new AtomicInteger();
+      
+      @Override
+      public Thread newThread(Runnable runnable)
+      {
+        Thread thread=new Thread(runnable,namePrefix+count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+  
+  /**
+   * <p>Run the operation on the executor and return a future for its 
+   *   result. 
+   * </p>
+   * 
+   * <p>The future completes exceptionally with exactly the exception
+   *   thrown by the operation (eg. a URLAccessException), which 
+   *   CompletableFuture.get() reports as the cause of an ExecutionException.
+   *   If the executor rejects the task the future fails with the
+   *   RejectedExecutionException.
+   * </p>
+   */
+  public static <V> CompletableFuture<V> supply
+    (final Callable<V> operation,Executor executor)
+  {
+    final CompletableFuture<V> future=new CompletableFuture<V>();
+    try
+    {
+      executor.execute
+        (new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            if (future.isDone())
+            { return;
+            }
+            try
+            { future.complete(operation.call());
+            }
+            catch (Throwable x)
+            { future.completeExceptionally(x);
+            }
+          }
+        }
+        );
+    }
+    catch (RejectedExecutionException x)
+    { future.completeExceptionally(x);
+    }
+    return future;
+  }
+}
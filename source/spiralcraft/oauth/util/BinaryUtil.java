@@ -0,0 +1,122 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>Compact binary encoding primitives for persisted session state:
+ *   unsigned variable length integers and nullable, length prefixed 
+ *   UTF-8 strings.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class BinaryUtil
+{
+  private static final int MAX_STRING_LENGTH=1024*1024;
+
+  /**
+   * Write a non-negative int in 7 bit groups, low order first
+   */
+  public static void writeVarInt(DataOutput out,int value)
+    throws IOException
+  {
+    if (value<0)
+    { throw new IllegalArgumentException("Negative varint "+value);
+    }
+    while ((value & ~0x7F)!=0)
+    {
+      out.writeByte((value & 0x7F) | 0x80);
+      value>>>=7;
+    }
+    out.writeByte(value);
+  }
+  
+  public static int readVarInt(DataInput in)
+    throws IOException
+  {
+    int value=0;
+    for (int shift=0;shift<32;shift+=7)
+    {
+      int b=in.readUnsignedByte();
+      value|=(b & 0x7F) << shift;
+      if ((b & 0x80)==0)
+      { 
+        if (value<0)
+        { throw new IOException("Malformed varint");
+        }
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+  
+  /**
+   * Write a String, which may be null, as a length+1 prefix (0 for null)
+   *   followed by its UTF-8 bytes.
+   */
+  public static void writeString(DataOutput out,String value)
+    throws IOException
+  {
+    if (value==null)
+    { writeVarInt(out,0);
+    }
+    else
+    {
+      byte[] bytes=value.getBytes(StandardCharsets.UTF_8);
+      writeVarInt(out,bytes.length+1);
+      out.write(bytes);
+    }
+  }
+  
+  public static String readString(DataInput in)
+    throws IOException
+  {
+    int len=readVarInt(in);
+    if (len==0)
+    { return null;
+    }
+    if (len-1>MAX_STRING_LENGTH)
+    { throw new IOException("String length "+(len-1)+" exceeds limit");
+    }
+    byte[] bytes=new byte[len-1];
+    in.readFully(bytes);
+    return new String(bytes,StandardCharsets.UTF_8);
+  }
+  
+  public static void writeURI(DataOutput out,URI value)
+    throws IOException
+  { writeString(out,value!=null?value.toString():null);
+  }
+  
+  public static URI readURI(DataInput in)
+    throws IOException
+  {
+    String value=readString(in);
+    try
+    { return value!=null?new URI(value):null;
+    }
+    catch (URISyntaxException x)
+    { throw new IOException("Malformed URI in encoded state",x);
+    }
+  }
+}
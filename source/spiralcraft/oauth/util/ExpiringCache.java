@@ -0,0 +1,240 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import spiralcraft.time.Clock;
+
+/**
+ * <p>A bounded, thread-safe cache whose entries each expire at a 
+ *   specified time.
+ * </p>
+ * 
+ * <p>When the cache exceeds its capacity, expired entries are discarded
+ *   first and then the least recently used ones.
+ * </p>
+ * 
+ * @author mike
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class ExpiringCache<K,V>
+{
+  private static class Entry<V>
+  {
+    final V value;
+    final long expiresAt;
+    volatile long usedAt;
+    
+    Entry(V value,long expiresAt,long usedAt)
+    { 
+      this.value=value;
+      this.expiresAt=expiresAt;
+      this.usedAt=usedAt;
+    }
+  }
+  
+  private final ConcurrentHashMap<K,Entry<V>> entries
+    =new ConcurrentHashMap<K,Entry<V>>();
+  private volatile int maxEntries;
+  private final AtomicLong hits=new AtomicLong();
+  private final AtomicLong misses=new AtomicLong();
+  private final AtomicLong evictions=new AtomicLong();
+  
+  public ExpiringCache(int maxEntries)
+  { this.maxEntries=maxEntries;
+  }
+  
+  public void setMaxEntries(int maxEntries)
+  { this.maxEntries=maxEntries;
+  }
+  
+  /**
+   * The cached value, or null if there is none or it has expired
+   */
+  public V get(K key)
+  {
+    Entry<V> entry=entries.get(key);
+    if (entry!=null)
+    {
+      long now=Clock.instance().approxTimeMillis();
+      if (now<entry.expiresAt)
+      {
+        entry.usedAt=now;
+        hits.incrementAndGet();
+        return entry.value;
+      }
+      entries.remove(key,entry);
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+  
+  /**
+   * Cache the value until the specified time in milliseconds since the 
+   *   epoch
+   */
+  public void put(K key,V value,long expiresAt)
+  {
+    long now=Clock.instance().approxTimeMillis();
+    if (expiresAt<=now)
+    { 
+      entries.remove(key);
+      return;
+    }
+    entries.put(key,new Entry<V>(value,expiresAt,now));
+    if (entries.size()>maxEntries)
+    { trim(now);
+    }
+  }
+  
+  /**
+   * Cache the value until the specified time unless an unexpired value is
+   *   already cached for the key
+   * 
+   * @return The value already cached, or null if the value was stored
+   */
+  public V putIfAbsent(K key,V value,long expiresAt)
+  {
+    long now=Clock.instance().approxTimeMillis();
+    Entry<V> entry=new Entry<V>(value,expiresAt,now);
+    while (true)
+    {
+      Entry<V> existing=entries.putIfAbsent(key,entry);
+      if (existing!=null && now<existing.expiresAt)
+      { 
+        existing.usedAt=now;
+        hits.incrementAndGet();
+        return existing.value;
+      }
+      if (existing==null || entries.replace(key,existing,entry))
+      { break;
+      }
+    }
+    misses.incrementAndGet();
+    if (entries.size()>maxEntries)
+    { trim(now);
+    }
+    return null;
+  }
+  
+  /**
+   * Extend the expiration of the value cached for the key, if it is still
+   *   the specified value
+   * 
+   * @return Whether the entry was renewed
+   */
+  public boolean renew(K key,V value,long expiresAt)
+  {
+    Entry<V> entry=entries.get(key);
+    if (entry==null || entry.value!=value)
+    { return false;
+    }
+    return entries.replace
+      (key
+      ,entry
+      ,new Entry<V>(value,expiresAt,Clock.instance().approxTimeMillis())
+      );
+  }
+  
+  public void remove(K key)
+  { entries.remove(key);
+  }
+  
+  public void clear()
+  { entries.clear();
+  }
+  
+  public int size()
+  { return entries.size();
+  }
+  
+  public long getHits()
+  { return hits.get();
+  }
+  
+  public long getMisses()
+  { return misses.get();
+  }
+  
+  public long getEvictions()
+  { return evictions.get();
+  }
+  
+  private synchronized void trim(long now)
+  {
+    if (entries.size()<=maxEntries)
+    { return;
+    }
+    
+    for (Iterator<Entry<V>> it=entries.values().iterator();it.hasNext();)
+    {
+      if (it.next().expiresAt<=now)
+      { it.remove();
+      }
+    }
+    
+    // Evict down to 90% of capacity so trims don't run on every put
+    int target=maxEntries-maxEntries/10;
+    while (entries.size()>target)
+    {
+      int excess=entries.size()-target;
+      long[] oldest=new long[Math.min(excess,1024)];
+      int count=0;
+      for (Entry<V> entry:entries.values())
+      {
+        // Track the smallest usedAt values seen
+        if (count<oldest.length)
+        { insertSorted(oldest,count++,entry.usedAt);
+        }
+        else if (entry.usedAt<oldest[count-1])
+        { insertSorted(oldest,count-1,entry.usedAt);
+        }
+      }
+      if (count==0)
+      { break;
+      }
+      
+      long cutoff=oldest[count-1];
+      for (Iterator<Map.Entry<K,Entry<V>>> it=entries.entrySet().iterator()
+          ;it.hasNext() && entries.size()>target
+          ;
+          )
+      {
+        if (it.next().getValue().usedAt<=cutoff)
+        { 
+          it.remove();
+          evictions.incrementAndGet();
+        }
+      }
+    }
+  }
+  
+  private static void insertSorted(long[] array,int count,long value)
+  {
+    int i=count;
+    while (i>0 && array[i-1]>value)
+    { 
+      array[i]=array[i-1];
+      i--;
+    }
+    array[i]=value;
+  }
+}
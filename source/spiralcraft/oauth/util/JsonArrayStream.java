@@ -0,0 +1,288 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import spiralcraft.json.DataReader;
+import spiralcraft.json.Parser;
+import spiralcraft.lang.Reflector;
+import spiralcraft.text.ParseException;
+
+/**
+ * <p>Iterates over the elements of a JSON array as they are parsed from
+ *   a stream, so only one element is held in memory at a time no matter 
+ *   how large the document is.
+ * </p>
+ * 
+ * <p>The array is either the document itself or is found by following a
+ *   dotted path of member names from the top level object, eg. 
+ *   "data.items". Members before the array are skipped without being
+ *   read into memory, and members after it are not read at all. A missing
+ *   or null array yields no elements.
+ * </p>
+ * 
+ * <p>Parse errors surface from hasNext() and next() as an 
+ *   UncheckedIOException. The stream is closed when the last element has
+ *   been read, when an error occurs, or by close().
+ * </p>
+ * 
+ * @author mike
+ *
+ * @param <T> The element type
+ */
+public class JsonArrayStream<T>
+  implements Iterator<T>,Closeable
+{
+  /**
+   * Converts the value at the reader's position into an element
+   */
+  public interface ElementReader<T>
+  {
+    T read(JsonReader reader)
+      throws IOException;
+  }
+  
+  /**
+   * Receives elements as they are parsed
+   */
+  public interface ElementHandler<T>
+  {
+    void element(T element)
+      throws IOException;
+  }
+  
+  /**
+   * Reads elements as plain Java objects (Map, List, String, Long, Double,
+   *   Boolean or null)
+   */
+  public static final ElementReader<Object> VALUES
+    =new ElementReader<Object>()
+    {
+      @Override
+      public Object read(JsonReader reader)
+        throws IOException
+      { return reader.readValue();
+      }
+    };
+  
+  /**
+   * Reads elements into instances of the reflected type, in the same way
+   *   Call reads a whole document. Unrecognized fields are ignored.
+   */
+  public static <T> ElementReader<T> beans(final Reflector<T> reflector)
+  {
+    return new ElementReader<T>()
+    {
+      @SuppressWarnings("unchecked")
+      @Override
+      public T read(JsonReader reader)
+        throws IOException
+      {
+        String json=reader.readRawValue();
+        DataReader dataReader=new DataReader(reflector,null);
+        dataReader.setIgnoreUnrecognizedFields(true);
+        try
+        { new Parser(new StringReader(json),dataReader).parse();
+        }
+        catch (ParseException x)
+        { throw new IOException("Error reading element",x);
+        }
+        return (T) dataReader.getValue();
+      }
+    };
+  }
+  
+  /**
+   * A Reader that decodes a JSON byte stream, which is always UTF-8 
+   *   (RFC 8259 8.1)
+   */
+  public static Reader utf8Reader(InputStream in)
+  { return new InputStreamReader(in,StandardCharsets.UTF_8);
+  }
+  
+  private final JsonReader reader;
+  private final String[] path;
+  private final ElementReader<T> elementReader;
+  private boolean started;
+  private boolean done;
+  private long count;
+  
+  /**
+   * @param in The document
+   * @param path The dotted path of member names to the array, or null if
+   *   the document is the array
+   * @param elementReader Converts each element
+   */
+  public JsonArrayStream
+    (Reader in,String path,ElementReader<T> elementReader)
+  {
+    this.reader=new JsonReader(in,8192);
+    this.path
+      =path!=null && !path.isEmpty()?path.split("\\."):new String[0];
+    this.elementReader=elementReader;
+  }
+  
+  /**
+   * The number of elements returned so far
+   */
+  public long getCount()
+  { return count;
+  }
+  
+  @Override
+  public boolean hasNext()
+  {
+    if (done)
+    { return false;
+    }
+    try
+    {
+      if (!started)
+      { 
+        started=true;
+        if (!seek())
+        { 
+          close();
+          return false;
+        }
+      }
+      if (!reader.hasNext())
+      {
+        reader.endArray();
+        close();
+        return false;
+      }
+      return true;
+    }
+    catch (IOException x)
+    { throw fail(x);
+    }
+  }
+  
+  @Override
+  public T next()
+  {
+    if (!hasNext())
+    { throw new NoSuchElementException();
+    }
+    try
+    { 
+      T element=elementReader.read(reader);
+      count++;
+      return element;
+    }
+    catch (IOException x)
+    { throw fail(x);
+    }
+  }
+  
+  /**
+   * Pass each remaining element to the handler, then close the stream
+   * 
+   * @return The number of elements handled
+   */
+  public long drainTo(ElementHandler<? super T> handler)
+    throws IOException
+  {
+    long start=count;
+    try
+    {
+      while (hasNext())
+      { handler.element(next());
+      }
+    }
+    catch (UncheckedIOException x)
+    { throw x.getCause();
+    }
+    finally
+    { close();
+    }
+    return count-start;
+  }
+  
+  @Override
+  public void remove()
+  { throw new UnsupportedOperationException();
+  }
+  
+  @Override
+  public void close()
+    throws IOException
+  { 
+    done=true;
+    reader.close();
+  }
+  
+  /**
+   * Position the reader inside the array
+   * 
+   * @return false if the array isn't present
+   */
+  private boolean seek()
+    throws IOException
+  {
+    for (String name:path)
+    {
+      if (reader.peek()!=JsonReader.Token.BEGIN_OBJECT)
+      { return false;
+      }
+      reader.beginObject();
+      boolean found=false;
+      while (reader.hasNext())
+      {
+        if (reader.nextName().equals(name))
+        { 
+          found=true;
+          break;
+        }
+        reader.skipValue();
+      }
+      if (!found)
+      { return false;
+      }
+    }
+    
+    JsonReader.Token token=reader.peek();
+    if (token==JsonReader.Token.NULL)
+    { return false;
+    }
+    if (token!=JsonReader.Token.BEGIN_ARRAY)
+    { throw new IOException("Expected an array but was "+token);
+    }
+    reader.beginArray();
+    return true;
+  }
+  
+  private UncheckedIOException fail(IOException x)
+  {
+    try
+    { close();
+    }
+    catch (IOException y)
+    { x.addSuppressed(y);
+    }
+    return new UncheckedIOException(x);
+  }
+}
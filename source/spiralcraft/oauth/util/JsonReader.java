@@ -0,0 +1,719 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A small pull parser for JSON (RFC 8259) that reads directly from a
+ *   Reader through its own buffer. Values are consumed one at a time in
+ *   document order, so large documents don't need to be held in memory,
+ *   and unneeded values can be skipped without being materialized.
+ * </p>
+ * 
+ * <p>readValue() builds the next value as plain Java objects (Map, List,
+ *   String, Long, Double, Boolean or null) for small documents such as
+ *   token claims.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class JsonReader
+  implements Closeable
+{
+  public enum Token
+  { 
+    BEGIN_OBJECT
+    ,END_OBJECT
+    ,BEGIN_ARRAY
+    ,END_ARRAY
+    ,NAME
+    ,STRING
+    ,NUMBER
+    ,BOOLEAN
+    ,NULL
+    ,END_DOCUMENT
+  }
+  
+  private static final int EMPTY_DOCUMENT=0;
+  private static final int NONEMPTY_DOCUMENT=1;
+  private static final int EMPTY_OBJECT=2;
+  private static final int NONEMPTY_OBJECT=3;
+  private static final int DANGLING_NAME=4;
+  private static final int EMPTY_ARRAY=5;
+  private static final int NONEMPTY_ARRAY=6;
+  
+  private static final int MAX_DEPTH=512;
+  
+  private final Reader in;
+  private final char[] buffer;
+  private int pos;
+  private int limit;
+  private long consumed;
+  
+  private int[] stack=new int[32];
+  private int depth=1;
+  
+  private Token peeked;
+  private String peekedValue;
+  private final StringBuilder text=new StringBuilder();
+  
+  public JsonReader(Reader in)
+  { this(in,4096);
+  }
+  
+  public JsonReader(Reader in,int bufferSize)
+  { 
+    this.in=in;
+    this.buffer=new char[bufferSize];
+    stack[0]=EMPTY_DOCUMENT;
+  }
+  
+  /**
+   * The type of the next token, without consuming it
+   */
+  public Token peek()
+    throws IOException
+  {
+    if (peeked!=null)
+    { return peeked;
+    }
+    
+    int c;
+    switch (stack[depth-1])
+    {
+      case EMPTY_DOCUMENT:
+        stack[depth-1]=NONEMPTY_DOCUMENT;
+        break;
+      case NONEMPTY_DOCUMENT:
+        if (nextNonWhitespace(false)==-1)
+        { return peeked=Token.END_DOCUMENT;
+        }
+        throw syntaxError("Unexpected content after document");
+      case EMPTY_ARRAY:
+        stack[depth-1]=NONEMPTY_ARRAY;
+        if (nextNonWhitespace(true)==']')
+        { return peeked=Token.END_ARRAY;
+        }
+        pos--;
+        break;
+      case NONEMPTY_ARRAY:
+        c=nextNonWhitespace(true);
+        if (c==']')
+        { return peeked=Token.END_ARRAY;
+        }
+        if (c!=',')
+        { throw syntaxError("Expected ',' or ']'");
+        }
+        break;
+      case EMPTY_OBJECT:
+      case NONEMPTY_OBJECT:
+        c=nextNonWhitespace(true);
+        if (c=='}')
+        { return peeked=Token.END_OBJECT;
+        }
+        if (stack[depth-1]==NONEMPTY_OBJECT)
+        {
+          if (c!=',')
+          { throw syntaxError("Expected ',' or '}'");
+          }
+          c=nextNonWhitespace(true);
+        }
+        if (c!='"')
+        { throw syntaxError("Expected name");
+        }
+        stack[depth-1]=DANGLING_NAME;
+        peekedValue=readString();
+        return peeked=Token.NAME;
+      case DANGLING_NAME:
+        if (nextNonWhitespace(true)!=':')
+        { throw syntaxError("Expected ':'");
+        }
+        stack[depth-1]=NONEMPTY_OBJECT;
+        break;
+      default:
+        throw new IllegalStateException();
+    }
+    
+    c=nextNonWhitespace(true);
+    switch (c)
+    {
+      case '{':
+        return peeked=Token.BEGIN_OBJECT;
+      case '[':
+        return peeked=Token.BEGIN_ARRAY;
+      case '"':
+        peekedValue=readString();
+        return peeked=Token.STRING;
+      default:
+        pos--;
+        return peeked=readLiteral();
+    }
+  }
+  
+  public boolean hasNext()
+    throws IOException
+  { 
+    Token token=peek();
+    return token!=Token.END_OBJECT 
+      && token!=Token.END_ARRAY 
+      && token!=Token.END_DOCUMENT
+      ;
+  }
+  
+  public void beginObject()
+    throws IOException
+  { 
+    expect(Token.BEGIN_OBJECT);
+    push(EMPTY_OBJECT);
+  }
+  
+  public void endObject()
+    throws IOException
+  { 
+    expect(Token.END_OBJECT);
+    depth--;
+  }
+  
+  public void beginArray()
+    throws IOException
+  { 
+    expect(Token.BEGIN_ARRAY);
+    push(EMPTY_ARRAY);
+  }
+  
+  public void endArray()
+    throws IOException
+  { 
+    expect(Token.END_ARRAY);
+    depth--;
+  }
+  
+  public String nextName()
+    throws IOException
+  { 
+    expect(Token.NAME);
+    return peekedValue;
+  }
+  
+  /**
+   * The next string or number value as a String
+   */
+  public String nextString()
+    throws IOException
+  {
+    Token token=peek();
+    if (token!=Token.STRING && token!=Token.NUMBER)
+    { throw syntaxError("Expected a string but was "+token);
+    }
+    peeked=null;
+    return peekedValue;
+  }
+  
+  /**
+   * The next string, number, boolean or null value as a String
+   */
+  public String nextScalar()
+    throws IOException
+  {
+    Token token=peek();
+    switch (token)
+    {
+      case STRING:
+      case NUMBER:
+      case BOOLEAN:
+        peeked=null;
+        return peekedValue;
+      case NULL:
+        peeked=null;
+        return null;
+      default:
+        throw syntaxError("Expected a value but was "+token);
+    }
+  }
+  
+  /**
+   * The next number, or string containing a number, as a long
+   */
+  public long nextLong()
+    throws IOException
+  {
+    String value=nextString();
+    try
+    { return Long.parseLong(value);
+    }
+    catch (NumberFormatException x)
+    { 
+      try
+      { return (long) Double.parseDouble(value);
+      }
+      catch (NumberFormatException y)
+      { throw syntaxError("Expected a number but was '"+value+"'");
+      }
+    }
+  }
+  
+  public boolean nextBoolean()
+    throws IOException
+  { 
+    expect(Token.BOOLEAN);
+    return "true".equals(peekedValue);
+  }
+  
+  public void nextNull()
+    throws IOException
+  { expect(Token.NULL);
+  }
+  
+  /**
+   * Consume the next value, including everything it contains
+   */
+  public void skipValue()
+    throws IOException
+  {
+    int level=0;
+    do
+    {
+      switch (peek())
+      {
+        case BEGIN_OBJECT:
+          beginObject();
+          level++;
+          break;
+        case BEGIN_ARRAY:
+          beginArray();
+          level++;
+          break;
+        case END_OBJECT:
+          endObject();
+          level--;
+          break;
+        case END_ARRAY:
+          endArray();
+          level--;
+          break;
+        case END_DOCUMENT:
+          throw syntaxError("Unexpected end of document");
+        default:
+          peeked=null;
+      }
+    }
+    while (level>0);
+  }
+  
+  /**
+   * Read the next value as a Map, List, String, Long, Double, Boolean or
+   *   null
+   */
+  public Object readValue()
+    throws IOException
+  {
+    switch (peek())
+    {
+      case BEGIN_OBJECT:
+        Map<String,Object> map=new LinkedHashMap<String,Object>();
+        beginObject();
+        while (hasNext())
+        { 
+          String name=nextName();
+          map.put(name,readValue());
+        }
+        endObject();
+        return map;
+      case BEGIN_ARRAY:
+        List<Object> list=new ArrayList<Object>();
+        beginArray();
+        while (hasNext())
+        { list.add(readValue());
+        }
+        endArray();
+        return list;
+      case STRING:
+        return nextString();
+      case NUMBER:
+        String number=nextString();
+        if (number.indexOf('.')<0 
+            && number.indexOf('e')<0 
+            && number.indexOf('E')<0
+            && number.length()<19
+            )
+        { return Long.valueOf(number);
+        }
+        return Double.valueOf(number);
+      case BOOLEAN:
+        return nextBoolean();
+      case NULL:
+        nextNull();
+        return null;
+      default:
+        throw syntaxError("Expected a value but was "+peek());
+    }
+  }
+  
+  /**
+   * Read the next value and return its JSON text, eg. to hand one element
+   *   of a large document to another parser
+   */
+  public String readRawValue()
+    throws IOException
+  {
+    if (!hasNext())
+    { throw syntaxError("Expected a value but was "+peek());
+    }
+    
+    StringBuilder out=new StringBuilder();
+    int level=0;
+    boolean separate=false;
+    do
+    {
+      Token token=peek();
+      if (separate 
+          && token!=Token.END_OBJECT 
+          && token!=Token.END_ARRAY
+          )
+      { out.append(',');
+      }
+      separate=true;
+      switch (token)
+      {
+        case BEGIN_OBJECT:
+          beginObject();
+          out.append('{');
+          level++;
+          separate=false;
+          break;
+        case BEGIN_ARRAY:
+          beginArray();
+          out.append('[');
+          level++;
+          separate=false;
+          break;
+        case END_OBJECT:
+          endObject();
+          out.append('}');
+          level--;
+          break;
+        case END_ARRAY:
+          endArray();
+          out.append(']');
+          level--;
+          break;
+        case NAME:
+          quote(nextName(),out);
+          out.append(':');
+          separate=false;
+          break;
+        case STRING:
+          quote(nextString(),out);
+          break;
+        case NUMBER:
+        case BOOLEAN:
+          out.append(nextScalar());
+          break;
+        case NULL:
+          nextNull();
+          out.append("null");
+          break;
+        default:
+          throw syntaxError("Unexpected end of document");
+      }
+    }
+    while (level>0);
+    return out.toString();
+  }
+  
+  @Override
+  public void close()
+    throws IOException
+  { in.close();
+  }
+  
+  private void expect(Token token)
+    throws IOException
+  {
+    Token next=peek();
+    if (next!=token)
+    { throw syntaxError("Expected "+token+" but was "+next);
+    }
+    peeked=null;
+  }
+  
+  private static void quote(String value,StringBuilder out)
+  {
+    out.append('"');
+    for (int i=0;i<value.length();i++)
+    {
+      char c=value.charAt(i);
+      switch (c)
+      {
+        case '"':
+          out.append("\\\"");
+          break;
+        case '\\':
+          out.append("\\\\");
+          break;
+        case '\n':
+          out.append("\\n");
+          break;
+        case '\r':
+          out.append("\\r");
+          break;
+        case '\t':
+          out.append("\\t");
+          break;
+        default:
+          if (c<0x20)
+          { 
+            out.append("\\u00")
+              .append(Character.forDigit(c>>4,16))
+              .append(Character.forDigit(c&0xF,16));
+          }
+          else
+          { out.append(c);
+          }
+      }
+    }
+    out.append('"');
+  }
+  
+  private void push(int scope)
+    throws IOException
+  {
+    if (depth==stack.length)
+    {
+      if (depth>=MAX_DEPTH)
+      { throw syntaxError("Nesting too deep");
+      }
+      int[] newStack=new int[depth*2];
+      System.arraycopy(stack,0,newStack,0,depth);
+      stack=newStack;
+    }
+    stack[depth++]=scope;
+  }
+  
+  private boolean fill()
+    throws IOException
+  {
+    consumed+=limit;
+    pos=0;
+    limit=0;
+    int count=in.read(buffer,0,buffer.length);
+    if (count<=0)
+    { return false;
+    }
+    limit=count;
+    return true;
+  }
+  
+  private int nextNonWhitespace(boolean required)
+    throws IOException
+  {
+    while (true)
+    {
+      if (pos==limit && !fill())
+      {
+        if (required)
+        { throw syntaxError("Unexpected end of document");
+        }
+        return -1;
+      }
+      char c=buffer[pos++];
+      if (c!=' ' && c!='\n' && c!='\r' && c!='\t')
+      { return c;
+      }
+    }
+  }
+  
+  /**
+   * Read a string after its opening quote
+   */
+  private String readString()
+    throws IOException
+  {
+    text.setLength(0);
+    while (true)
+    {
+      int start=pos;
+      while (pos<limit)
+      {
+        char c=buffer[pos++];
+        if (c=='"')
+        {
+          if (text.length()==0)
+          { return new String(buffer,start,pos-start-1);
+          }
+          text.append(buffer,start,pos-start-1);
+          return text.toString();
+        }
+        else if (c=='\\')
+        {
+          text.append(buffer,start,pos-start-1);
+          text.append(readEscape());
+          start=pos;
+        }
+        else if (c<0x20)
+        { throw syntaxError("Unescaped control character in string");
+        }
+      }
+      text.append(buffer,start,pos-start);
+      if (!fill())
+      { throw syntaxError("Unterminated string");
+      }
+    }
+  }
+  
+  private char readEscape()
+    throws IOException
+  {
+    if (pos==limit && !fill())
+    { throw syntaxError("Unterminated escape");
+    }
+    char c=buffer[pos++];
+    switch (c)
+    {
+      case '"':
+      case '\\':
+      case '/':
+        return c;
+      case 'b':
+        return '\b';
+      case 'f':
+        return '\f';
+      case 'n':
+        return '\n';
+      case 'r':
+        return '\r';
+      case 't':
+        return '\t';
+      case 'u':
+        int value=0;
+        for (int i=0;i<4;i++)
+        {
+          if (pos==limit && !fill())
+          { throw syntaxError("Unterminated escape");
+          }
+          int digit=Character.digit(buffer[pos++],16);
+          if (digit<0)
+          { throw syntaxError("Malformed unicode escape");
+          }
+          value=(value << 4) | digit;
+        }
+        return (char) value;
+      default:
+        throw syntaxError("Invalid escape '\\"+c+"'");
+    }
+  }
+  
+  /**
+   * Read true, false, null or a number
+   */
+  private Token readLiteral()
+    throws IOException
+  {
+    text.setLength(0);
+    while (true)
+    {
+      if (pos==limit && !fill())
+      { break;
+      }
+      char c=buffer[pos];
+      if ((c>='0' && c<='9') 
+          || (c>='a' && c<='z') 
+          || c=='-' || c=='+' || c=='.' || c=='E'
+          )
+      { 
+        text.append(c);
+        pos++;
+      }
+      else
+      { break;
+      }
+    }
+    
+    String literal=text.toString();
+    if (literal.equals("true") || literal.equals("false"))
+    { 
+      peekedValue=literal;
+      return Token.BOOLEAN;
+    }
+    if (literal.equals("null"))
+    { 
+      peekedValue=null;
+      return Token.NULL;
+    }
+    if (isNumber(literal))
+    { 
+      peekedValue=literal;
+      return Token.NUMBER;
+    }
+    throw syntaxError
+      (literal.isEmpty()
+      ?"Unexpected character"
+      :"Invalid literal '"+literal+"'"
+      );
+  }
+  
+  private static boolean isNumber(String literal)
+  {
+    int i=0;
+    int len=literal.length();
+    if (i<len && literal.charAt(i)=='-')
+    { i++;
+    }
+    int digits=i;
+    while (i<len && Character.isDigit(literal.charAt(i)))
+    { i++;
+    }
+    if (i==digits)
+    { return false;
+    }
+    if (i<len && literal.charAt(i)=='.')
+    {
+      int fraction=++i;
+      while (i<len && Character.isDigit(literal.charAt(i)))
+      { i++;
+      }
+      if (i==fraction)
+      { return false;
+      }
+    }
+    if (i<len && (literal.charAt(i)=='e' || literal.charAt(i)=='E'))
+    {
+      i++;
+      if (i<len && (literal.charAt(i)=='+' || literal.charAt(i)=='-'))
+      { i++;
+      }
+      int exponent=i;
+      while (i<len && Character.isDigit(literal.charAt(i)))
+      { i++;
+      }
+      if (i==exponent)
+      { return false;
+      }
+    }
+    return i==len;
+  }
+  
+  private IOException syntaxError(String message)
+  { return new IOException(message+" at offset "+(consumed+pos));
+  }
+}
@@ -0,0 +1,158 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.util;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>Coalesces concurrent executions of the same operation. While an
+ *   operation for a key is in flight, other callers for that key wait for
+ *   and receive its result (or failure) instead of starting their own.
+ * </p>
+ * 
+ * <p>Keys are compared with equals(). Completed operations are not 
+ *   remembered- the next call after completion starts a new operation.
+ * </p>
+ * 
+ * @author mike
+ *
+ * @param <K> The key type
+ * @param <V> The result type
+ */
+public class SingleFlight<K,V>
+{
+  private final ConcurrentHashMap<K,CompletableFuture<V>> inFlight
+    =new ConcurrentHashMap<K,CompletableFuture<V>>();
+  
+  /**
+   * Run the operation for the key on the calling thread, or wait for the
+   *   operation already in flight for the key.
+   * 
+   * @throws Exception the exception thrown by the operation, unwrapped
+   */
+  public V execute(K key,Callable<V> operation)
+    throws Exception
+  {
+    CompletableFuture<V> future=new CompletableFuture<V>();
+    CompletableFuture<V> existing=inFlight.putIfAbsent(key,future);
+    if (existing!=null)
+    { return await(existing);
+    }
+    
+    try
+    { 
+      V result=operation.call();
+      future.complete(result);
+      return result;
+    }
+    catch (Exception x)
+    { 
+      future.completeExceptionally(x);
+      throw x;
+    }
+    catch (Error x)
+    { 
+      future.completeExceptionally(x);
+      throw x;
+    }
+    finally
+    { inFlight.remove(key,future);
+    }
+  }
+  
+  /**
+   * Start the operation for the key on the executor, or join the operation
+   *   already in flight for the key. 
+   */
+  public CompletableFuture<V> executeAsync
+    (final K key,final Callable<V> operation,Executor executor)
+  {
+    final CompletableFuture<V> future=new CompletableFuture<V>();
+    CompletableFuture<V> existing=inFlight.putIfAbsent(key,future);
+    if (existing!=null)
+    { return existing;
+    }
+    
+    try
+    {
+      executor.execute
+        (new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            try
+            { future.complete(operation.call());
+            }
+            catch (Throwable x)
+            { future.completeExceptionally(x);
+            }
+            finally
+            { inFlight.remove(key,future);
+            }
+          }
+        }
+        );
+    }
+    catch (RuntimeException x)
+    {
+      inFlight.remove(key,future);
+      future.completeExceptionally(x);
+    }
+    return future;
+  }
+  
+  /**
+   * Whether an operation is in flight for the key
+   */
+  public boolean isInFlight(K key)
+  { return inFlight.containsKey(key);
+  }
+  
+  /**
+   * Wait for a future and unwrap the failure
+   */
+  public static <V> V await(CompletableFuture<V> future)
+    throws Exception
+  {
+    try
+    { return future.get();
+    }
+    catch (InterruptedException x)
+    { 
+      Thread.currentThread().interrupt();
+      InterruptedIOException ix
+        =new InterruptedIOException("Interrupted waiting for result");
+      ix.initCause(x);
+      throw ix;
+    }
+    catch (ExecutionException x)
+    {
+      Throwable cause=x.getCause();
+      if (cause instanceof Exception)
+      { throw (Exception) cause;
+      }
+      if (cause instanceof Error)
+      { throw (Error) cause;
+      }
+      throw x;
+    }
+  }
+}
@@ -14,10 +14,14 @@
 //
 package spiralcraft.oauth1;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
 import java.util.HashMap;
 
 import spiralcraft.common.ContextualException;
@@ -37,6 +41,11 @@ import spiralcraft.lang.reflect.BeanReflector;
 import spiralcraft.lang.util.DictionaryBinding;
 import spiralcraft.lang.util.LangUtil;
 import spiralcraft.log.ClassLog;
+import spiralcraft.oauth.http.Response;
+import spiralcraft.oauth.http.ResponseStream;
+import spiralcraft.oauth.paging.PagedStream;
+import spiralcraft.oauth.paging.Paging;
+import spiralcraft.oauth.util.JsonArrayStream;
 
 public class Call<Tresult>
   extends Query<Tresult>
@@ -46,6 +55,8 @@ public class Call<Tresult>
   private static final ClassLog log
     =ClassLog.getInstance(Call.class);
   
+  private static final Charset UTF_8=Charset.forName("UTF-8");
+  
   @SuppressWarnings("rawtypes")
   private static HashMap<Class,StringConverter> converterMap
     =new HashMap<Class,StringConverter>();
@@ -55,8 +66,72 @@ public class Call<Tresult>
     =BeanReflector.getInstance(Client.class);
   private Channel<Session> sessionChannel;
   private Client client;
+  private String streamPath;
+  private JsonArrayStream.ElementHandler<? super Tresult> elementHandler;
+  private Paging paging;
+  private int pageLookahead=1;
+  private boolean sharedCache;
 
   
+  /**
+   * <p>Stream the elements of the JSON array found at this dotted path of
+   *   member names ("" if the response is the array) to the 
+   *   elementHandler, instead of reading the whole response into one 
+   *   result. The result type is then the element type, and only one 
+   *   element is held in memory at a time.
+   * </p>
+   * 
+   * @param streamPath
+   */
+  public void setStreamPath(String streamPath)
+  { this.streamPath=streamPath;
+  }
+  
+  /**
+   * Receives each element when a streamPath is set
+   * 
+   * @param elementHandler
+   */
+  public void setElementHandler
+    (JsonArrayStream.ElementHandler<? super Tresult> elementHandler)
+  { this.elementHandler=elementHandler;
+  }
+  
+  /**
+   * <p>Follow the pages of a paged resource with this Paging, streaming
+   *   the records of every page found at the streamPath to the 
+   *   elementHandler as one sequence. The following pages are requested
+   *   while each page is being handled.
+   * </p>
+   * 
+   * @param paging
+   */
+  public void setPaging(Paging paging)
+  { this.paging=paging;
+  }
+  
+  /**
+   * The number of pages requested ahead of the page being handled when
+   *   paging. Defaults to 1.
+   * 
+   * @param pageLookahead
+   */
+  public void setPageLookahead(int pageLookahead)
+  { this.pageLookahead=pageLookahead;
+  }
+  
+  /**
+   * Cache the response in the scope shared by all Sessions of the Client,
+   *   instead of separately for each access token, when the Client has a
+   *   responseCacheSize. Only for resources that are the same for every
+   *   user, eg. provider configuration.
+   * 
+   * @param sharedCache
+   */
+  public void setSharedCache(boolean sharedCache)
+  { this.sharedCache=sharedCache;
+  }
+  
   @Override
   protected URI getDefaultURI()
   { return client.apiURI;
@@ -111,20 +186,82 @@ public class Call<Tresult>
       throws IOException
     { 
       URI uri=resource.getURI();
+      if (paging!=null)
+      { 
+        // The pages are requested by readPages()
+        return new ByteArrayInputStream(new byte[0]);
+      }
+      if (streamPath!=null)
+      { return openStream(uri);
+      }
+      if (sharedCache)
+      { return sharedGet(uri);
+      }
       URLMessage message=sessionChannel.get().call("GET",uri,null);
       return message.getInputStream();
     }
     
+    /**
+     * The body of a response held in the Client's shared response cache,
+     *   or of a new one
+     */
+    private InputStream sharedGet(URI uri)
+      throws IOException
+    {
+      Response response=sessionChannel.get().cachedGet(uri,true);
+      if (response.isError())
+      { throw response.toException();
+      }
+      return response.getInputStream();
+    }
+    
+    /**
+     * The body of a streamed response, read from the connection
+     */
+    private InputStream openStream(URI uri)
+      throws IOException
+    {
+      ResponseStream response;
+      try
+      { 
+        response
+          =sessionChannel.get().open(client.requestTemplate("GET",uri),null);
+      }
+      catch (GeneralSecurityException x)
+      { throw new IOException("Error signing request",x);
+      }
+      if (response.isError())
+      { throw response.buffer().toException();
+      }
+      return response.getInputStream();
+    }
+    
     @SuppressWarnings("unchecked")
     @Override
     protected Tresult readStream(InputStream in,URI uri)
       throws IOException
     {
+      if (paging!=null)
+      { 
+        in.close();
+        readPages(uri);
+        return null;
+      }
+      if (streamPath!=null)
+      { 
+        readElements(in,uri);
+        return null;
+      }
+      
       DataReader reader=new DataReader(getResultReflector(),null);
       reader.setIgnoreUnrecognizedFields(true);
       try
       {
-        Parser parser=new Parser(new InputStreamReader(in),reader);
+        Parser parser
+          =new Parser
+            (new BufferedReader(new InputStreamReader(in,UTF_8),8192)
+            ,reader
+            );
         parser.parse();
         return (Tresult) reader.getValue();
       }
@@ -133,6 +270,50 @@ public class Call<Tresult>
       }
     }
     
+    private void readPages(URI uri)
+      throws IOException
+    {
+      if (elementHandler==null)
+      { throw new IOException("No elementHandler to stream "+uri+" to");
+      }
+      PagedStream<Tresult> records
+        =sessionChannel.get().paginate
+          (uri
+          ,streamPath
+          ,paging
+          ,JsonArrayStream.beans(getResultReflector())
+          );
+      records.setLookahead(pageLookahead);
+      try
+      { records.drainTo(elementHandler);
+      }
+      catch (IOException x)
+      { throw new IOException("Error reading pages from "+uri,x);
+      }
+    }
+    
+    private void readElements(InputStream in,URI uri)
+      throws IOException
+    {
+      if (elementHandler==null)
+      { 
+        in.close();
+        throw new IOException("No elementHandler to stream "+uri+" to");
+      }
+      JsonArrayStream<Tresult> elements
+        =new JsonArrayStream<Tresult>
+          (JsonArrayStream.utf8Reader(in)
+          ,streamPath
+          ,JsonArrayStream.beans(getResultReflector())
+          );
+      try
+      { elements.drainTo(elementHandler);
+      }
+      catch (IOException x)
+      { throw new IOException("Error reading "+uri,x);
+      }
+    }
+    
   }
   
 }
@@ -14,11 +14,25 @@
 //
 package spiralcraft.oauth1;
 
+import java.io.IOException;
 import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import spiralcraft.lang.Reflector;
 import spiralcraft.lang.reflect.BeanReflector;
 import spiralcraft.log.Level;
+import spiralcraft.oauth.http.HostStatistics;
+import spiralcraft.oauth.http.RateLimiter;
+import spiralcraft.oauth.http.Response;
+import spiralcraft.oauth.http.ResponseCache;
+import spiralcraft.oauth.http.Transport;
+import spiralcraft.oauth.util.AsyncUtil;
+import spiralcraft.oauth.util.SingleFlight;
 
 
 /**
@@ -41,9 +55,23 @@ public class Client
   String tokenRequestVerb="POST";
   URI callbackURI;
   URI tokenInvalidateURI;
-  String signatureMethod;
+  String signatureMethod=HmacSignatureMethod.HMAC_SHA1;
   URI apiURI;
   Level logLevel=Level.INFO;
+  int signingKeyCacheSize=1024;
+  NonceGenerator nonceGenerator=new NonceGenerator();
+  final Transport transport=new Transport();
+  final RateLimiter rateLimiter=new RateLimiter();
+  PrivateKey rsaPrivateKey;
+  private volatile SignatureMethod signatureMethodInstance;
+  private final ConcurrentHashMap<String,RequestTemplate> requestTemplates
+    =new ConcurrentHashMap<String,RequestTemplate>();
+  private int maxRequestTemplates=256;
+  private volatile Executor callExecutor;
+  private volatile ResponseCache responseCache;
+  volatile boolean coalesceRequests;
+  private final SingleFlight<String,Response> requestFlights
+    =new SingleFlight<String,Response>();
   
   protected Reflector<Session> sessionReflector
     =BeanReflector.<Session>getInstance(Session.class);
@@ -55,11 +83,15 @@ public class Client
    * @param clientId
    */
   public void setClientId(String clientId)
-  { this.clientId=clientId;
+  { 
+    this.clientId=clientId;
+    credentialsChanged();
   }
   
   public void setRealm(String realm)
-  { this.realm=realm;
+  { 
+    this.realm=realm;
+    credentialsChanged();
   }
   
   /**
@@ -69,7 +101,9 @@ public class Client
    * @param sharedSecret
    */
   public void setSharedSecret(String sharedSecret)
-  { this.sharedSecret=sharedSecret;
+  { 
+    this.sharedSecret=sharedSecret;
+    credentialsChanged();
   }
   
   public URI getCredentialRequestURI()
@@ -108,12 +142,353 @@ public class Client
   { return apiURI;
   }
   
+  /**
+   * The maximum number of request templates that will be retained
+   *   automatically for resource requests made via Session.call(). 
+   *   Templates created explicitly with prepareRequest() are not subject
+   *   to this limit. Defaults to 256.
+   * 
+   * @param maxRequestTemplates
+   */
+  public void setMaxRequestTemplates(int maxRequestTemplates)
+  { this.maxRequestTemplates=maxRequestTemplates;
+  }
+  
+  /**
+   * <p>Prepare a reusable template for signed resource requests made with
+   *   the specified verb to the specified URI. 
+   * </p>
+   * 
+   * <p>The template should be retained by the caller and passed to
+   *   Session.call(RequestTemplate,VariableMap) for each request.
+   * </p>
+   */
+  public RequestTemplate prepareRequest(String verb,URI uri)
+    throws IOException,GeneralSecurityException
+  { return new RequestTemplate(this,signatureMethod(),verb,uri);
+  }
+  
+  /**
+   * Return a retained template for the verb and URI, creating and
+   *   retaining it if there is room.
+   */
+  RequestTemplate requestTemplate(String verb,URI uri)
+    throws IOException,GeneralSecurityException
+  {
+    String key=verb+" "+uri.toString();
+    RequestTemplate template=requestTemplates.get(key);
+    if (template!=null && template.getSignatureMethod()!=signatureMethod())
+    { 
+      // Retained while the credentials were being changed
+      requestTemplates.remove(key,template);
+      template=null;
+    }
+    if (template==null)
+    { 
+      template=prepareRequest(verb,uri);
+      if (requestTemplates.size()<maxRequestTemplates)
+      { 
+        RequestTemplate existing=requestTemplates.putIfAbsent(key,template);
+        if (existing!=null)
+        { template=existing;
+        }
+      }
+    }
+    return template;
+  }
+  
+  /**
+   * Discard the signature method and the retained request templates, 
+   *   which hold the signing credentials and the consumer key and realm
+   */
+  private void credentialsChanged()
+  {
+    signatureMethodInstance=null;
+    requestTemplates.clear();
+  }
+  
   public Session newSession()
   { return new Session(this);
   }
   
+  /**
+   * The Executor that runs the asynchronous calls made via 
+   *   Session.callAsync(). Defaults to a virtual thread per call where 
+   *   the JVM supports it, otherwise a shared daemon thread pool. 
+   * 
+   * @param callExecutor
+   */
+  public void setCallExecutor(Executor callExecutor)
+  { this.callExecutor=callExecutor;
+  }
+  
+  Executor callExecutor()
+  { 
+    Executor executor=callExecutor;
+    return executor!=null?executor:AsyncUtil.defaultExecutor();
+  }
+  
+  /**
+   * The maximum number of token secrets for which initialized signing key
+   *   state is retained. Defaults to 1024.
+   * 
+   * @param signingKeyCacheSize
+   */
+  public void setSigningKeyCacheSize(int signingKeyCacheSize)
+  { 
+    this.signingKeyCacheSize=signingKeyCacheSize;
+    credentialsChanged();
+  }
+  
+  /**
+   * The method used to sign requests: HMAC-SHA1 (the default),
+   *   HMAC-SHA256, RSA-SHA1 or PLAINTEXT. PLAINTEXT must only be used
+   *   when all provider endpoints are accessed via TLS.
+   * 
+   * @param signatureMethod
+   */
+  public void setSignatureMethod(String signatureMethod)
+  { 
+    this.signatureMethod=signatureMethod;
+    credentialsChanged();
+  }
+  
+  public String getSignatureMethod()
+  { return signatureMethod;
+  }
+  
+  /**
+   * The private key used for the RSA-SHA1 signature method, as an 
+   *   unencrypted PKCS#8 PEM ("BEGIN PRIVATE KEY") block.
+   * 
+   * @param pem
+   */
+  public void setRsaPrivateKey(String pem)
+    throws GeneralSecurityException
+  { setRsaPrivateKey(RsaSignatureMethod.parsePrivateKey(pem));
+  }
+  
+  public void setRsaPrivateKey(PrivateKey rsaPrivateKey)
+  { 
+    this.rsaPrivateKey=rsaPrivateKey;
+    credentialsChanged();
+  }
+  
+  /**
+   * The configured signature method, with its key material prepared on 
+   *   first use.
+   */
+  SignatureMethod signatureMethod()
+    throws GeneralSecurityException
+  {
+    SignatureMethod method=signatureMethodInstance;
+    if (method==null)
+    { 
+      synchronized (this)
+      {
+        method=signatureMethodInstance;
+        if (method==null)
+        { 
+          method=SignatureMethod.forName(signatureMethod,this);
+          signatureMethodInstance=method;
+        }
+      }
+    }
+    return method;
+  }
+  
+  /**
+   * The number of random characters in each oauth_nonce. Defaults to 10.
+   * 
+   * @param nonceLength
+   */
+  public void setNonceLength(int nonceLength)
+  { nonceGenerator.setNonceLength(nonceLength);
+  }
+  
+  /**
+   * The generator for request nonces and timestamps
+   * 
+   * @param nonceGenerator
+   */
+  public void setNonceGenerator(NonceGenerator nonceGenerator)
+  { this.nonceGenerator=nonceGenerator;
+  }
+  
+  public NonceGenerator getNonceGenerator()
+  { return nonceGenerator;
+  }
+  
+  /**
+   * The maximum time in milliseconds to wait for a connection to the
+   *   provider to be established
+   * 
+   * @param connectTimeout
+   */
+  public void setConnectTimeout(int connectTimeout)
+  { transport.setConnectTimeout(connectTimeout);
+  }
+  
+  /**
+   * The maximum time in milliseconds to wait for data from the provider
+   * 
+   * @param readTimeout
+   */
+  public void setReadTimeout(int readTimeout)
+  { transport.setReadTimeout(readTimeout);
+  }
+  
+  /**
+   * The maximum number of concurrent persistent connections to each
+   *   provider host, shared by all Sessions of this Client
+   * 
+   * @param maxConnectionsPerHost
+   */
+  public void setMaxConnectionsPerHost(int maxConnectionsPerHost)
+  { transport.setMaxConnectionsPerHost(maxConnectionsPerHost);
+  }
+  
+  /**
+   * The maximum time in milliseconds a request will wait for a 
+   *   connection when maxConnectionsPerHost are already in use
+   * 
+   * @param connectionWaitTimeout
+   */
+  public void setConnectionWaitTimeout(int connectionWaitTimeout)
+  { transport.setConnectionWaitTimeout(connectionWaitTimeout);
+  }
+  
+  /**
+   * <p>Share one response among concurrent identical resource GETs made 
+   *   with the same token via Session.call(), instead of sending each
+   *   one to the provider. Defaults to false.
+   * </p>
+   * 
+   * <p>Only requests that start while the first is in flight share its 
+   *   response- no response is retained after it is delivered.
+   * </p>
+   * 
+   * @param coalesceRequests
+   */
+  public void setCoalesceRequests(boolean coalesceRequests)
+  { this.coalesceRequests=coalesceRequests;
+  }
+  
+  /**
+   * Run a resource request, or join the identical one already in flight
+   */
+  Response requestFlight(String key,Callable<Response> operation)
+    throws IOException
+  {
+    try
+    { return requestFlights.execute(key,operation);
+    }
+    catch (IOException x)
+    { throw x;
+    }
+    catch (RuntimeException x)
+    { throw x;
+    }
+    catch (Exception x)
+    { throw new IOException("Error performing request",x);
+    }
+  }
+  
+  /**
+   * The maximum number of resource GET responses retained for reuse and
+   *   revalidation by Sessions, according to the caching headers the 
+   *   provider sends. Cached responses are parsed anew for each Call.
+   *   Defaults to 0, which disables the cache.
+   * 
+   * @param responseCacheSize
+   */
+  public void setResponseCacheSize(int responseCacheSize)
+  { 
+    if (responseCacheSize<=0)
+    { responseCache=null;
+    }
+    else if (responseCache!=null)
+    { responseCache.setMaxEntries(responseCacheSize);
+    }
+    else
+    { responseCache=new ResponseCache(responseCacheSize);
+    }
+  }
+  
+  /**
+   * The cache of resource GET responses, with its hit and miss counts, or 
+   *   null if responseCacheSize is 0
+   */
+  public ResponseCache getResponseCache()
+  { return responseCache;
+  }
+  
+  /**
+   * The sustained rate of resource requests to send for all Sessions, 
+   *   and the number that may be sent at once after a quiet period. 
+   *   Requests beyond the rate wait their turn. A rate of 0 (the default)
+   *   is unlimited.
+   * 
+   * @param requestsPerSecond
+   * @param burst
+   */
+  public void setRateLimit(double requestsPerSecond,int burst)
+  { rateLimiter.setRateLimit(requestsPerSecond,burst);
+  }
+  
+  /**
+   * The sustained rate of resource requests to send for each access 
+   *   token, and the number that may be sent at once after a quiet period.
+   *   A rate of 0 (the default) is unlimited.
+   * 
+   * @param requestsPerSecond
+   * @param burst
+   */
+  public void setTokenRateLimit(double requestsPerSecond,int burst)
+  { rateLimiter.setTokenRateLimit(requestsPerSecond,burst);
+  }
+  
+  /**
+   * The longest time in milliseconds a resource request will wait for a
+   *   rate limit or a provider's Retry-After before failing. Defaults to
+   *   60000.
+   * 
+   * @param maxRateLimitWait
+   */
+  public void setMaxRateLimitWait(long maxRateLimitWait)
+  { rateLimiter.setMaxWait(maxRateLimitWait);
+  }
+  
+  /**
+   * The number of times a resource request refused with 429 Too Many 
+   *   Requests is retried. Defaults to 2.
+   * 
+   * @param maxRateLimitRetries
+   */
+  public void setMaxRateLimitRetries(int maxRateLimitRetries)
+  { rateLimiter.setMaxRetries(maxRateLimitRetries);
+  }
+  
+  /**
+   * The provider's reported quota and the counts of delayed and refused 
+   *   requests
+   */
+  public RateLimiter getRateLimiter()
+  { return rateLimiter;
+  }
+  
+  /**
+   * Connection statistics for each provider host contacted
+   */
+  public List<HostStatistics> getTransportStatistics()
+  { return transport.getStatistics();
+  }
+  
   public void setLogLevel(Level logLevel)
-  { this.logLevel=logLevel;
+  { 
+    this.logLevel=logLevel;
+    transport.setLogLevel(logLevel);
+    rateLimiter.setLogLevel(logLevel);
   }
   
 }
@@ -30,6 +30,11 @@ import spiralcraft.lang.spi.ThreadLocalChannel;
 import spiralcraft.lang.util.LangUtil;
 import spiralcraft.log.Level;
 import spiralcraft.net.http.VariableMap;
+import spiralcraft.oauth.session.CookieSessionPersistence;
+import spiralcraft.oauth.session.SealedCookie;
+import spiralcraft.oauth.session.SessionPersistence;
+import spiralcraft.oauth.session.SessionStore;
+import spiralcraft.oauth.session.StoreSessionPersistence;
 
 import spiralcraft.servlet.autofilter.spi.FocusFilter;
 
@@ -49,6 +54,14 @@ public class Filter
   private URI authSuccessLocation=URI.create("success");
   private URI authFailureLocation=URI.create("failure");
   private boolean invalidateOnLogout=false;
+  private String sessionCookieName;
+  private String sessionCookieKeys;
+  private int sessionCookieMaxAge=-1;
+  private int sessionSealMaxAge=SealedCookie.DEFAULT_SEAL_MAX_AGE;
+  private boolean sessionCookieSecure=true;
+  private SessionStore sessionStore;
+  private String sessionIdCookieName="oauth_session";
+  private SessionPersistence<Session> sessionPersistence;
         
   { setUsesRequest(true);
   }
@@ -68,6 +81,89 @@ public class Filter
   { this.invalidateOnLogout=invalidateOnLogout;
   }
   
+  /**
+   * <p>The name of a cookie to hold the authentication state in place of
+   *   the HTTP session. When set, together with sessionCookieKeys, the 
+   *   Session is sealed into the cookie whenever its token state changes
+   *   and rebuilt from it on each request, so no per-user oauth state is
+   *   kept on the server.
+   * </p>
+   * 
+   * @param sessionCookieName
+   */
+  public void setSessionCookieName(String sessionCookieName)
+  { this.sessionCookieName=sessionCookieName;
+  }
+  
+  /**
+   * The comma separated, base64 encoded AES keys (16, 24 or 32 bytes) used
+   *   to seal the session cookie. The first key seals new cookies, and
+   *   all keys are accepted, to allow for key rotation.
+   * 
+   * @param sessionCookieKeys
+   */
+  public void setSessionCookieKeys(String sessionCookieKeys)
+  { this.sessionCookieKeys=sessionCookieKeys;
+  }
+  
+  /**
+   * The lifetime of the session cookie in seconds. Defaults to -1, which
+   *   ends it with the browser session.
+   * 
+   * @param sessionCookieMaxAge
+   */
+  public void setSessionCookieMaxAge(int sessionCookieMaxAge)
+  { this.sessionCookieMaxAge=sessionCookieMaxAge;
+  }
+  
+  /**
+   * The time in seconds after it was sealed that a session cookie stops
+   *   being accepted, whatever its lifetime in the browser. Cookies in use
+   *   are resealed once half this time has passed. Defaults to one day.
+   * 
+   * @param sessionSealMaxAge
+   */
+  public void setSessionSealMaxAge(int sessionSealMaxAge)
+  { this.sessionSealMaxAge=sessionSealMaxAge;
+  }
+  
+  /**
+   * <p>A store to hold the authentication state in place of the HTTP
+   *   session, eg. one shared by all nodes. The Session is saved to the
+   *   store whenever its token state changes and rebuilt from it on each
+   *   request, keyed by a random id held in the sessionIdCookieName 
+   *   cookie.
+   * </p>
+   * 
+   * <p>Ignored if a session cookie is configured.
+   * </p>
+   * 
+   * @param sessionStore
+   */
+  public void setSessionStore(SessionStore sessionStore)
+  { this.sessionStore=sessionStore;
+  }
+  
+  /**
+   * The name of the cookie that holds the session id when a sessionStore
+   *   is used. Defaults to "oauth_session".
+   * 
+   * @param sessionIdCookieName
+   */
+  public void setSessionIdCookieName(String sessionIdCookieName)
+  { this.sessionIdCookieName=sessionIdCookieName;
+  }
+  
+  /**
+   * Whether the session cookie or session id cookie is restricted to 
+   *   HTTPS. Defaults to true.
+   * 
+   * @param sessionCookieSecure
+   */
+  public void setSessionCookieSecure(boolean sessionCookieSecure)
+  { this.sessionCookieSecure=sessionCookieSecure;
+  }
+  
   /**
    * The Client object which talks to the oauth server
    * 
@@ -118,28 +214,29 @@ public class Filter
       }
     }
 
-    Session session
-      =this.<Session>getPrivateSessionState
-        (requestChannel.get(),true);
+    Session session=session(requestChannel.get(),true);
     
     
     if (referer!=null)
     { session.setReturnURI(URI.create(referer));
     }
     
+    URI location;
     try
-    { return session.startAuthSequence(callbackURI);
+    { location=session.startAuthSequence(callbackURI);
     }
     catch (GeneralSecurityException x)
     {
       log.log(Level.WARNING,"Error starting oauth sequence",x);
-      return session.getReturnURI();
+      location=session.getReturnURI();
     }
     catch (IOException x)
     {
       log.log(Level.WARNING,"Error starting oauth sequence",x);
-      return session.getReturnURI();
+      location=session.getReturnURI();
     }
+    saveSession(requestChannel.get());
+    return location;
   }
   
   @Override
@@ -164,9 +261,7 @@ public class Filter
     { log.fine("Auth: "+authToken+":"+authVerifier);
     }
     
-    Session session
-      =this.<Session>getPrivateSessionState
-        (requestChannel.get(),true);
+    Session session=session(requestChannel.get(),true);
     
     try
     { session.completeAuthSequence(authToken,authVerifier);
@@ -177,7 +272,8 @@ public class Filter
     catch (GeneralSecurityException x)
     { log.log(Level.WARNING,"OAuth failure",x);
     }
-    
+    renewSession(request,session);
+    saveSession(request);
     
     URI redirectURI=session.getReturnURI();
     if (redirectURI==null && authSuccessLocation!=null)
@@ -200,11 +296,10 @@ public class Filter
     
     String problem=query.getValue("oauth_problem");
 
-    Session session
-      =this.<Session>getPrivateSessionState
-        (requestChannel.get(),true);
+    Session session=session(requestChannel.get(),true);
     
     session.abortAuthSequence(problem);
+    saveSession(request);
         
     URI redirectURI=session.getReturnURI();
     if (redirectURI==null && authFailureLocation!=null)
@@ -218,9 +313,7 @@ public class Filter
 
   public void logout()
   {
-    Session session
-      =this.<Session>getPrivateSessionState
-        (requestChannel.get(),true);
+    Session session=session(requestChannel.get(),false);
     if (session==null || !session.isTokenValid())
     { return;
     }
@@ -237,12 +330,56 @@ public class Filter
     catch (IOException x)
     { log.log(Level.WARNING,"Error on logout",x);
     }
+    saveSession(requestChannel.get());
   }
   
   public void clearSession()
-  { channel.get().clear();
+  { 
+    channel.get().clear();
+    saveSession(requestChannel.get());
   }
   
+  /**
+   * The Session for the request, from the HTTP session or the configured
+   *   SessionPersistence
+   */
+  private Session session(HttpServletRequest request,boolean create)
+  {
+    if (sessionPersistence==null)
+    { return this.<Session>getPrivateSessionState(request,create);
+    }
+    return sessionPersistence.get(request,create);
+  }
+  
+  /**
+   * Give the Session a new identity once it has authenticated, so an id
+   *   planted in the browser beforehand (session fixation) is useless
+   */
+  private void renewSession(HttpServletRequest request,Session session)
+  {
+    if (!session.isTokenValid())
+    { return;
+    }
+    if (sessionPersistence!=null)
+    { sessionPersistence.renew(request);
+    }
+    else if (request.getSession(false)!=null)
+    { request.changeSessionId();
+    }
+  }
+  
+  /**
+   * Persist the Session's state if it is kept outside the HTTP session 
+   *   and has changed. This must happen before the response is committed.
+   */
+  private void saveSession(HttpServletRequest request)
+  {
+    if (sessionPersistence!=null)
+    { sessionPersistence.save(request);
+    }
+  }
+  
+  
   /**
    * Called -once- to create the Focus
    */
@@ -254,6 +391,48 @@ public class Filter
     if (client==null)
     { throw new BindException("No oauth client configured");
     }
+    
+    SessionPersistence.Factory<Session> sessionFactory
+      =new SessionPersistence.Factory<Session>()
+      {
+        @Override
+        public Session newSession()
+        { return client.newSession();
+        }
+      };
+    if (sessionCookieName!=null)
+    {
+      if (sessionCookieKeys==null)
+      { 
+        throw new BindException
+          ("sessionCookieKeys must be configured with sessionCookieName");
+      }
+      if (sessionSealMaxAge<=0)
+      { throw new BindException("sessionSealMaxAge must be positive");
+      }
+      SealedCookie sessionCookie;
+      try
+      { 
+        sessionCookie
+          =new SealedCookie(sessionCookieName,sessionCookieKeys.split(","));
+      }
+      catch (GeneralSecurityException x)
+      { throw new BindException("Invalid sessionCookieKeys",x);
+      }
+      sessionCookie.setMaxAge(sessionCookieMaxAge);
+      sessionCookie.setSealMaxAge(sessionSealMaxAge);
+      sessionCookie.setSecure(sessionCookieSecure);
+      sessionPersistence
+        =new CookieSessionPersistence<Session>(sessionFactory,sessionCookie);
+    }
+    else if (sessionStore!=null)
+    {
+      StoreSessionPersistence<Session> storePersistence
+        =new StoreSessionPersistence<Session>
+          (sessionFactory,sessionStore,sessionIdCookieName);
+      storePersistence.setSecure(sessionCookieSecure);
+      sessionPersistence=storePersistence;
+    }
 
     channel
       =new ThreadLocalChannel<Session>
@@ -268,7 +447,9 @@ public class Filter
     throws BindException,ServletException
   {
     Session session
-      =this.<Session>getPrivateSessionState(request,false);
+      =sessionPersistence!=null
+      ?sessionPersistence.bind(request,response)
+      :this.<Session>getPrivateSessionState(request,false);
 
     
     channel.push(session);
@@ -299,7 +480,9 @@ public class Filter
   
   @Override
   protected void popSubject(HttpServletRequest request)
-  { channel.pop();
+  { 
+    saveSession(request);
+    channel.pop();
   }  
   
 
@@ -0,0 +1,72 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth1;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+
+import spiralcraft.codec.text.Base64Codec;
+
+/**
+ * HMAC signature methods (RFC 5849 3.4.2), using cached per-thread key 
+ *   state for each token secret.
+ * 
+ * @author mike
+ *
+ */
+public class HmacSignatureMethod
+  extends SignatureMethod
+{
+  public static final String HMAC_SHA1="HMAC-SHA1";
+  public static final String HMAC_SHA256="HMAC-SHA256";
+  
+  private final String name;
+  private final String clientSecret;
+  private final SigningKeyCache keyCache;
+  
+  public HmacSignatureMethod
+    (String name,String algorithm,String clientSecret,int keyCacheSize)
+  { 
+    this.name=name;
+    this.clientSecret=clientSecret;
+    this.keyCache=new SigningKeyCache(algorithm,keyCacheSize);
+  }
+  
+  @Override
+  public String getName()
+  { return name;
+  }
+  
+  public SigningKeyCache getKeyCache()
+  { return keyCache;
+  }
+  
+  @Override
+  public String sign(Base base,String tokenSecret)
+    throws GeneralSecurityException
+  {
+    Mac mac=keyCache.getMac(clientSecret,tokenSecret);
+    SignatureBaseWriter writer=new SignatureBaseWriter.MacWriter(mac);
+    base.writeTo(writer);
+    writer.flush();
+    return Base64Codec.encodeBytes(mac.doFinal());
+  }
+  
+  @Override
+  public void release(String tokenSecret)
+  { keyCache.evict(clientSecret,tokenSecret);
+  }
+}
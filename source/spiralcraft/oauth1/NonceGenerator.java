@@ -0,0 +1,155 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth1;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import spiralcraft.time.Clock;
+
+/**
+ * <p>Generates the oauth_nonce and oauth_timestamp request parameters
+ *   (RFC 5849 3.3).
+ * </p>
+ * 
+ * <p>By default each thread draws nonce entropy from its own SecureRandom,
+ *   so concurrent signing threads don't contend on a shared generator. The
+ *   timestamp string is formatted once per second and shared.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class NonceGenerator
+{
+  
+  /**
+   * Supplies random bytes for nonces. Implementations must be thread-safe.
+   */
+  public interface EntropySource
+  {
+    void nextBytes(byte[] bytes);
+  }
+  
+  /**
+   * 64 unreserved characters, so nonces never need to be percent encoded
+   *   and each random byte maps to a character without bias.
+   */
+  private static final char[] ALPHABET
+    =("ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+     +"abcdefghijklmnopqrstuvwxyz"
+     +"0123456789-_"
+     ).toCharArray();
+
+  private static final EntropySource THREAD_LOCAL_ENTROPY
+    =new EntropySource()
+    {
+      private final ThreadLocal<SecureRandom> threadRandom
+        =new ThreadLocal<SecureRandom>()
+        {
+          @Override
+          protected SecureRandom initialValue()
+          { 
+            try
+            { 
+              // Avoid the process-wide lock of the native generator
+              return SecureRandom.getInstance("SHA1PRNG");
+            }
+            catch (NoSuchAlgorithmException x)
+            { return new SecureRandom();
+            }
+          }
+        };
+        
+      @Override
+      public void nextBytes(byte[] bytes)
+      { threadRandom.get().nextBytes(bytes);
+      }
+    };
+  
+  private volatile EntropySource entropySource=THREAD_LOCAL_ENTROPY;
+  private volatile int nonceLength=10;
+  private volatile Timestamp timestamp;
+  
+  /**
+   * The number of characters in each nonce. Defaults to 10.
+   * 
+   * @param nonceLength
+   */
+  public void setNonceLength(int nonceLength)
+  { 
+    if (nonceLength<1)
+    { throw new IllegalArgumentException("Nonce length must be positive");
+    }
+    this.nonceLength=nonceLength;
+  }
+  
+  public int getNonceLength()
+  { return nonceLength;
+  }
+  
+  /**
+   * Replace the source of nonce entropy, for example with a deterministic
+   *   source for testing. Null restores the default per-thread 
+   *   SecureRandom source.
+   * 
+   * @param entropySource
+   */
+  public void setEntropySource(EntropySource entropySource)
+  { 
+    this.entropySource
+      =entropySource!=null?entropySource:THREAD_LOCAL_ENTROPY;
+  }
+  
+  public String nextNonce()
+  {
+    int length=nonceLength;
+    byte[] bytes=new byte[length];
+    entropySource.nextBytes(bytes);
+    char[] chars=new char[length];
+    for (int i=0;i<length;i++)
+    { chars[i]=ALPHABET[bytes[i] & 0x3F];
+    }
+    return new String(chars);
+  }
+  
+  /**
+   * The current time in seconds since the epoch, formatted as a decimal
+   *   string
+   */
+  public String currentTimestamp()
+  {
+    long seconds=Clock.instance().approxTimeMillis()/1000;
+    Timestamp current=timestamp;
+    if (current==null || current.seconds!=seconds)
+    { 
+      current=new Timestamp(seconds);
+      timestamp=current;
+    }
+    return current.value;
+  }
+  
+  private static final class Timestamp
+  {
+    final long seconds;
+    final String value;
+    
+    Timestamp(long seconds)
+    { 
+      this.seconds=seconds;
+      this.value=Long.toString(seconds);
+    }
+  }
+}
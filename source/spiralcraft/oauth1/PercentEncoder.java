@@ -0,0 +1,320 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import spiralcraft.net.http.VariableMap;
+
+/**
+ * <p>Percent encoding as specified in RFC 5849 3.6. Characters are
+ *   converted to UTF-8 and every octet outside the unreserved set
+ *   (ALPHA, DIGIT, '-', '.', '_', '~') is written as %XX using uppercase
+ *   hex digits.
+ * </p>
+ *
+ * <p>The encoder is table driven and writes directly to the supplied
+ *   output without intermediate copies. It is the common primitive used
+ *   for Authorization headers, signature base strings and form encoded
+ *   request bodies.
+ * </p>
+ *
+ * @author mike
+ *
+ */
+public final class PercentEncoder
+{
+
+  /**
+   * Receives encoded output one octet at a time
+   */
+  public interface Sink
+  {
+    void write(int octet);
+  }
+
+  private static final boolean[] UNRESERVED=new boolean[128];
+  private static final byte[] HEX
+    ={'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
+  private static final int REPLACEMENT='?';
+
+  static
+  {
+    for (int chr='A';chr<='Z';chr++)
+    { UNRESERVED[chr]=true;
+    }
+    for (int chr='a';chr<='z';chr++)
+    { UNRESERVED[chr]=true;
+    }
+    for (int chr='0';chr<='9';chr++)
+    { UNRESERVED[chr]=true;
+    }
+    UNRESERVED['-']=true;
+    UNRESERVED['.']=true;
+    UNRESERVED['_']=true;
+    UNRESERVED['~']=true;
+  }
+
+  private PercentEncoder()
+  {
+  }
+
+  /**
+   * Indicate whether the character is passed through unencoded
+   */
+  public static boolean isUnreserved(int chr)
+  { return chr>=0 && chr<128 && UNRESERVED[chr];
+  }
+
+  public static String encode(CharSequence input)
+  {
+    StringBuilder buf=new StringBuilder(input.length()+16);
+    encode(input,buf);
+    return buf.toString();
+  }
+
+  public static void encode(CharSequence input,final StringBuilder buf)
+  {
+    encode
+      (input
+      ,false
+      ,new Sink()
+        {
+          @Override
+          public void write(int octet)
+          { buf.append((char) octet);
+          }
+        }
+      );
+  }
+
+  public static void encode(CharSequence input,final Appendable buf)
+    throws IOException
+  {
+    if (buf instanceof StringBuilder)
+    {
+      encode(input,(StringBuilder) buf);
+      return;
+    }
+
+    // Appendable throws a checked exception, so pre-encode to ASCII
+    byte[] encoded=new byte[encodedLength(input)];
+    encode(input,encoded,0);
+    for (byte octet:encoded)
+    { buf.append((char) octet);
+    }
+  }
+
+  /**
+   * Encode the input into the array at the specified offset. The array
+   *   must have room for encodedLength(input) octets.
+   *
+   * @return The offset following the last octet written
+   */
+  public static int encode(CharSequence input,final byte[] dest,int offset)
+  {
+    ArraySink sink=new ArraySink(dest,offset);
+    encode(input,false,sink);
+    return sink.position;
+  }
+
+  /**
+   * Encode the input into the buffer at its current position
+   *
+   * @throws java.nio.BufferOverflowException if the buffer does not have
+   *   encodedLength(input) octets remaining
+   */
+  public static void encode(CharSequence input,final ByteBuffer dest)
+  {
+    encode
+      (input
+      ,false
+      ,new Sink()
+        {
+          @Override
+          public void write(int octet)
+          { dest.put((byte) octet);
+          }
+        }
+      );
+  }
+
+  /**
+   * Encode the input, optionally converting ASCII uppercase letters
+   *   to lowercase first, and write the result to the sink
+   */
+  public static void encode(CharSequence input,boolean lowerCase,Sink sink)
+  {
+    int len=input.length();
+    for (int i=0;i<len;i++)
+    {
+      int chr=input.charAt(i);
+      if (chr<0x80)
+      {
+        if (lowerCase && chr>='A' && chr<='Z')
+        { chr+=0x20;
+        }
+        if (UNRESERVED[chr])
+        { sink.write(chr);
+        }
+        else
+        { writeEscaped(chr,sink);
+        }
+      }
+      else if (chr<0x800)
+      {
+        writeEscaped(0xC0 | (chr >> 6),sink);
+        writeEscaped(0x80 | (chr & 0x3F),sink);
+      }
+      else if (Character.isSurrogate((char) chr))
+      {
+        if (Character.isHighSurrogate((char) chr)
+            && i+1<len
+            && Character.isLowSurrogate(input.charAt(i+1))
+            )
+        {
+          int codePoint=Character.toCodePoint((char) chr,input.charAt(++i));
+          writeEscaped(0xF0 | (codePoint >> 18),sink);
+          writeEscaped(0x80 | ((codePoint >> 12) & 0x3F),sink);
+          writeEscaped(0x80 | ((codePoint >> 6) & 0x3F),sink);
+          writeEscaped(0x80 | (codePoint & 0x3F),sink);
+        }
+        else
+        {
+          // Malformed UTF-16, substitute as the platform encoder does
+          writeEscaped(REPLACEMENT,sink);
+        }
+      }
+      else
+      {
+        writeEscaped(0xE0 | (chr >> 12),sink);
+        writeEscaped(0x80 | ((chr >> 6) & 0x3F),sink);
+        writeEscaped(0x80 | (chr & 0x3F),sink);
+      }
+    }
+  }
+
+  /**
+   * The number of octets that encode() will produce for the input
+   */
+  public static int encodedLength(CharSequence input)
+  {
+    int total=0;
+    int len=input.length();
+    for (int i=0;i<len;i++)
+    {
+      char chr=input.charAt(i);
+      if (chr<0x80)
+      { total+=UNRESERVED[chr]?1:3;
+      }
+      else if (chr<0x800)
+      { total+=6;
+      }
+      else if (Character.isHighSurrogate(chr)
+              && i+1<len
+              && Character.isLowSurrogate(input.charAt(i+1))
+              )
+      {
+        total+=12;
+        i++;
+      }
+      else if (Character.isSurrogate(chr))
+      { total+=3;
+      }
+      else
+      { total+=9;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Write a single octet as %XX
+   */
+  public static void writeEscaped(int octet,Sink sink)
+  {
+    sink.write('%');
+    sink.write(HEX[(octet >> 4) & 0x0F]);
+    sink.write(HEX[octet & 0x0F]);
+  }
+
+  /**
+   * Append a single octet as %XX
+   */
+  public static void appendEscaped(int octet,Appendable buf)
+    throws IOException
+  {
+    buf.append('%');
+    buf.append((char) HEX[(octet >> 4) & 0x0F]);
+    buf.append((char) HEX[octet & 0x0F]);
+  }
+
+  /**
+   * Encode a set of parameters as a request body of type
+   *   application/x-www-form-urlencoded (RFC 5849 3.5.2)
+   */
+  public static byte[] encodeForm(VariableMap params)
+  {
+    if (params==null || params.isEmpty())
+    { return new byte[0];
+    }
+
+    int length=0;
+    for (Map.Entry<String,List<String>> entry:params.entrySet())
+    {
+      int nameLength=encodedLength(entry.getKey());
+      for (String value:entry.getValue())
+      { length+=nameLength+encodedLength(value)+2;
+      }
+    }
+
+    byte[] form=new byte[Math.max(0,length-1)];
+    ArraySink sink=new ArraySink(form,0);
+    for (Map.Entry<String,List<String>> entry:params.entrySet())
+    {
+      for (String value:entry.getValue())
+      {
+        if (sink.position>0)
+        { sink.write('&');
+        }
+        encode(entry.getKey(),false,sink);
+        sink.write('=');
+        encode(value,false,sink);
+      }
+    }
+    return form;
+  }
+
+  static final class ArraySink
+    implements Sink
+  {
+    private final byte[] dest;
+    int position;
+
+    ArraySink(byte[] dest,int position)
+    {
+      this.dest=dest;
+      this.position=position;
+    }
+
+    @Override
+    public void write(int octet)
+    { dest[position++]=(byte) octet;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth1;
+
+/**
+ * <p>The PLAINTEXT signature method (RFC 5849 3.4.4). The signature is the
+ *   encoded client secret and token secret- no signature base is computed.
+ * </p>
+ * 
+ * <p>PLAINTEXT must only be used over a secure transport such as TLS.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class PlaintextSignatureMethod
+  extends SignatureMethod
+{
+  public static final String PLAINTEXT="PLAINTEXT";
+
+  private final String prefix;
+  
+  public PlaintextSignatureMethod(String clientSecret)
+  { 
+    this.prefix
+      =(clientSecret!=null?PercentEncoder.encode(clientSecret):"")+"&";
+  }
+  
+  @Override
+  public String getName()
+  { return PLAINTEXT;
+  }
+
+  @Override
+  public String sign(Base base,String tokenSecret)
+  { 
+    return tokenSecret!=null
+      ?prefix+PercentEncoder.encode(tokenSecret)
+      :prefix
+      ;
+  }
+}
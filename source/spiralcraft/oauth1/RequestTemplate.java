@@ -0,0 +1,199 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth1;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.net.http.VariableMap;
+
+/**
+ * <p>The parts of a signed resource request that do not vary between calls
+ *   to the same verb and URI, computed once.
+ * </p>
+ *
+ * <p>A template holds the encoded signature base prefix (method and base
+ *   string URI), the encoded and pre-sorted query and static protocol
+ *   parameters, and the static part of the Authorization header. Each
+ *   request only encodes and merges the nonce, timestamp, token and
+ *   request body parameters.
+ * </p>
+ *
+ * <p>Templates are obtained from Client.prepareRequest() and are
+ *   thread-safe.
+ * </p>
+ *
+ * @author mike
+ *
+ */
+public class RequestTemplate
+{
+  private static final ClassLog log
+    =ClassLog.getInstance(RequestTemplate.class);
+
+  private final Client client;
+  private final SignatureMethod signatureMethod;
+  private final String verb;
+  private final URI uri;
+  private final byte[] basePrefix;
+  private final Signer.Pair[] staticParameters;
+  private final String headerPrefix;
+
+  RequestTemplate
+    (Client client,SignatureMethod signatureMethod,String verb,URI uri)
+    throws IOException
+  {
+    this.client=client;
+    this.signatureMethod=signatureMethod;
+    this.verb=verb;
+    this.uri=uri;
+
+    ArrayList<Signer.Pair> parameters=new ArrayList<Signer.Pair>();
+    if (uri.getRawQuery()!=null)
+    {
+      Signer.encodeParameterSet
+        (VariableMap.fromUrlEncodedString(uri.getRawQuery()),parameters);
+    }
+    VariableMap oauthParams=new VariableMap();
+    oauthParams.set("oauth_consumer_key",client.clientId);
+    oauthParams.set("oauth_signature_method",signatureMethod.getName());
+    oauthParams.set("oauth_version","1.0");
+    Signer.encodeParameterSet(oauthParams,parameters);
+    Collections.sort(parameters);
+    staticParameters=parameters.toArray(new Signer.Pair[parameters.size()]);
+
+    SignatureBaseWriter.ByteArrayWriter prefixWriter
+      =new SignatureBaseWriter.ByteArrayWriter();
+    prefixWriter.writeMethod(verb);
+    prefixWriter.write('&');
+    prefixWriter.writeBaseStringURI(uri);
+    prefixWriter.write('&');
+    basePrefix=prefixWriter.toByteArray();
+
+    StringBuilder header=new StringBuilder("OAuth ");
+    if (client.realm!=null && !client.realm.isEmpty())
+    {
+      header.append("realm=\"");
+      PercentEncoder.encode(client.realm,header);
+      header.append("\",");
+    }
+    appendHeaderParameter(header,"oauth_consumer_key",client.clientId);
+    appendHeaderParameter
+      (header,"oauth_signature_method",signatureMethod.getName());
+    appendHeaderParameter(header,"oauth_version","1.0");
+    headerPrefix=header.toString();
+  }
+
+  public String getVerb()
+  { return verb;
+  }
+
+  public URI getURI()
+  { return uri;
+  }
+  
+  public SignatureMethod getSignatureMethod()
+  { return signatureMethod;
+  }
+
+  /**
+   * Compute the signed Authorization header value for a request
+   *
+   * @param token The oauth_token, if any
+   * @param tokenSecret The token secret, if any
+   * @param nonce The request nonce
+   * @param timestamp The request timestamp
+   * @param requestBody Form encoded request body parameters, if any
+   */
+  String authorizationHeader
+    (String token
+    ,String tokenSecret
+    ,String nonce
+    ,String timestamp
+    ,VariableMap requestBody
+    )
+    throws IOException,GeneralSecurityException
+  {
+    final ArrayList<Signer.Pair> parameters=new ArrayList<Signer.Pair>();
+    parameters.add(new Signer.Pair("oauth_nonce",PercentEncoder.encode(nonce)));
+    parameters.add(new Signer.Pair("oauth_timestamp",timestamp));
+    if (token!=null)
+    {
+      parameters.add
+        (new Signer.Pair("oauth_token",PercentEncoder.encode(token)));
+    }
+    if (requestBody!=null)
+    { Signer.encodeParameterSet(requestBody,parameters);
+    }
+    Collections.sort(parameters);
+
+    if (client.logLevel.isFine())
+    { log.fine("Signing: "+signatureBase(parameters));
+    }
+
+    String signature
+      =signatureMethod.sign
+        (new SignatureMethod.Base()
+        {
+          @Override
+          public void writeTo(SignatureBaseWriter writer)
+          {
+            writer.writeRaw(basePrefix);
+            writer.writeParameters(staticParameters,parameters);
+          }
+        }
+        ,tokenSecret
+        );
+
+    StringBuilder header=new StringBuilder(headerPrefix.length()+160);
+    header.append(headerPrefix);
+    appendHeaderParameter(header,"oauth_nonce",nonce);
+    appendHeaderParameter(header,"oauth_timestamp",timestamp);
+    if (token!=null)
+    { appendHeaderParameter(header,"oauth_token",token);
+    }
+    header.append("oauth_signature=\"");
+    PercentEncoder.encode(signature,header);
+    header.append('"');
+    return header.toString();
+  }
+
+  private String signatureBase(List<Signer.Pair> parameters)
+  {
+    SignatureBaseWriter.StringWriter writer
+      =new SignatureBaseWriter.StringWriter();
+    writer.writeRaw(basePrefix);
+    writer.writeParameters(staticParameters,parameters);
+    return writer.toString();
+  }
+
+  private static void appendHeaderParameter
+    (StringBuilder header,String name,String value)
+  {
+    header.append(name).append("=\"");
+    PercentEncoder.encode(value,header);
+    header.append("\",");
+  }
+
+  @Override
+  public String toString()
+  { return super.toString()+": "+verb+" "+uri;
+  }
+}
@@ -0,0 +1,122 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth1;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+
+import spiralcraft.codec.text.Base64Codec;
+
+/**
+ * <p>The RSA-SHA1 signature method (RFC 5849 3.4.3). 
+ * </p>
+ * 
+ * <p>The private key is parsed once and each thread reuses a Signature
+ *   that has already been initialized with it.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class RsaSignatureMethod
+  extends SignatureMethod
+{
+  public static final String RSA_SHA1="RSA-SHA1";
+  private static final String ALGORITHM="SHA1withRSA";
+  
+  /**
+   * Parse an unencrypted PKCS#8 private key in PEM or base64 form
+   */
+  public static PrivateKey parsePrivateKey(String pem)
+    throws GeneralSecurityException
+  {
+    StringBuilder base64=new StringBuilder();
+    for (String line:pem.split("\r?\n"))
+    { 
+      line=line.trim();
+      if (!line.isEmpty() && !line.startsWith("-----"))
+      { base64.append(line);
+      }
+    }
+    try
+    {
+      byte[] der=Base64.getDecoder().decode(base64.toString());
+      return KeyFactory.getInstance("RSA")
+        .generatePrivate(new PKCS8EncodedKeySpec(der));
+    }
+    catch (IllegalArgumentException x)
+    { throw new GeneralSecurityException("Invalid private key encoding",x);
+    }
+  }
+  
+  private final PrivateKey privateKey;
+  private final ThreadLocal<Signature> threadSignature
+    =new ThreadLocal<Signature>();
+  
+  public RsaSignatureMethod(PrivateKey privateKey)
+  { this.privateKey=privateKey;
+  }
+  
+  @Override
+  public String getName()
+  { return RSA_SHA1;
+  }
+
+  @Override
+  public String sign(Base base,String tokenSecret)
+    throws GeneralSecurityException
+  {
+    final Signature signature=getSignature();
+    SignatureBaseWriter writer
+      =new SignatureBaseWriter()
+      {
+        @Override
+        protected void flush(byte[] bytes,int start,int len)
+        { 
+          try
+          { signature.update(bytes,start,len);
+          }
+          catch (SignatureException x)
+          { throw new IllegalStateException(x);
+          }
+        }
+      };
+    base.writeTo(writer);
+    writer.flush();
+    return Base64Codec.encodeBytes(signature.sign());
+  }
+  
+  /**
+   * A Signature owned by the calling thread. Signature objects return to
+   *   the initialized state after sign(), so they are reused.
+   */
+  private Signature getSignature()
+    throws GeneralSecurityException
+  {
+    Signature signature=threadSignature.get();
+    if (signature==null)
+    {
+      signature=Signature.getInstance(ALGORITHM);
+      signature.initSign(privateKey);
+      threadSignature.set(signature);
+    }
+    return signature;
+  }
+}
@@ -14,38 +14,48 @@
 //
 package spiralcraft.oauth1;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URI;
-import java.net.URL;
-import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
-import spiralcraft.time.Clock;
-import spiralcraft.util.RandomUtil;
 import spiralcraft.util.URIUtil;
-import spiralcraft.vfs.StreamUtil;
-import spiralcraft.vfs.url.URLAccessException;
 import spiralcraft.vfs.url.URLMessage;
+import spiralcraft.oauth.http.Response;
+import spiralcraft.oauth.http.ResponseCache;
+import spiralcraft.oauth.http.ResponseStream;
+import spiralcraft.oauth.paging.PageSource;
+import spiralcraft.oauth.paging.PagedStream;
+import spiralcraft.oauth.paging.Paging;
+import spiralcraft.oauth.session.PersistentSession;
+import spiralcraft.oauth.util.AsyncUtil;
+import spiralcraft.oauth.util.BinaryUtil;
+import spiralcraft.oauth.util.JsonArrayStream;
 import spiralcraft.log.ClassLog;
 import spiralcraft.log.Level;
 import spiralcraft.net.http.VariableMap;
 
 public class Session
+  implements PersistentSession
 {
 
   protected static final ClassLog log
     =ClassLog.getInstance(Session.class);
- 
-  private static final Charset ASCII=Charset.forName("ASCII");
   
-  @SuppressWarnings("unused")
+  private static final int STATE_VERSION=1;
+ 
   protected final Client client;
   private String oauthToken;
-  @SuppressWarnings("unused")
   private String oauthTokenSecret;
   private boolean temporary;
   private URI returnURI;
@@ -103,94 +113,30 @@ public class Session
     
     credentialRequestParams.add
       ("oauth_signature"
-      ,Signer.signHMAC_SHA1
-        (Signer.signatureBase
-          (client.credentialRequestVerb
-          ,client.getCredentialRequestURI()
-          ,credentialRequestParams
-          ,null
-          )
-        ,client.sharedSecret
+      ,Signer.sign
+        (client.credentialRequestVerb
+        ,client.getCredentialRequestURI()
+        ,credentialRequestParams
+        ,null
+        ,client.signatureMethod()
         ,null
         )
       );
     // Call credentialRequestURI
-    HttpURLConnection connection
-      =(HttpURLConnection) 
-         new URL(client.getCredentialRequestURI().toString()).openConnection();
-    
-    connection.setRequestMethod(client.credentialRequestVerb);
-    connection.addRequestProperty("Content-Length","0");
-    connection.addRequestProperty("Content-Type","text/xml");
-    connection.setDoInput(true);
-    connection.setDoOutput(true);
-    connection.addRequestProperty("Connection","close");
-    connection.setUseCaches(false);
-    String oauthHeader=oauthHeader(credentialRequestParams);
-    if (logLevel.isFine())
-    { log.fine("oauthHeader: "+oauthHeader);
-    }
-    connection.addRequestProperty
-      ("Authorization"
-      ,oauthHeader
-      );
-    connection.connect();
-    try
-    {
-      OutputStream out=connection.getOutputStream();
-      out.flush();
-      out.close();
-      InputStream in=connection.getInputStream();
-      byte[] bytes=StreamUtil.readBytes(in,connection.getContentLength());
-      in.close();
-      String ret=new String(bytes);
-      VariableMap resultProperties=VariableMap.fromUrlEncodedString(ret);
-    
-      if (logLevel.isFine())
-      { log.fine(ret);
-      }
+    VariableMap resultProperties
+      =requestCredentials
+        (client.credentialRequestVerb
+        ,client.getCredentialRequestURI()
+        ,credentialRequestParams
+        );
     
-      // Read x-form-urlencoded response body
-      this.oauthToken=resultProperties.getFirst("oauth_token");
-      this.oauthTokenSecret=resultProperties.getFirst("oauth_token_secret");
-      temporary=true;
+    releaseSigningKey();
+    this.oauthToken=resultProperties.getFirst("oauth_token");
+    this.oauthTokenSecret=resultProperties.getFirst("oauth_token_secret");
+    temporary=true;
     
-      return URIUtil.replaceRawQuery
-        (client.authorizationURI,"oauth_token="+this.oauthToken);
-    }
-    catch (IOException x)
-    { 
-      InputStream errorStream
-        =connection.getErrorStream();
-      if (errorStream!=null)
-      { 
-        try
-        {
-          throw new URLAccessException
-            ("Connection returned remote error"
-            ,x
-            ,new URLMessage
-              (errorStream
-              ,connection.getContentLength()
-              ,connection.getHeaderFields()
-              )
-            );
-        }
-        finally
-        { 
-          errorStream.close();
-          connection.disconnect();
-        }
-         
-      }
-      else
-      { throw x;
-      }
-      
-    }
-    finally
-    { connection.disconnect();
-    }
+    return URIUtil.replaceRawQuery
+      (client.authorizationURI,"oauth_token="+this.oauthToken);
   }
   
   public String getProblem()
@@ -239,98 +185,62 @@ public class Session
     
     tokenRequestParams.add
       ("oauth_signature"
-      ,Signer.signHMAC_SHA1
-        (Signer.signatureBase
-          (client.tokenRequestVerb
-          ,client.tokenRequestURI
-          ,tokenRequestParams
-          ,null
-          )
-        ,client.sharedSecret
+      ,Signer.sign
+        (client.tokenRequestVerb
+        ,client.tokenRequestURI
+        ,tokenRequestParams
+        ,null
+        ,client.signatureMethod()
         ,oauthTokenSecret
         )
       );    
     
-    // Call credentialRequestURI
-    HttpURLConnection connection
-      =(HttpURLConnection) 
-         new URL(client.tokenRequestURI.toString()).openConnection();
+    // Call tokenRequestURI
+    VariableMap resultProperties
+      =requestCredentials
+        (client.tokenRequestVerb
+        ,client.tokenRequestURI
+        ,tokenRequestParams
+        );
+    
+    releaseSigningKey();
+    this.oauthToken=resultProperties.getFirst("oauth_token");
+    this.oauthTokenSecret=resultProperties.getFirst("oauth_token_secret");
+    temporary=false;
     
-    connection.setRequestMethod(client.tokenRequestVerb);
-    connection.addRequestProperty("Content-Length","0");
-    connection.addRequestProperty("Content-Type","text/xml");
-    connection.setDoInput(true);
-    connection.setDoOutput(true);
-    connection.addRequestProperty("Connection","close");
-    connection.setUseCaches(false);
-    String oauthHeader=oauthHeader(tokenRequestParams);
+    postAuthenticate();
+    
+  }
+  
+
+  /**
+   * Make a signed request for temporary or token credentials and read
+   *   the x-www-form-urlencoded response body
+   */
+  private VariableMap requestCredentials
+    (String verb,URI uri,VariableMap oauthParams)
+    throws IOException
+  {
+    String oauthHeader=oauthHeader(oauthParams);
     if (logLevel.isFine())
     { log.fine("oauthHeader: "+oauthHeader);
     }
-    connection.addRequestProperty
-      ("Authorization"
-      ,oauthHeader
-      );
-    connection.connect();
-    try
-    {
-      OutputStream out=connection.getOutputStream();
-      out.flush();
-      out.close();
-      InputStream in=connection.getInputStream();
-      byte[] bytes=StreamUtil.readBytes(in,connection.getContentLength());
-      in.close();
-      String ret=new String(bytes);
-      VariableMap resultProperties=VariableMap.fromUrlEncodedString(ret);
+    Map<String,String> headers=new LinkedHashMap<String,String>();
+    headers.put("Authorization",oauthHeader);
     
-      if (logLevel.isFine())
-      { log.fine(ret);
-      }
-    
-      // Read x-form-urlencoded response body
-      this.oauthToken=resultProperties.getFirst("oauth_token");
-      this.oauthTokenSecret=resultProperties.getFirst("oauth_token_secret");
-      temporary=false;
+    Response response
+      =client.transport.execute(verb,uri,headers,"text/xml",new byte[0]);
+    if (response.isError())
+    { throw response.toException();
     }
-    catch (IOException x)
-    { 
-      InputStream errorStream
-        =connection.getErrorStream();
-      if (errorStream!=null)
-      { 
-        try
-        {
-          throw new URLAccessException
-            ("Connection returned remote error"
-            ,x
-            ,new URLMessage
-              (errorStream
-              ,connection.getContentLength()
-              ,connection.getHeaderFields()
-              )
-            );
-        }
-        finally
-        { 
-          errorStream.close();
-          connection.disconnect();
-        }
-         
-      }
-      else
-      { throw x;
-      }
-      
-    }
-    finally
-    { connection.disconnect();
-    }
-    
-    postAuthenticate();
     
+    String ret=response.getContentAsString();
+    if (logLevel.isFine())
+    { log.fine(ret);
+    }
+    return VariableMap.fromUrlEncodedString(ret);
   }
   
-
   /**
    * <p>Perform any actions required after successfully authenticating, such
    *   as populating the principalId property.
@@ -345,20 +255,27 @@ public class Session
   }
   
   VariableMap makeRequestParameters()
+    throws GeneralSecurityException
   {
     VariableMap map=new VariableMap();
-    map.set
-      ("oauth_timestamp"
-      ,Long.toString(Clock.instance().approxTimeMillis()/1000)
-      );
+    map.set("oauth_timestamp",generateTimestamp());
     map.set("oauth_consumer_key",client.clientId);
     map.set("oauth_version","1.0");
-    map.set("oauth_signature_method","HMAC-SHA1");
-    map.set("oauth_nonce",RandomUtil.generateString(10));
+    map.set("oauth_signature_method",client.signatureMethod().getName());
+    map.set("oauth_nonce",generateNonce());
     return map;
   }
   
+  String generateTimestamp()
+  { return client.nonceGenerator.currentTimestamp();
+  }
+  
+  String generateNonce()
+  { return client.nonceGenerator.nextNonce();
+  }
+  
   VariableMap makeCredentialRequestParameters(URI callbackURI)
+    throws GeneralSecurityException
   {
     if (callbackURI==null)
     { callbackURI=client.callbackURI;
@@ -372,6 +289,7 @@ public class Session
   }
   
   VariableMap makeTokenRequestParameters(String oauthVerifier)
+    throws GeneralSecurityException
   {
     VariableMap map=makeRequestParameters();
     map.set("oauth_token",oauthToken);
@@ -380,6 +298,7 @@ public class Session
   }
   
   VariableMap makeResourceRequestParameters()
+    throws GeneralSecurityException
   {
     VariableMap map=makeRequestParameters();
     map.set("oauth_token",oauthToken);
@@ -419,111 +338,459 @@ public class Session
 
   String signedResourceRequestHeader(String verb,URI uri,VariableMap requestBody)
     throws IOException,GeneralSecurityException
+  { 
+    return signedResourceRequestHeader
+      (client.requestTemplate(verb,uri),requestBody);
+  }
+  
+  String signedResourceRequestHeader
+    (RequestTemplate template,VariableMap requestBody)
+    throws IOException,GeneralSecurityException
   {
-    VariableMap resourceRequestParams
-      =makeResourceRequestParameters();
-    
-    resourceRequestParams.add
-      ("oauth_signature"
-      ,Signer.signHMAC_SHA1
-        (Signer.signatureBase
-          (verb
-          ,uri
-          ,resourceRequestParams
-          ,requestBody
-          )
-        ,client.sharedSecret
-        ,oauthTokenSecret
-        )
+    return template.authorizationHeader
+      (oauthToken
+      ,oauthTokenSecret
+      ,generateNonce()
+      ,generateTimestamp()
+      ,requestBody
       );
-    return oauthHeader(resourceRequestParams);
   }
   
   public URLMessage call(String verb,URI uri,VariableMap requestBody)
     throws IOException
   { 
     try
-    { 
-      String header=signedResourceRequestHeader(verb,uri,requestBody);
-      HttpURLConnection connection
-        =(HttpURLConnection) 
-           new URL(uri.toString()).openConnection();
-      connection.setRequestMethod(verb);
-      if (logLevel.isFine())
-      { log.fine("header for "+uri+": "+header);
-      }
-      connection.addRequestProperty
-        ("Authorization"
-        ,header
-        );
-      connection.setDoInput(true);
-      if (verb.equals("POST"))
-      { 
-        connection.setDoOutput(true);
-        connection.setRequestProperty
-          ("Content-Type","application/x-www-form-urlencoded");
-        connection.connect();
-        
-        String requestBodyEncoded
-          =requestBody!=null?requestBody.generateEncodedForm():"";
-        connection.setRequestProperty
-          ("Content-Length",Integer.toString(requestBodyEncoded.length()));
-        
-        OutputStream out=connection.getOutputStream();
-        out.write(requestBodyEncoded.getBytes(ASCII));
-        out.flush();
-        out.close();
+    { return call(client.requestTemplate(verb,uri),requestBody);
+    }
+    catch (GeneralSecurityException x)
+    { throw new IOException("Error signing request",x);
+    }
+  }
+  
+  /**
+   * Perform a signed resource request using a template prepared via
+   *   Client.prepareRequest()
+   */
+  public URLMessage call(RequestTemplate template,VariableMap requestBody)
+    throws IOException
+  { 
+    Response response
+      =template.getVerb().equals("GET") && requestBody==null
+      ?cachedGet(template,false)
+      :coalescedExchange(template,requestBody,null);
+    if (response.isError())
+    { throw response.toException();
+    }
+    return response.toURLMessage();
+  }
+  
+  /**
+   * Perform a signed resource request, sharing the response of an 
+   *   identical GET made with the same token that is already in flight if
+   *   the Client coalesces requests
+   */
+  private Response coalescedExchange
+    (final RequestTemplate template
+    ,final VariableMap requestBody
+    ,final Map<String,String> requestHeaders
+    )
+    throws IOException
+  {
+    String scope=requestScope();
+    if (!client.coalesceRequests 
+        || scope==null
+        || !template.getVerb().equals("GET") 
+        || requestBody!=null
+        )
+    { return exchange(template,requestBody,requestHeaders);
+    }
+    
+    return client.requestFlight
+      (template.getVerb()+" "+template.getURI()+" "+scope
+        +(requestHeaders!=null?" "+requestHeaders:"")
+      ,new Callable<Response>()
+      {
+        @Override
+        public Response call()
+          throws IOException
+        { return exchange(template,requestBody,requestHeaders);
+        }
       }
-      else
-      { connection.connect();
+      );
+  }
+  
+  /**
+   * <p>Perform a signed GET, reusing a response held in the Client's
+   *   response cache while it is fresh or the provider confirms it is
+   *   still current, and caching the new response otherwise. Returns the
+   *   response whatever its status.
+   * </p>
+   * 
+   * <p>When the Client has no responseCacheSize, this is the same as 
+   *   exchange() with a GET template for the URI.
+   * </p>
+   * 
+   * @param shared Cache the response in the scope shared by all Sessions
+   *   of the Client instead of for this Session's token, for resources 
+   *   that are the same for every user
+   */
+  public Response cachedGet(URI uri,boolean shared)
+    throws IOException
+  {
+    RequestTemplate template;
+    try
+    { template=client.requestTemplate("GET",uri);
+    }
+    catch (GeneralSecurityException x)
+    { throw new IOException("Error preparing request for "+uri,x);
+    }
+    return cachedGet(template,shared);
+  }
+  
+  private Response cachedGet(RequestTemplate template,boolean shared)
+    throws IOException
+  {
+    ResponseCache cache=client.getResponseCache();
+    String scope=requestScope();
+    if (cache==null || (scope==null && !shared))
+    { return coalescedExchange(template,null,null);
+    }
+    
+    String key=ResponseCache.key(shared?null:scope,template.getURI());
+    ResponseCache.Entry entry=cache.lookup(key);
+    if (entry!=null && entry.isFresh())
+    { return entry.getResponse();
+    }
+    
+    Response response
+      =coalescedExchange
+        (template,null,entry!=null?entry.conditionalHeaders():null);
+    if (response.getStatus()==304 && entry!=null)
+    { return cache.revalidated(key,entry,response);
+    }
+    if (!response.isError())
+    { cache.put(key,response);
+    }
+    return response;
+  }
+  
+  /**
+   * <p>Perform a signed resource request on the Client's call executor
+   *   without blocking the calling thread.
+   * </p>
+   * 
+   * <p>The future completes with the same result as call(), or 
+   *   exceptionally with the same exception, eg. a URLAccessException
+   *   when the provider returns an error status.
+   * </p>
+   */
+  public CompletableFuture<URLMessage> callAsync
+    (final String verb,final URI uri,final VariableMap requestBody)
+  {
+    return AsyncUtil.supply
+      (new Callable<URLMessage>()
+      {
+        @Override
+        public URLMessage call()
+          throws IOException
+        { return Session.this.call(verb,uri,requestBody);
+        }
       }
-      
-      try
+      ,client.callExecutor()
+      );
+  }
+  
+  /**
+   * Asynchronous form of call(RequestTemplate,VariableMap)
+   */
+  public CompletableFuture<URLMessage> callAsync
+    (final RequestTemplate template,final VariableMap requestBody)
+  {
+    return AsyncUtil.supply
+      (new Callable<URLMessage>()
       {
-        int contentLength=connection.getContentLength();
-        return new URLMessage
-          (connection.getInputStream()
-          ,contentLength
-          ,connection.getHeaderFields()
+        @Override
+        public URLMessage call()
+          throws IOException
+        { return Session.this.call(template,requestBody);
+        }
+      }
+      ,client.callExecutor()
+      );
+  }
+  
+  /**
+   * Perform a signed resource request and return the response, whatever
+   *   its status.
+   */
+  public Response exchange(RequestTemplate template,VariableMap requestBody)
+    throws IOException
+  { return exchange(template,requestBody,null);
+  }
+  
+  /**
+   * Perform a signed resource request with additional request headers,
+   *   eg. to make it conditional, and return the response, whatever its
+   *   status.
+   */
+  public Response exchange
+    (RequestTemplate template
+    ,VariableMap requestBody
+    ,Map<String,String> requestHeaders
+    )
+    throws IOException
+  {
+    String verb=template.getVerb();
+    boolean post=verb.equals("POST");
+    String scope=requestScope();
+    for (int attempt=0;;attempt++)
+    {
+      client.rateLimiter.acquire(scope);
+      Map<String,String> headers=signedHeaders(template,requestBody);
+      if (requestHeaders!=null)
+      { headers.putAll(requestHeaders);
+      }
+      Response response
+        =client.transport.execute
+          (verb
+          ,template.getURI()
+          ,headers
+          ,post?"application/x-www-form-urlencoded":null
+          ,post?PercentEncoder.encodeForm(requestBody):null
           );
+      if (!client.rateLimiter.update
+            (scope,response.getStatus(),response.getHeaders(),attempt)
+         )
+      { return response;
       }
-      catch (IOException x)
+    }
+  }
+  
+  /**
+   * Perform a signed resource request and return as soon as the response
+   *   headers arrive, leaving the body to be read from the connection. The
+   *   returned stream must be closed.
+   */
+  public ResponseStream open(RequestTemplate template,VariableMap requestBody)
+    throws IOException
+  {
+    String verb=template.getVerb();
+    boolean post=verb.equals("POST");
+    String scope=requestScope();
+    for (int attempt=0;;attempt++)
+    {
+      client.rateLimiter.acquire(scope);
+      ResponseStream response
+        =client.transport.open
+          (verb
+          ,template.getURI()
+          ,signedHeaders(template,requestBody)
+          ,post?"application/x-www-form-urlencoded":null
+          ,post?PercentEncoder.encodeForm(requestBody):null
+          );
+      if (!client.rateLimiter.update
+            (scope,response.getStatus(),response.getHeaders(),attempt)
+         )
+      { return response;
+      }
+      response.close();
+    }
+  }
+  
+  /**
+   * <p>Perform a signed resource request and iterate over the elements of
+   *   a JSON array in the response as they arrive, holding only one 
+   *   element in memory at a time.
+   * </p>
+   * 
+   * <p>The iterator must be closed if it isn't read to the end.
+   * </p>
+   * 
+   * @param path The dotted path of member names to the array, or null if
+   *   the response is the array
+   * @param elementReader Converts each element, eg. JsonArrayStream.VALUES
+   *   or JsonArrayStream.beans()
+   */
+  public <T> JsonArrayStream<T> stream
+    (String verb
+    ,URI uri
+    ,VariableMap requestBody
+    ,String path
+    ,JsonArrayStream.ElementReader<T> elementReader
+    )
+    throws IOException
+  {
+    ResponseStream response;
+    try
+    { response=open(client.requestTemplate(verb,uri),requestBody);
+    }
+    catch (GeneralSecurityException x)
+    { throw new IOException("Error signing request",x);
+    }
+    if (response.isError())
+    { throw response.buffer().toException();
+    }
+    return new JsonArrayStream<T>
+      (JsonArrayStream.utf8Reader(response.getInputStream())
+      ,path
+      ,elementReader
+      );
+  }
+  
+  /**
+   * <p>Iterate over the records of every page of a paged resource as one
+   *   stream, requesting pages ahead of the consumer on the Client's call
+   *   executor.
+   * </p>
+   * 
+   * @param first The URI of the first page
+   * @param itemsPath The dotted path to the records array in each page,
+   *   or null if each page is the array
+   * @param paging Finds the next page, eg. a LinkPaging, CursorPaging or
+   *   OffsetPaging
+   * @param elementReader Converts each record
+   */
+  public <T> PagedStream<T> paginate
+    (URI first
+    ,String itemsPath
+    ,Paging paging
+    ,JsonArrayStream.ElementReader<T> elementReader
+    )
+  {
+    return new PagedStream<T>
+      (new PageSource()
       {
-        InputStream errorStream
-          =connection.getErrorStream();
-        if (errorStream!=null)
-        { 
+        @Override
+        public Response fetch(URI uri)
+          throws IOException
+        {
+          Response response;
           try
-          {
-            throw new URLAccessException
-              ("Connection returned remote error"
-              ,x
-              ,new URLMessage
-                (errorStream
-                ,connection.getContentLength()
-                ,connection.getHeaderFields()
-                )
-              );
+          { response=exchange(client.requestTemplate("GET",uri),null);
           }
-          finally
-          { 
-            errorStream.close();
-            connection.disconnect();
+          catch (GeneralSecurityException x)
+          { throw new IOException("Error signing request",x);
           }
-          
-        }
-        else
-        { throw x;
+          if (response.isError())
+          { throw response.toException();
+          }
+          return response;
         }
-        
       }
+      ,first
+      ,itemsPath
+      ,paging
+      ,elementReader
+      ,client.callExecutor()
+      );
+  }
+  
+  private Map<String,String> signedHeaders
+    (RequestTemplate template,VariableMap requestBody)
+    throws IOException
+  {
+    String header;
+    try
+    { header=signedResourceRequestHeader(template,requestBody);
     }
     catch (GeneralSecurityException x)
     { throw new IOException("Error signing request",x);
     }
     
+    if (logLevel.isFine())
+    { log.fine("header for "+template.getURI()+": "+header);
+    }
+    Map<String,String> headers=new LinkedHashMap<String,String>();
+    headers.put("Authorization",header);
+    return headers;
   }
   
+  /**
+   * Discard the cached signing key state for the current token secret,
+   *   which is about to be replaced or dropped.
+   */
+  private void releaseSigningKey()
+  {
+    if (oauthTokenSecret!=null)
+    { 
+      try
+      { client.signatureMethod().release(oauthTokenSecret);
+      }
+      catch (GeneralSecurityException x)
+      { 
+        // Nothing was prepared if the signature method can't be resolved
+      }
+    }
+  }
+  
+  /**
+   * The token that caching, coalescing and rate limiting of this 
+   *   Session's requests are scoped to, or null if the Session isn't
+   *   authorized
+   */
+  String requestScope()
+  { return isTokenValid()?oauthToken:null;
+  }
+  
+  /**
+   * <p>Encode the authentication state of this Session (token credentials
+   *   or temporary credentials, and account id) in a compact, versioned 
+   *   binary form that can be kept outside of this JVM and restored into
+   *   a new Session of the same Client via importState().
+   * </p>
+   */
+  @Override
+  public byte[] exportState()
+    throws IOException
+  {
+    ByteArrayOutputStream bytes=new ByteArrayOutputStream(256);
+    DataOutputStream out=new DataOutputStream(bytes);
+    out.writeByte(STATE_VERSION);
+    writeState(out);
+    out.flush();
+    return bytes.toByteArray();
+  }
+  
+  /**
+   * Restore state produced by exportState()
+   */
+  @Override
+  public void importState(byte[] data)
+    throws IOException
+  {
+    DataInputStream in=new DataInputStream(new ByteArrayInputStream(data));
+    int version=in.readUnsignedByte();
+    if (version!=STATE_VERSION)
+    { throw new IOException("Unsupported session state version "+version);
+    }
+    releaseSigningKey();
+    readState(in);
+  }
+  
+  /**
+   * Write the state fields. Subclasses that hold additional state should
+   *   write it after calling this method, and read it back in the same
+   *   order in readState().
+   */
+  protected void writeState(DataOutput out)
+    throws IOException
+  {
+    out.writeBoolean(temporary);
+    BinaryUtil.writeString(out,oauthToken);
+    BinaryUtil.writeString(out,oauthTokenSecret);
+    BinaryUtil.writeURI(out,returnURI);
+    BinaryUtil.writeString(out,oauthId);
+  }
+  
+  protected void readState(DataInput in)
+    throws IOException
+  {
+    temporary=in.readBoolean();
+    oauthToken=BinaryUtil.readString(in);
+    oauthTokenSecret=BinaryUtil.readString(in);
+    returnURI=BinaryUtil.readURI(in);
+    oauthId=BinaryUtil.readString(in);
+  }
   
   public void invalidate()
     throws IOException
@@ -534,6 +801,7 @@ public class Session
   
   public void clear()
   {
+    releaseSigningKey();
     oauthToken=null;
     oauthTokenSecret=null;
     temporary=false;
@@ -0,0 +1,252 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth1;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.util.List;
+
+import javax.crypto.Mac;
+
+/**
+ * <p>Writes the normalized signature base string (RFC 5849 3.4.1) as
+ *   ASCII bytes into a small buffer that is flushed to a signing
+ *   primitive, so the base string is never materialized as a String.
+ * </p>
+ *
+ * @author mike
+ *
+ */
+public abstract class SignatureBaseWriter
+  implements PercentEncoder.Sink
+{
+  private final byte[] buffer;
+  private int count;
+
+  protected SignatureBaseWriter()
+  { this(512);
+  }
+
+  protected SignatureBaseWriter(int bufferSize)
+  { buffer=new byte[bufferSize];
+  }
+
+  /**
+   * Write the complete signature base for the request
+   *
+   * @param method The HTTP request method
+   * @param requestURI The request URI
+   * @param parameters The encoded and sorted request parameters
+   */
+  void writeBase(String method,URI requestURI,List<Signer.Pair> parameters)
+  {
+    writeMethod(method);
+    write('&');
+    writeBaseStringURI(requestURI);
+    write('&');
+    writeParameters(parameters);
+    flush();
+  }
+
+  /**
+   * Write the uppercased request method
+   */
+  public void writeMethod(String method)
+  {
+    int len=method.length();
+    for (int i=0;i<len;i++)
+    {
+      char chr=method.charAt(i);
+      write(chr>='a' && chr<='z'?chr-0x20:chr);
+    }
+  }
+
+  /**
+   * Write the percent encoded base string URI (RFC 5849 3.4.1.2)
+   */
+  public void writeBaseStringURI(URI requestURI)
+  {
+    // TODO: Make sure port is excluded/included according to spec
+    writeEncoded(requestURI.getScheme(),true);
+    writeEncoded("://",false);
+    writeEncoded(requestURI.getAuthority(),true);
+    writeEncoded(requestURI.getRawPath(),false);
+  }
+
+  /**
+   * Write the percent encoded, normalized parameter string
+   *   (RFC 5849 3.4.1.3.2) from parameters that have already been
+   *   encoded and sorted.
+   */
+  void writeParameters(List<Signer.Pair> parameters)
+  {
+    boolean first=true;
+    for (Signer.Pair param:parameters)
+    {
+      if (first)
+      { first=false;
+      }
+      else
+      { writePercent('&');
+      }
+      writeEncoded(param.name,false);
+      writePercent('=');
+      writeEncoded(param.value,false);
+    }
+  }
+
+  /**
+   * Write the normalized parameter string from two sets of parameters
+   *   that have each already been encoded and sorted, merging them into
+   *   a single sorted sequence.
+   */
+  void writeParameters(Signer.Pair[] sorted,List<Signer.Pair> others)
+  {
+    int i=0;
+    int j=0;
+    int othersSize=others.size();
+    boolean first=true;
+    while (i<sorted.length || j<othersSize)
+    {
+      Signer.Pair param;
+      if (j==othersSize
+          || (i<sorted.length && sorted[i].compareTo(others.get(j))<=0)
+          )
+      { param=sorted[i++];
+      }
+      else
+      { param=others.get(j++);
+      }
+
+      if (first)
+      { first=false;
+      }
+      else
+      { writePercent('&');
+      }
+      writeEncoded(param.name,false);
+      writePercent('=');
+      writeEncoded(param.value,false);
+    }
+  }
+
+  /**
+   * Write octets that have already been encoded, such as a precomputed
+   *   portion of the signature base.
+   */
+  public void writeRaw(byte[] octets)
+  {
+    for (byte octet:octets)
+    { write(octet);
+    }
+  }
+
+  /**
+   * Percent encode the input and write it, optionally converting
+   *   ASCII uppercase letters to lowercase first.
+   */
+  public void writeEncoded(String input,boolean lowerCase)
+  { PercentEncoder.encode(input,lowerCase,this);
+  }
+
+  private void writePercent(int octet)
+  { PercentEncoder.writeEscaped(octet,this);
+  }
+
+  @Override
+  public void write(int b)
+  {
+    if (count==buffer.length)
+    { flush();
+    }
+    buffer[count++]=(byte) b;
+  }
+
+  /**
+   * Write any buffered bytes to the target
+   */
+  public void flush()
+  {
+    if (count>0)
+    {
+      flush(buffer,0,count);
+      count=0;
+    }
+  }
+
+  protected abstract void flush(byte[] bytes,int start,int len);
+
+  /**
+   * Feeds the signature base directly into a Mac
+   */
+  public static class MacWriter
+    extends SignatureBaseWriter
+  {
+    private final Mac mac;
+
+    public MacWriter(Mac mac)
+    { this.mac=mac;
+    }
+
+    @Override
+    protected void flush(byte[] bytes,int start,int len)
+    { mac.update(bytes,start,len);
+    }
+  }
+
+  /**
+   * Accumulates the output in a byte array
+   */
+  public static class ByteArrayWriter
+    extends SignatureBaseWriter
+  {
+    private final ByteArrayOutputStream out=new ByteArrayOutputStream();
+
+    @Override
+    protected void flush(byte[] bytes,int start,int len)
+    { out.write(bytes,start,len);
+    }
+
+    public byte[] toByteArray()
+    {
+      flush();
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * Accumulates the signature base as a String for debugging
+   */
+  public static class StringWriter
+    extends SignatureBaseWriter
+  {
+    private final StringBuilder buf=new StringBuilder();
+
+    @Override
+    protected void flush(byte[] bytes,int start,int len)
+    {
+      for (int i=start;i<start+len;i++)
+      { buf.append((char) bytes[i]);
+      }
+    }
+
+    @Override
+    public String toString()
+    { 
+      flush();
+      return buf.toString();
+    }
+  }
+}
@@ -0,0 +1,105 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth1;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * <p>A method for signing requests (RFC 5849 3.4), holding any key material
+ *   that can be prepared in advance.
+ * </p>
+ * 
+ * <p>Implementations must be thread-safe.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public abstract class SignatureMethod
+{
+  
+  /**
+   * The signature base for a request, written on demand to the signing
+   *   primitive.
+   */
+  public interface Base
+  {
+    void writeTo(SignatureBaseWriter writer);
+  }
+  
+  /**
+   * Create the named signature method for the specified client
+   * 
+   * @param name One of HMAC-SHA1, HMAC-SHA256, RSA-SHA1 or PLAINTEXT
+   */
+  public static SignatureMethod forName(String name,Client client)
+    throws GeneralSecurityException
+  {
+    if (name==null || name.equals(HmacSignatureMethod.HMAC_SHA1))
+    { 
+      return new HmacSignatureMethod
+        (HmacSignatureMethod.HMAC_SHA1
+        ,"HmacSHA1"
+        ,client.sharedSecret
+        ,client.signingKeyCacheSize
+        );
+    }
+    else if (name.equals(HmacSignatureMethod.HMAC_SHA256))
+    {
+      return new HmacSignatureMethod
+        (HmacSignatureMethod.HMAC_SHA256
+        ,"HmacSHA256"
+        ,client.sharedSecret
+        ,client.signingKeyCacheSize
+        );
+    }
+    else if (name.equals(RsaSignatureMethod.RSA_SHA1))
+    { 
+      if (client.rsaPrivateKey==null)
+      { 
+        throw new GeneralSecurityException
+          ("RSA-SHA1 signature method requires an RSA private key"); 
+      }
+      return new RsaSignatureMethod(client.rsaPrivateKey);
+    }
+    else if (name.equals(PlaintextSignatureMethod.PLAINTEXT))
+    { return new PlaintextSignatureMethod(client.sharedSecret);
+    }
+    throw new GeneralSecurityException
+      ("Unsupported oauth signature method "+name);
+  }
+  
+  /**
+   * The value of the oauth_signature_method parameter
+   */
+  public abstract String getName();
+  
+  /**
+   * Compute the value of the oauth_signature parameter
+   * 
+   * @param base The signature base, which will only be written if the
+   *   method requires it
+   * @param tokenSecret The token secret, if any
+   */
+  public abstract String sign(Base base,String tokenSecret)
+    throws GeneralSecurityException;
+  
+  /**
+   * Discard any key material prepared for the specified token secret
+   */
+  public void release(String tokenSecret)
+  {
+  }
+}
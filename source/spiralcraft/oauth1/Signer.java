@@ -15,8 +15,8 @@
 package spiralcraft.oauth1;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
+import java.nio.charset.Charset;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -24,7 +24,6 @@ import java.util.List;
 import java.util.Map;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 
 import spiralcraft.codec.text.Base64Codec;
 import spiralcraft.log.ClassLog;
@@ -37,37 +36,101 @@ public class Signer
   private static Level logLevel
     =ClassLog.getInitialDebugLevel(Signer.class,Level.INFO);
   private static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
+  private static final Charset ASCII=Charset.forName("ASCII");
   
+  private static final SigningKeyCache defaultKeyCache
+    =new SigningKeyCache(HMAC_SHA1_ALGORITHM,1024);
   
   public static final String signHMAC_SHA1
     (String base,String clientSecret,String tokenSecret) 
     throws GeneralSecurityException
+  { return signHMAC_SHA1(base,defaultKeyCache.getMac(clientSecret,tokenSecret));
+  }
+  
+  /**
+   * Sign the base string with a Mac already initialized with the signing
+   *   key, such as one obtained from a SigningKeyCache.
+   */
+  public static final String signHMAC_SHA1(String base,Mac mac)
   {
     if (logLevel.isFine())
     { log.fine("Signing: "+base);
     }
-    String key
-      =(clientSecret!=null?percentEncode(clientSecret):"")
-      +"&"
-      +(tokenSecret!=null?percentEncode(tokenSecret):"")
-      ;
-    
-    SecretKeySpec signingKey 
-      = new SecretKeySpec(key.getBytes(), HMAC_SHA1_ALGORITHM);
-    Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
-    mac.init(signingKey);
-
-    try
-    {
-      byte[] hmac = mac.doFinal(base.getBytes("ASCII"));
-      return Base64Codec.encodeBytes(hmac);
+    byte[] hmac = mac.doFinal(base.getBytes(ASCII));
+    return Base64Codec.encodeBytes(hmac);
+  }
+  
+  /**
+   * Release any cached key state associated with the specified secrets
+   *   in the default key cache.
+   */
+  public static final void releaseKey(String clientSecret,String tokenSecret)
+  { defaultKeyCache.evict(clientSecret,tokenSecret);
+  }
+  
+  /**
+   * Sign a request with HMAC-SHA1, streaming the normalized signature base
+   *   directly into the supplied Mac without building an intermediate
+   *   String.
+   * 
+   * @param mac A Mac already initialized with the signing key
+   */
+  public static final String signHMAC_SHA1
+    (String method
+    ,URI requestURI
+    ,VariableMap oauthParams
+    ,VariableMap requestBody
+    ,Mac mac
+    )
+    throws IOException
+  {
+    List<Pair> parameters
+      =collectParameters(requestURI,oauthParams,requestBody);
+    if (logLevel.isFine())
+    { log.fine("Signing: "+signatureBase(method,requestURI,parameters));
     }
-    catch (UnsupportedEncodingException x)
-    { throw new RuntimeException(x);
+    new SignatureBaseWriter.MacWriter(mac)
+      .writeBase(method,requestURI,parameters);
+    return Base64Codec.encodeBytes(mac.doFinal());
+  }
+  
+  /**
+   * Sign a request with the specified signature method
+   * 
+   * @return The value of the oauth_signature parameter
+   */
+  public static final String sign
+    (final String method
+    ,final URI requestURI
+    ,VariableMap oauthParams
+    ,VariableMap requestBody
+    ,SignatureMethod signatureMethod
+    ,String tokenSecret
+    )
+    throws IOException,GeneralSecurityException
+  {
+    final List<Pair> parameters
+      =collectParameters(requestURI,oauthParams,requestBody);
+    if (logLevel.isFine())
+    { log.fine("Signing: "+signatureBase(method,requestURI,parameters));
     }
-
+    return signatureMethod.sign
+      (new SignatureMethod.Base()
+      {
+        @Override
+        public void writeTo(SignatureBaseWriter writer)
+        { writer.writeBase(method,requestURI,parameters);
+        }
+      }
+      ,tokenSecret
+      );
   }
   
+  /**
+   * The signature base string for the request. The signing methods write
+   *   the same content directly to the signing primitive- this form is
+   *   useful for debugging.
+   */
   public static final String signatureBase
     (String method
     ,URI requestURI
@@ -75,17 +138,23 @@ public class Signer
     ,VariableMap requestBody
     )
     throws IOException
-  {
-    StringBuilder buf
-      =new StringBuilder();
-    buf.append(method.toUpperCase());
-    buf.append("&");
-    Signer.encodeBaseStringURI(requestURI,buf);
-    buf.append("&");
-    Signer.encodeParameters(requestURI,oauthParams,requestBody,buf);
-    return buf.toString();
+  { 
+    return signatureBase
+      (method
+      ,requestURI
+      ,collectParameters(requestURI,oauthParams,requestBody)
+      );
   }
 
+  private static final String signatureBase
+    (String method,URI requestURI,List<Pair> parameters)
+  {
+    SignatureBaseWriter.StringWriter writer
+      =new SignatureBaseWriter.StringWriter();
+    writer.writeBase(method,requestURI,parameters);
+    return writer.toString();
+  }
+  
   public static final void encodeBaseStringURI(URI requestURI,Appendable buf)
     throws IOException
   { 
@@ -107,6 +176,32 @@ public class Signer
     throws IOException
   {
     StringBuilder temp=new StringBuilder();
+    boolean first=true;
+    for (Pair param:collectParameters(requestURI,oauthParams,requestBody))
+    { 
+      if (first)
+      { first=false;
+      }
+      else
+      { temp.append("&");
+      }
+      temp.append(param.name).append("=").append(param.value);
+    }
+    percentEncode(temp.toString(),buf);
+  }
+  
+  /**
+   * Gather the encoded parameters from the request URI query, the oauth
+   *   protocol parameters and the request body, sorted as specified in 
+   *   RFC 5849 3.4.1.3.2
+   */
+  static final List<Pair> collectParameters
+    (URI requestURI
+    ,VariableMap oauthParams
+    ,VariableMap requestBody
+    )
+    throws IOException
+  {
     ArrayList<Pair> encodedParameters=new ArrayList<Pair>();
     if (requestURI.getQuery()!=null)
     { 
@@ -121,18 +216,7 @@ public class Signer
     { encodeParameterSet(requestBody,encodedParameters);
     }
     Collections.sort(encodedParameters);
-    boolean first=true;
-    for (Pair param:encodedParameters)
-    { 
-      if (first)
-      { first=false;
-      }
-      else
-      { temp.append("&");
-      }
-      temp.append(param.name).append("=").append(param.value);
-    }
-    percentEncode(temp.toString(),buf);
+    return encodedParameters;
   }
   
   public static final void encodeParameterSet
@@ -158,61 +242,21 @@ public class Signer
   }
   
   public static final String percentEncode(String input)
-  {
-    try
-    { 
-      StringBuffer buf=new StringBuffer();
-      percentEncode(input,buf);
-      return buf.toString();
-    }
-    catch (IOException x)
-    { throw new RuntimeException(x);
-    }
+  { return PercentEncoder.encode(input);
+  }
+  
+  public static final void percentEncode(String input,StringBuilder buf)
+  { PercentEncoder.encode(input,buf);
   }
   
   public static final void percentEncode(String input,Appendable buf)
     throws IOException
-  {
-    for (char chr:input.toCharArray())
-    { 
-      if (chr>=0x41 && chr<=0x5A       // lowercase
-          || chr>=0x61 && chr<=0x7A    // uppercase
-          || chr>=0x30 && chr<=0x39    // number
-          || chr=='-'
-          || chr=='.'
-          || chr=='_'
-          || chr=='~'
-          )
-      { buf.append(chr);
-      }
-      else
-      {
-        if (chr>255)
-        {
-          int hibyte= (chr & 0xFF00) >> 8;
-          encodeIntToPercentString(hibyte,buf);
-          int lobyte= (chr & 0x00FF);
-          encodeIntToPercentString(lobyte,buf);
-          
-        }
-        else
-        {
-          encodeIntToPercentString((int) chr,buf);
-        }
-      }
-    }
-    
+  { PercentEncoder.encode(input,buf);
   }
   
   public static final void encodeIntToPercentString(int val,Appendable buf)
     throws IOException
-  { 
-    buf.append("%");
-    String hexString=Integer.toHexString(val).toUpperCase();
-    if (hexString.length()==1)
-    { buf.append("0");
-    }
-    buf.append(hexString);
+  { PercentEncoder.appendEscaped(val,buf);
   }
   
   static class Pair
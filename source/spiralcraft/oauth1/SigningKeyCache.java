@@ -0,0 +1,217 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth1;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>Caches initialized HMAC key state for a (client secret, token secret)
+ *   pair so that a ready-to-use Mac can be handed out per thread without
+ *   repeating the provider lookup and key schedule on every request.
+ * </p>
+ *
+ * <p>The cache is bounded. When full, the least recently used key is
+ *   discarded. Keys for token secrets that are no longer in use should be
+ *   released via evict().
+ * </p>
+ *
+ * @author mike
+ *
+ */
+public class SigningKeyCache
+{
+  private static final Charset ASCII=Charset.forName("ASCII");
+
+  private final String algorithm;
+  private final ConcurrentHashMap<KeyId,Entry> entries
+    =new ConcurrentHashMap<KeyId,Entry>();
+  private volatile int maxEntries;
+
+  public SigningKeyCache(String algorithm,int maxEntries)
+  {
+    this.algorithm=algorithm;
+    this.maxEntries=maxEntries;
+  }
+
+  public String getAlgorithm()
+  { return algorithm;
+  }
+
+  /**
+   * The maximum number of distinct secret pairs to retain
+   *
+   * @param maxEntries
+   */
+  public void setMaxEntries(int maxEntries)
+  {
+    this.maxEntries=maxEntries;
+    trim();
+  }
+
+  public int getMaxEntries()
+  { return maxEntries;
+  }
+
+  public int size()
+  { return entries.size();
+  }
+
+  /**
+   * Return a Mac initialized with the key derived from the specified
+   *   secrets. The Mac is owned by the calling thread and is reset after
+   *   each doFinal(), so it must not be shared with other threads.
+   */
+  public Mac getMac(String clientSecret,String tokenSecret)
+    throws GeneralSecurityException
+  {
+    KeyId id=new KeyId(clientSecret,tokenSecret);
+    Entry entry=entries.get(id);
+    if (entry==null)
+    {
+      entry=new Entry(id);
+      Entry existing=entries.putIfAbsent(id,entry);
+      if (existing!=null)
+      { entry=existing;
+      }
+      else if (entries.size()>maxEntries)
+      { trim();
+      }
+    }
+    return entry.getMac();
+  }
+
+  /**
+   * Discard the key state associated with the specified secrets
+   */
+  public void evict(String clientSecret,String tokenSecret)
+  { entries.remove(new KeyId(clientSecret,tokenSecret));
+  }
+
+  public void clear()
+  { entries.clear();
+  }
+
+  /**
+   * Discard least recently used entries until the cache is within bounds
+   */
+  private void trim()
+  {
+    while (entries.size()>maxEntries)
+    {
+      Map.Entry<KeyId,Entry> oldest=null;
+      for (Iterator<Map.Entry<KeyId,Entry>> it=entries.entrySet().iterator()
+          ;it.hasNext()
+          ;
+          )
+      {
+        Map.Entry<KeyId,Entry> candidate=it.next();
+        if (oldest==null
+            || candidate.getValue().lastUsed<oldest.getValue().lastUsed
+            )
+        { oldest=candidate;
+        }
+      }
+      if (oldest==null)
+      { return;
+      }
+      entries.remove(oldest.getKey(),oldest.getValue());
+    }
+  }
+
+  /**
+   * The signing key for the secret pair as defined by RFC 5849 3.4.2
+   */
+  static final byte[] keyBytes(String clientSecret,String tokenSecret)
+  {
+    String key
+      =(clientSecret!=null?Signer.percentEncode(clientSecret):"")
+      +"&"
+      +(tokenSecret!=null?Signer.percentEncode(tokenSecret):"")
+      ;
+    return key.getBytes(ASCII);
+  }
+
+  private class Entry
+  {
+    private final SecretKeySpec keySpec;
+    private final ThreadLocal<Mac> threadMac=new ThreadLocal<Mac>();
+    volatile long lastUsed=System.nanoTime();
+
+    Entry(KeyId id)
+    { keySpec=new SecretKeySpec(keyBytes(id.clientSecret,id.tokenSecret),algorithm);
+    }
+
+    Mac getMac()
+      throws GeneralSecurityException
+    {
+      lastUsed=System.nanoTime();
+      Mac mac=threadMac.get();
+      if (mac==null)
+      {
+        mac=Mac.getInstance(algorithm);
+        mac.init(keySpec);
+        threadMac.set(mac);
+      }
+      return mac;
+    }
+  }
+
+  private static final class KeyId
+  {
+    final String clientSecret;
+    final String tokenSecret;
+    final int hashCode;
+
+    KeyId(String clientSecret,String tokenSecret)
+    {
+      this.clientSecret=clientSecret;
+      this.tokenSecret=tokenSecret;
+      this.hashCode
+        =(clientSecret!=null?clientSecret.hashCode():0)*31
+        +(tokenSecret!=null?tokenSecret.hashCode():0)
+        ;
+    }
+
+    @Override
+    public int hashCode()
+    { return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof KeyId))
+      { return false;
+      }
+      KeyId other=(KeyId) o;
+      return (clientSecret==null
+               ?other.clientSecret==null
+               :clientSecret.equals(other.clientSecret)
+             )
+             && (tokenSecret==null
+                  ?other.tokenSecret==null
+                  :tokenSecret.equals(other.tokenSecret)
+                )
+             ;
+    }
+  }
+}
@@ -6,6 +6,7 @@ import spiralcraft.json.DataReader;
 import spiralcraft.json.Parser;
 import spiralcraft.lang.Reflector;
 import spiralcraft.lang.reflect.BeanReflector;
+import spiralcraft.oauth.http.Response;
 import spiralcraft.text.ParseException;
 
 public class AccessTokenResponse
@@ -13,6 +14,21 @@ public class AccessTokenResponse
   static Reflector<AccessTokenResponse> reflector
     =BeanReflector.<AccessTokenResponse>getInstance(AccessTokenResponse.class);
       
+  /**
+   * Read a token endpoint response, using the general purpose JSON parser
+   *   only for bodies the dedicated parser doesn't understand
+   */
+  static AccessTokenResponse fromResponse(Response response)
+    throws ParseException
+  {
+    AccessTokenResponse accessTokenResponse
+      =AccessTokenResponseParser.parse
+        (response.getContent(),response.getHeader("Content-Type"));
+    return accessTokenResponse!=null
+      ?accessTokenResponse
+      :fromJSON(response.getContentAsString());
+  }
+  
   static AccessTokenResponse fromJSON(String json)
     throws ParseException
   {
@@ -23,11 +39,16 @@ public class AccessTokenResponse
   }
   
   public String accessToken;
+  public String tokenType;
   public long expiresIn;
+  public String refreshToken;
+  public String scope;
+  public String idToken;
   public String error;
   public String errorDescription;
+  public String errorUri;
   
   public String toString()
-  { return super.toString()+": accessToken="+accessToken+" expiresIn="+expiresIn+" error="+error+" errorDescription="+errorDescription;
+  { return super.toString()+": accessToken="+accessToken+" tokenType="+tokenType+" expiresIn="+expiresIn+" refreshToken="+(refreshToken!=null?"(present)":null)+" scope="+scope+" idToken="+(idToken!=null?"(present)":null)+" error="+error+" errorDescription="+errorDescription+" errorUri="+errorUri;
   }
 }
\ No newline at end of file
@@ -0,0 +1,647 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * <p>Reads the members of a token endpoint response (RFC 6749 5.1, 5.2)
+ *   directly from the response bytes, as either a JSON object or a form
+ *   encoded body.
+ * </p>
+ * 
+ * <p>Member names are matched against the known fields without being 
+ *   decoded, and the values of unknown members are skipped without being
+ *   decoded. Only the values of known members are converted to Strings.
+ * </p>
+ * 
+ * <p>parse() returns null for a body it doesn't understand, such as 
+ *   malformed JSON, so the caller can fall back to the general purpose
+ *   parser.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+final class AccessTokenResponseParser
+{
+  private static final int ACCESS_TOKEN=0;
+  private static final int TOKEN_TYPE=1;
+  private static final int EXPIRES_IN=2;
+  private static final int REFRESH_TOKEN=3;
+  private static final int SCOPE=4;
+  private static final int ID_TOKEN=5;
+  private static final int ERROR=6;
+  private static final int ERROR_DESCRIPTION=7;
+  private static final int ERROR_URI=8;
+  
+  private static final String[] FIELD_NAMES
+    ={"access_token"
+    ,"token_type"
+    ,"expires_in"
+    ,"refresh_token"
+    ,"scope"
+    ,"id_token"
+    ,"error"
+    ,"error_description"
+    ,"error_uri"
+    };
+  
+  private static final byte[][] NAMES=new byte[FIELD_NAMES.length][];
+  static
+  {
+    for (int i=0;i<FIELD_NAMES.length;i++)
+    { NAMES[i]=FIELD_NAMES[i].getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+  
+  /**
+   * Parse a token endpoint response body
+   * 
+   * @param content The response body
+   * @param contentType The Content-Type of the response, or null
+   * @return The response, or null if the body is not understood
+   */
+  static AccessTokenResponse parse(byte[] content,String contentType)
+  {
+    int start=skipWhitespace(content,0,content.length);
+    if (start<content.length && content[start]=='{')
+    { return new AccessTokenResponseParser(content).parseObject(start);
+    }
+    String type
+      =contentType!=null?contentType.trim().toLowerCase(Locale.ROOT):null;
+    if (type!=null
+        && (type.startsWith("application/x-www-form-urlencoded")
+           || (type.startsWith("text/plain") 
+              && indexOf(content,'=',start)>=0
+              )
+           )
+        )
+    { return parseForm(content,start);
+    }
+    return null;
+  }
+  
+  private final byte[] data;
+  private int pos;
+  
+  private AccessTokenResponseParser(byte[] data)
+  { this.data=data;
+  }
+  
+  private AccessTokenResponse parseObject(int start)
+  {
+    AccessTokenResponse response=new AccessTokenResponse();
+    pos=start+1;
+    skipWhitespace();
+    if (peek()=='}')
+    { 
+      pos++;
+      return end(response);
+    }
+    
+    while (true)
+    {
+      skipWhitespace();
+      if (peek()!='"')
+      { return null;
+      }
+      int field=matchName();
+      if (field==-2)
+      { return null;
+      }
+      skipWhitespace();
+      if (peek()!=':')
+      { return null;
+      }
+      pos++;
+      skipWhitespace();
+      
+      if (field<0)
+      { 
+        if (!skipValue(0))
+        { return null;
+        }
+      }
+      else if (!readField(response,field))
+      { return null;
+      }
+      
+      skipWhitespace();
+      int c=peek();
+      pos++;
+      if (c=='}')
+      { return end(response);
+      }
+      if (c!=',')
+      { return null;
+      }
+    }
+  }
+  
+  private AccessTokenResponse end(AccessTokenResponse response)
+  { return skipWhitespace(data,pos,data.length)==data.length?response:null;
+  }
+  
+  /**
+   * Match the quoted name at the current position against the known 
+   *   fields, leaving the position after the closing quote
+   * 
+   * @return The field, -1 for an unknown name, or -2 if malformed
+   */
+  private int matchName()
+  {
+    int begin=pos+1;
+    int end=begin;
+    boolean escaped=false;
+    while (end<data.length && data[end]!='"')
+    {
+      if (data[end]=='\\')
+      { 
+        escaped=true;
+        end++;
+      }
+      end++;
+    }
+    if (end>=data.length)
+    { return -2;
+    }
+    pos=end+1;
+    
+    if (escaped)
+    {
+      // Rare enough to decode
+      String name=decodeString(begin,end);
+      if (name==null)
+      { return -2;
+      }
+      for (int i=0;i<NAMES.length;i++)
+      { 
+        if (name.equals(FIELD_NAMES[i]))
+        { return i;
+        }
+      }
+      return -1;
+    }
+    
+    int length=end-begin;
+    for (int i=0;i<NAMES.length;i++)
+    { 
+      byte[] name=NAMES[i];
+      if (name.length==length && regionMatches(begin,name))
+      { return i;
+      }
+    }
+    return -1;
+  }
+  
+  private boolean readField(AccessTokenResponse response,int field)
+  {
+    String value;
+    int c=peek();
+    if (c=='"')
+    { 
+      int begin=pos+1;
+      int end=skipString(pos);
+      if (end<0)
+      { return false;
+      }
+      value=decodeString(begin,end-1);
+      if (value==null)
+      { return false;
+      }
+      pos=end;
+    }
+    else if (c=='n' && literal("null"))
+    { value=null;
+    }
+    else if (c=='-' || (c>='0' && c<='9'))
+    {
+      int begin=pos;
+      if (!skipValue(0))
+      { return false;
+      }
+      value=new String(data,begin,pos-begin,StandardCharsets.US_ASCII);
+    }
+    else
+    { 
+      // Objects, arrays or booleans aren't expected for the known fields
+      return false;
+    }
+    return assign(response,field,value);
+  }
+  
+  private static boolean assign
+    (AccessTokenResponse response,int field,String value)
+  {
+    switch (field)
+    {
+      case ACCESS_TOKEN:
+        response.accessToken=value;
+        break;
+      case TOKEN_TYPE:
+        response.tokenType=value;
+        break;
+      case EXPIRES_IN:
+        if (value!=null)
+        {
+          long expiresIn=parseLong(value);
+          if (expiresIn<0)
+          { return false;
+          }
+          response.expiresIn=expiresIn;
+        }
+        break;
+      case REFRESH_TOKEN:
+        response.refreshToken=value;
+        break;
+      case SCOPE:
+        response.scope=value;
+        break;
+      case ID_TOKEN:
+        response.idToken=value;
+        break;
+      case ERROR:
+        response.error=value;
+        break;
+      case ERROR_DESCRIPTION:
+        response.errorDescription=value;
+        break;
+      case ERROR_URI:
+        response.errorUri=value;
+        break;
+      default:
+    }
+    return true;
+  }
+  
+  /**
+   * Skip a JSON value of any type
+   */
+  private boolean skipValue(int depth)
+  {
+    if (depth>64 || pos>=data.length)
+    { return false;
+    }
+    
+    int c=data[pos];
+    switch (c)
+    {
+      case '"':
+        pos=skipString(pos);
+        return pos>=0;
+      case '{':
+      case '[':
+        int close=c=='{'?'}':']';
+        pos++;
+        skipWhitespace();
+        if (peek()==close)
+        { 
+          pos++;
+          return true;
+        }
+        while (true)
+        {
+          skipWhitespace();
+          if (c=='{')
+          {
+            if (peek()!='"')
+            { return false;
+            }
+            pos=skipString(pos);
+            if (pos<0)
+            { return false;
+            }
+            skipWhitespace();
+            if (peek()!=':')
+            { return false;
+            }
+            pos++;
+            skipWhitespace();
+          }
+          if (!skipValue(depth+1))
+          { return false;
+          }
+          skipWhitespace();
+          int next=peek();
+          pos++;
+          if (next==close)
+          { return true;
+          }
+          if (next!=',')
+          { return false;
+          }
+        }
+      case 't':
+        return literal("true");
+      case 'f':
+        return literal("false");
+      case 'n':
+        return literal("null");
+      default:
+        int begin=pos;
+        while (pos<data.length)
+        {
+          int d=data[pos];
+          if ((d>='0' && d<='9') || d=='-' || d=='+' || d=='.' 
+              || d=='e' || d=='E'
+              )
+          { pos++;
+          }
+          else
+          { break;
+          }
+        }
+        return pos>begin;
+    }
+  }
+  
+  /**
+   * @return The position after the closing quote of the string that
+   *   starts at the specified position, or -1 if it is unterminated
+   */
+  private int skipString(int start)
+  {
+    int i=start+1;
+    while (i<data.length)
+    {
+      byte b=data[i];
+      if (b=='"')
+      { return i+1;
+      }
+      i+=b=='\\'?2:1;
+    }
+    return -1;
+  }
+  
+  /**
+   * Decode the content of a JSON string between the quotes
+   * 
+   * @return The string, or null if an escape is malformed
+   */
+  private String decodeString(int begin,int end)
+  {
+    int escape=indexOf(data,'\\',begin);
+    if (escape<0 || escape>=end)
+    { return new String(data,begin,end-begin,StandardCharsets.UTF_8);
+    }
+    
+    ByteArrayOutputStream out=new ByteArrayOutputStream(end-begin);
+    out.write(data,begin,escape-begin);
+    int i=escape;
+    while (i<end)
+    {
+      byte b=data[i++];
+      if (b!='\\')
+      { 
+        out.write(b);
+        continue;
+      }
+      if (i>=end)
+      { return null;
+      }
+      byte e=data[i++];
+      switch (e)
+      {
+        case '"':
+        case '\\':
+        case '/':
+          out.write(e);
+          break;
+        case 'b':
+          out.write('\b');
+          break;
+        case 'f':
+          out.write('\f');
+          break;
+        case 'n':
+          out.write('\n');
+          break;
+        case 'r':
+          out.write('\r');
+          break;
+        case 't':
+          out.write('\t');
+          break;
+        case 'u':
+          if (i+4>end)
+          { return null;
+          }
+          int code=0;
+          for (int j=0;j<4;j++)
+          {
+            int digit=Character.digit(data[i++],16);
+            if (digit<0)
+            { return null;
+            }
+            code=(code<<4)|digit;
+          }
+          if (Character.isHighSurrogate((char) code)
+              && i+6<=end && data[i]=='\\' && data[i+1]=='u'
+              )
+          {
+            int low=0;
+            for (int j=2;j<6;j++)
+            {
+              int digit=Character.digit(data[i+j],16);
+              if (digit<0)
+              { return null;
+              }
+              low=(low<<4)|digit;
+            }
+            if (Character.isLowSurrogate((char) low))
+            { 
+              i+=6;
+              writeUtf8(out,Character.toCodePoint((char) code,(char) low));
+              break;
+            }
+          }
+          writeUtf8(out,code);
+          break;
+        default:
+          return null;
+      }
+    }
+    return new String(out.toByteArray(),StandardCharsets.UTF_8);
+  }
+  
+  private static void writeUtf8(ByteArrayOutputStream out,int codePoint)
+  {
+    byte[] bytes
+      =new String(Character.toChars(codePoint))
+        .getBytes(StandardCharsets.UTF_8);
+    out.write(bytes,0,bytes.length);
+  }
+  
+  private static AccessTokenResponse parseForm(byte[] content,int start)
+  {
+    AccessTokenResponse response=new AccessTokenResponse();
+    int end=content.length;
+    while (end>start && content[end-1]<=' ')
+    { end--;
+    }
+    
+    int pairStart=start;
+    while (pairStart<end)
+    {
+      int pairEnd=indexOf(content,'&',pairStart);
+      if (pairEnd<0 || pairEnd>end)
+      { pairEnd=end;
+      }
+      int equals=indexOf(content,'=',pairStart);
+      if (equals>=0 && equals<pairEnd)
+      {
+        String name=formDecode(content,pairStart,equals);
+        String value=formDecode(content,equals+1,pairEnd);
+        if (name==null || value==null)
+        { return null;
+        }
+        for (int i=0;i<NAMES.length;i++)
+        { 
+          if (name.equals(FIELD_NAMES[i]))
+          { 
+            if (!assign(response,i,value))
+            { return null;
+            }
+            break;
+          }
+        }
+      }
+      pairStart=pairEnd+1;
+    }
+    return response;
+  }
+  
+  private static String formDecode(byte[] content,int begin,int end)
+  {
+    ByteArrayOutputStream out=null;
+    for (int i=begin;i<end;i++)
+    {
+      byte b=content[i];
+      if (b=='%' || b=='+')
+      {
+        if (out==null)
+        { 
+          out=new ByteArrayOutputStream(end-begin);
+          out.write(content,begin,i-begin);
+        }
+        if (b=='+')
+        { out.write(' ');
+        }
+        else
+        {
+          if (i+2>=end)
+          { return null;
+          }
+          int high=Character.digit(content[i+1],16);
+          int low=Character.digit(content[i+2],16);
+          if (high<0 || low<0)
+          { return null;
+          }
+          out.write((high<<4)|low);
+          i+=2;
+        }
+      }
+      else if (out!=null)
+      { out.write(b);
+      }
+    }
+    return out!=null
+      ?new String(out.toByteArray(),StandardCharsets.UTF_8)
+      :new String(content,begin,end-begin,StandardCharsets.UTF_8)
+      ;
+  }
+  
+  private static long parseLong(String value)
+  {
+    int end=value.indexOf('.');
+    if (end<0)
+    { end=value.length();
+    }
+    if (end==0 || end>18)
+    { return -1;
+    }
+    long result=0;
+    for (int i=0;i<end;i++)
+    {
+      char c=value.charAt(i);
+      if (c<'0' || c>'9')
+      { return -1;
+      }
+      result=result*10+(c-'0');
+    }
+    return result;
+  }
+  
+  private boolean literal(String literal)
+  {
+    int length=literal.length();
+    if (pos+length>data.length)
+    { return false;
+    }
+    for (int i=0;i<length;i++)
+    { 
+      if (data[pos+i]!=literal.charAt(i))
+      { return false;
+      }
+    }
+    pos+=length;
+    return true;
+  }
+  
+  private boolean regionMatches(int begin,byte[] name)
+  {
+    for (int i=0;i<name.length;i++)
+    { 
+      if (data[begin+i]!=name[i])
+      { return false;
+      }
+    }
+    return true;
+  }
+  
+  private int peek()
+  { return pos<data.length?data[pos]:-1;
+  }
+  
+  private void skipWhitespace()
+  { pos=skipWhitespace(data,pos,data.length);
+  }
+  
+  private static int skipWhitespace(byte[] data,int pos,int end)
+  {
+    while (pos<end 
+          && (data[pos]==' ' || data[pos]=='\t' 
+             || data[pos]=='\n' || data[pos]=='\r'
+             )
+          )
+    { pos++;
+    }
+    return pos;
+  }
+  
+  private static int indexOf(byte[] data,int b,int start)
+  {
+    for (int i=start;i<data.length;i++)
+    { 
+      if (data[i]==b)
+      { return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,103 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth2;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+
+/**
+ * <p>A Session that calls the provider as the application itself, using
+ *   a token obtained with the client credentials grant (RFC 6749 4.4).
+ * </p>
+ * 
+ * <p>The token is not held by the session. It comes from the Client's 
+ *   application token cache, so every ApplicationSession for the same 
+ *   scopes, on any thread, shares one token and one refresh.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class ApplicationSession
+  extends Session
+{
+  private final ScopeSet scopes;
+  
+  protected ApplicationSession(Client client,ScopeSet scopes)
+  { 
+    super(client);
+    this.scopes=scopes;
+  }
+  
+  public ScopeSet getScopes()
+  { return scopes;
+  }
+  
+  /**
+   * The cached application token, if one has been obtained
+   */
+  @Override
+  public Token getToken()
+  { return client.cachedApplicationToken(scopes);
+  }
+  
+  @Override
+  public boolean isTokenValid()
+  { 
+    Token token=getToken();
+    return token!=null && !token.isExpired();
+  }
+  
+  /**
+   * Discard the cached application token and obtain a new one
+   */
+  @Override
+  public void refresh()
+    throws IOException,GeneralSecurityException
+  { client.refreshApplicationToken(scopes);
+  }
+  
+  @Override
+  public void refreshInBackground()
+  { client.refreshApplicationTokenInBackground(scopes);
+  }
+  
+  @Override
+  public URI startAuthSequence(URI callbackURI) 
+    throws IOException,GeneralSecurityException
+  { 
+    throw new GeneralSecurityException
+      ("An application session does not authenticate a user");
+  }
+  
+  @Override
+  Token requestToken()
+    throws IOException
+  { 
+    try
+    { return client.getApplicationToken(scopes);
+    }
+    catch (GeneralSecurityException x)
+    { throw new IOException("Error obtaining application token",x);
+    }
+  }
+  
+  @Override
+  public void invalidate()
+    throws IOException
+  { client.invalidateApplicationToken(scopes);
+  }
+}
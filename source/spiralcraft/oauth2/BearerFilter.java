@@ -0,0 +1,357 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth2;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import spiralcraft.lang.BindException;
+import spiralcraft.lang.Focus;
+import spiralcraft.lang.reflect.BeanReflector;
+import spiralcraft.lang.spi.ThreadLocalChannel;
+import spiralcraft.log.Level;
+import spiralcraft.servlet.autofilter.spi.FocusFilter;
+
+/**
+ * <p>Protects resources served by this application by validating the
+ *   bearer tokens (RFC 6750) presented in the Authorization header of 
+ *   each request with the provider's token introspection endpoint.
+ * </p>
+ * 
+ * <p>When the Client is configured with the provider's jwksURI, bearer
+ *   tokens that are JWTs are verified locally against the cached key set
+ *   instead, and only opaque tokens are introspected.
+ * </p>
+ * 
+ * <p>The TokenPrincipal for a request is exposed to the application 
+ *   through the Focus chain, and is null when no valid token was 
+ *   presented. When requireToken is set, such requests are refused with a
+ *   401 status and are not passed along the chain.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class BearerFilter
+  extends FocusFilter<TokenPrincipal>
+{
+  private static final String PRINCIPAL_ATTRIBUTE
+    =BearerFilter.class.getName()+".principal";
+
+  private Client client;
+  private URI introspectionURI;
+  private long positiveCacheTime=300000;
+  private long negativeCacheTime=30000;
+  private int maxCacheEntries=10000;
+  private boolean requireToken;
+  private String realm;
+  private String audience;
+  private volatile TokenIntrospector introspector;
+  private volatile JwtVerifier jwtVerifier;
+  protected ThreadLocalChannel<TokenPrincipal> channel;
+  
+  /**
+   * The Client that identifies this resource server to the introspection
+   *   endpoint
+   * 
+   * @param client
+   */
+  public void setClient(Client client)
+  { this.client=client;
+  }
+  
+  public Client getClient()
+  { return client;
+  }
+  
+  public void setIntrospectionURI(URI introspectionURI)
+  { this.introspectionURI=introspectionURI;
+  }
+  
+  /**
+   * The maximum time in milliseconds the result for a valid token is 
+   *   reused before the token is introspected again. Results are never
+   *   reused past the token's expiration. Defaults to 5 minutes.
+   * 
+   * @param positiveCacheTime
+   */
+  public void setPositiveCacheTime(long positiveCacheTime)
+  { this.positiveCacheTime=positiveCacheTime;
+  }
+  
+  /**
+   * The time in milliseconds an invalid token is remembered as such. 
+   *   Defaults to 30 seconds.
+   * 
+   * @param negativeCacheTime
+   */
+  public void setNegativeCacheTime(long negativeCacheTime)
+  { this.negativeCacheTime=negativeCacheTime;
+  }
+  
+  /**
+   * The maximum number of introspection results retained. Defaults to 
+   *   10000.
+   * 
+   * @param maxCacheEntries
+   */
+  public void setMaxCacheEntries(int maxCacheEntries)
+  { this.maxCacheEntries=maxCacheEntries;
+  }
+  
+  /**
+   * Refuse requests that don't carry a valid bearer token with a 401 
+   *   status. Defaults to false, which passes such requests along with a
+   *   null principal.
+   * 
+   * @param requireToken
+   */
+  public void setRequireToken(boolean requireToken)
+  { this.requireToken=requireToken;
+  }
+  
+  /**
+   * The realm reported in the WWW-Authenticate challenge
+   * 
+   * @param realm
+   */
+  public void setRealm(String realm)
+  { this.realm=realm;
+  }
+  
+  /**
+   * The value that must appear in the "aud" claim of locally verified JWT
+   *   bearer tokens, usually the identifier of this resource server. 
+   *   Required when the Client has a jwksURI, so that tokens issued for
+   *   other audiences, eg. id_tokens of other clients, are refused.
+   * 
+   * @param audience
+   */
+  public void setAudience(String audience)
+  { this.audience=audience;
+  }
+  
+  public TokenIntrospector getIntrospector()
+  { return introspector();
+  }
+  
+  @Override
+  public void doFilter
+    (ServletRequest request
+    ,ServletResponse response
+    ,FilterChain chain
+    )
+    throws IOException,ServletException
+  {
+    if (requireToken && request instanceof HttpServletRequest)
+    {
+      HttpServletRequest httpRequest=(HttpServletRequest) request;
+      HttpServletResponse httpResponse=(HttpServletResponse) response;
+      TokenPrincipal principal;
+      try
+      { principal=authenticate(httpRequest);
+      }
+      catch (IOException x)
+      { 
+        log.log(Level.WARNING,"Error introspecting bearer token",x);
+        httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return;
+      }
+      
+      if (principal==null)
+      { 
+        challenge
+          (httpRequest,httpResponse
+          ,httpRequest.getHeader("Authorization")!=null
+          );
+        return;
+      }
+    }
+    super.doFilter(request,response,chain);
+  }
+  
+  /**
+   * Validate the bearer token carried by the request
+   * 
+   * @return The principal for a valid token, or null if no token or an
+   *   invalid token was presented
+   * @throws IOException if the introspection endpoint can't be reached
+   */
+  public TokenPrincipal authenticate(HttpServletRequest request)
+    throws IOException
+  {
+    Object cached=request.getAttribute(PRINCIPAL_ATTRIBUTE);
+    if (cached!=null)
+    { return cached instanceof TokenPrincipal?(TokenPrincipal) cached:null;
+    }
+    
+    TokenPrincipal principal=null;
+    String token=bearerToken(request);
+    JwtVerifier verifier=jwtVerifier();
+    if (token!=null && verifier!=null && JwtVerifier.isJwt(token))
+    {
+      try
+      { principal=verifier.verify(token);
+      }
+      catch (GeneralSecurityException x)
+      { 
+        if (debug)
+        { log.debug("Rejected JWT: "+x.getMessage());
+        }
+      }
+    }
+    else if (token!=null && introspectionURI!=null)
+    { 
+      principal=introspector().introspect(token);
+      if (!principal.isActive())
+      { principal=null;
+      }
+    }
+    request.setAttribute
+      (PRINCIPAL_ATTRIBUTE,principal!=null?principal:Boolean.FALSE);
+    return principal;
+  }
+  
+  private String bearerToken(HttpServletRequest request)
+  {
+    String authorization=request.getHeader("Authorization");
+    if (authorization==null 
+        || !authorization.regionMatches(true,0,"Bearer ",0,7)
+        )
+    { return null;
+    }
+    String token=authorization.substring(7).trim();
+    return token.isEmpty()?null:token;
+  }
+  
+  private void challenge
+    (HttpServletRequest request
+    ,HttpServletResponse response
+    ,boolean tokenPresented
+    )
+    throws IOException
+  {
+    StringBuilder challenge=new StringBuilder("Bearer");
+    String separator=" ";
+    if (realm!=null)
+    { 
+      challenge.append(separator).append("realm=\"").append(realm).append('"');
+      separator=", ";
+    }
+    if (tokenPresented)
+    { challenge.append(separator).append("error=\"invalid_token\"");
+    }
+    response.setHeader("WWW-Authenticate",challenge.toString());
+    response.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+    if (debug)
+    { log.debug("Refused "+request.getRequestURI());
+    }
+  }
+  
+  private JwtVerifier jwtVerifier()
+  {
+    JsonWebKeySet keySet=client.getJsonWebKeySet();
+    if (keySet==null)
+    { return null;
+    }
+    
+    JwtVerifier verifier=this.jwtVerifier;
+    if (verifier==null)
+    {
+      verifier=new JwtVerifier(keySet,null);
+      verifier.setIssuer(client.getIssuer());
+      verifier.setAudience(audience);
+      this.jwtVerifier=verifier;
+    }
+    return verifier;
+  }
+  
+  private TokenIntrospector introspector()
+  {
+    TokenIntrospector introspector=this.introspector;
+    if (introspector==null)
+    {
+      synchronized (this)
+      {
+        introspector=this.introspector;
+        if (introspector==null)
+        { 
+          introspector=new TokenIntrospector(client,introspectionURI);
+          introspector.setPositiveCacheTime(positiveCacheTime);
+          introspector.setNegativeCacheTime(negativeCacheTime);
+          introspector.setMaxCacheEntries(maxCacheEntries);
+          this.introspector=introspector;
+        }
+      }
+    }
+    return introspector;
+  }
+  
+  @Override
+  protected Focus<TokenPrincipal> createFocus
+    (Focus<?> parentFocus)
+    throws BindException
+  { 
+    if (client==null)
+    { throw new BindException("No oauth client configured");
+    }
+    if (introspectionURI==null && client.getJwksURI()==null)
+    { 
+      throw new BindException
+        ("No introspectionURI or client jwksURI configured");
+    }
+    if (client.getJwksURI()!=null && (audience==null || audience.isEmpty()))
+    { 
+      throw new BindException
+        ("An audience must be configured to verify JWT bearer tokens");
+    }
+    
+    channel
+      =new ThreadLocalChannel<TokenPrincipal>
+        (BeanReflector.<TokenPrincipal>getInstance(TokenPrincipal.class));
+    return parentFocus.chain(channel);
+  }
+  
+  @Override
+  protected void pushSubject
+    (HttpServletRequest request,HttpServletResponse response) 
+    throws BindException,ServletException
+  {
+    TokenPrincipal principal=null;
+    try
+    { principal=authenticate(request);
+    }
+    catch (IOException x)
+    { log.log(Level.WARNING,"Error introspecting bearer token",x);
+    }
+    channel.push(principal);
+    if (debug)
+    { log.debug("Principal: "+principal);
+    }
+  }
+  
+  @Override
+  protected void popSubject(HttpServletRequest request)
+  { channel.pop();
+  }
+}
@@ -0,0 +1,96 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth2;
+
+import java.io.IOException;
+import java.net.URI;
+
+import spiralcraft.net.http.VariableMap;
+import spiralcraft.oauth.bulk.BulkOperation;
+import spiralcraft.oauth.http.Response;
+import spiralcraft.oauth.util.JsonArrayStream;
+import spiralcraft.oauth.util.JsonReader;
+
+/**
+ * <p>A resource request made with each of many Sessions by a BulkExecutor,
+ *   eg. a nightly sync of every stored user's data.
+ * </p>
+ * 
+ * <p>A relative URI is resolved against the apiURI of each Session's 
+ *   Client. Requests are limited per provider host.
+ * </p>
+ * 
+ * @author mike
+ *
+ * @param <R> The result type
+ */
+public class BulkCall<R>
+  implements BulkOperation<Session,R>
+{
+  private final String verb;
+  private final URI uri;
+  private final VariableMap requestBody;
+  private final JsonArrayStream.ElementReader<R> resultReader;
+  
+  /**
+   * @param resultReader Converts each JSON response, eg. 
+   *   JsonArrayStream.beans(), or null to discard it
+   */
+  public BulkCall
+    (String verb
+    ,URI uri
+    ,VariableMap requestBody
+    ,JsonArrayStream.ElementReader<R> resultReader
+    )
+  {
+    this.verb=verb;
+    this.uri=uri;
+    this.requestBody=requestBody;
+    this.resultReader=resultReader;
+  }
+  
+  @Override
+  public R execute(Session session)
+    throws IOException
+  {
+    Response response=session.exchange(verb,resolve(session),requestBody);
+    if (response.isError())
+    { throw response.toException();
+    }
+    if (resultReader==null)
+    { return null;
+    }
+    
+    JsonReader json
+      =new JsonReader(JsonArrayStream.utf8Reader(response.getInputStream()));
+    try
+    { return resultReader.read(json);
+    }
+    finally
+    { json.close();
+    }
+  }
+  
+  @Override
+  public String providerKey(Session session)
+  { return resolve(session).getRawAuthority();
+  }
+  
+  private URI resolve(Session session)
+  {
+    URI apiURI=session.client.apiURI;
+    return !uri.isAbsolute() && apiURI!=null?apiURI.resolve(uri):uri;
+  }
+}
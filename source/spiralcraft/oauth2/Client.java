@@ -14,11 +14,35 @@
 //
 package spiralcraft.oauth2;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import spiralcraft.lang.Reflector;
 import spiralcraft.lang.reflect.BeanReflector;
+import spiralcraft.log.ClassLog;
 import spiralcraft.log.Level;
+import spiralcraft.net.http.VariableMap;
+import spiralcraft.time.Clock;
+import spiralcraft.oauth.http.HostStatistics;
+import spiralcraft.oauth.http.RateLimiter;
+import spiralcraft.oauth.http.Transport;
+import spiralcraft.oauth.http.Response;
+import spiralcraft.oauth.http.ResponseCache;
+import spiralcraft.oauth.util.AsyncUtil;
+import spiralcraft.oauth.util.SingleFlight;
+import spiralcraft.text.ParseException;
+import spiralcraft.util.string.StringUtil;
 
 
 /**
@@ -29,6 +53,8 @@ import spiralcraft.log.Level;
  */
 public class Client
 {
+  private static final ClassLog log
+    =ClassLog.getInstance(Client.class);
   
   private URI credentialRequestURI;
 
@@ -44,6 +70,25 @@ public class Client
   String signatureMethod;
   URI apiURI;
   Level logLevel=Level.INFO;
+  final Transport transport=new Transport();
+  final RateLimiter rateLimiter=new RateLimiter();
+  long refreshMargin=60000;
+  final SingleFlight<Object,Token> tokenFlights
+    =new SingleFlight<Object,Token>();
+  private final ConcurrentHashMap<ScopeSet,Token> applicationTokens
+    =new ConcurrentHashMap<ScopeSet,Token>();
+  private volatile ScheduledExecutorService refreshExecutor;
+  private volatile Executor callExecutor;
+  private volatile ResponseCache responseCache;
+  volatile boolean coalesceRequests;
+  private final SingleFlight<String,Response> requestFlights
+    =new SingleFlight<String,Response>();
+  volatile StateCodec stateCodec;
+  private long stateTimeout=600000;
+  private URI jwksURI;
+  private String issuer;
+  private volatile JsonWebKeySet jsonWebKeySet;
+  private volatile JwtVerifier idTokenVerifier;
   
   protected Reflector<Session> sessionReflector
     =BeanReflector.<Session>getInstance(Session.class);
@@ -55,7 +100,9 @@ public class Client
    * @param clientId
    */
   public void setClientId(String clientId)
-  { this.clientId=clientId;
+  { 
+    this.clientId=clientId;
+    this.idTokenVerifier=null;
   }
   
   public void setRealm(String realm)
@@ -69,7 +116,9 @@ public class Client
    * @param sharedSecret
    */
   public void setSharedSecret(String sharedSecret)
-  { this.sharedSecret=sharedSecret;
+  { 
+    this.sharedSecret=sharedSecret;
+    this.idTokenVerifier=null;
   }
   
   public URI getCredentialRequestURI()
@@ -111,12 +160,644 @@ public class Client
   { return apiURI;
   }
   
+  /**
+   * <p>A secret used to sign the "state" parameter. When set, the state 
+   *   is a self contained token carrying the callback and return URIs, 
+   *   and the provider's redirect can be verified on any node without
+   *   the HTTP session that started the sequence. The state is bound to
+   *   a random value held by the browser that started the sequence (the
+   *   Filter keeps it in a cookie), which must accompany the redirect.
+   * </p>
+   * 
+   * <p>All nodes must share the same secret, which must be at least 16
+   *   bytes.
+   * </p>
+   * 
+   * @param stateSecret
+   */
+  public void setStateSecret(String stateSecret)
+  { 
+    if (stateSecret==null)
+    { stateCodec=null;
+    }
+    else
+    {
+      StateCodec codec
+        =new StateCodec(stateSecret.getBytes(StandardCharsets.UTF_8));
+      codec.setTimeout(stateTimeout);
+      stateCodec=codec;
+    }
+  }
+  
+  /**
+   * How long in milliseconds a signed state remains acceptable. Defaults
+   *   to 10 minutes.
+   * 
+   * @param stateTimeout
+   */
+  public void setStateTimeout(long stateTimeout)
+  { 
+    this.stateTimeout=stateTimeout;
+    StateCodec codec=stateCodec;
+    if (codec!=null)
+    { codec.setTimeout(stateTimeout);
+    }
+  }
+  
+  public long getStateTimeout()
+  { return stateTimeout;
+  }
+  
+  /**
+   * <p>The location of the provider's JSON Web Key Set ("jwks_uri"). When
+   *   set, an id_token returned with the access token is verified locally
+   *   and its subject becomes the Session's oauthId, and JWT bearer tokens
+   *   can be validated without calling the provider.
+   * </p>
+   * 
+   * @param jwksURI
+   */
+  public synchronized void setJwksURI(URI jwksURI)
+  { 
+    this.jwksURI=jwksURI;
+    this.jsonWebKeySet=null;
+    this.idTokenVerifier=null;
+  }
+  
+  public URI getJwksURI()
+  { return jwksURI;
+  }
+  
+  /**
+   * The provider's issuer identifier, which must match the "iss" claim of
+   *   verified tokens
+   * 
+   * @param issuer
+   */
+  public synchronized void setIssuer(String issuer)
+  { 
+    this.issuer=issuer;
+    this.idTokenVerifier=null;
+  }
+  
+  public String getIssuer()
+  { return issuer;
+  }
+  
+  /**
+   * The provider's signing keys, or null if no jwksURI is configured
+   */
+  public JsonWebKeySet getJsonWebKeySet()
+  {
+    JsonWebKeySet keySet=jsonWebKeySet;
+    if (keySet==null && jwksURI!=null)
+    {
+      synchronized (this)
+      {
+        keySet=jsonWebKeySet;
+        if (keySet==null && jwksURI!=null)
+        {
+          keySet=new JsonWebKeySet(transport,jwksURI,refreshExecutor());
+          keySet.setLogLevel(logLevel);
+          jsonWebKeySet=keySet;
+        }
+      }
+    }
+    return keySet;
+  }
+  
+  /**
+   * The verifier for OpenID Connect id_tokens issued to this client, which
+   *   accepts RS256 and ES256 signatures from the key set and HS256 
+   *   signatures made with the shared secret. Null if no jwksURI is
+   *   configured.
+   */
+  JwtVerifier idTokenVerifier()
+  {
+    JwtVerifier verifier=idTokenVerifier;
+    if (verifier==null && jwksURI!=null)
+    {
+      synchronized (this)
+      {
+        verifier=idTokenVerifier;
+        if (verifier==null && jwksURI!=null)
+        {
+          verifier
+            =new JwtVerifier
+              (getJsonWebKeySet()
+              ,sharedSecret!=null
+              ?sharedSecret.getBytes(StandardCharsets.UTF_8)
+              :null
+              );
+          verifier.setIssuer(issuer);
+          verifier.setAudience(clientId);
+          idTokenVerifier=verifier;
+        }
+      }
+    }
+    return verifier;
+  }
+  
+  /**
+   * How long in milliseconds before an access token expires that it 
+   *   should be refreshed in the background. Defaults to 60 seconds. Tokens
+   *   that live less than twice this long are refreshed half way through
+   *   their lifetime.
+   * 
+   * @param refreshMargin
+   */
+  public void setRefreshMargin(long refreshMargin)
+  { this.refreshMargin=refreshMargin;
+  }
+  
+  public long getRefreshMargin()
+  { return refreshMargin;
+  }
+  
+  /**
+   * Schedule a background refresh of the Session's token ahead of its
+   *   expiration. The schedule does not keep an abandoned Session alive.
+   */
+  void scheduleRefresh(Session session,final Token token)
+  {
+    final WeakReference<Session> sessionRef
+      =new WeakReference<Session>(session);
+    long delay
+      =Math.max(0,token.getRefreshAt()-Clock.instance().approxTimeMillis());
+    refreshExecutor().schedule
+      (new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          Session session=sessionRef.get();
+          if (session!=null && session.getToken()==token)
+          { session.refreshInBackground();
+          }
+        }
+      }
+      ,delay
+      ,TimeUnit.MILLISECONDS
+      );
+  }
+  
+  /**
+   * The executor that runs background token refreshes
+   */
+  ScheduledExecutorService refreshExecutor()
+  {
+    ScheduledExecutorService executor=refreshExecutor;
+    if (executor==null)
+    {
+      synchronized (this)
+      {
+        executor=refreshExecutor;
+        if (executor==null)
+        {
+          ScheduledThreadPoolExecutor pool
+            =new ScheduledThreadPoolExecutor
+              (2,AsyncUtil.daemonThreadFactory("oauth2-refresh-"));
+          pool.setRemoveOnCancelPolicy(true);
+          executor=pool;
+          refreshExecutor=executor;
+        }
+      }
+    }
+    return executor;
+  }
+  
   public Session newSession()
   { return new Session(this);
   }
   
+  /**
+   * A Session authorized by a stored token, eg. for a BulkCall made on 
+   *   behalf of many users
+   */
+  public Session newSession(Token token)
+  { 
+    Session session=new Session(this);
+    session.restoreToken(token);
+    return session;
+  }
+  
+  /**
+   * The Executor that runs the asynchronous calls made via 
+   *   Session.callAsync(). Defaults to a virtual thread per call where 
+   *   the JVM supports it, otherwise a shared daemon thread pool. 
+   * 
+   * @param callExecutor
+   */
+  public void setCallExecutor(Executor callExecutor)
+  { this.callExecutor=callExecutor;
+  }
+  
+  Executor callExecutor()
+  { 
+    Executor executor=callExecutor;
+    return executor!=null?executor:AsyncUtil.defaultExecutor();
+  }
+  
+  /**
+   * A Session that calls the provider as this application, authorized by
+   *   the shared application token for the specified scopes.
+   */
+  public ApplicationSession newApplicationSession(String ... scopes)
+  { return new ApplicationSession(this,ScopeSet.of(scopes));
+  }
+  
+  /**
+   * <p>Obtain an application token for the specified scopes using the 
+   *   client credentials grant (RFC 6749 4.4).
+   * </p>
+   * 
+   * <p>Tokens are cached per scope set and shared by all threads. A cached
+   *   token is returned until it expires, and is refreshed in the background
+   *   ahead of expiration. Concurrent requests for a missing or expired
+   *   token share a single request to the token endpoint.
+   * </p>
+   */
+  public Token getApplicationToken(String ... scopes)
+    throws IOException,GeneralSecurityException
+  { return getApplicationToken(ScopeSet.of(scopes));
+  }
+  
+  public Token getApplicationToken(ScopeSet scopes)
+    throws IOException,GeneralSecurityException
+  {
+    Token token=applicationTokens.get(scopes);
+    if (token!=null && !token.isExpired())
+    { 
+      if (token.isRefreshDue())
+      { refreshApplicationTokenInBackground(scopes);
+      }
+      return token;
+    }
+    return tokenFlight(scopes,applicationTokenOperation(scopes,token));
+  }
+  
+  /**
+   * Obtain a new application token for the scopes, replacing the cached 
+   *   one.
+   */
+  public Token refreshApplicationToken(ScopeSet scopes)
+    throws IOException,GeneralSecurityException
+  { 
+    return tokenFlight
+      (scopes,applicationTokenOperation(scopes,applicationTokens.get(scopes)));
+  }
+  
+  /**
+   * Start obtaining a new application token for the scopes on the 
+   *   background executor, unless a request is already in flight.
+   */
+  public void refreshApplicationTokenInBackground(final ScopeSet scopes)
+  {
+    if (tokenFlights.isInFlight(scopes))
+    { return;
+    }
+    
+    tokenFlights.executeAsync
+      (scopes
+      ,applicationTokenOperation(scopes,applicationTokens.get(scopes))
+      ,refreshExecutor()
+      )
+      .whenComplete
+        (new BiConsumer<Token,Throwable>()
+        {
+          @Override
+          public void accept(Token result,Throwable x)
+          {
+            if (x!=null)
+            { 
+              log.log
+                (Level.WARNING
+                ,"Error refreshing application token for "+scopes
+                ,x
+                );
+            }
+          }
+        }
+        );
+  }
+  
+  /**
+   * Discard the cached application token for the specified scopes, eg. 
+   *   after the provider rejects it.
+   */
+  public void invalidateApplicationToken(String ... scopes)
+  { invalidateApplicationToken(ScopeSet.of(scopes));
+  }
+  
+  public void invalidateApplicationToken(ScopeSet scopes)
+  { applicationTokens.remove(scopes);
+  }
+  
+  Token cachedApplicationToken(ScopeSet scopes)
+  { return applicationTokens.get(scopes);
+  }
+  
+  private Callable<Token> applicationTokenOperation
+    (final ScopeSet scopes,final Token observed)
+  {
+    return new Callable<Token>()
+    {
+      @Override
+      public Token call()
+        throws IOException,GeneralSecurityException
+      { 
+        Token current=applicationTokens.get(scopes);
+        if (current!=null && current!=observed && !current.isExpired())
+        { 
+          // Replaced by the time this flight started
+          return current;
+        }
+        return requestApplicationToken(scopes);
+      }
+    };
+  }
+  
+  private Token requestApplicationToken(final ScopeSet scopes)
+    throws IOException,GeneralSecurityException
+  {
+    VariableMap params=new VariableMap();
+    params.set("grant_type","client_credentials");
+    if (!scopes.isEmpty())
+    { params.set("scope",scopes.toParameter());
+    }
+    params.set("client_id",clientId);
+    params.set("client_secret",sharedSecret);
+    
+    AccessTokenResponse accessTokenResponse
+      =requestToken(params,"obtaining application token");
+    
+    // Refresh tokens are not used with this grant, the grant is repeated
+    final Token token
+      =Token.fromResponse(accessTokenResponse,null,refreshMargin);
+    applicationTokens.put(scopes,token);
+    if (logLevel.isFine())
+    { log.fine("Application token for "+scopes+": "+token);
+    }
+    
+    if (token.getRefreshAt()!=0)
+    {
+      refreshExecutor().schedule
+        (new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            if (applicationTokens.get(scopes)==token)
+            { refreshApplicationTokenInBackground(scopes);
+            }
+          }
+        }
+        ,Math.max(0,token.getRefreshAt()-Clock.instance().approxTimeMillis())
+        ,TimeUnit.MILLISECONDS
+        );
+    }
+    return token;
+  }
+  
+  /**
+   * POST a grant request to the token endpoint and return the issued 
+   *   token
+   * 
+   * @param purpose Describes the request in error messages
+   * @throws GeneralSecurityException if the provider refuses the grant
+   */
+  AccessTokenResponse requestToken(VariableMap params,String purpose)
+    throws IOException,GeneralSecurityException
+  {
+    Response response=
+      transport.execute
+        ("POST"
+        ,tokenRequestURI
+        ,null
+        ,"application/x-www-form-urlencoded"
+        ,StringUtil.asciiBytes(params.generateEncodedForm())
+        );
+    if (response.getStatus()!=200)
+    { 
+      throw new GeneralSecurityException
+        ("OAUTH2 error "+purpose+" "+response.getStatus()
+        +" "+response.getReason()
+        );
+    }
+    
+    AccessTokenResponse accessTokenResponse;
+    try
+    {
+      accessTokenResponse
+        =AccessTokenResponse.fromResponse(response);
+    }
+    catch (ParseException x)
+    { throw new IOException("Error reading JSON response",x);
+    }
+    
+    if (accessTokenResponse.accessToken==null)
+    { 
+      throw new GeneralSecurityException
+        ("OAUTH2 error "+purpose+": "
+        +accessTokenResponse.error+" "+accessTokenResponse.errorDescription
+        );
+    }
+    return accessTokenResponse;
+  }
+  
+  /**
+   * Run a token operation, or join the one already in flight for the key
+   */
+  Token tokenFlight(Object key,Callable<Token> operation)
+    throws IOException,GeneralSecurityException
+  {
+    try
+    { return tokenFlights.execute(key,operation);
+    }
+    catch (IOException x)
+    { throw x;
+    }
+    catch (GeneralSecurityException x)
+    { throw x;
+    }
+    catch (RuntimeException x)
+    { throw x;
+    }
+    catch (Exception x)
+    { throw new IOException("Error obtaining access token",x);
+    }
+  }
+  
+  /**
+   * The maximum time in milliseconds to wait for a connection to the
+   *   provider to be established
+   * 
+   * @param connectTimeout
+   */
+  public void setConnectTimeout(int connectTimeout)
+  { transport.setConnectTimeout(connectTimeout);
+  }
+  
+  /**
+   * The maximum time in milliseconds to wait for data from the provider
+   * 
+   * @param readTimeout
+   */
+  public void setReadTimeout(int readTimeout)
+  { transport.setReadTimeout(readTimeout);
+  }
+  
+  /**
+   * The maximum number of concurrent persistent connections to each
+   *   provider host, shared by all Sessions of this Client
+   * 
+   * @param maxConnectionsPerHost
+   */
+  public void setMaxConnectionsPerHost(int maxConnectionsPerHost)
+  { transport.setMaxConnectionsPerHost(maxConnectionsPerHost);
+  }
+  
+  /**
+   * The maximum time in milliseconds a request will wait for a 
+   *   connection when maxConnectionsPerHost are already in use
+   * 
+   * @param connectionWaitTimeout
+   */
+  public void setConnectionWaitTimeout(int connectionWaitTimeout)
+  { transport.setConnectionWaitTimeout(connectionWaitTimeout);
+  }
+  
+  /**
+   * <p>Share one response among concurrent identical resource GETs made 
+   *   with the same token via Session.call(), instead of sending each
+   *   one to the provider. Defaults to false.
+   * </p>
+   * 
+   * <p>Only requests that start while the first is in flight share its 
+   *   response- no response is retained after it is delivered.
+   * </p>
+   * 
+   * @param coalesceRequests
+   */
+  public void setCoalesceRequests(boolean coalesceRequests)
+  { this.coalesceRequests=coalesceRequests;
+  }
+  
+  /**
+   * Run a resource request, or join the identical one already in flight
+   */
+  Response requestFlight(String key,Callable<Response> operation)
+    throws IOException
+  {
+    try
+    { return requestFlights.execute(key,operation);
+    }
+    catch (IOException x)
+    { throw x;
+    }
+    catch (RuntimeException x)
+    { throw x;
+    }
+    catch (Exception x)
+    { throw new IOException("Error performing request",x);
+    }
+  }
+  
+  /**
+   * The maximum number of resource GET responses retained for reuse and
+   *   revalidation by Sessions, according to the caching headers the 
+   *   provider sends. Cached responses are parsed anew for each Call.
+   *   Defaults to 0, which disables the cache.
+   * 
+   * @param responseCacheSize
+   */
+  public void setResponseCacheSize(int responseCacheSize)
+  { 
+    if (responseCacheSize<=0)
+    { responseCache=null;
+    }
+    else if (responseCache!=null)
+    { responseCache.setMaxEntries(responseCacheSize);
+    }
+    else
+    { responseCache=new ResponseCache(responseCacheSize);
+    }
+  }
+  
+  /**
+   * The cache of resource GET responses, with its hit and miss counts, or 
+   *   null if responseCacheSize is 0
+   */
+  public ResponseCache getResponseCache()
+  { return responseCache;
+  }
+  
+  /**
+   * The sustained rate of resource requests to send for all Sessions, 
+   *   and the number that may be sent at once after a quiet period. 
+   *   Requests beyond the rate wait their turn. A rate of 0 (the default)
+   *   is unlimited.
+   * 
+   * @param requestsPerSecond
+   * @param burst
+   */
+  public void setRateLimit(double requestsPerSecond,int burst)
+  { rateLimiter.setRateLimit(requestsPerSecond,burst);
+  }
+  
+  /**
+   * The sustained rate of resource requests to send for each access 
+   *   token, and the number that may be sent at once after a quiet period.
+   *   A rate of 0 (the default) is unlimited.
+   * 
+   * @param requestsPerSecond
+   * @param burst
+   */
+  public void setTokenRateLimit(double requestsPerSecond,int burst)
+  { rateLimiter.setTokenRateLimit(requestsPerSecond,burst);
+  }
+  
+  /**
+   * The longest time in milliseconds a resource request will wait for a
+   *   rate limit or a provider's Retry-After before failing. Defaults to
+   *   60000.
+   * 
+   * @param maxRateLimitWait
+   */
+  public void setMaxRateLimitWait(long maxRateLimitWait)
+  { rateLimiter.setMaxWait(maxRateLimitWait);
+  }
+  
+  /**
+   * The number of times a resource request refused with 429 Too Many 
+   *   Requests is retried. Defaults to 2.
+   * 
+   * @param maxRateLimitRetries
+   */
+  public void setMaxRateLimitRetries(int maxRateLimitRetries)
+  { rateLimiter.setMaxRetries(maxRateLimitRetries);
+  }
+  
+  /**
+   * The provider's reported quota and the counts of delayed and refused 
+   *   requests
+   */
+  public RateLimiter getRateLimiter()
+  { return rateLimiter;
+  }
+  
+  /**
+   * Connection statistics for each provider host contacted
+   */
+  public List<HostStatistics> getTransportStatistics()
+  { return transport.getStatistics();
+  }
+  
   public void setLogLevel(Level logLevel)
-  { this.logLevel=logLevel;
+  { 
+    this.logLevel=logLevel;
+    transport.setLogLevel(logLevel);
+    rateLimiter.setLogLevel(logLevel);
   }
   
 }
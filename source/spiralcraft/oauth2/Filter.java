@@ -17,8 +17,17 @@ package spiralcraft.oauth2;
 import java.io.IOException;
 import java.net.URI;
 import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -30,6 +39,11 @@ import spiralcraft.lang.spi.ThreadLocalChannel;
 import spiralcraft.lang.util.LangUtil;
 import spiralcraft.log.Level;
 import spiralcraft.net.http.VariableMap;
+import spiralcraft.oauth.session.CookieSessionPersistence;
+import spiralcraft.oauth.session.SealedCookie;
+import spiralcraft.oauth.session.SessionPersistence;
+import spiralcraft.oauth.session.SessionStore;
+import spiralcraft.oauth.session.StoreSessionPersistence;
 
 import spiralcraft.servlet.autofilter.spi.FocusFilter;
 
@@ -49,6 +63,19 @@ public class Filter
   private URI authSuccessLocation=URI.create("success");
   private URI authFailureLocation=URI.create("failure");
   private boolean invalidateOnLogout=false;
+  private String sessionCookieName;
+  private String sessionCookieKeys;
+  private int sessionCookieMaxAge=-1;
+  private int sessionSealMaxAge=SealedCookie.DEFAULT_SEAL_MAX_AGE;
+  private boolean sessionCookieSecure=true;
+  private SessionStore sessionStore;
+  private String sessionIdCookieName="oauth_session";
+  private SessionPersistence<Session> sessionPersistence;
+  private String asyncCallbackPath;
+  private long asyncCallbackTimeout=60000;
+  private String stateCookieName="oauth_state";
+  private final ThreadLocal<HttpServletResponse> responseLocal
+    =new ThreadLocal<HttpServletResponse>();
         
   { setUsesRequest(true);
   }
@@ -68,6 +95,130 @@ public class Filter
   { this.invalidateOnLogout=invalidateOnLogout;
   }
   
+  /**
+   * <p>The name of a cookie to hold the authentication state in place of
+   *   the HTTP session. When set, together with sessionCookieKeys, the 
+   *   Session is sealed into the cookie whenever its token state changes
+   *   and rebuilt from it on each request, so no per-user oauth state is
+   *   kept on the server.
+   * </p>
+   * 
+   * @param sessionCookieName
+   */
+  public void setSessionCookieName(String sessionCookieName)
+  { this.sessionCookieName=sessionCookieName;
+  }
+  
+  /**
+   * The comma separated, base64 encoded AES keys (16, 24 or 32 bytes) used
+   *   to seal the session cookie. The first key seals new cookies, and
+   *   all keys are accepted, to allow for key rotation.
+   * 
+   * @param sessionCookieKeys
+   */
+  public void setSessionCookieKeys(String sessionCookieKeys)
+  { this.sessionCookieKeys=sessionCookieKeys;
+  }
+  
+  /**
+   * The lifetime of the session cookie in seconds. Defaults to -1, which
+   *   ends it with the browser session.
+   * 
+   * @param sessionCookieMaxAge
+   */
+  public void setSessionCookieMaxAge(int sessionCookieMaxAge)
+  { this.sessionCookieMaxAge=sessionCookieMaxAge;
+  }
+  
+  /**
+   * The time in seconds after it was sealed that a session cookie stops
+   *   being accepted, whatever its lifetime in the browser. Cookies in use
+   *   are resealed once half this time has passed. Defaults to one day.
+   * 
+   * @param sessionSealMaxAge
+   */
+  public void setSessionSealMaxAge(int sessionSealMaxAge)
+  { this.sessionSealMaxAge=sessionSealMaxAge;
+  }
+  
+  /**
+   * <p>A store to hold the authentication state in place of the HTTP
+   *   session, eg. one shared by all nodes. The Session is saved to the
+   *   store whenever its token state changes and rebuilt from it on each
+   *   request, keyed by a random id held in the sessionIdCookieName 
+   *   cookie.
+   * </p>
+   * 
+   * <p>Ignored if a session cookie is configured.
+   * </p>
+   * 
+   * @param sessionStore
+   */
+  public void setSessionStore(SessionStore sessionStore)
+  { this.sessionStore=sessionStore;
+  }
+  
+  /**
+   * The name of the cookie that holds the session id when a sessionStore
+   *   is used. Defaults to "oauth_session".
+   * 
+   * @param sessionIdCookieName
+   */
+  public void setSessionIdCookieName(String sessionIdCookieName)
+  { this.sessionIdCookieName=sessionIdCookieName;
+  }
+  
+  /**
+   * Whether the session cookie or session id cookie is restricted to 
+   *   HTTPS. Defaults to true.
+   * 
+   * @param sessionCookieSecure
+   */
+  public void setSessionCookieSecure(boolean sessionCookieSecure)
+  { this.sessionCookieSecure=sessionCookieSecure;
+  }
+  
+  /**
+   * <p>The path (relative to the context) of the provider's redirect back
+   *   to this application. When set, and the container supports it, 
+   *   callback requests to this path are completed asynchronously by the
+   *   Filter: the container thread is released while the authorization
+   *   code is exchanged for a token, and the response is redirected to the
+   *   success or failure location when the exchange completes.
+   * </p>
+   * 
+   * <p>When not set, the application handles the callback by calling
+   *   readCallback(), which blocks for the exchange.
+   * </p>
+   * 
+   * @param asyncCallbackPath
+   */
+  public void setAsyncCallbackPath(String asyncCallbackPath)
+  { this.asyncCallbackPath=asyncCallbackPath;
+  }
+  
+  /**
+   * The maximum time in milliseconds to wait for an asynchronous callback
+   *   to complete before redirecting to the failure location. Defaults to 
+   *   60 seconds.
+   * 
+   * @param asyncCallbackTimeout
+   */
+  public void setAsyncCallbackTimeout(long asyncCallbackTimeout)
+  { this.asyncCallbackTimeout=asyncCallbackTimeout;
+  }
+  
+  /**
+   * The name of the cookie that binds a signed state to the browser that
+   *   started the auth sequence, when the Client has a state secret. 
+   *   Defaults to "oauth_state".
+   * 
+   * @param stateCookieName
+   */
+  public void setStateCookieName(String stateCookieName)
+  { this.stateCookieName=stateCookieName;
+  }
+  
   /**
    * The Client object which talks to the oauth server
    * 
@@ -118,28 +269,83 @@ public class Filter
       }
     }
 
-    Session session
-      =this.<Session>getPrivateSessionState
-        (requestChannel.get(),true);
+    Session session=session(requestChannel.get(),true);
     
     
     if (referer!=null)
     { session.setReturnURI(URI.create(referer));
     }
     
+    HttpServletRequest request=requestChannel.get();
+    String stateBinding=stateBinding(request);
+    URI location;
     try
-    { return session.startAuthSequence(callbackURI);
+    { 
+      location=session.startAuthSequence(callbackURI,stateBinding);
+      if (session.getStateBinding()!=null 
+          && !session.getStateBinding().equals(stateBinding)
+          )
+      { setStateCookie(request,session.getStateBinding());
+      }
     }
     catch (GeneralSecurityException x)
     {
       log.log(Level.WARNING,"Error starting oauth sequence",x);
-      return session.getReturnURI();
+      location=session.getReturnURI();
     }
     catch (IOException x)
     {
       log.log(Level.WARNING,"Error starting oauth sequence",x);
-      return session.getReturnURI();
+      location=session.getReturnURI();
+    }
+    saveSession(request);
+    return location;
+  }
+  
+  /**
+   * The state binding value presented by the browser, if any
+   */
+  private String stateBinding(HttpServletRequest request)
+  {
+    Cookie[] cookies=request.getCookies();
+    if (cookies!=null)
+    {
+      for (Cookie cookie:cookies)
+      {
+        if (stateCookieName.equals(cookie.getName()) 
+            && StateCodec.isBinding(cookie.getValue())
+            )
+        { return cookie.getValue();
+        }
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Give the browser the value its signed states are bound to. The cookie
+   *   is SameSite=Lax so it accompanies the provider's top level redirect
+   *   back to the callback.
+   */
+  private void setStateCookie(HttpServletRequest request,String binding)
+  {
+    HttpServletResponse response=responseLocal.get();
+    if (response==null || response.isCommitted())
+    { 
+      log.log(Level.WARNING,"Unable to set state cookie "+stateCookieName);
+      return;
     }
+    
+    String path=request.getContextPath();
+    response.addHeader
+      ("Set-Cookie"
+      ,stateCookieName+"="+binding
+      +"; Path="+(path==null || path.isEmpty()?"/":path)
+      +"; Max-Age="+(client.getStateTimeout()/1000)
+      +"; HttpOnly"
+      +(sessionCookieSecure?"; Secure":"")
+      +"; SameSite=Lax"
+      );
   }
   
   @Override
@@ -164,12 +370,12 @@ public class Filter
     { log.fine("Auth: "+authCode+":"+authVerifier);
     }
     
-    Session session
-      =this.<Session>getPrivateSessionState
-        (requestChannel.get(),true);
+    Session session=session(requestChannel.get(),true);
     
     try
-    { session.completeAuthSequence(authCode,authVerifier,null);
+    { 
+      session.completeAuthSequence
+        (authCode,authVerifier,null,stateBinding(request));
     }
     catch (IOException x)
     { log.log(Level.WARNING,"OAuth failure",x);
@@ -177,7 +383,16 @@ public class Filter
     catch (GeneralSecurityException x)
     { log.log(Level.WARNING,"OAuth failure",x);
     }
-    
+    renewSession(request,session);
+    saveSession(request);
+    return callbackLocation(session);
+  }
+  
+  /**
+   * Where to send the user after the callback has been processed
+   */
+  private URI callbackLocation(Session session)
+  {
     if (session.isTokenValid())
     {
       URI redirectURI=session.getReturnURI();
@@ -195,6 +410,155 @@ public class Filter
     
   }
   
+  @Override
+  public void doFilter
+    (ServletRequest request
+    ,ServletResponse response
+    ,FilterChain chain
+    )
+    throws IOException,ServletException
+  {
+    if (asyncCallbackPath!=null
+        && request.isAsyncSupported()
+        && request instanceof HttpServletRequest
+        && isAsyncCallback((HttpServletRequest) request)
+        )
+    { 
+      readCallbackAsync
+        ((HttpServletRequest) request,(HttpServletResponse) response);
+    }
+    else
+    { super.doFilter(request,response,chain);
+    }
+  }
+  
+  private boolean isAsyncCallback(HttpServletRequest request)
+  {
+    String path=request.getServletPath();
+    if (request.getPathInfo()!=null)
+    { path=path+request.getPathInfo();
+    }
+    return asyncCallbackPath.equals(path) 
+      && request.getParameter("state")!=null
+      ;
+  }
+  
+  /**
+   * <p>Exchange the authorization code on the Client's call executor and 
+   *   redirect when it completes, without holding the container thread.
+   * </p>
+   */
+  private void readCallbackAsync
+    (final HttpServletRequest request,HttpServletResponse response)
+  {
+    if (debug)
+    { 
+      log.fine
+        ("Got async auth response "+request.getRequestURI()
+        +"?"+request.getQueryString()
+        );
+    }
+    
+    if (sessionPersistence!=null)
+    { sessionPersistence.bind(request,response);
+    }
+    final Session session=session(request,true);
+    String authCode=request.getParameter("code");
+    String authVerifier=request.getParameter("state");
+    
+    final AsyncContext context=request.startAsync(request,response);
+    final AtomicBoolean completed=new AtomicBoolean();
+    context.setTimeout(asyncCallbackTimeout);
+    context.addListener
+      (new AsyncListener()
+      {
+        @Override
+        public void onTimeout(AsyncEvent event)
+        { 
+          log.log(Level.WARNING,"OAuth callback timed out");
+          if (completed.compareAndSet(false,true))
+          { finishCallback(context,authFailureLocation);
+          }
+        }
+        
+        @Override
+        public void onError(AsyncEvent event)
+        { 
+          log.log(Level.WARNING,"OAuth callback failed",event.getThrowable());
+          if (completed.compareAndSet(false,true))
+          { completeContext(context);
+          }
+        }
+        
+        @Override
+        public void onComplete(AsyncEvent event)
+        {
+        }
+        
+        @Override
+        public void onStartAsync(AsyncEvent event)
+        {
+        }
+      }
+      );
+    
+    session.completeAuthSequenceAsync
+      (authCode,authVerifier,null,stateBinding(request))
+      .whenComplete
+        (new BiConsumer<Void,Throwable>()
+        {
+          @Override
+          public void accept(Void result,Throwable x)
+          {
+            if (x!=null)
+            { log.log(Level.WARNING,"OAuth failure",x);
+            }
+            if (!completed.compareAndSet(false,true))
+            { 
+              // Timed out or failed- the container has already completed
+              //   the request
+              return;
+            }
+            renewSession(request,session);
+            saveSession(request);
+            finishCallback(context,callbackLocation(session));
+          }
+        }
+        );
+  }
+  
+  /**
+   * Redirect and complete the async request. The caller must ensure this
+   *   happens only once.
+   */
+  private void finishCallback(AsyncContext context,URI location)
+  {
+    try
+    {
+      ((HttpServletResponse) context.getResponse())
+        .sendRedirect(location!=null?location.toString():"/");
+    }
+    catch (IOException x)
+    { log.log(Level.WARNING,"Error redirecting after OAuth callback",x);
+    }
+    catch (IllegalStateException x)
+    { log.log(Level.WARNING,"Error redirecting after OAuth callback",x);
+    }
+    finally
+    { completeContext(context);
+    }
+  }
+  
+  private void completeContext(AsyncContext context)
+  {
+    try
+    { context.complete();
+    }
+    catch (IllegalStateException x)
+    { log.log(Level.WARNING,"Error completing OAuth callback",x);
+    }
+  }
+  
   public URI abortAuthSequence(VariableMap query)
   {
     HttpServletRequest request
@@ -206,11 +570,10 @@ public class Filter
     
     String problem=query.getValue("oauth_problem");
 
-    Session session
-      =this.<Session>getPrivateSessionState
-        (requestChannel.get(),true);
+    Session session=session(requestChannel.get(),true);
     
     session.abortAuthSequence(problem);
+    saveSession(request);
         
     URI redirectURI=session.getReturnURI();
     if (redirectURI==null && authFailureLocation!=null)
@@ -224,9 +587,7 @@ public class Filter
 
   public void logout()
   {
-    Session session
-      =this.<Session>getPrivateSessionState
-        (requestChannel.get(),true);
+    Session session=session(requestChannel.get(),false);
     if (session==null || !session.isTokenValid())
     { return;
     }
@@ -243,12 +604,56 @@ public class Filter
     catch (IOException x)
     { log.log(Level.WARNING,"Error on logout",x);
     }
+    saveSession(requestChannel.get());
   }
   
   public void clearSession()
-  { channel.get().clear();
+  { 
+    channel.get().clear();
+    saveSession(requestChannel.get());
+  }
+  
+  /**
+   * The Session for the request, from the HTTP session or the configured
+   *   SessionPersistence
+   */
+  private Session session(HttpServletRequest request,boolean create)
+  {
+    if (sessionPersistence==null)
+    { return this.<Session>getPrivateSessionState(request,create);
+    }
+    return sessionPersistence.get(request,create);
+  }
+  
+  /**
+   * Give the Session a new identity once it has authenticated, so an id
+   *   planted in the browser beforehand (session fixation) is useless
+   */
+  private void renewSession(HttpServletRequest request,Session session)
+  {
+    if (!session.isTokenValid())
+    { return;
+    }
+    if (sessionPersistence!=null)
+    { sessionPersistence.renew(request);
+    }
+    else if (request.getSession(false)!=null)
+    { request.changeSessionId();
+    }
   }
   
+  /**
+   * Persist the Session's state if it is kept outside the HTTP session 
+   *   and has changed. This must happen before the response is committed.
+   */
+  private void saveSession(HttpServletRequest request)
+  {
+    if (sessionPersistence!=null)
+    { sessionPersistence.save(request);
+    }
+  }
+  
+  
   /**
    * Called -once- to create the Focus
    */
@@ -260,6 +665,48 @@ public class Filter
     if (client==null)
     { throw new BindException("No oauth client configured");
     }
+    
+    SessionPersistence.Factory<Session> sessionFactory
+      =new SessionPersistence.Factory<Session>()
+      {
+        @Override
+        public Session newSession()
+        { return client.newSession();
+        }
+      };
+    if (sessionCookieName!=null)
+    {
+      if (sessionCookieKeys==null)
+      { 
+        throw new BindException
+          ("sessionCookieKeys must be configured with sessionCookieName");
+      }
+      if (sessionSealMaxAge<=0)
+      { throw new BindException("sessionSealMaxAge must be positive");
+      }
+      SealedCookie sessionCookie;
+      try
+      { 
+        sessionCookie
+          =new SealedCookie(sessionCookieName,sessionCookieKeys.split(","));
+      }
+      catch (GeneralSecurityException x)
+      { throw new BindException("Invalid sessionCookieKeys",x);
+      }
+      sessionCookie.setMaxAge(sessionCookieMaxAge);
+      sessionCookie.setSealMaxAge(sessionSealMaxAge);
+      sessionCookie.setSecure(sessionCookieSecure);
+      sessionPersistence
+        =new CookieSessionPersistence<Session>(sessionFactory,sessionCookie);
+    }
+    else if (sessionStore!=null)
+    {
+      StoreSessionPersistence<Session> storePersistence
+        =new StoreSessionPersistence<Session>
+          (sessionFactory,sessionStore,sessionIdCookieName);
+      storePersistence.setSecure(sessionCookieSecure);
+      sessionPersistence=storePersistence;
+    }
 
     channel
       =new ThreadLocalChannel<Session>
@@ -274,9 +721,12 @@ public class Filter
     throws BindException,ServletException
   {
     Session session
-      =this.<Session>getPrivateSessionState(request,false);
+      =sessionPersistence!=null
+      ?sessionPersistence.bind(request,response)
+      :this.<Session>getPrivateSessionState(request,false);
 
     
+    responseLocal.set(response);
     channel.push(session);
     if (debug)
     { 
@@ -288,24 +738,86 @@ public class Filter
     // TODO: Make sure session is active here
     if (session!=null)
     {
-      checkSessionValidity(session);
+      if (sessionPersistence!=null)
+      { session.setRefreshListener(saveOnRefresh(request));
+      }
+      checkSessionValidity(request,session);
       
     }
     
   }
+  
+  /**
+   * Save the state of a persisted Session as soon as a refresh replaces
+   *   its token during the request, while the response can still carry
+   *   it. A provider that rotates refresh tokens invalidates the old one,
+   *   so state saved without the new token would end the user's session.
+   */
+  private Session.RefreshListener saveOnRefresh
+    (final HttpServletRequest request)
+  {
+    return new Session.RefreshListener()
+    {
+      @Override
+      public void refreshed(Session session)
+      { saveSession(request);
+      }
+    };
+  }
 
   
-  private void checkSessionValidity(Session session)
+  private void checkSessionValidity
+    (HttpServletRequest request,Session session)
   { 
-    // Check expire time for access token and trigger a re-auth sequence
-    //   somehow
+    if (!session.isRefreshDue() || !session.isRefreshable())
+    { return;
+    }
+    
+    if (sessionPersistence!=null)
+    {
+      // A Session rebuilt from persisted state lives for this request only, 
+      //   so a background refresh would be lost. Within the refresh margin
+      //   the token is still usable and is left for requestToken() to 
+      //   refresh if it expires during the request. Once it has expired, 
+      //   refresh now (coalesced with other requests holding the same 
+      //   token) so the application sees a valid session.
+      Token token=session.getToken();
+      if (token==null || !token.isExpired())
+      { return;
+      }
+      try
+      { session.refresh();
+      }
+      catch (IOException x)
+      { log.log(Level.WARNING,"Error refreshing oauth token",x);
+      }
+      catch (GeneralSecurityException x)
+      { log.log(Level.WARNING,"Error refreshing oauth token",x);
+      }
+      saveSession(request);
+    }
+    else
+    {
+      // Renew the access token in the background as it nears expiration, 
+      //   so the request doesn't wait on the token endpoint. An expired
+      //   token that can't be refreshed reads as invalid, which leads the
+      //   application to start a new auth sequence.
+      session.refreshInBackground();
+    }
   }
   
 
   
   @Override
   protected void popSubject(HttpServletRequest request)
-  { channel.pop();
+  { 
+    Session session=channel.get();
+    if (session!=null)
+    { session.setRefreshListener(null);
+    }
+    saveSession(request);
+    channel.pop();
+    responseLocal.remove();
   }  
   
 
@@ -0,0 +1,449 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth2;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import spiralcraft.log.ClassLog;
+import spiralcraft.log.Level;
+import spiralcraft.oauth.http.Response;
+import spiralcraft.oauth.http.Transport;
+import spiralcraft.oauth.util.JsonReader;
+import spiralcraft.oauth.util.SingleFlight;
+import spiralcraft.time.Clock;
+
+/**
+ * <p>The provider's published signing keys (a JSON Web Key Set, RFC 7517), 
+ *   loaded on first use and kept current in the background.
+ * </p>
+ * 
+ * <p>A lookup for a key id that isn't in the set reloads the set 
+ *   immediately, to pick up keys the provider has rotated in, but no more
+ *   often than the minimum refresh interval. Concurrent reloads are 
+ *   coalesced. If a reload fails, the previous keys remain in use.
+ * </p>
+ * 
+ * <p>RSA keys and EC keys on the P-256 curve are supported. Keys 
+ *   published for a use other than "sig" are ignored.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class JsonWebKeySet
+{
+  private static final ClassLog log
+    =ClassLog.getInstance(JsonWebKeySet.class);
+  
+  private static final Base64.Decoder DECODER=Base64.getUrlDecoder();
+  
+  /**
+   * A signing key from the set
+   */
+  public static class Key
+  {
+    private final String kid;
+    private final String kty;
+    private final String alg;
+    private final PublicKey publicKey;
+    
+    Key(String kid,String kty,String alg,PublicKey publicKey)
+    {
+      this.kid=kid;
+      this.kty=kty;
+      this.alg=alg;
+      this.publicKey=publicKey;
+    }
+    
+    public String getKid()
+    { return kid;
+    }
+    
+    /**
+     * The key type, "RSA" or "EC"
+     */
+    public String getKty()
+    { return kty;
+    }
+    
+    /**
+     * The algorithm the key is restricted to, or null if unrestricted
+     */
+    public String getAlg()
+    { return alg;
+    }
+    
+    public PublicKey getPublicKey()
+    { return publicKey;
+    }
+  }
+  
+  private final Transport transport;
+  private final URI uri;
+  private final ScheduledExecutorService scheduler;
+  private final SingleFlight<URI,List<Key>> loads
+    =new SingleFlight<URI,List<Key>>();
+  private volatile List<Key> keys;
+  private volatile long lastAttempt;
+  private long refreshInterval=3600000;
+  private long minRefreshInterval=30000;
+  private boolean refreshScheduled;
+  private Level logLevel=Level.INFO;
+  
+  /**
+   * @param transport Carries the requests for the key set
+   * @param uri The location of the key set (the "jwks_uri")
+   * @param scheduler Runs the background refreshes
+   */
+  public JsonWebKeySet
+    (Transport transport,URI uri,ScheduledExecutorService scheduler)
+  {
+    this.transport=transport;
+    this.uri=uri;
+    this.scheduler=scheduler;
+  }
+  
+  public URI getURI()
+  { return uri;
+  }
+  
+  /**
+   * How often in milliseconds the key set is reloaded in the background.
+   *   Defaults to 1 hour.
+   * 
+   * @param refreshInterval
+   */
+  public void setRefreshInterval(long refreshInterval)
+  { this.refreshInterval=refreshInterval;
+  }
+  
+  /**
+   * The minimum time in milliseconds between reloads triggered by an 
+   *   unknown key id or a failed load. Defaults to 30 seconds.
+   * 
+   * @param minRefreshInterval
+   */
+  public void setMinRefreshInterval(long minRefreshInterval)
+  { this.minRefreshInterval=minRefreshInterval;
+  }
+  
+  public void setLogLevel(Level logLevel)
+  { this.logLevel=logLevel;
+  }
+  
+  /**
+   * The keys currently loaded
+   */
+  public List<Key> getKeys()
+  { 
+    List<Key> keys=this.keys;
+    return keys!=null?keys:Collections.<Key>emptyList();
+  }
+  
+  /**
+   * <p>Find the key to verify a signature made with the specified key
+   *   id and algorithm, reloading the set if the key id is unknown.
+   * </p>
+   * 
+   * <p>When the kid is null, the set must contain exactly one key of the
+   *   required type.
+   * </p>
+   * 
+   * @return The key, or null if the set has no such key
+   * @throws IOException if the key set could not be loaded at all
+   */
+  public Key getKey(String kid,String alg)
+    throws IOException
+  {
+    List<Key> keys=this.keys;
+    if (keys==null)
+    { keys=load();
+    }
+    
+    Key key=find(keys,kid,alg);
+    if (key==null 
+        && Clock.instance().approxTimeMillis()-lastAttempt>=minRefreshInterval
+        )
+    { 
+      if (logLevel.isFine())
+      { log.fine("Reloading "+uri+" for unknown key "+kid);
+      }
+      key=find(load(),kid,alg);
+    }
+    return key;
+  }
+  
+  /**
+   * Reload the key set now
+   */
+  public List<Key> refresh()
+    throws IOException
+  { return load();
+  }
+  
+  private Key find(List<Key> keys,String kid,String alg)
+  {
+    String kty=alg.startsWith("ES")?"EC":"RSA";
+    Key match=null;
+    for (Key key:keys)
+    {
+      if (!key.kty.equals(kty)
+          || (key.alg!=null && !key.alg.equals(alg))
+          )
+      { continue;
+      }
+      if (kid!=null)
+      { 
+        if (kid.equals(key.kid))
+        { return key;
+        }
+      }
+      else if (match!=null)
+      { 
+        // Ambiguous
+        return null;
+      }
+      else
+      { match=key;
+      }
+    }
+    return match;
+  }
+  
+  private List<Key> load()
+    throws IOException
+  {
+    try
+    {
+      return loads.execute
+        (uri
+        ,new Callable<List<Key>>()
+        {
+          @Override
+          public List<Key> call()
+            throws IOException
+          { return fetch();
+          }
+        }
+        );
+    }
+    catch (IOException x)
+    { throw x;
+    }
+    catch (RuntimeException x)
+    { throw x;
+    }
+    catch (Exception x)
+    { throw new IOException("Error loading "+uri,x);
+    }
+  }
+  
+  private List<Key> fetch()
+    throws IOException
+  {
+    lastAttempt=Clock.instance().approxTimeMillis();
+    List<Key> loaded;
+    try
+    {
+      Response response=transport.execute("GET",uri,null,null,null);
+      if (response.getStatus()!=200)
+      { 
+        throw new IOException
+          ("Error loading "+uri+": "+response.getStatus()
+          +" "+response.getReason()
+          );
+      }
+      JsonReader reader
+        =new JsonReader
+          (new InputStreamReader
+            (response.getInputStream(),StandardCharsets.UTF_8)
+          );
+      try
+      { loaded=readKeys(reader);
+      }
+      finally
+      { reader.close();
+      }
+    }
+    catch (IOException x)
+    {
+      scheduleRefresh(minRefreshInterval);
+      if (keys!=null)
+      { 
+        // Keep using what we have
+        log.log(Level.WARNING,"Error refreshing "+uri,x);
+        return keys;
+      }
+      throw x;
+    }
+    
+    keys=loaded;
+    if (logLevel.isFine())
+    { log.fine("Loaded "+loaded.size()+" keys from "+uri);
+    }
+    scheduleRefresh(refreshInterval);
+    return loaded;
+  }
+  
+  private List<Key> readKeys(JsonReader reader)
+    throws IOException
+  {
+    Object value=reader.readValue();
+    Object keyList=value instanceof Map?((Map<?,?>) value).get("keys"):null;
+    if (!(keyList instanceof List))
+    { throw new IOException(uri+" is not a JSON Web Key Set");
+    }
+    
+    List<Key> keys=new ArrayList<Key>();
+    for (Object member:(List<?>) keyList)
+    {
+      if (!(member instanceof Map))
+      { continue;
+      }
+      Map<?,?> jwk=(Map<?,?>) member;
+      Object use=jwk.get("use");
+      if (use!=null && !"sig".equals(use))
+      { continue;
+      }
+      
+      try
+      { 
+        Key key=toKey(jwk);
+        if (key!=null)
+        { keys.add(key);
+        }
+      }
+      catch (GeneralSecurityException x)
+      { log.log(Level.WARNING,"Ignoring invalid key "+jwk.get("kid"),x);
+      }
+      catch (IllegalArgumentException x)
+      { log.log(Level.WARNING,"Ignoring invalid key "+jwk.get("kid"),x);
+      }
+    }
+    return Collections.unmodifiableList(keys);
+  }
+  
+  private Key toKey(Map<?,?> jwk)
+    throws GeneralSecurityException
+  {
+    String kty=string(jwk,"kty");
+    String kid=string(jwk,"kid");
+    String alg=string(jwk,"alg");
+    if ("RSA".equals(kty))
+    {
+      PublicKey publicKey
+        =KeyFactory.getInstance("RSA").generatePublic
+          (new RSAPublicKeySpec
+            (integer(jwk,"n")
+            ,integer(jwk,"e")
+            )
+          );
+      return new Key(kid,kty,alg,publicKey);
+    }
+    else if ("EC".equals(kty) && "P-256".equals(string(jwk,"crv")))
+    {
+      AlgorithmParameters parameters=AlgorithmParameters.getInstance("EC");
+      parameters.init(new ECGenParameterSpec("secp256r1"));
+      PublicKey publicKey
+        =KeyFactory.getInstance("EC").generatePublic
+          (new ECPublicKeySpec
+            (new ECPoint(integer(jwk,"x"),integer(jwk,"y"))
+            ,parameters.getParameterSpec(ECParameterSpec.class)
+            )
+          );
+      return new Key(kid,kty,alg,publicKey);
+    }
+    return null;
+  }
+  
+  private static String string(Map<?,?> jwk,String name)
+  { 
+    Object value=jwk.get(name);
+    return value!=null?value.toString():null;
+  }
+  
+  private static BigInteger integer(Map<?,?> jwk,String name)
+    throws GeneralSecurityException
+  {
+    String value=string(jwk,name);
+    if (value==null)
+    { throw new GeneralSecurityException("Key is missing '"+name+"'");
+    }
+    return new BigInteger(1,DECODER.decode(value));
+  }
+  
+  private void scheduleRefresh(long delay)
+  {
+    synchronized (this)
+    {
+      if (refreshScheduled)
+      { return;
+      }
+      refreshScheduled=true;
+    }
+    
+    try
+    {
+      scheduler.schedule
+        (new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            synchronized (JsonWebKeySet.this)
+            { refreshScheduled=false;
+            }
+            try
+            { load();
+            }
+            catch (IOException x)
+            { log.log(Level.WARNING,"Error refreshing "+uri,x);
+            }
+          }
+        }
+        ,delay
+        ,TimeUnit.MILLISECONDS
+        );
+    }
+    catch (RejectedExecutionException x)
+    { 
+      synchronized (this)
+      { refreshScheduled=false;
+      }
+    }
+  }
+}
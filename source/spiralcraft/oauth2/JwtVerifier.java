@@ -0,0 +1,345 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import spiralcraft.oauth.util.JsonReader;
+import spiralcraft.time.Clock;
+
+/**
+ * <p>Verifies JSON Web Tokens (RFC 7519) signed with RS256, ES256 or 
+ *   HS256, such as OpenID Connect id_tokens and JWT access tokens, 
+ *   without contacting the provider.
+ * </p>
+ * 
+ * <p>RS256 and ES256 signatures are checked against a JsonWebKeySet, and 
+ *   HS256 signatures against a shared secret. An algorithm is accepted
+ *   only if the corresponding key material is configured. The token must
+ *   carry an "exp" claim and be within its validity period, allowing for
+ *   clock skew, and must match the configured issuer and audience.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class JwtVerifier
+{
+  public static final String RS256="RS256";
+  public static final String ES256="ES256";
+  public static final String HS256="HS256";
+  
+  private static final Base64.Decoder DECODER=Base64.getUrlDecoder();
+  
+  private final JsonWebKeySet keySet;
+  private final byte[] secret;
+  private String issuer;
+  private String audience;
+  private long clockSkew=60000;
+  private Set<String> algorithms;
+  
+  /**
+   * @param keySet The provider's public keys, or null to accept only HS256
+   * @param secret The HS256 secret, or null to accept only RS256 and ES256
+   */
+  public JwtVerifier(JsonWebKeySet keySet,byte[] secret)
+  {
+    this.keySet=keySet;
+    this.secret=secret!=null?secret.clone():null;
+    Set<String> algorithms=new HashSet<String>();
+    if (keySet!=null)
+    { 
+      algorithms.add(RS256);
+      algorithms.add(ES256);
+    }
+    if (secret!=null)
+    { algorithms.add(HS256);
+    }
+    this.algorithms=Collections.unmodifiableSet(algorithms);
+  }
+  
+  /**
+   * The required "iss" claim, or null to accept any issuer
+   * 
+   * @param issuer
+   */
+  public void setIssuer(String issuer)
+  { this.issuer=issuer;
+  }
+  
+  /**
+   * The value that must appear in the "aud" claim, or null to accept any
+   *   audience
+   * 
+   * @param audience
+   */
+  public void setAudience(String audience)
+  { this.audience=audience;
+  }
+  
+  /**
+   * The tolerance in milliseconds for differences between this host's 
+   *   clock and the issuer's when checking "exp", "nbf" and "iat". 
+   *   Defaults to 60 seconds.
+   * 
+   * @param clockSkew
+   */
+  public void setClockSkew(long clockSkew)
+  { this.clockSkew=clockSkew;
+  }
+  
+  /**
+   * Restrict the accepted signature algorithms to a subset of those for
+   *   which key material is configured
+   * 
+   * @param algorithms
+   */
+  public void setAlgorithms(String ... algorithms)
+  { 
+    Set<String> accepted=new HashSet<String>(Arrays.asList(algorithms));
+    accepted.retainAll(this.algorithms);
+    this.algorithms=Collections.unmodifiableSet(accepted);
+  }
+  
+  /**
+   * Whether the value has the form of a compact serialized JWS
+   */
+  public static boolean isJwt(String token)
+  {
+    int first=token.indexOf('.');
+    int second=first<0?-1:token.indexOf('.',first+1);
+    return first>0
+      && second>first+1
+      && second<token.length()-1
+      && token.indexOf('.',second+1)<0;
+  }
+  
+  /**
+   * Verify the token's signature and claims
+   * 
+   * @return The principal described by the token's claims
+   * @throws GeneralSecurityException if the token is not acceptable
+   * @throws IOException if the key set could not be loaded
+   */
+  public TokenPrincipal verify(String token)
+    throws GeneralSecurityException,IOException
+  {
+    int first=token.indexOf('.');
+    int second=first<0?-1:token.indexOf('.',first+1);
+    if (second<0 || token.indexOf('.',second+1)>=0)
+    { throw new GeneralSecurityException("Not a signed JWT");
+    }
+    
+    Map<String,Object> header=decodeObject(token.substring(0,first));
+    Object alg=header.get("alg");
+    if (!(alg instanceof String) || !algorithms.contains(alg))
+    { throw new GeneralSecurityException("JWT algorithm not accepted: "+alg);
+    }
+    Object crit=header.get("crit");
+    if (crit!=null)
+    { throw new GeneralSecurityException("Unsupported JWT 'crit' header");
+    }
+    
+    byte[] signingInput
+      =token.substring(0,second).getBytes(StandardCharsets.US_ASCII);
+    byte[] signature=decode(token.substring(second+1));
+    Object kid=header.get("kid");
+    if (!verifySignature
+          ((String) alg
+          ,kid!=null?kid.toString():null
+          ,signingInput
+          ,signature
+          )
+        )
+    { throw new GeneralSecurityException("JWT signature is not valid");
+    }
+    
+    Map<String,Object> claims=decodeObject(token.substring(first+1,second));
+    checkClaims(claims);
+    return TokenPrincipal.fromClaims(claims);
+  }
+  
+  private boolean verifySignature
+    (String alg,String kid,byte[] signingInput,byte[] signature)
+    throws GeneralSecurityException,IOException
+  {
+    if (HS256.equals(alg))
+    {
+      Mac mac=Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(secret,"HmacSHA256"));
+      return MessageDigest.isEqual(mac.doFinal(signingInput),signature);
+    }
+    
+    JsonWebKeySet.Key key=keySet.getKey(kid,alg);
+    if (key==null)
+    { throw new GeneralSecurityException("No key for JWT kid "+kid);
+    }
+    
+    Signature verifier;
+    if (RS256.equals(alg))
+    { verifier=Signature.getInstance("SHA256withRSA");
+    }
+    else
+    {
+      verifier=Signature.getInstance("SHA256withECDSA");
+      signature=toDER(signature);
+    }
+    verifier.initVerify(key.getPublicKey());
+    verifier.update(signingInput);
+    return verifier.verify(signature);
+  }
+  
+  private void checkClaims(Map<String,Object> claims)
+    throws GeneralSecurityException
+  {
+    long now=Clock.instance().approxTimeMillis();
+    Long exp=seconds(claims,"exp");
+    if (exp==null)
+    { throw new GeneralSecurityException("JWT has no expiration");
+    }
+    if (now-clockSkew>=exp*1000)
+    { throw new GeneralSecurityException("JWT has expired");
+    }
+    Long nbf=seconds(claims,"nbf");
+    if (nbf!=null && now+clockSkew<nbf*1000)
+    { throw new GeneralSecurityException("JWT is not yet valid");
+    }
+    Long iat=seconds(claims,"iat");
+    if (iat!=null && now+clockSkew<iat*1000)
+    { throw new GeneralSecurityException("JWT was issued in the future");
+    }
+    
+    if (issuer!=null && !issuer.equals(claims.get("iss")))
+    { 
+      throw new GeneralSecurityException
+        ("JWT issuer "+claims.get("iss")+" is not "+issuer);
+    }
+    
+    if (audience!=null)
+    {
+      Object aud=claims.get("aud");
+      boolean match
+        =aud instanceof List
+        ?((List<?>) aud).contains(audience)
+        :audience.equals(aud)
+        ;
+      if (!match)
+      { 
+        throw new GeneralSecurityException
+          ("JWT audience "+aud+" does not include "+audience);
+      }
+    }
+  }
+  
+  private static Long seconds(Map<String,Object> claims,String name)
+    throws GeneralSecurityException
+  {
+    Object value=claims.get(name);
+    if (value==null)
+    { return null;
+    }
+    if (!(value instanceof Number))
+    { throw new GeneralSecurityException("JWT '"+name+"' is not numeric");
+    }
+    return ((Number) value).longValue();
+  }
+  
+  private static Map<String,Object> decodeObject(String part)
+    throws GeneralSecurityException
+  {
+    String json=new String(decode(part),StandardCharsets.UTF_8);
+    Object value;
+    try
+    { 
+      JsonReader reader=new JsonReader(new StringReader(json));
+      value=reader.readValue();
+      reader.close();
+    }
+    catch (IOException x)
+    { throw new GeneralSecurityException("Malformed JWT",x);
+    }
+    if (!(value instanceof Map))
+    { throw new GeneralSecurityException("Malformed JWT");
+    }
+    
+    @SuppressWarnings("unchecked")
+    Map<String,Object> map=(Map<String,Object>) value;
+    return map;
+  }
+  
+  private static byte[] decode(String part)
+    throws GeneralSecurityException
+  {
+    try
+    { return DECODER.decode(part);
+    }
+    catch (IllegalArgumentException x)
+    { throw new GeneralSecurityException("Malformed JWT",x);
+    }
+  }
+  
+  /**
+   * Convert a JWS ECDSA signature (R and S concatenated, RFC 7518 3.4) to
+   *   the ASN.1 DER form expected by java.security.Signature
+   */
+  private static byte[] toDER(byte[] signature)
+    throws GeneralSecurityException
+  {
+    if (signature.length!=64)
+    { throw new GeneralSecurityException("Invalid ES256 signature length");
+    }
+    byte[] r=derInteger(Arrays.copyOfRange(signature,0,32));
+    byte[] s=derInteger(Arrays.copyOfRange(signature,32,64));
+    ByteArrayOutputStream out=new ByteArrayOutputStream(72);
+    out.write(0x30);
+    out.write(r.length+s.length);
+    out.write(r,0,r.length);
+    out.write(s,0,s.length);
+    return out.toByteArray();
+  }
+  
+  private static byte[] derInteger(byte[] value)
+  {
+    int start=0;
+    while (start<value.length-1 && value[start]==0)
+    { start++;
+    }
+    boolean pad=(value[start] & 0x80)!=0;
+    int length=value.length-start+(pad?1:0);
+    byte[] der=new byte[length+2];
+    der[0]=0x02;
+    der[1]=(byte) length;
+    System.arraycopy(value,start,der,der.length-(value.length-start)
+      ,value.length-start
+      );
+    return der;
+  }
+}
@@ -0,0 +1,119 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth2;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * <p>An immutable, order independent set of OAuth2 scope values
+ *   (RFC 6749 3.3), used to key application tokens.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public final class ScopeSet
+{
+  public static final ScopeSet EMPTY=new ScopeSet(new String[0]);
+  
+  /**
+   * Create a ScopeSet from individual scope values, each of which may 
+   *   itself be a space delimited list.
+   */
+  public static ScopeSet of(String ... scopes)
+  { return scopes==null?EMPTY:of(Arrays.asList(scopes));
+  }
+  
+  public static ScopeSet of(Collection<String> scopes)
+  {
+    if (scopes==null || scopes.isEmpty())
+    { return EMPTY;
+    }
+    
+    TreeSet<String> sorted=new TreeSet<String>();
+    for (String scope:scopes)
+    { 
+      if (scope!=null)
+      {
+        for (String token:scope.split(" "))
+        { 
+          if (!token.isEmpty())
+          { sorted.add(token);
+          }
+        }
+      }
+    }
+    return sorted.isEmpty()
+      ?EMPTY
+      :new ScopeSet(sorted.toArray(new String[sorted.size()]))
+      ;
+  }
+  
+  private final String[] scopes;
+  private final int hashCode;
+  
+  private ScopeSet(String[] scopes)
+  { 
+    this.scopes=scopes;
+    this.hashCode=Arrays.hashCode(scopes);
+  }
+  
+  public boolean isEmpty()
+  { return scopes.length==0;
+  }
+  
+  public boolean contains(String scope)
+  { return scope!=null && Arrays.binarySearch(scopes,scope)>=0;
+  }
+  
+  /**
+   * The space delimited form used in the "scope" request parameter
+   */
+  public String toParameter()
+  {
+    StringBuilder buf=new StringBuilder();
+    for (String scope:scopes)
+    { 
+      if (buf.length()>0)
+      { buf.append(' ');
+      }
+      buf.append(scope);
+    }
+    return buf.toString();
+  }
+  
+  @Override
+  public boolean equals(Object o)
+  {
+    return o==this
+      || (o instanceof ScopeSet 
+          && hashCode==((ScopeSet) o).hashCode
+          && Arrays.equals(scopes,((ScopeSet) o).scopes)
+         )
+      ;
+  }
+  
+  @Override
+  public int hashCode()
+  { return hashCode;
+  }
+  
+  @Override
+  public String toString()
+  { return "["+toParameter()+"]";
+  }
+}
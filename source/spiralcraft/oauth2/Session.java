@@ -14,46 +14,80 @@
 //
 package spiralcraft.oauth2;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
 import spiralcraft.util.RandomUtil;
 import spiralcraft.util.URIUtil;
 import spiralcraft.util.string.StringUtil;
 
-import spiralcraft.vfs.url.URLAccessException;
-import spiralcraft.vfs.url.URLMessage;
-import spiralcraft.vfs.util.ByteArrayResource;
 import spiralcraft.log.ClassLog;
 import spiralcraft.log.Level;
 import spiralcraft.net.http.VariableMap;
-import spiralcraft.net.http.client.Response;
 import spiralcraft.net.mime.GenericHeader;
 import spiralcraft.net.mime.MimeHeader;
-import spiralcraft.net.mime.MimeHeaderMap;
+import spiralcraft.oauth.http.Response;
+import spiralcraft.oauth.http.ResponseCache;
+import spiralcraft.oauth.http.ResponseStream;
+import spiralcraft.oauth.paging.PageSource;
+import spiralcraft.oauth.paging.PagedStream;
+import spiralcraft.oauth.paging.Paging;
+import spiralcraft.oauth.session.PersistentSession;
+import spiralcraft.oauth.util.AsyncUtil;
+import spiralcraft.oauth.util.BinaryUtil;
+import spiralcraft.oauth.util.JsonArrayStream;
 import spiralcraft.text.ParseException;
 
 public class Session
+  implements PersistentSession
 {
 
   protected static final ClassLog log
     =ClassLog.getInstance(Session.class);
+  
+  private static final int STATE_VERSION=1;
  
   
   protected final Client client;
-  private String oauthToken;
+  private final AtomicReference<Token> token=new AtomicReference<Token>();
   @SuppressWarnings("unused")
   private String oauthTokenSecret;
-  private boolean temporary;
+  private volatile boolean temporary;
   private URI returnURI;
   protected String oauthId;
+  protected TokenPrincipal identity;
   protected Level logLevel=Level.FINE;
   private String problem;
   protected String state=RandomUtil.generateString(20);
   private URI callbackURI;
+  private String stateBinding;
+  private volatile RefreshListener refreshListener;
+  
+  /**
+   * Notified when a refresh replaces the access token of a Session
+   */
+  public interface RefreshListener
+  {
+    /**
+     * Called on the thread that completed the refresh
+     */
+    void refreshed(Session session);
+  }
   
   protected Session(Client client)
   { 
@@ -61,6 +95,16 @@ public class Session
     this.logLevel=client.logLevel;
   }
   
+  /**
+   * Receive notice when a refresh replaces the access token, eg. to 
+   *   persist the new token (and any rotated refresh token) immediately
+   * 
+   * @param refreshListener The listener, or null to remove it
+   */
+  public void setRefreshListener(RefreshListener refreshListener)
+  { this.refreshListener=refreshListener;
+  }
+  
   public void setReturnURI(URI returnURI)
   { this.returnURI=returnURI;
   }
@@ -80,12 +124,59 @@ public class Session
   { return oauthId;
   }
   
+  /**
+   * The claims of the verified OpenID Connect id_token issued when this 
+   *   session was authenticated, if any. Not retained when the session is
+   *   exported.
+   */
+  public TokenPrincipal getIdentity()
+  { return identity;
+  }
+  
   
   
   public boolean isTokenValid()
   { 
-    // Incorp timeout
-    return oauthToken!=null && !temporary;
+    Token token=this.token.get();
+    return token!=null && !temporary && !token.isExpired();
+  }
+  
+  /**
+   * The current access token and its refresh state, or null if the session
+   *   is not authenticated. The Token is replaced as a whole when it is
+   *   issued, refreshed or cleared.
+   */
+  public Token getToken()
+  { return token.get();
+  }
+  
+  /**
+   * The time in milliseconds since the epoch at which the access token
+   *   expires, or 0 if the provider did not specify an expiration.
+   */
+  public long getExpiresAt()
+  { 
+    Token token=this.token.get();
+    return token!=null?token.getExpiresAt():0;
+  }
+  
+  /**
+   * Whether a refresh token was issued with the access token
+   */
+  public boolean isRefreshable()
+  { 
+    Token token=this.token.get();
+    return token!=null && token.isRefreshable();
+  }
+  
+  /**
+   * Whether the access token is expired or will expire within the Client's
+   *   refresh margin.
+   */
+  public boolean isRefreshDue()
+  {
+    Token token=this.token.get();
+    return token!=null && !temporary && token.isRefreshDue();
   }
   
   /**
@@ -97,10 +188,34 @@ public class Session
    */
   public URI startAuthSequence(URI callbackURI) 
     throws IOException,GeneralSecurityException
+  { return startAuthSequence(callbackURI,null);
+  }
+  
+  /**
+   * <p>Start the auth sequence as startAuthSequence(URI). When the Client
+   *   has a state secret, the signed state is bound to the specified value
+   *   held by the user agent, or to a new one if it is null, which must be
+   *   given to the user agent (see getStateBinding()) and presented with
+   *   the callback.
+   * </p>
+   */
+  public URI startAuthSequence(URI callbackURI,String stateBinding) 
+    throws IOException,GeneralSecurityException
   {
     problem=null;
     temporary=true;
     this.callbackURI=callbackURI;
+    StateCodec stateCodec=client.stateCodec;
+    if (stateCodec!=null)
+    { 
+      this.stateBinding
+        =stateBinding!=null?stateBinding:stateCodec.newBinding();
+      state=stateCodec.encode
+        (callbackURI!=null?callbackURI:client.redirectURI
+        ,returnURI
+        ,this.stateBinding
+        );
+    }
     VariableMap credentialRequestParams
       =makeCredentialRequestParameters(callbackURI);
       
@@ -126,6 +241,14 @@ public class Session
     return fullCredentialRequest;
   }
   
+  /**
+   * The value the signed state of the current auth sequence is bound to,
+   *   or null if the state is not signed
+   */
+  public String getStateBinding()
+  { return stateBinding;
+  }
+  
   public String getProblem()
   { return problem;
   }
@@ -135,15 +258,39 @@ public class Session
   }
   
   /**
-   * Completes the auth sequence by requesting a set of token credentials
+   * <p>Completes the auth sequence by requesting a set of token credentials
+   * </p>
+   * 
+   * <p>When the Client has a state secret, the state is verified from its
+   *   signature and the binding value this Session started the sequence 
+   *   with, and supplies the callback and return URIs.
+   * </p>
    * 
    * @param authCode
    * @param oauthVerifier
    */
   public void completeAuthSequence(String authCode,String oauthVerifier,URI redirectURI)
     throws IOException,GeneralSecurityException
+  { completeAuthSequence(authCode,oauthVerifier,redirectURI,null);
+  }
+  
+  /**
+   * <p>Completes the auth sequence as 
+   *   completeAuthSequence(String,String,URI), verifying a signed state
+   *   against the binding value presented by the user agent, or against 
+   *   the one this Session started the sequence with if that is null. The
+   *   Session need not be the one that started the sequence.
+   * </p>
+   * 
+   * <p>A Session that is already authenticated can't be completed again.
+   * </p>
+   */
+  public void completeAuthSequence
+    (String authCode,String oauthVerifier,URI redirectURI,String stateBinding)
+    throws IOException,GeneralSecurityException
   {
-    if (!temporary)
+    StateCodec stateCodec=client.stateCodec;
+    if (!temporary && (stateCodec==null || token.get()!=null))
     { 
       throw new GeneralSecurityException
         ("Authentication sequence already completed"
@@ -158,7 +305,21 @@ public class Session
         );
     }
     
-    if (!oauthVerifier.equals(state))
+    if (stateCodec!=null)
+    {
+      StateCodec.State signedState
+        =stateCodec.decode
+          (oauthVerifier
+          ,stateBinding!=null?stateBinding:this.stateBinding
+          );
+      if (redirectURI==null)
+      { redirectURI=signedState.getCallbackURI();
+      }
+      if (signedState.getReturnURI()!=null)
+      { returnURI=signedState.getReturnURI();
+      }
+    }
+    else if (!oauthVerifier.equals(state))
     { 
       throw new GeneralSecurityException
         ("'state' token does not match that sent to provider. Possible CSRF. "
@@ -176,19 +337,13 @@ public class Session
     
     
     // Call credentialRequestURI
-    spiralcraft.net.http.client.Client httpClient
-      =new spiralcraft.net.http.client.Client();
-    if (logLevel.isFine())
-    {
-      httpClient.setLogLevel(Level.FINE);
-      httpClient.setDebugStream(true);
-    }
     Response response=
-      httpClient.executeRequest
+      client.transport.execute
         ("POST"
         ,client.tokenRequestURI
+        ,null
         ,"application/x-www-form-urlencoded"
-        ,new ByteArrayResource(encodedTokenRequest)
+        ,encodedTokenRequest
         );
     if (logLevel.isFine())
     { log.fine("Access Token Response "+response.toString());
@@ -201,12 +356,15 @@ public class Session
       try
       {
         AccessTokenResponse accessTokenResponse
-            =AccessTokenResponse.fromJSON(response.getContentAsString());
+            =AccessTokenResponse.fromResponse(response);
         if (logLevel.isFine())
         { log.fine("From json "+accessTokenResponse);
         }
+        if (accessTokenResponse.idToken!=null)
+        { verifyIdToken(accessTokenResponse.idToken);
+        }
         temporary=false;
-        this.oauthToken=accessTokenResponse.accessToken;
+        acceptToken(accessTokenResponse);
         
             
       }
@@ -298,11 +456,283 @@ public class Session
   }
   
 
+  /**
+   * <p>Complete the auth sequence on the Client's call executor. The 
+   *   future completes exceptionally with the exception that 
+   *   completeAuthSequence() would throw.
+   * </p>
+   */
+  public CompletableFuture<Void> completeAuthSequenceAsync
+    (final String authCode,final String oauthVerifier,final URI redirectURI)
+  { return completeAuthSequenceAsync(authCode,oauthVerifier,redirectURI,null);
+  }
+  
+  /**
+   * Asynchronous form of 
+   *   completeAuthSequence(String,String,URI,String)
+   */
+  public CompletableFuture<Void> completeAuthSequenceAsync
+    (final String authCode
+    ,final String oauthVerifier
+    ,final URI redirectURI
+    ,final String stateBinding
+    )
+  {
+    return AsyncUtil.supply
+      (new Callable<Void>()
+      {
+        @Override
+        public Void call()
+          throws IOException,GeneralSecurityException
+        { 
+          completeAuthSequence
+            (authCode,oauthVerifier,redirectURI,stateBinding);
+          return null;
+        }
+      }
+      ,client.callExecutor()
+      );
+  }
+  
+  /**
+   * <p>Obtain a new access token using the refresh token issued with the
+   *   current one (RFC 6749 6). This blocks for a round trip to the token
+   *   endpoint.
+   * </p>
+   * 
+   * <p>Concurrent refreshes of the same Session are coalesced into a single
+   *   request to the token endpoint, and every caller receives its result.
+   * </p>
+   * 
+   * @throws GeneralSecurityException if no refresh token is available or
+   *   the provider refuses the refresh
+   */
+  public void refresh()
+    throws IOException,GeneralSecurityException
+  { refresh(token.get());
+  }
+  
+  /**
+   * Replace the observed token with a refreshed one, joining a refresh
+   *   that is already in flight for the same refresh token, whether by 
+   *   this Session or another instance restored from the same state.
+   * 
+   * @return The current token after the refresh, which is null if the 
+   *   Session was cleared in the meantime 
+   */
+  Token refresh(Token observed)
+    throws IOException,GeneralSecurityException
+  {
+    if (observed==null || !observed.isRefreshable())
+    { throw new GeneralSecurityException("No refresh token available");
+    }
+    
+    Token refreshed
+      =client.tokenFlight
+        (observed.getRefreshToken(),refreshOperation(observed));
+    adoptToken(observed,refreshed);
+    return token.get();
+  }
+  
+  /**
+   * Install a token obtained by a refresh this Session joined, unless the 
+   *   token has changed in the meantime
+   */
+  private void adoptToken(Token observed,Token refreshed)
+  {
+    if (refreshed!=null 
+        && refreshed!=observed
+        && token.compareAndSet(observed,refreshed)
+        )
+    { fireRefreshed();
+    }
+  }
+  
+  private void fireRefreshed()
+  {
+    RefreshListener listener=refreshListener;
+    if (listener!=null)
+    { listener.refreshed(this);
+    }
+  }
+  
+  /**
+   * <p>Start a refresh on the Client's background executor if the token
+   *   is refreshable and a refresh isn't already running. Returns 
+   *   immediately.
+   * </p>
+   */
+  public void refreshInBackground()
+  {
+    final Token observed=token.get();
+    if (observed==null 
+        || !observed.isRefreshable() 
+        || client.tokenFlights.isInFlight(observed.getRefreshToken())
+        )
+    { return;
+    }
+    
+    client.tokenFlights.executeAsync
+      (observed.getRefreshToken()
+      ,refreshOperation(observed)
+      ,client.refreshExecutor()
+      )
+      .whenComplete
+        (new BiConsumer<Token,Throwable>()
+        {
+          @Override
+          public void accept(Token result,Throwable x)
+          {
+            if (x!=null)
+            { log.log(Level.WARNING,"Error refreshing oauth token",x);
+            }
+            else
+            { adoptToken(observed,result);
+            }
+          }
+        }
+        );
+  }
+  
+  private Callable<Token> refreshOperation(final Token observed)
+  {
+    return new Callable<Token>()
+    {
+      @Override
+      public Token call()
+        throws IOException,GeneralSecurityException
+      {
+        Token current=token.get();
+        if (current!=observed)
+        { 
+          // Already refreshed (or cleared) by the time this flight started
+          return current;
+        }
+        return requestRefresh(observed);
+      }
+    };
+  }
+  
+  /**
+   * Make the refresh_token grant request and install the new token if
+   *   the observed one is still current.
+   */
+  private Token requestRefresh(Token observed)
+    throws IOException,GeneralSecurityException
+  {
+    VariableMap refreshRequestParams=new VariableMap();
+    refreshRequestParams.set("grant_type","refresh_token");
+    refreshRequestParams.set("refresh_token",observed.getRefreshToken());
+    refreshRequestParams.set("client_id",client.clientId);
+    refreshRequestParams.set("client_secret",client.sharedSecret);
+    
+    AccessTokenResponse accessTokenResponse
+      =client.requestToken(refreshRequestParams,"refreshing access token");
+    if (logLevel.isFine())
+    { log.fine("Refreshed: "+accessTokenResponse);
+    }
+    
+    Token next
+      =Token.fromResponse(accessTokenResponse,observed,client.refreshMargin);
+    if (token.compareAndSet(observed,next))
+    { 
+      scheduleRefresh(next);
+      fireRefreshed();
+      return next;
+    }
+    
+    // The session was cleared or re-authenticated while the request was
+    //   outstanding- don't overwrite that.
+    return token.get();
+  }
+  
+  /**
+   * Adopt a stored token, which will be refreshed when a request finds it
+   *   expired
+   */
+  void restoreToken(Token token)
+  { this.token.set(token);
+  }
+  
+  /**
+   * Record a newly issued access token and schedule its refresh
+   */
+  private void acceptToken(AccessTokenResponse accessTokenResponse)
+  {
+    Token next
+      =Token.fromResponse
+        (accessTokenResponse,token.get(),client.refreshMargin);
+    token.set(next);
+    scheduleRefresh(next);
+  }
+  
+  private void scheduleRefresh(Token token)
+  {
+    if (token.getRefreshAt()!=0 && token.isRefreshable())
+    { client.scheduleRefresh(this,token);
+    }
+  }
+  
+  /**
+   * The token to authorize a resource request with, refreshed first
+   *   (coalescing with any concurrent refresh) if it has expired.
+   */
+  Token requestToken()
+    throws IOException
+  {
+    Token current=token.get();
+    if (current!=null 
+        && !temporary 
+        && current.isExpired() 
+        && current.isRefreshable()
+        )
+    { 
+      try
+      { 
+        Token refreshed=refresh(current);
+        if (refreshed!=null)
+        { current=refreshed;
+        }
+      }
+      catch (GeneralSecurityException x)
+      { throw new IOException("Error refreshing access token",x);
+      }
+    }
+    return current;
+  }
+  
+  /**
+   * Verify the id_token issued with the access token and take the oauthId
+   *   from its subject, when the Client is configured with the provider's
+   *   keys
+   */
+  private void verifyIdToken(String idToken)
+    throws IOException,GeneralSecurityException
+  {
+    JwtVerifier verifier=client.idTokenVerifier();
+    if (verifier==null)
+    { 
+      if (logLevel.isFine())
+      { log.fine("No jwksURI configured, id_token not verified");
+      }
+      return;
+    }
+    identity=verifier.verify(idToken);
+    if (identity.getSubject()!=null)
+    { oauthId=identity.getSubject();
+    }
+  }
+  
   /**
    * <p>Perform any actions required after successfully authenticating, such
    *   as populating the principalId property.
    * </p>
    * 
+   * <p>When a verified id_token was issued, oauthId is already populated 
+   *   from its subject and the identity claims are available, so no
+   *   further request to the provider should be needed.
+   * </p>
+   * 
    * @throws IOException
    * @throws GeneralSecurityException
    */
@@ -365,7 +795,15 @@ public class Session
   
   MimeHeader oauthHeader()
     throws IOException
-  { return new GenericHeader("Authorization","Bearer "+this.oauthToken);
+  { return new GenericHeader("Authorization",authorizationHeaderValue());
+  }
+  
+  String authorizationHeaderValue()
+  { return authorizationHeaderValue(token.get());
+  }
+  
+  private static String authorizationHeaderValue(Token token)
+  { return "Bearer "+(token!=null?token.getAccessToken():null);
   }
   
 
@@ -391,39 +829,300 @@ public class Session
 //    return oauthHeader(resourceRequestParams);
 //  }
   
-  public InputStream call(String verb,URI uri,VariableMap requestBody)
+  /**
+   * Perform an authorized resource request and return the response, 
+   *   whatever its status.
+   */
+  public Response exchange(String verb,URI uri,VariableMap requestBody)
     throws IOException
-  { 
-      MimeHeader header=oauthHeader();
-      MimeHeaderMap headerMap=new MimeHeaderMap();
-      headerMap.add(header);
-      spiralcraft.net.http.client.Client httpClient
-        =new spiralcraft.net.http.client.Client();
-      httpClient.setLogLevel(logLevel);
-      Response response=
-        httpClient.executeRequest
+  { return exchange(verb,uri,requestBody,null);
+  }
+  
+  /**
+   * Perform an authorized resource request with additional request 
+   *   headers, eg. to make it conditional, and return the response, 
+   *   whatever its status.
+   */
+  public Response exchange
+    (String verb
+    ,URI uri
+    ,VariableMap requestBody
+    ,Map<String,String> requestHeaders
+    )
+    throws IOException
+  {
+    String scope=requestScope();
+    for (int attempt=0;;attempt++)
+    {
+      client.rateLimiter.acquire(scope);
+      Map<String,String> headers=authorizationHeaders();
+      if (requestHeaders!=null)
+      { headers.putAll(requestHeaders);
+      }
+      Response response
+        =client.transport.execute
           (verb
           ,uri
+          ,headers
           ,verb.equals("POST")?"application/x-www-form-urlencoded":null
-          ,requestBody!=null
-            ?new ByteArrayResource(StringUtil.asciiBytes(requestBody.generateEncodedForm()))
-            :null
-          ,headerMap
+          ,encodeBody(requestBody)
           );
-      if (response.getStatus()>400)
-      {           
-        throw new URLAccessException
-          ("Connection returned remote error from URI: "+uri
-          ,null
-          ,new URLMessage
-            (response.getContent().getInputStream()
-            ,Long.valueOf(response.getContentLength()).intValue()
-            ,response.getHeaders().toStringListMap()
-            )
+      if (!client.rateLimiter.update
+            (scope,response.getStatus(),response.getHeaders(),attempt)
+         )
+      { return response;
+      }
+    }
+  }
+  
+  /**
+   * Perform an authorized resource request and return as soon as the
+   *   response headers arrive, leaving the body to be read from the 
+   *   connection. The returned stream must be closed.
+   */
+  public ResponseStream open(String verb,URI uri,VariableMap requestBody)
+    throws IOException
+  {
+    String scope=requestScope();
+    for (int attempt=0;;attempt++)
+    {
+      client.rateLimiter.acquire(scope);
+      ResponseStream response
+        =client.transport.open
+          (verb
+          ,uri
+          ,authorizationHeaders()
+          ,verb.equals("POST")?"application/x-www-form-urlencoded":null
+          ,encodeBody(requestBody)
           );
-
+      if (!client.rateLimiter.update
+            (scope,response.getStatus(),response.getHeaders(),attempt)
+         )
+      { return response;
       }
-      return response.getContent().getInputStream();
+      response.close();
+    }
+  }
+  
+  /**
+   * <p>Perform an authorized resource request and iterate over the 
+   *   elements of a JSON array in the response as they arrive, holding 
+   *   only one element in memory at a time.
+   * </p>
+   * 
+   * <p>The iterator must be closed if it isn't read to the end.
+   * </p>
+   * 
+   * @param path The dotted path of member names to the array, or null if
+   *   the response is the array
+   * @param elementReader Converts each element, eg. JsonArrayStream.VALUES
+   *   or JsonArrayStream.beans()
+   */
+  public <T> JsonArrayStream<T> stream
+    (String verb
+    ,URI uri
+    ,VariableMap requestBody
+    ,String path
+    ,JsonArrayStream.ElementReader<T> elementReader
+    )
+    throws IOException
+  {
+    ResponseStream response=open(verb,uri,requestBody);
+    if (response.isError())
+    { throw response.buffer().toException();
+    }
+    return new JsonArrayStream<T>
+      (JsonArrayStream.utf8Reader(response.getInputStream())
+      ,path
+      ,elementReader
+      );
+  }
+  
+  /**
+   * <p>Iterate over the records of every page of a paged resource as one
+   *   stream, requesting pages ahead of the consumer on the Client's call
+   *   executor.
+   * </p>
+   * 
+   * @param first The URI of the first page
+   * @param itemsPath The dotted path to the records array in each page,
+   *   or null if each page is the array
+   * @param paging Finds the next page, eg. a LinkPaging, CursorPaging or
+   *   OffsetPaging
+   * @param elementReader Converts each record
+   */
+  public <T> PagedStream<T> paginate
+    (URI first
+    ,String itemsPath
+    ,Paging paging
+    ,JsonArrayStream.ElementReader<T> elementReader
+    )
+  {
+    return new PagedStream<T>
+      (new PageSource()
+      {
+        @Override
+        public Response fetch(URI uri)
+          throws IOException
+        {
+          Response response=exchange("GET",uri,null);
+          if (response.isError())
+          { throw response.toException();
+          }
+          return response;
+        }
+      }
+      ,first
+      ,itemsPath
+      ,paging
+      ,elementReader
+      ,client.callExecutor()
+      );
+  }
+  
+  /**
+   * Perform a resource request, sharing the response of an identical GET 
+   *   made with the same token that is already in flight if the Client
+   *   coalesces requests
+   */
+  private Response coalescedExchange
+    (final String verb
+    ,final URI uri
+    ,final VariableMap requestBody
+    ,final Map<String,String> requestHeaders
+    )
+    throws IOException
+  {
+    String scope=requestScope();
+    if (!client.coalesceRequests 
+        || scope==null
+        || !verb.equals("GET") 
+        || requestBody!=null
+        )
+    { return exchange(verb,uri,requestBody,requestHeaders);
+    }
+    
+    return client.requestFlight
+      (verb+" "+uri+" "+scope
+        +(requestHeaders!=null?" "+requestHeaders:"")
+      ,new Callable<Response>()
+      {
+        @Override
+        public Response call()
+          throws IOException
+        { return exchange(verb,uri,requestBody,requestHeaders);
+        }
+      }
+      );
+  }
+  
+  /**
+   * <p>Perform an authorized GET, reusing a response held in the Client's
+   *   response cache while it is fresh or the provider confirms it is
+   *   still current, and caching the new response otherwise. Returns the
+   *   response whatever its status.
+   * </p>
+   * 
+   * <p>When the Client has no responseCacheSize, this is the same as 
+   *   exchange("GET",uri,null).
+   * </p>
+   * 
+   * @param shared Cache the response in the scope shared by all Sessions
+   *   of the Client instead of for this Session's access token, for
+   *   resources that are the same for every user
+   */
+  public Response cachedGet(URI uri,boolean shared)
+    throws IOException
+  {
+    ResponseCache cache=client.getResponseCache();
+    String scope=requestScope();
+    if (cache==null || (scope==null && !shared))
+    { return coalescedExchange("GET",uri,null,null);
+    }
+    
+    String key=ResponseCache.key(shared?null:scope,uri);
+    ResponseCache.Entry entry=cache.lookup(key);
+    if (entry!=null && entry.isFresh())
+    { return entry.getResponse();
+    }
+    
+    Response response
+      =coalescedExchange
+        ("GET",uri,null,entry!=null?entry.conditionalHeaders():null);
+    if (response.getStatus()==304 && entry!=null)
+    { return cache.revalidated(key,entry,response);
+    }
+    if (!response.isError())
+    { cache.put(key,response);
+    }
+    return response;
+  }
+  
+  /**
+   * The access token that caching, coalescing and rate limiting of this
+   *   Session's requests are scoped to, or null if the Session has none.
+   *   An expired token is refreshed first, so the scope is that of the 
+   *   token the request will be authorized with.
+   */
+  String requestScope()
+    throws IOException
+  {
+    Token token=requestToken();
+    return token!=null && !temporary?token.getAccessToken():null;
+  }
+  
+  private Map<String,String> authorizationHeaders()
+    throws IOException
+  {
+    Map<String,String> headers=new LinkedHashMap<String,String>();
+    headers.put("Authorization",authorizationHeaderValue(requestToken()));
+    return headers;
+  }
+  
+  private static byte[] encodeBody(VariableMap requestBody)
+  {
+    return requestBody!=null
+      ?StringUtil.asciiBytes(requestBody.generateEncodedForm())
+      :null;
+  }
+  
+  /**
+   * <p>Perform an authorized resource request on the Client's call 
+   *   executor without blocking the calling thread.
+   * </p>
+   * 
+   * <p>The future completes with the same result as call(), or
+   *   exceptionally with the same exception, eg. a URLAccessException
+   *   when the provider returns an error status.
+   * </p>
+   */
+  public CompletableFuture<InputStream> callAsync
+    (final String verb,final URI uri,final VariableMap requestBody)
+  {
+    return AsyncUtil.supply
+      (new Callable<InputStream>()
+      {
+        @Override
+        public InputStream call()
+          throws IOException
+        { return Session.this.call(verb,uri,requestBody);
+        }
+      }
+      ,client.callExecutor()
+      );
+  }
+  
+  public InputStream call(String verb,URI uri,VariableMap requestBody)
+    throws IOException
+  { 
+      Response response
+        =verb.equals("GET") && requestBody==null
+        ?cachedGet(uri,false)
+        :coalescedExchange(verb,uri,requestBody,null);
+      if (response.isError())
+      { throw response.toException();
+      }
+      return response.getInputStream();
       
 //      HttpURLConnection connection
 //        =(HttpURLConnection) 
@@ -505,6 +1204,91 @@ public class Session
   }
   
   
+  /**
+   * <p>Encode the authentication state of this Session (token, auth
+   *   sequence state and account id) in a compact, versioned binary form
+   *   that can be kept outside of this JVM and restored into a new 
+   *   Session of the same Client via importState().
+   * </p>
+   */
+  @Override
+  public byte[] exportState()
+    throws IOException
+  {
+    ByteArrayOutputStream bytes=new ByteArrayOutputStream(256);
+    DataOutputStream out=new DataOutputStream(bytes);
+    out.writeByte(STATE_VERSION);
+    writeState(out);
+    out.flush();
+    return bytes.toByteArray();
+  }
+  
+  /**
+   * Restore state produced by exportState()
+   */
+  @Override
+  public void importState(byte[] data)
+    throws IOException
+  {
+    DataInputStream in=new DataInputStream(new ByteArrayInputStream(data));
+    int version=in.readUnsignedByte();
+    if (version!=STATE_VERSION)
+    { throw new IOException("Unsupported session state version "+version);
+    }
+    readState(in);
+  }
+  
+  /**
+   * Write the state fields. Subclasses that hold additional state should
+   *   write it after calling this method, and read it back in the same
+   *   order in readState().
+   */
+  protected void writeState(DataOutput out)
+    throws IOException
+  {
+    out.writeBoolean(temporary);
+    BinaryUtil.writeString(out,state);
+    BinaryUtil.writeURI(out,callbackURI);
+    BinaryUtil.writeURI(out,returnURI);
+    BinaryUtil.writeString(out,oauthId);
+    
+    Token token=this.token.get();
+    out.writeBoolean(token!=null);
+    if (token!=null)
+    {
+      BinaryUtil.writeString(out,token.getAccessToken());
+      BinaryUtil.writeString(out,token.getTokenType());
+      BinaryUtil.writeString(out,token.getRefreshToken());
+      BinaryUtil.writeString(out,token.getScope());
+      out.writeLong(token.getExpiresAt());
+      out.writeLong(token.getRefreshAt());
+    }
+  }
+  
+  protected void readState(DataInput in)
+    throws IOException
+  {
+    temporary=in.readBoolean();
+    state=BinaryUtil.readString(in);
+    callbackURI=BinaryUtil.readURI(in);
+    returnURI=BinaryUtil.readURI(in);
+    oauthId=BinaryUtil.readString(in);
+    
+    Token token=null;
+    if (in.readBoolean())
+    {
+      token=new Token
+        (BinaryUtil.readString(in)
+        ,BinaryUtil.readString(in)
+        ,BinaryUtil.readString(in)
+        ,BinaryUtil.readString(in)
+        ,in.readLong()
+        ,in.readLong()
+        );
+    }
+    this.token.set(token);
+  }
+  
   public void invalidate()
     throws IOException
   { 
@@ -516,7 +1300,9 @@ public class Session
   
   public void clear()
   {
-    oauthToken=null;
+    token.set(null);
+    identity=null;
+    stateBinding=null;
     oauthTokenSecret=null;
     temporary=false;
     returnURI=null;
@@ -0,0 +1,373 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import spiralcraft.time.Clock;
+
+/**
+ * <p>Encodes the OAuth2 "state" parameter as a self contained, signed and
+ *   timestamped token that carries the callback and return URIs, so the 
+ *   provider's redirect can be verified by any node without a server
+ *   side lookup.
+ * </p>
+ * 
+ * <p>The token is base64url(payload) "." base64url(HMAC-SHA256(payload)).
+ *   The payload holds a format version, the issue time, a random nonce, 
+ *   the SHA-256 digest of a binding value and the two URIs. A state is 
+ *   rejected if its signature doesn't verify, if it is older than the 
+ *   timeout, if it has already been accepted by this node, or if it is 
+ *   not presented with the binding value it was issued for.
+ * </p>
+ * 
+ * <p>The binding value is a random secret held by the user agent that 
+ *   started the sequence (eg. in a cookie), so a state obtained by
+ *   starting a sequence elsewhere can't be used to complete one in the
+ *   victim's browser (RFC 6749 10.12).
+ * </p>
+ * 
+ * <p>The replay cache is local to each node. A replay to a different node
+ *   within the timeout is not detected here, but the authorization code it
+ *   accompanies can only be redeemed once at the provider.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class StateCodec
+{
+  private static final String ALGORITHM="HmacSHA256";
+  private static final int VERSION=2;
+  private static final int NONCE_LENGTH=12;
+  private static final int BINDING_LENGTH=16;
+  
+  private static final Base64.Encoder ENCODER
+    =Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER=Base64.getUrlDecoder();
+  
+  /**
+   * The content of a verified state token
+   */
+  public static class State
+  {
+    private final long issuedAt;
+    private final URI callbackURI;
+    private final URI returnURI;
+    
+    State(long issuedAt,URI callbackURI,URI returnURI)
+    {
+      this.issuedAt=issuedAt;
+      this.callbackURI=callbackURI;
+      this.returnURI=returnURI;
+    }
+    
+    public long getIssuedAt()
+    { return issuedAt;
+    }
+    
+    public URI getCallbackURI()
+    { return callbackURI;
+    }
+    
+    public URI getReturnURI()
+    { return returnURI;
+    }
+  }
+  
+  private final SecretKeySpec key;
+  private final ThreadLocal<Mac> threadMac=new ThreadLocal<Mac>();
+  private final SecureRandom random=new SecureRandom();
+  private final ConcurrentHashMap<String,Long> accepted
+    =new ConcurrentHashMap<String,Long>();
+  private long timeout=600000;
+  private int maxReplayEntries=100000;
+  
+  public StateCodec(byte[] secret)
+  { 
+    if (secret==null || secret.length<16)
+    { 
+      throw new IllegalArgumentException
+        ("State secret must be at least 16 bytes");
+    }
+    this.key=new SecretKeySpec(secret,ALGORITHM);
+  }
+  
+  /**
+   * How long in milliseconds a state token remains acceptable. Defaults to
+   *   10 minutes.
+   */
+  public void setTimeout(long timeout)
+  { this.timeout=timeout;
+  }
+  
+  /**
+   * The maximum number of accepted states remembered for replay 
+   *   detection. Defaults to 100000.
+   */
+  public void setMaxReplayEntries(int maxReplayEntries)
+  { this.maxReplayEntries=maxReplayEntries;
+  }
+  
+  /**
+   * A new random binding value for a user agent
+   */
+  public String newBinding()
+  {
+    byte[] binding=new byte[BINDING_LENGTH];
+    random.nextBytes(binding);
+    return ENCODER.encodeToString(binding);
+  }
+  
+  /**
+   * Whether a value presented by a user agent has the form of a binding
+   *   value
+   */
+  public static boolean isBinding(String value)
+  {
+    if (value==null || value.length()!=(BINDING_LENGTH*4+2)/3)
+    { return false;
+    }
+    for (int i=0;i<value.length();i++)
+    {
+      char chr=value.charAt(i);
+      if (!((chr>='A' && chr<='Z')
+            || (chr>='a' && chr<='z')
+            || (chr>='0' && chr<='9')
+            || chr=='-'
+            || chr=='_'
+            )
+         )
+      { return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Create a new state token, bound to the user agent that holds the 
+   *   binding value
+   * 
+   * @param binding A value from newBinding()
+   */
+  public String encode(URI callbackURI,URI returnURI,String binding)
+    throws GeneralSecurityException
+  {
+    if (binding==null)
+    { throw new GeneralSecurityException("State must be bound");
+    }
+    
+    byte[] nonce=new byte[NONCE_LENGTH];
+    random.nextBytes(nonce);
+    
+    ByteArrayOutputStream bytes=new ByteArrayOutputStream(128);
+    DataOutputStream out=new DataOutputStream(bytes);
+    try
+    {
+      out.writeByte(VERSION);
+      out.writeLong(Clock.instance().approxTimeMillis());
+      out.write(nonce);
+      out.write(digest(binding));
+      writeURI(out,callbackURI);
+      writeURI(out,returnURI);
+      out.flush();
+    }
+    catch (IOException x)
+    { throw new GeneralSecurityException("Error encoding state",x);
+    }
+    
+    byte[] payload=bytes.toByteArray();
+    return ENCODER.encodeToString(payload)
+      +"."+ENCODER.encodeToString(mac().doFinal(payload));
+  }
+  
+  /**
+   * Verify a state token returned by the provider and mark it as used
+   * 
+   * @param binding The binding value presented by the user agent
+   * @throws GeneralSecurityException if the token is malformed, forged,
+   *   expired, has already been used or is bound to another user agent
+   */
+  public State decode(String token,String binding)
+    throws GeneralSecurityException
+  {
+    if (token==null)
+    { throw new GeneralSecurityException("Missing state");
+    }
+    
+    int dot=token.indexOf('.');
+    byte[] payload;
+    byte[] signature;
+    try
+    {
+      payload=DECODER.decode(token.substring(0,Math.max(0,dot)));
+      signature=DECODER.decode(token.substring(dot+1));
+    }
+    catch (IllegalArgumentException x)
+    { throw new GeneralSecurityException("Malformed state",x);
+    }
+    
+    if (dot<0 || !MessageDigest.isEqual(mac().doFinal(payload),signature))
+    { 
+      throw new GeneralSecurityException
+        ("State signature does not verify. Possible CSRF.");
+    }
+    
+    State state;
+    byte[] nonce=new byte[NONCE_LENGTH];
+    byte[] bindingDigest=new byte[32];
+    try
+    {
+      DataInputStream in
+        =new DataInputStream(new ByteArrayInputStream(payload));
+      int version=in.readUnsignedByte();
+      if (version!=VERSION)
+      { 
+        throw new GeneralSecurityException
+          ("Unsupported state version "+version);
+      }
+      long issuedAt=in.readLong();
+      in.readFully(nonce);
+      in.readFully(bindingDigest);
+      state=new State(issuedAt,readURI(in),readURI(in));
+    }
+    catch (IOException x)
+    { throw new GeneralSecurityException("Malformed state",x);
+    }
+    catch (IllegalArgumentException x)
+    { throw new GeneralSecurityException("Malformed state",x);
+    }
+    
+    long now=Clock.instance().approxTimeMillis();
+    long expiresAt=state.issuedAt+timeout;
+    if (now>=expiresAt)
+    { throw new GeneralSecurityException("State has expired");
+    }
+    
+    if (binding==null 
+        || !MessageDigest.isEqual(digest(binding),bindingDigest)
+        )
+    { 
+      throw new GeneralSecurityException
+        ("State was not issued to this user agent. Possible CSRF.");
+    }
+    
+    String nonceKey=ENCODER.encodeToString(nonce);
+    if (accepted.putIfAbsent(nonceKey,expiresAt)!=null)
+    { throw new GeneralSecurityException("State has already been used");
+    }
+    if (accepted.size()>maxReplayEntries)
+    { prune(now);
+    }
+    return state;
+  }
+  
+  /**
+   * Drop expired entries from the replay cache, and the oldest ones if 
+   *   it is still over capacity
+   */
+  private void prune(long now)
+  {
+    long cutoff=now;
+    while (accepted.size()>maxReplayEntries)
+    {
+      for (Iterator<Map.Entry<String,Long>> it=accepted.entrySet().iterator()
+          ;it.hasNext()
+          ;
+          )
+      {
+        if (it.next().getValue()<=cutoff)
+        { it.remove();
+        }
+      }
+      
+      // Under sustained load with live entries, give up the oldest
+      //   (a replay of those is still caught by the provider)
+      cutoff+=timeout/8+1;
+    }
+  }
+  
+  private Mac mac()
+    throws GeneralSecurityException
+  {
+    Mac mac=threadMac.get();
+    if (mac==null)
+    {
+      mac=Mac.getInstance(ALGORITHM);
+      mac.init(key);
+      threadMac.set(mac);
+    }
+    return mac;
+  }
+  
+  private static byte[] digest(String binding)
+    throws GeneralSecurityException
+  {
+    return MessageDigest.getInstance("SHA-256")
+      .digest(binding.getBytes(StandardCharsets.UTF_8));
+  }
+  
+  private static void writeURI(DataOutputStream out,URI uri)
+    throws IOException
+  {
+    if (uri==null)
+    { out.writeShort(0xFFFF);
+    }
+    else
+    { 
+      byte[] bytes=uri.toString().getBytes(StandardCharsets.UTF_8);
+      if (bytes.length>=0xFFFF)
+      { throw new IOException("URI too long for state: "+uri);
+      }
+      out.writeShort(bytes.length);
+      out.write(bytes);
+    }
+  }
+  
+  private static URI readURI(DataInputStream in)
+    throws IOException
+  {
+    int len=in.readUnsignedShort();
+    if (len==0xFFFF)
+    { return null;
+    }
+    byte[] bytes=new byte[len];
+    in.readFully(bytes);
+    return URI.create(new String(bytes,StandardCharsets.UTF_8));
+  }
+  
+  @Override
+  public String toString()
+  { 
+    return super.toString()
+      +": timeout="+timeout+" replayEntries="+accepted.size();
+  }
+}
@@ -0,0 +1,144 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth2;
+
+import spiralcraft.time.Clock;
+
+/**
+ * <p>An immutable snapshot of an issued access token and its associated
+ *   refresh state. 
+ * </p>
+ * 
+ * <p>Sessions replace their Token as a whole, so a reader always sees a 
+ *   consistent access token, refresh token and expiration.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public final class Token
+{
+  /**
+   * Create a token from a token endpoint response
+   * 
+   * @param response The response
+   * @param previous The token being replaced, whose refresh token is
+   *   retained if the response doesn't issue a new one
+   * @param refreshMargin How long before expiration to refresh
+   */
+  static Token fromResponse
+    (AccessTokenResponse response,Token previous,long refreshMargin)
+  {
+    long expiresAt=0;
+    long refreshAt=0;
+    if (response.expiresIn>0)
+    {
+      long lifetime=response.expiresIn*1000;
+      expiresAt=Clock.instance().approxTimeMillis()+lifetime;
+      
+      // Never refresh in the first half of a short-lived token's lifetime
+      refreshAt=expiresAt-Math.min(refreshMargin,lifetime/2);
+    }
+    return new Token
+      (response.accessToken
+      ,response.tokenType
+      ,response.refreshToken!=null
+        ?response.refreshToken
+        :previous!=null?previous.refreshToken:null
+      ,response.scope
+      ,expiresAt
+      ,refreshAt
+      );
+  }
+  
+  private final String accessToken;
+  private final String tokenType;
+  private final String refreshToken;
+  private final String scope;
+  private final long expiresAt;
+  private final long refreshAt;
+  
+  public Token
+    (String accessToken
+    ,String tokenType
+    ,String refreshToken
+    ,String scope
+    ,long expiresAt
+    ,long refreshAt
+    )
+  {
+    this.accessToken=accessToken;
+    this.tokenType=tokenType;
+    this.refreshToken=refreshToken;
+    this.scope=scope;
+    this.expiresAt=expiresAt;
+    this.refreshAt=refreshAt;
+  }
+  
+  public String getAccessToken()
+  { return accessToken;
+  }
+  
+  public String getTokenType()
+  { return tokenType;
+  }
+  
+  public String getRefreshToken()
+  { return refreshToken;
+  }
+  
+  public String getScope()
+  { return scope;
+  }
+  
+  /**
+   * The time in milliseconds since the epoch at which the access token
+   *   expires, or 0 if the provider did not specify an expiration.
+   */
+  public long getExpiresAt()
+  { return expiresAt;
+  }
+  
+  /**
+   * The time in milliseconds since the epoch at which the access token
+   *   should be refreshed, or 0 if it doesn't expire.
+   */
+  public long getRefreshAt()
+  { return refreshAt;
+  }
+  
+  public boolean isExpired()
+  { return expiresAt!=0 && Clock.instance().approxTimeMillis()>=expiresAt;
+  }
+  
+  public boolean isRefreshDue()
+  { return refreshAt!=0 && Clock.instance().approxTimeMillis()>=refreshAt;
+  }
+  
+  public boolean isRefreshable()
+  { return refreshToken!=null;
+  }
+  
+  @Override
+  public String toString()
+  { 
+    return super.toString()
+      +": tokenType="+tokenType
+      +" scope="+scope
+      +" expiresAt="+expiresAt
+      +" refreshable="+(refreshToken!=null)
+      ;
+  }
+}
@@ -0,0 +1,255 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth2;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import spiralcraft.codec.text.Base64Codec;
+import spiralcraft.log.ClassLog;
+import spiralcraft.net.http.VariableMap;
+import spiralcraft.oauth.http.Response;
+import spiralcraft.oauth.util.ExpiringCache;
+import spiralcraft.oauth.util.JsonReader;
+import spiralcraft.oauth.util.SingleFlight;
+import spiralcraft.time.Clock;
+import spiralcraft.util.string.StringUtil;
+
+/**
+ * <p>Validates bearer tokens with the provider's token introspection 
+ *   endpoint (RFC 7662), caching the results.
+ * </p>
+ * 
+ * <p>Active tokens are cached until the earlier of their expiration and
+ *   the positive cache time. Inactive or unknown tokens are cached for
+ *   the (usually shorter) negative cache time. Errors reaching the 
+ *   endpoint are not cached. Concurrent requests presenting the same 
+ *   uncached token share a single introspection request.
+ * </p>
+ * 
+ * <p>Tokens are held in the cache only as a SHA-256 digest.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class TokenIntrospector
+{
+  private static final ClassLog log
+    =ClassLog.getInstance(TokenIntrospector.class);
+  
+  private final Client client;
+  private final URI introspectionURI;
+  private final ExpiringCache<String,TokenPrincipal> cache
+    =new ExpiringCache<String,TokenPrincipal>(10000);
+  private final SingleFlight<String,TokenPrincipal> flights
+    =new SingleFlight<String,TokenPrincipal>();
+  private long positiveCacheTime=300000;
+  private long negativeCacheTime=30000;
+  
+  /**
+   * @param client The Client whose id, secret and connections are used to
+   *   call the endpoint
+   * @param introspectionURI The introspection endpoint
+   */
+  public TokenIntrospector(Client client,URI introspectionURI)
+  {
+    this.client=client;
+    this.introspectionURI=introspectionURI;
+  }
+  
+  /**
+   * The maximum time in milliseconds an active token's introspection 
+   *   result is reused. Defaults to 5 minutes.
+   */
+  public void setPositiveCacheTime(long positiveCacheTime)
+  { this.positiveCacheTime=positiveCacheTime;
+  }
+  
+  /**
+   * The time in milliseconds an inactive token's result is reused. 
+   *   Defaults to 30 seconds.
+   */
+  public void setNegativeCacheTime(long negativeCacheTime)
+  { this.negativeCacheTime=negativeCacheTime;
+  }
+  
+  /**
+   * The maximum number of cached results. Defaults to 10000.
+   */
+  public void setMaxCacheEntries(int maxCacheEntries)
+  { cache.setMaxEntries(maxCacheEntries);
+  }
+  
+  public ExpiringCache<String,TokenPrincipal> getCache()
+  { return cache;
+  }
+  
+  /**
+   * Determine the authorization carried by a token
+   * 
+   * @return The principal, which is inactive if the token is not valid
+   * @throws IOException if the endpoint can't be reached
+   */
+  public TokenPrincipal introspect(final String token)
+    throws IOException
+  {
+    final String key=digest(token);
+    TokenPrincipal principal=cache.get(key);
+    if (principal!=null)
+    { return principal;
+    }
+    
+    try
+    {
+      return flights.execute
+        (key
+        ,new Callable<TokenPrincipal>()
+        {
+          @Override
+          public TokenPrincipal call()
+            throws IOException
+          { return requestIntrospection(key,token);
+          }
+        }
+        );
+    }
+    catch (IOException x)
+    { throw x;
+    }
+    catch (RuntimeException x)
+    { throw x;
+    }
+    catch (Exception x)
+    { throw new IOException("Error introspecting token",x);
+    }
+  }
+  
+  /**
+   * Forget a cached result, eg. after the token is revoked
+   */
+  public void evict(String token)
+  { cache.remove(digest(token));
+  }
+  
+  private TokenPrincipal requestIntrospection(String key,String token)
+    throws IOException
+  {
+    VariableMap params=new VariableMap();
+    params.set("token",token);
+    params.set("token_type_hint","access_token");
+    
+    Map<String,String> headers=new LinkedHashMap<String,String>();
+    headers.put("Authorization",basicCredentials());
+    headers.put("Accept","application/json");
+    
+    Response response
+      =client.transport.execute
+        ("POST"
+        ,introspectionURI
+        ,headers
+        ,"application/x-www-form-urlencoded"
+        ,StringUtil.asciiBytes(params.generateEncodedForm())
+        );
+    if (response.getStatus()!=200)
+    { 
+      throw new IOException
+        ("Token introspection failed: "+response.getStatus()
+        +" "+response.getReason()
+        );
+    }
+    
+    Object value;
+    JsonReader reader=new JsonReader
+        (new InputStreamReader
+          (response.getInputStream(),StandardCharsets.UTF_8)
+        );
+    try
+    { value=reader.readValue();
+    }
+    finally
+    { reader.close();
+    }
+    if (!(value instanceof Map))
+    { throw new IOException("Token introspection response is not an object");
+    }
+    
+    @SuppressWarnings("unchecked")
+    Map<String,Object> claims=(Map<String,Object>) value;
+    if (!claims.containsKey("active"))
+    { claims.put("active",Boolean.FALSE);
+    }
+    TokenPrincipal principal=TokenPrincipal.fromClaims(claims);
+    
+    long now=Clock.instance().approxTimeMillis();
+    if (principal.isActive())
+    {
+      long expiresAt=now+positiveCacheTime;
+      if (principal.getExpiresAt()!=0)
+      { expiresAt=Math.min(expiresAt,principal.getExpiresAt());
+      }
+      cache.put(key,principal,expiresAt);
+    }
+    else
+    { cache.put(key,principal,now+negativeCacheTime);
+    }
+    if (client.logLevel.isFine())
+    { log.fine("Introspected "+principal);
+    }
+    return principal;
+  }
+  
+  /**
+   * HTTP Basic client authentication (RFC 6749 2.3.1)
+   */
+  private String basicCredentials()
+    throws IOException
+  {
+    try
+    {
+      String credentials
+        =URLEncoder.encode(client.clientId,"UTF-8")
+        +":"+URLEncoder.encode(client.sharedSecret,"UTF-8");
+      return "Basic "
+        +Base64Codec.encodeBytes(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+    catch (UnsupportedEncodingException x)
+    { throw new IOException(x);
+    }
+  }
+  
+  private static String digest(String token)
+  {
+    try
+    {
+      return Base64Codec.encodeBytes
+        (MessageDigest.getInstance("SHA-256")
+          .digest(token.getBytes(StandardCharsets.UTF_8))
+        );
+    }
+    catch (GeneralSecurityException x)
+    { throw new RuntimeException("SHA-256 not available",x);
+    }
+  }
+}
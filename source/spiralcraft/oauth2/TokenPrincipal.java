@@ -0,0 +1,182 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import spiralcraft.time.Clock;
+
+/**
+ * <p>The authorization carried by a bearer token presented to a resource
+ *   server, as reported by token introspection (RFC 7662) or read from the
+ *   claims of a verified JWT.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public class TokenPrincipal
+{
+  /**
+   * Build a principal from the members of an introspection response or
+   *   JWT claims set
+   */
+  public static TokenPrincipal fromClaims(Map<String,Object> claims)
+  {
+    Object active=claims.get("active");
+    return new TokenPrincipal
+      (active==null || Boolean.TRUE.equals(active)
+      ,Collections.unmodifiableMap(claims)
+      );
+  }
+  
+  private final boolean active;
+  private final Map<String,Object> claims;
+  private final ScopeSet scopes;
+  
+  TokenPrincipal(boolean active,Map<String,Object> claims)
+  {
+    this.active=active;
+    this.claims=claims;
+    this.scopes=ScopeSet.of(getString("scope"));
+  }
+  
+  /**
+   * Whether the token is currently active and has not expired
+   */
+  public boolean isActive()
+  { 
+    long expiresAt=getExpiresAt();
+    return active 
+      && (expiresAt==0 || Clock.instance().approxTimeMillis()<expiresAt);
+  }
+  
+  /**
+   * The "sub" claim, the identifier of the resource owner
+   */
+  public String getSubject()
+  { return getString("sub");
+  }
+  
+  public String getUsername()
+  { return getString("username");
+  }
+  
+  public String getClientId()
+  { 
+    String clientId=getString("client_id");
+    return clientId!=null?clientId:getString("azp");
+  }
+  
+  public String getIssuer()
+  { return getString("iss");
+  }
+  
+  public String getTokenType()
+  { return getString("token_type");
+  }
+  
+  public ScopeSet getScopes()
+  { return scopes;
+  }
+  
+  public boolean hasScope(String scope)
+  { return scopes.contains(scope);
+  }
+  
+  /**
+   * The "aud" claim, which may be a single value or a list
+   */
+  public List<String> getAudience()
+  {
+    Object audience=claims.get("aud");
+    if (audience==null)
+    { return Collections.emptyList();
+    }
+    if (audience instanceof List)
+    {
+      List<String> list=new ArrayList<String>();
+      for (Object item:(List<?>) audience)
+      { list.add(String.valueOf(item));
+      }
+      return list;
+    }
+    return Collections.singletonList(audience.toString());
+  }
+  
+  /**
+   * The expiration time ("exp") in milliseconds since the epoch, or 0
+   */
+  public long getExpiresAt()
+  { return getTime("exp");
+  }
+  
+  /**
+   * The issue time ("iat") in milliseconds since the epoch, or 0
+   */
+  public long getIssuedAt()
+  { return getTime("iat");
+  }
+  
+  /**
+   * The time before which the token must not be accepted ("nbf") in 
+   *   milliseconds since the epoch, or 0
+   */
+  public long getNotBefore()
+  { return getTime("nbf");
+  }
+  
+  /**
+   * All claims, including any the provider adds
+   */
+  public Map<String,Object> getClaims()
+  { return claims;
+  }
+  
+  public String getString(String name)
+  { 
+    Object value=claims.get(name);
+    return value!=null?value.toString():null;
+  }
+  
+  private long getTime(String name)
+  {
+    Object value=claims.get(name);
+    if (value instanceof Number)
+    { return ((Number) value).longValue()*1000;
+    }
+    if (value instanceof String)
+    { 
+      try
+      { return Long.parseLong((String) value)*1000;
+      }
+      catch (NumberFormatException x)
+      { return 0;
+      }
+    }
+    return 0;
+  }
+  
+  @Override
+  public String toString()
+  { 
+    return super.toString()
+      +": active="+active+" sub="+getSubject()+" client_id="+getClientId()
+      +" scope="+scopes;
+  }
+}
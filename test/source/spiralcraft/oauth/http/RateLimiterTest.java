@@ -0,0 +1,217 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.http;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import spiralcraft.oauth.test.TestCase;
+
+/**
+ * Rate limit header parsing, quota enforcement and permit accounting
+ * 
+ * @author mike
+ *
+ */
+public class RateLimiterTest
+  extends TestCase
+{
+  private static final long NOW=1500000000000L;
+  
+  private final RateLimiter limiter=new RateLimiter();
+  
+  private static Map<String,List<String>> headers(String... headers)
+  {
+    Map<String,List<String>> map=new LinkedHashMap<String,List<String>>();
+    for (int i=0;i<headers.length;i+=2)
+    { map.put(headers[i],Arrays.asList(headers[i+1]));
+    }
+    return map;
+  }
+  
+  public void testCountWithPolicy()
+  {
+    assertEquals("count",100,RateLimiter.parseCount("100, 100;w=60"));
+    assertEquals("plain",42,RateLimiter.parseCount(" 42 "));
+    assertEquals("missing",-1,RateLimiter.parseCount(null));
+    assertEquals("malformed",-1,RateLimiter.parseCount("many"));
+  }
+  
+  public void testResetAsDelta()
+  { assertEquals("reset",NOW+30000,RateLimiter.parseReset("30",NOW));
+  }
+  
+  public void testResetAsEpochSeconds()
+  { 
+    assertEquals
+      ("reset",1700000000000L,RateLimiter.parseReset("1700000000",NOW));
+  }
+  
+  public void testResetMissing()
+  { assertEquals("reset",0,RateLimiter.parseReset(null,NOW));
+  }
+  
+  public void testRetryAfterSeconds()
+  { assertEquals("retry",NOW+120000,RateLimiter.parseRetryAfter("120",NOW));
+  }
+  
+  public void testRetryAfterHttpDate()
+  {
+    assertEquals
+      ("retry"
+      ,1445412480000L
+      ,RateLimiter.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT",NOW)
+      );
+  }
+  
+  public void testRetryAfterMalformed()
+  {
+    assertEquals("malformed",0,RateLimiter.parseRetryAfter("soon",NOW));
+    assertEquals("missing",0,RateLimiter.parseRetryAfter(null,NOW));
+  }
+  
+  public void testQuotaReported()
+  {
+    limiter.update
+      ("token"
+      ,200
+      ,headers("X-RateLimit-Limit","5000","X-RateLimit-Remaining","4999")
+      ,0
+      );
+    assertEquals("limit",5000,limiter.getLimit());
+    assertEquals("remaining",4999,limiter.getRemaining("token"));
+    assertEquals("other token",-1,limiter.getRemaining("other"));
+  }
+  
+  public void testExhaustedQuotaHoldsToken()
+    throws Exception
+  {
+    limiter.setMaxWait(1000);
+    limiter.update
+      ("token"
+      ,200
+      ,headers("RateLimit-Remaining","0","RateLimit-Reset","3600")
+      ,0
+      );
+    assertThrows
+      ("exhausted token"
+      ,IOException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+          throws Exception
+        { limiter.acquire("token");
+        }
+      }
+      );
+    limiter.acquire("other");
+  }
+  
+  public void testTooManyRequestsRetried()
+  {
+    limiter.setMaxRetries(1);
+    assertTrue
+      ("retry"
+      ,limiter.update("token",429,headers("Retry-After","0"),0)
+      );
+    assertFalse
+      ("retries exhausted"
+      ,limiter.update("token",429,headers("Retry-After","0"),1)
+      );
+    assertEquals("rate limited",2,limiter.getRateLimited());
+  }
+  
+  public void testTooManyRequestsBeyondMaxWaitNotRetried()
+  {
+    limiter.setMaxWait(1000);
+    assertFalse
+      ("retry"
+      ,limiter.update("token",429,headers("Retry-After","3600"),0)
+      );
+  }
+  
+  public void testRejectedRequestsTakeNoPermits()
+    throws Exception
+  {
+    limiter.setRateLimit(10,1);
+    limiter.setMaxWait(50);
+    limiter.acquire(null);
+    for (int i=0;i<5;i++)
+    {
+      assertThrows
+        ("over rate"
+        ,IOException.class
+        ,new Block()
+        {
+          @Override
+          public void run()
+            throws Exception
+          { limiter.acquire(null);
+          }
+        }
+        );
+    }
+    Thread.sleep(300);
+    limiter.acquire(null);
+    assertEquals("throttled",0,limiter.getThrottled());
+  }
+  
+  public void testConcurrentFirstRequestsShareTokenBucket()
+    throws Exception
+  {
+    limiter.setTokenRateLimit(0.001,1);
+    limiter.setMaxWait(0);
+    final CountDownLatch start=new CountDownLatch(1);
+    final AtomicInteger sent=new AtomicInteger();
+    List<Thread> callers=new ArrayList<Thread>();
+    for (int i=0;i<16;i++)
+    {
+      Thread caller
+        =new Thread()
+        {
+          @Override
+          public void run()
+          {
+            try
+            { 
+              start.await();
+              limiter.acquire("token");
+              sent.incrementAndGet();
+            }
+            catch (IOException x)
+            { // Over the token's rate
+            }
+            catch (InterruptedException x)
+            { Thread.currentThread().interrupt();
+            }
+          }
+        };
+      callers.add(caller);
+      caller.start();
+    }
+    start.countDown();
+    for (Thread caller:callers)
+    { caller.join(10000);
+    }
+    assertEquals("sent",1,sent.get());
+  }
+}
@@ -0,0 +1,171 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import spiralcraft.oauth.test.TestCase;
+
+/**
+ * Freshness, revalidation, scoping and eviction of cached responses
+ * 
+ * @author mike
+ *
+ */
+public class ResponseCacheTest
+  extends TestCase
+{
+  private static final URI URI_A=URI.create("https://api.example/a");
+  private static final URI URI_B=URI.create("https://api.example/b");
+  
+  private final ResponseCache cache=new ResponseCache(2);
+  
+  private static Response response(int status,String... headers)
+  {
+    Map<String,List<String>> map=new LinkedHashMap<String,List<String>>();
+    for (int i=0;i<headers.length;i+=2)
+    { map.put(headers[i],Arrays.asList(headers[i+1]));
+    }
+    return new Response
+      (URI_A
+      ,status
+      ,null
+      ,map
+      ,"{\"id\":1}".getBytes(StandardCharsets.UTF_8)
+      );
+  }
+  
+  public void testFreshResponseReused()
+    throws Exception
+  {
+    String key=ResponseCache.key("token",URI_A);
+    Response response=response(200,"Cache-Control","max-age=60");
+    cache.put(key,response);
+    ResponseCache.Entry entry=cache.lookup(key);
+    assertTrue("fresh",entry!=null && entry.isFresh());
+    assertEquals("response",response,entry.getResponse());
+    assertEquals("hits",1,cache.getHits());
+  }
+  
+  public void testEachReaderGetsItsOwnStream()
+    throws Exception
+  {
+    String key=ResponseCache.key("token",URI_A);
+    cache.put(key,response(200,"Cache-Control","max-age=60"));
+    Response cached=cache.lookup(key).getResponse();
+    readAll(cached.getInputStream());
+    assertEquals
+      ("second stream"
+      ,"{\"id\":1}"
+      ,new String
+        (readAll(cached.getInputStream()),StandardCharsets.UTF_8)
+      );
+  }
+  
+  public void testNoStoreNotCached()
+  {
+    String key=ResponseCache.key("token",URI_A);
+    cache.put(key,response(200,"Cache-Control","no-store, max-age=60"));
+    assertEquals("entry",null,cache.lookup(key));
+  }
+  
+  public void testErrorNotCached()
+  {
+    String key=ResponseCache.key("token",URI_A);
+    cache.put(key,response(404,"Cache-Control","max-age=60"));
+    assertEquals("entry",null,cache.lookup(key));
+  }
+  
+  public void testPrivateNotShared()
+  {
+    String shared=ResponseCache.key(null,URI_A);
+    String scoped=ResponseCache.key("token",URI_A);
+    cache.put(shared,response(200,"Cache-Control","private, max-age=60"));
+    cache.put(scoped,response(200,"Cache-Control","private, max-age=60"));
+    assertEquals("shared",null,cache.lookup(shared));
+    assertTrue("scoped",cache.lookup(scoped)!=null);
+  }
+  
+  public void testTokensScopedSeparately()
+  {
+    cache.put
+      (ResponseCache.key("token",URI_A)
+      ,response(200,"Cache-Control","max-age=60")
+      );
+    assertEquals
+      ("other token",null,cache.lookup(ResponseCache.key("other",URI_A)));
+  }
+  
+  public void testStaleEntryRevalidated()
+  {
+    String key=ResponseCache.key("token",URI_A);
+    Response response=response(200,"ETag","\"v1\"","Cache-Control","no-cache");
+    cache.put(key,response);
+    ResponseCache.Entry entry=cache.lookup(key);
+    assertFalse("fresh",entry.isFresh());
+    assertEquals
+      ("If-None-Match"
+      ,"\"v1\""
+      ,entry.conditionalHeaders().get("If-None-Match")
+      );
+    
+    Response renewed
+      =cache.revalidated
+        (key,entry,response(304,"Cache-Control","max-age=60"));
+    assertEquals("renewed",response,renewed);
+    assertTrue("fresh after 304",cache.lookup(key).isFresh());
+    assertEquals("revalidations",1,cache.getRevalidations());
+  }
+  
+  public void testUnvalidatedStaleNotCached()
+  {
+    String key=ResponseCache.key("token",URI_A);
+    cache.put(key,response(200));
+    assertEquals("entry",null,cache.lookup(key));
+  }
+  
+  public void testLeastRecentlyUsedEvicted()
+  {
+    String a=ResponseCache.key("token",URI_A);
+    String b=ResponseCache.key("token",URI_B);
+    String c=ResponseCache.key("other",URI_A);
+    cache.put(a,response(200,"Cache-Control","max-age=60"));
+    cache.put(b,response(200,"Cache-Control","max-age=60"));
+    cache.lookup(a);
+    cache.put(c,response(200,"Cache-Control","max-age=60"));
+    assertEquals("size",2,cache.size());
+    assertEquals("evicted",null,cache.lookup(b));
+    assertTrue("kept",cache.lookup(a)!=null);
+    assertEquals("evictions",1,cache.getEvictions());
+  }
+  
+  private static byte[] readAll(InputStream in)
+    throws Exception
+  {
+    ByteArrayOutputStream out=new ByteArrayOutputStream();
+    byte[] buffer=new byte[64];
+    for (int count;(count=in.read(buffer))>=0;)
+    { out.write(buffer,0,count);
+    }
+    return out.toByteArray();
+  }
+}
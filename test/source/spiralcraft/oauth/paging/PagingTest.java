@@ -0,0 +1,382 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.paging;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import spiralcraft.oauth.http.Response;
+import spiralcraft.oauth.test.TestCase;
+import spiralcraft.oauth.util.JsonArrayStream;
+
+/**
+ * Page reading, the Link, cursor and offset Pagings, and iteration 
+ *   across pages
+ * 
+ * @author mike
+ *
+ */
+public class PagingTest
+  extends TestCase
+{
+  private static final URI BASE=URI.create("https://api.example/items");
+  
+  private static final Executor DIRECT
+    =new Executor()
+    {
+      @Override
+      public void execute(Runnable command)
+      { command.run();
+      }
+    };
+  
+  private static Response response(URI uri,String body,String... headers)
+  {
+    Map<String,List<String>> map=new LinkedHashMap<String,List<String>>();
+    for (int i=0;i<headers.length;i+=2)
+    { map.put(headers[i],Arrays.asList(headers[i+1]));
+    }
+    return new Response
+      (uri,200,"OK",map,body.getBytes(StandardCharsets.UTF_8));
+  }
+  
+  private static Page<Object> page
+    (URI uri,int items,String valuePath,String value,String... headers)
+  {
+    Map<String,String> values=new HashMap<String,String>();
+    if (valuePath!=null)
+    { values.put(valuePath,value);
+    }
+    List<Object> list=new ArrayList<Object>();
+    for (int i=0;i<items;i++)
+    { list.add(Long.valueOf(i));
+    }
+    return new Page<Object>
+      (uri,response(uri,"",headers).getHeaders(),list,values);
+  }
+  
+  public void testReaderFindsItemsAndValues()
+    throws Exception
+  {
+    PageReader<Object> reader
+      =new PageReader<Object>
+        ("data"
+        ,Collections.singleton("paging.cursors.after")
+        ,JsonArrayStream.VALUES
+        );
+    Page<Object> page
+      =reader.read
+        (BASE
+        ,response
+          (BASE
+          ,"{\"other\":{\"data\":[9]}"
+          +",\"data\":[{\"id\":1},{\"id\":2}]"
+          +",\"paging\":{\"cursors\":{\"before\":\"x\",\"after\":\"abc\"}}"
+          +"}"
+          )
+        );
+    assertEquals("items",2,page.getItems().size());
+    assertEquals
+      ("first id"
+      ,1L
+      ,((Map<?,?>) page.getItems().get(0)).get("id")
+      );
+    assertEquals("cursor","abc",page.getValue("paging.cursors.after"));
+    assertEquals("unrequested",null,page.getValue("paging.cursors.before"));
+  }
+  
+  public void testReaderTopLevelArray()
+    throws Exception
+  {
+    PageReader<Object> reader
+      =new PageReader<Object>
+        (null,Collections.<String>emptySet(),JsonArrayStream.VALUES);
+    assertEquals
+      ("items"
+      ,Arrays.<Object>asList(1L,2L,3L)
+      ,reader.read(BASE,response(BASE,"[1,2,3]")).getItems()
+      );
+  }
+  
+  public void testReaderNullItems()
+    throws Exception
+  {
+    PageReader<Object> reader
+      =new PageReader<Object>
+        ("data",Collections.<String>emptySet(),JsonArrayStream.VALUES);
+    assertEquals
+      ("items"
+      ,0
+      ,reader.read(BASE,response(BASE,"{\"data\":null}")).getItems().size()
+      );
+  }
+  
+  public void testLinkHeaderNext()
+  {
+    assertEquals
+      ("next"
+      ,"https://api.example/items?page=2"
+      ,LinkPaging.findNext
+        ("<https://api.example/items?page=1>; rel=\"prev\""
+        +", <https://api.example/items?page=2>; rel=\"next\""
+        +", <https://api.example/items?page=9>; rel=\"last\""
+        )
+      );
+    assertEquals
+      ("several relations"
+      ,"/p3"
+      ,LinkPaging.findNext("</p3>; title=\"x\"; REL=\"last next\"")
+      );
+    assertEquals("unquoted","/p2",LinkPaging.findNext("</p2>;rel=next"));
+    assertEquals
+      ("no next",null,LinkPaging.findNext("</p9>; rel=\"last\""));
+    assertEquals("malformed",null,LinkPaging.findNext("<unterminated"));
+  }
+  
+  public void testLinkPagingResolvesRelative()
+  {
+    LinkPaging paging=new LinkPaging();
+    assertEquals
+      ("next"
+      ,URI.create("https://api.example/items?page=2")
+      ,paging.next(page(BASE,1,null,null,"link","</items?page=2>; rel=next"))
+      );
+    assertEquals("last page",null,paging.next(page(BASE,1,null,null)));
+  }
+  
+  public void testCursorPaging()
+  {
+    CursorPaging paging=new CursorPaging("next_cursor","cursor");
+    URI uri=URI.create("https://api.example/items?cursor=old&limit=2");
+    assertEquals
+      ("next"
+      ,URI.create("https://api.example/items?limit=2&cursor=a%2Bb")
+      ,paging.next(page(uri,2,"next_cursor","a+b"))
+      );
+    assertEquals("no cursor",null,paging.next(page(uri,2,null,null)));
+    assertEquals("empty",null,paging.next(page(uri,2,"next_cursor","")));
+    assertEquals("no items",null,paging.next(page(uri,0,"next_cursor","c")));
+  }
+  
+  public void testNextURIPath()
+  {
+    CursorPaging paging=CursorPaging.nextURIPath("paging.next");
+    assertEquals
+      ("next"
+      ,URI.create("https://api.example/items?after=xyz")
+      ,paging.next(page(BASE,1,"paging.next","/items?after=xyz"))
+      );
+  }
+  
+  public void testOffsetPaging()
+  {
+    OffsetPaging paging=new OffsetPaging("offset","limit");
+    URI uri=URI.create("https://api.example/items?limit=2&offset=4");
+    assertEquals
+      ("next"
+      ,URI.create("https://api.example/items?limit=2&offset=6")
+      ,paging.next(page(uri,2,null,null))
+      );
+    assertEquals("short page",null,paging.next(page(uri,1,null,null)));
+    assertEquals
+      ("first page"
+      ,URI.create("https://api.example/items?limit=2&offset=2")
+      ,paging.next
+        (page(URI.create("https://api.example/items?limit=2"),2,null,null))
+      );
+    
+    OffsetPaging unsized=new OffsetPaging("start",null);
+    assertEquals
+      ("unsized"
+      ,URI.create("https://api.example/items?start=3")
+      ,unsized.next(page(BASE,3,null,null))
+      );
+    assertEquals("empty page",null,unsized.next(page(BASE,0,null,null)));
+  }
+  
+  public void testParameters()
+  {
+    URI uri=URI.create("https://api.example/items?q=a%20b&page=1");
+    assertEquals("decoded","a b",Paging.getParameter(uri,"q"));
+    assertEquals("absent",null,Paging.getParameter(uri,"cursor"));
+    assertEquals
+      ("replaced"
+      ,URI.create("https://api.example/items?q=a%20b&page=2")
+      ,Paging.withParameter(uri,"page","2")
+      );
+  }
+  
+  /**
+   * A source serving cursor paged pages of two records, failing at the
+   *   page after the specified number
+   */
+  private static PageSource source(final int pages,final boolean fail)
+  {
+    return new PageSource()
+    {
+      @Override
+      public Response fetch(URI uri)
+        throws IOException
+      {
+        String cursor=Paging.getParameter(uri,"after");
+        int index=cursor!=null?Integer.parseInt(cursor):0;
+        if (index>=pages)
+        { 
+          if (fail)
+          { throw new IOException("Page "+index+" failed");
+          }
+          return response(uri,"{\"data\":[]}");
+        }
+        return response
+          (uri
+          ,"{\"data\":["+(index*2)+","+(index*2+1)+"]"
+          +",\"next\":\""+(index+1)+"\"}"
+          );
+      }
+    };
+  }
+  
+  public void testStreamReadsEveryPage()
+  {
+    PagedStream<Object> stream
+      =new PagedStream<Object>
+        (source(3,false)
+        ,BASE
+        ,"data"
+        ,new CursorPaging("next","after")
+        ,JsonArrayStream.VALUES
+        ,DIRECT
+        );
+    List<Object> items=new ArrayList<Object>();
+    while (stream.hasNext())
+    { items.add(stream.next());
+    }
+    assertEquals
+      ("items",Arrays.<Object>asList(0L,1L,2L,3L,4L,5L),items);
+    assertEquals("count",6,stream.getCount());
+    assertEquals("pages",4,stream.getPageCount());
+  }
+  
+  /**
+   * The number of pages requested once the reader has started each of 
+   *   the first pages, with the specified look-ahead
+   */
+  private static int[] fetchesPerPage(int lookahead,int pages)
+  {
+    final PageSource source=source(10,false);
+    final int[] fetches=new int[1];
+    PagedStream<Object> stream
+      =new PagedStream<Object>
+        (new PageSource()
+        {
+          @Override
+          public Response fetch(URI uri)
+            throws IOException
+          { 
+            fetches[0]++;
+            return source.fetch(uri);
+          }
+        }
+        ,BASE
+        ,"data"
+        ,new CursorPaging("next","after")
+        ,JsonArrayStream.VALUES
+        ,DIRECT
+        );
+    stream.setLookahead(lookahead);
+    int[] counts=new int[pages];
+    for (int page=0;page<pages;page++)
+    {
+      stream.next();
+      counts[page]=fetches[0];
+      stream.next();
+    }
+    return counts;
+  }
+  
+  public void testLookaheadBoundsOutstandingFetches()
+  {
+    for (int lookahead=0;lookahead<=2;lookahead++)
+    {
+      int[] counts=fetchesPerPage(lookahead,3);
+      for (int page=0;page<counts.length;page++)
+      { 
+        assertEquals
+          ("lookahead "+lookahead+" page "+page
+          ,page+1+lookahead
+          ,counts[page]
+          );
+      }
+    }
+  }
+  
+  public void testStreamStopsAtMaxPages()
+  {
+    PagedStream<Object> stream
+      =new PagedStream<Object>
+        (source(10,false)
+        ,BASE
+        ,"data"
+        ,new CursorPaging("next","after")
+        ,JsonArrayStream.VALUES
+        ,DIRECT
+        );
+    stream.setMaxPages(2);
+    int count=0;
+    while (stream.hasNext())
+    { 
+      stream.next();
+      count++;
+    }
+    assertEquals("items",4,count);
+  }
+  
+  public void testStreamFailsAfterPrecedingPages()
+  {
+    final PagedStream<Object> stream
+      =new PagedStream<Object>
+        (source(2,true)
+        ,BASE
+        ,"data"
+        ,new CursorPaging("next","after")
+        ,JsonArrayStream.VALUES
+        ,DIRECT
+        );
+    for (int i=0;i<4;i++)
+    { assertEquals("item "+i,Long.valueOf(i),stream.next());
+    }
+    assertThrows
+      ("failure"
+      ,UncheckedIOException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+        { stream.hasNext();
+        }
+      }
+      );
+  }
+}
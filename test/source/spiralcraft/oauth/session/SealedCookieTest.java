@@ -0,0 +1,208 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.session;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import spiralcraft.oauth.test.TestCase;
+
+/**
+ * Reading and writing sealed state in cookies, and rejection of cookies
+ *   that were altered or sealed under another name
+ * 
+ * @author mike
+ *
+ */
+public class SealedCookieTest
+  extends TestCase
+{
+  private static final byte[] DATA
+    ="session-state".getBytes(StandardCharsets.UTF_8);
+  
+  private final List<Cookie> written=new ArrayList<Cookie>();
+  
+  private HttpServletResponse response()
+  {
+    return (HttpServletResponse) Proxy.newProxyInstance
+      (getClass().getClassLoader()
+      ,new Class<?>[] {HttpServletResponse.class}
+      ,new InvocationHandler()
+      {
+        @Override
+        public Object invoke(Object proxy,Method method,Object[] args)
+        {
+          if (method.getName().equals("addCookie"))
+          { written.add((Cookie) args[0]);
+          }
+          return null;
+        }
+      }
+      );
+  }
+  
+  private HttpServletRequest request(final Cookie ... cookies)
+  {
+    return (HttpServletRequest) Proxy.newProxyInstance
+      (getClass().getClassLoader()
+      ,new Class<?>[] {HttpServletRequest.class}
+      ,new InvocationHandler()
+      {
+        @Override
+        public Object invoke(Object proxy,Method method,Object[] args)
+        {
+          if (method.getName().equals("getContextPath"))
+          { return "/app";
+          }
+          return method.getName().equals("getCookies")?cookies:null;
+        }
+      }
+      );
+  }
+  
+  private Cookie write(SealedCookie cookie,byte[] data)
+    throws Exception
+  {
+    cookie.write(request(),response(),data);
+    return written.get(written.size()-1);
+  }
+  
+  public void testRoundTrip()
+    throws Exception
+  {
+    SealedCookie cookie=new SealedCookie("oauth",StateSealerTest.KEY);
+    Cookie sent=write(cookie,DATA);
+    assertTrue("http only",sent.isHttpOnly());
+    assertEquals("context path","/app",sent.getPath());
+    assertTrue("secure",sent.getSecure());
+    assertTrue
+      ("data",Arrays.equals(DATA,cookie.read(request(sent))));
+  }
+  
+  public void testConfiguredPath()
+    throws Exception
+  {
+    SealedCookie cookie=new SealedCookie("oauth",StateSealerTest.KEY);
+    cookie.setPath("/");
+    assertEquals("path","/",write(cookie,DATA).getPath());
+  }
+  
+  public void testTamperedValueRejected()
+    throws Exception
+  {
+    SealedCookie cookie=new SealedCookie("oauth",StateSealerTest.KEY);
+    String value=write(cookie,DATA).getValue();
+    int middle=value.length()/2;
+    String tampered
+      =value.substring(0,middle)
+      +(value.charAt(middle)=='A'?'B':'A')
+      +value.substring(middle+1);
+    assertEquals
+      ("tampered"
+      ,null
+      ,cookie.read(request(new Cookie("oauth",tampered)))
+      );
+  }
+  
+  public void testValueFromOtherCookieRejected()
+    throws Exception
+  {
+    SealedCookie cookie=new SealedCookie("oauth",StateSealerTest.KEY);
+    SealedCookie other=new SealedCookie("other",StateSealerTest.KEY);
+    String value=write(other,DATA).getValue();
+    assertEquals
+      ("other name"
+      ,null
+      ,cookie.read(request(new Cookie("oauth",value)))
+      );
+  }
+  
+  public void testValidCookieFoundAmongInvalid()
+    throws Exception
+  {
+    SealedCookie cookie=new SealedCookie("oauth",StateSealerTest.KEY);
+    Cookie sent=write(cookie,DATA);
+    assertTrue
+      ("data"
+      ,Arrays.equals
+        (DATA
+        ,cookie.read(request(new Cookie("oauth","forged"),sent))
+        )
+      );
+    assertEquals("no cookies",null,cookie.read(request()));
+  }
+  
+  public void testNullDataRemovesCookie()
+    throws Exception
+  {
+    SealedCookie cookie=new SealedCookie("oauth",StateSealerTest.KEY);
+    Cookie sent=write(cookie,null);
+    assertEquals("max age",0,sent.getMaxAge());
+    assertEquals("value","",sent.getValue());
+  }
+  
+  public void testSealAgeEnforcedForSessionCookie()
+    throws Exception
+  {
+    SealedCookie cookie=new SealedCookie("oauth",StateSealerTest.KEY);
+    cookie.setSealMaxAge(1);
+    Cookie sent=write(cookie,DATA);
+    assertEquals("browser session cookie",-1,sent.getMaxAge());
+    assertFalse
+      ("renewal due",cookie.isRenewalDue(cookie.open(request(sent))));
+    Thread.sleep(600);
+    assertTrue
+      ("renewal due",cookie.isRenewalDue(cookie.open(request(sent))));
+    Thread.sleep(600);
+    assertEquals("expired",null,cookie.read(request(sent)));
+  }
+  
+  public void testNonPositiveSealAgeRejected()
+    throws Exception
+  {
+    final SealedCookie cookie
+      =new SealedCookie("oauth",StateSealerTest.KEY);
+    assertThrows
+      ("zero"
+      ,IllegalArgumentException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+        { cookie.setSealMaxAge(0);
+        }
+      }
+      );
+  }
+  
+  public void testMaxAgeSetOnCookie()
+    throws Exception
+  {
+    SealedCookie cookie=new SealedCookie("oauth",StateSealerTest.KEY);
+    cookie.setMaxAge(3600);
+    Cookie sent=write(cookie,DATA);
+    assertEquals("max age",3600,sent.getMaxAge());
+    assertTrue("fresh",cookie.read(request(sent))!=null);
+  }
+}
@@ -0,0 +1,154 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.session;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import spiralcraft.oauth.test.TestCase;
+
+/**
+ * Sealing, tamper detection, context binding, key rotation and expiry
+ * 
+ * @author mike
+ *
+ */
+public class StateSealerTest
+  extends TestCase
+{
+  static final String KEY=key(1);
+  static final String OLD_KEY=key(2);
+  private static final byte[] DATA
+    ="token=abc;secret=xyz".getBytes(StandardCharsets.UTF_8);
+  
+  static String key(int seed)
+  {
+    byte[] key=new byte[16];
+    Arrays.fill(key,(byte) seed);
+    return Base64.getEncoder().encodeToString(key);
+  }
+  
+  public void testRoundTrip()
+    throws Exception
+  {
+    StateSealer sealer=new StateSealer(KEY);
+    String sealed=sealer.seal(DATA,"ctx");
+    assertTrue("data",Arrays.equals(DATA,sealer.unseal(sealed,"ctx")));
+    assertFalse("iv reused",sealed.equals(sealer.seal(DATA,"ctx")));
+  }
+  
+  public void testEveryTamperedByteRejected()
+    throws Exception
+  {
+    StateSealer sealer=new StateSealer(KEY);
+    byte[] sealed=Base64.getUrlDecoder().decode(sealer.seal(DATA,"ctx"));
+    for (int i=0;i<sealed.length;i++)
+    {
+      byte[] tampered=sealed.clone();
+      tampered[i]^=0x01;
+      assertEquals
+        ("byte "+i
+        ,null
+        ,sealer.unseal
+          (Base64.getUrlEncoder().withoutPadding().encodeToString(tampered)
+          ,"ctx"
+          )
+        );
+    }
+  }
+  
+  public void testTruncatedRejected()
+    throws Exception
+  {
+    StateSealer sealer=new StateSealer(KEY);
+    String sealed=sealer.seal(DATA,"ctx");
+    assertEquals
+      ("truncated"
+      ,null
+      ,sealer.unseal(sealed.substring(0,sealed.length()-4),"ctx")
+      );
+    assertEquals("empty",null,sealer.unseal("","ctx"));
+    assertEquals("malformed",null,sealer.unseal("not base64!","ctx"));
+  }
+  
+  public void testOtherContextRejected()
+    throws Exception
+  {
+    StateSealer sealer=new StateSealer(KEY);
+    assertEquals
+      ("context",null,sealer.unseal(sealer.seal(DATA,"ctx"),"other"));
+  }
+  
+  public void testOtherKeyRejected()
+    throws Exception
+  {
+    String sealed=new StateSealer(OLD_KEY).seal(DATA,"ctx");
+    assertEquals("key",null,new StateSealer(KEY).unseal(sealed,"ctx"));
+  }
+  
+  public void testRotatedKeyAccepted()
+    throws Exception
+  {
+    String sealed=new StateSealer(OLD_KEY).seal(DATA,"ctx");
+    StateSealer rotated=new StateSealer(KEY,OLD_KEY);
+    assertTrue
+      ("old key",Arrays.equals(DATA,rotated.unseal(sealed,"ctx")));
+    assertEquals
+      ("sealed with current key"
+      ,null
+      ,new StateSealer(OLD_KEY).unseal(rotated.seal(DATA,"ctx"),"ctx")
+      );
+  }
+  
+  public void testExpiredRejected()
+    throws Exception
+  {
+    StateSealer sealer=new StateSealer(KEY);
+    String sealed=sealer.seal(DATA,"ctx");
+    sealer.setMaxAge(1);
+    Thread.sleep(200);
+    assertEquals("expired",null,sealer.unseal(sealed,"ctx"));
+  }
+  
+  public void testBadKeysRejected()
+  {
+    assertThrows
+      ("key length"
+      ,GeneralSecurityException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+          throws Exception
+        { new StateSealer(Base64.getEncoder().encodeToString(new byte[10]));
+        }
+      }
+      );
+    assertThrows
+      ("no keys"
+      ,GeneralSecurityException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+          throws Exception
+        { new StateSealer(" ");
+        }
+      }
+      );
+  }
+}
@@ -0,0 +1,142 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <p>A minimal base for behaviour tests. Each public no-argument method 
+ *   whose name starts with "test" is run on a new instance, and fails by
+ *   throwing.
+ * </p>
+ * 
+ * @author mike
+ *
+ */
+public abstract class TestCase
+{
+  /**
+   * A block of code expected to throw
+   */
+  public interface Block
+  {
+    void run()
+      throws Exception;
+  }
+  
+  /**
+   * Run the tests of the specified class, reporting each result
+   * 
+   * @return The number of tests that failed
+   */
+  public static int run(Class<? extends TestCase> testClass)
+  {
+    int failures=0;
+    Method[] methods=testClass.getMethods();
+    Arrays.sort
+      (methods
+      ,new Comparator<Method>()
+      {
+        @Override
+        public int compare(Method a,Method b)
+        { return a.getName().compareTo(b.getName());
+        }
+      }
+      );
+    for (Method method:methods)
+    {
+      if (!method.getName().startsWith("test")
+          || method.getParameterTypes().length!=0
+          || Modifier.isStatic(method.getModifiers())
+          )
+      { continue;
+      }
+      
+      String name=testClass.getSimpleName()+"."+method.getName();
+      try
+      {
+        method.invoke(testClass.newInstance());
+        System.out.println("PASS "+name);
+      }
+      catch (InvocationTargetException x)
+      { 
+        failures++;
+        System.out.println("FAIL "+name+": "+x.getCause());
+        x.getCause().printStackTrace(System.out);
+      }
+      catch (Exception x)
+      { 
+        failures++;
+        System.out.println("FAIL "+name+": "+x);
+      }
+    }
+    return failures;
+  }
+  
+  protected static void assertTrue(String message,boolean condition)
+  {
+    if (!condition)
+    { throw new AssertionError(message);
+    }
+  }
+  
+  protected static void assertFalse(String message,boolean condition)
+  { assertTrue(message,!condition);
+  }
+  
+  protected static void assertEquals
+    (String message,Object expected,Object actual)
+  {
+    if (expected==null?actual!=null:!expected.equals(actual))
+    { 
+      throw new AssertionError
+        (message+": expected <"+expected+"> but was <"+actual+">");
+    }
+  }
+  
+  protected static void assertEquals(String message,long expected,long actual)
+  { assertEquals(message,Long.valueOf(expected),Long.valueOf(actual));
+  }
+  
+  /**
+   * Assert that the block throws an exception of the specified type
+   * 
+   * @return The exception
+   */
+  protected static <X extends Throwable> X assertThrows
+    (String message,Class<X> type,Block block)
+  {
+    try
+    { block.run();
+    }
+    catch (Throwable x)
+    {
+      if (type.isInstance(x))
+      { return type.cast(x);
+      }
+      AssertionError error
+        =new AssertionError
+          (message+": expected "+type.getName()+" but got "+x);
+      error.initCause(x);
+      throw error;
+    }
+    throw new AssertionError
+      (message+": expected "+type.getName()+" but nothing was thrown");
+  }
+}
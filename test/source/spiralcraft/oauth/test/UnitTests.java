@@ -0,0 +1,55 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.test;
+
+/**
+ * Runs the behaviour tests of this module and exits with a non-zero
+ *   status if any fail
+ * 
+ * @author mike
+ *
+ */
+public class UnitTests
+{
+  @SuppressWarnings({"unchecked","rawtypes"})
+  private static final Class<? extends TestCase>[] TESTS
+    =new Class[]
+    {spiralcraft.oauth.http.ResponseCacheTest.class
+    ,spiralcraft.oauth.http.RateLimiterTest.class
+    ,spiralcraft.oauth.paging.PagingTest.class
+    ,spiralcraft.oauth.session.SealedCookieTest.class
+    ,spiralcraft.oauth.session.StateSealerTest.class
+    ,spiralcraft.oauth.util.SingleFlightTest.class
+    ,spiralcraft.oauth1.PercentEncoderTest.class
+    ,spiralcraft.oauth1.RequestTemplateTest.class
+    ,spiralcraft.oauth1.SignerTest.class
+    ,spiralcraft.oauth2.AccessTokenResponseParserTest.class
+    ,spiralcraft.oauth2.JwtVerifierTest.class
+    ,spiralcraft.oauth2.StateCodecTest.class
+    };
+  
+  public static void main(String[] args)
+  {
+    int failures=0;
+    for (Class<? extends TestCase> test:TESTS)
+    { failures+=TestCase.run(test);
+    }
+    System.out.println
+      (failures==0?"All tests passed":failures+" test(s) failed");
+    if (failures>0)
+    { System.exit(1);
+    }
+  }
+}
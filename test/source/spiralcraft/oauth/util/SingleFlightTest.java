@@ -0,0 +1,211 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import spiralcraft.oauth.test.TestCase;
+
+/**
+ * Coalescing of concurrent operations and propagation of their results
+ *   and failures
+ * 
+ * @author mike
+ *
+ */
+public class SingleFlightTest
+  extends TestCase
+{
+  private final SingleFlight<String,String> flight
+    =new SingleFlight<String,String>();
+  private final AtomicInteger calls=new AtomicInteger();
+  private final CountDownLatch release=new CountDownLatch(1);
+  
+  /**
+   * An operation that blocks until released
+   */
+  private Callable<String> blocking(final String result)
+  {
+    return new Callable<String>()
+    {
+      @Override
+      public String call()
+        throws Exception
+      {
+        calls.incrementAndGet();
+        if (!release.await(10,TimeUnit.SECONDS))
+        { throw new IOException("Not released");
+        }
+        if (result==null)
+        { throw new IOException("Failed");
+        }
+        return result;
+      }
+    };
+  }
+  
+  private static Executor threads()
+  {
+    return new Executor()
+    {
+      @Override
+      public void execute(Runnable command)
+      { new Thread(command).start();
+      }
+    };
+  }
+  
+  public void testConcurrentCallersShareOneExecution()
+    throws Exception
+  {
+    final List<String> results=new ArrayList<String>();
+    List<Thread> callers=new ArrayList<Thread>();
+    for (int i=0;i<4;i++)
+    {
+      Thread caller
+        =new Thread()
+        {
+          @Override
+          public void run()
+          {
+            try
+            { 
+              String result=flight.execute("key",blocking("value"));
+              synchronized (results)
+              { results.add(result);
+              }
+            }
+            catch (Exception x)
+            { x.printStackTrace();
+            }
+          }
+        };
+      callers.add(caller);
+      caller.start();
+    }
+    while (calls.get()==0)
+    { Thread.sleep(5);
+    }
+    Thread.sleep(100);
+    release.countDown();
+    for (Thread caller:callers)
+    { caller.join(10000);
+    }
+    assertEquals("calls",1,calls.get());
+    assertEquals("results",4,results.size());
+    for (String result:results)
+    { assertEquals("result","value",result);
+    }
+    assertFalse("in flight",flight.isInFlight("key"));
+  }
+  
+  public void testAsyncCallersShareOneExecution()
+    throws Exception
+  {
+    CompletableFuture<String> first
+      =flight.executeAsync("key",blocking("value"),threads());
+    CompletableFuture<String> second
+      =flight.executeAsync("key",blocking("other"),threads());
+    assertTrue("in flight",flight.isInFlight("key"));
+    release.countDown();
+    assertEquals("first","value",SingleFlight.await(first));
+    assertEquals("second","value",SingleFlight.await(second));
+    assertEquals("calls",1,calls.get());
+  }
+  
+  public void testFailureDeliveredUnwrapped()
+    throws Exception
+  {
+    final CompletableFuture<String> first
+      =flight.executeAsync("key",blocking(null),threads());
+    CompletableFuture<String> second
+      =flight.executeAsync("key",blocking("value"),threads());
+    release.countDown();
+    assertThrows
+      ("first"
+      ,IOException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+          throws Exception
+        { SingleFlight.await(first);
+        }
+      }
+      );
+    assertTrue("same failure",first==second);
+  }
+  
+  public void testKeysAreIndependent()
+    throws Exception
+  {
+    CompletableFuture<String> a
+      =flight.executeAsync("a",blocking("A"),threads());
+    CompletableFuture<String> b
+      =flight.executeAsync("b",blocking("B"),threads());
+    release.countDown();
+    assertEquals("a","A",SingleFlight.await(a));
+    assertEquals("b","B",SingleFlight.await(b));
+    assertEquals("calls",2,calls.get());
+  }
+  
+  public void testCompletedOperationNotRemembered()
+    throws Exception
+  {
+    release.countDown();
+    assertEquals("first","value",flight.execute("key",blocking("value")));
+    assertEquals("second","other",flight.execute("key",blocking("other")));
+    assertEquals("calls",2,calls.get());
+  }
+  
+  public void testRejectedExecutionReleasesKey()
+    throws Exception
+  {
+    final CompletableFuture<String> future
+      =flight.executeAsync
+        ("key"
+        ,blocking("value")
+        ,new Executor()
+        {
+          @Override
+          public void execute(Runnable command)
+          { throw new RejectedExecutionException("Full");
+          }
+        }
+        );
+    assertThrows
+      ("rejected"
+      ,RejectedExecutionException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+          throws Exception
+        { SingleFlight.await(future);
+        }
+      }
+      );
+    assertFalse("in flight",flight.isInFlight("key"));
+  }
+}
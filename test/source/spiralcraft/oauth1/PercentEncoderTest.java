@@ -0,0 +1,118 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth1;
+
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import spiralcraft.oauth.test.TestCase;
+
+/**
+ * Percent encoding as specified in RFC 5849 3.6
+ * 
+ * @author mike
+ *
+ */
+public class PercentEncoderTest
+  extends TestCase
+{
+  private static final String[][] VECTORS
+    ={{"abcABC123","abcABC123"}
+    ,{"-._~","-._~"}
+    ,{"%","%25"}
+    ,{"+","%2B"}
+    ,{"&=*","%26%3D%2A"}
+    ,{" ","%20"}
+    ,{"\n","%0A"}
+    ,{"!'()","%21%27%28%29"}
+    ,{"\u007F","%7F"}
+    ,{"\u0080","%C2%80"}
+    ,{"\u00E9","%C3%A9"}
+    ,{"\u3001","%E3%80%81"}
+    ,{"\uD83D\uDE00","%F0%9F%98%80"}
+    ,{"",""}
+    };
+  
+  public void testVectors()
+  {
+    for (String[] vector:VECTORS)
+    { assertEquals(vector[0],vector[1],PercentEncoder.encode(vector[0]));
+    }
+  }
+  
+  public void testMatchesPlatformEncoder()
+    throws Exception
+  {
+    String input="Ladies + Gentlemen & \u00C9mile's 50% off *sale*";
+    String expected
+      =URLEncoder.encode(input,"UTF-8")
+        .replace("+","%20")
+        .replace("*","%2A")
+        .replace("%7E","~");
+    assertEquals("encoded",expected,PercentEncoder.encode(input));
+  }
+  
+  public void testUnpairedSurrogateReplaced()
+  { assertEquals("encoded","a%3Fb",PercentEncoder.encode("a\uD83Db"));
+  }
+  
+  public void testEncodedLength()
+  {
+    for (String[] vector:VECTORS)
+    { 
+      assertEquals
+        (vector[0]
+        ,vector[1].length()
+        ,PercentEncoder.encodedLength(vector[0])
+        );
+    }
+  }
+  
+  public void testEncodeToArray()
+  {
+    for (String[] vector:VECTORS)
+    {
+      byte[] dest=new byte[PercentEncoder.encodedLength(vector[0])+2];
+      int end=PercentEncoder.encode(vector[0],dest,2);
+      assertEquals(vector[0],dest.length,end);
+      assertEquals
+        (vector[0]
+        ,vector[1]
+        ,new String(dest,2,end-2,StandardCharsets.US_ASCII)
+        );
+    }
+  }
+  
+  public void testEncodeToBuffer()
+  {
+    ByteBuffer dest=ByteBuffer.allocate(32);
+    PercentEncoder.encode("a b/\u00E9",dest);
+    assertEquals
+      ("encoded"
+      ,"a%20b%2F%C3%A9"
+      ,new String
+        (dest.array(),0,dest.position(),StandardCharsets.US_ASCII)
+      );
+  }
+  
+  public void testUnreserved()
+  {
+    assertTrue("letter",PercentEncoder.isUnreserved('z'));
+    assertTrue("tilde",PercentEncoder.isUnreserved('~'));
+    assertFalse("plus",PercentEncoder.isUnreserved('+'));
+    assertFalse("non-ASCII",PercentEncoder.isUnreserved(0xE9));
+  }
+}
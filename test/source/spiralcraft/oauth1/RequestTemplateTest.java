@@ -0,0 +1,282 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth1;
+
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Base64;
+
+import spiralcraft.net.http.VariableMap;
+import spiralcraft.oauth.test.TestCase;
+
+/**
+ * Signature bases and signatures computed through a RequestTemplate,
+ *   checked against Signer and the examples of RFC 5849 and OAuth Core 1.0
+ * 
+ * @author mike
+ *
+ */
+public class RequestTemplateTest
+  extends TestCase
+{
+  private static final URI PHOTOS
+    =URI.create
+      ("http://photos.example.net/photos?file=vacation.jpg&size=original");
+  private static final String CLIENT_SECRET="kd94hf93k423kf44";
+  private static final String TOKEN_SECRET="pfkkdhi9sl3r4s00";
+  private static final String PHOTOS_SIGNATURE="tR3+Ty81lMeYAr/Fid0kMTYa/WM=";
+  
+  private static final URI REQUEST
+    =URI.create("http://example.com/request?b5=%3D%253D&a3=a&c%40=&a2=r%20b");
+  
+  /**
+   * Signs with the signature base itself, exposing the base computed by
+   *   the template
+   */
+  private static class BaseSignatureMethod
+    extends SignatureMethod
+  {
+    @Override
+    public String getName()
+    { return HmacSignatureMethod.HMAC_SHA1;
+    }
+    
+    @Override
+    public String sign(Base base,String tokenSecret)
+    {
+      SignatureBaseWriter.StringWriter writer
+        =new SignatureBaseWriter.StringWriter();
+      base.writeTo(writer);
+      return writer.toString();
+    }
+  }
+  
+  private static Client photosClient()
+  {
+    Client client=new Client();
+    client.setClientId("dpf43f3p2l4k3l03");
+    client.setSharedSecret(CLIENT_SECRET);
+    return client;
+  }
+  
+  private static VariableMap requestBody()
+  {
+    VariableMap body=new VariableMap();
+    body.add("c2","");
+    body.add("a3","2 q");
+    return body;
+  }
+  
+  /**
+   * The oauth parameters the template adds to the RFC 5849 3.4.1.1 
+   *   request
+   */
+  private static VariableMap requestParams(String signatureMethod)
+  {
+    VariableMap params=new VariableMap();
+    params.add("oauth_consumer_key","9djdj82h48djs9d2");
+    params.add("oauth_token","kkk9d7dh3k39sjv7");
+    params.add("oauth_signature_method",signatureMethod);
+    params.add("oauth_timestamp","137131201");
+    params.add("oauth_nonce","7d8f3e4a");
+    params.add("oauth_version","1.0");
+    return params;
+  }
+  
+  /**
+   * The decoded value of a parameter of an Authorization header
+   */
+  static String headerParameter(String header,String name)
+    throws Exception
+  {
+    int start=header.indexOf(name+"=\"");
+    if (start<0)
+    { return null;
+    }
+    start+=name.length()+2;
+    return URLDecoder.decode
+      (header.substring(start,header.indexOf('"',start)),"UTF-8");
+  }
+  
+  public void testPhotosSignature()
+    throws Exception
+  {
+    RequestTemplate template=photosClient().prepareRequest("GET",PHOTOS);
+    String header
+      =template.authorizationHeader
+        ("nnch734d00sl2jdk",TOKEN_SECRET,"kllo9940pd9333jh","1191242096",null);
+    assertEquals
+      ("signature"
+      ,PHOTOS_SIGNATURE
+      ,headerParameter(header,"oauth_signature")
+      );
+    assertEquals
+      ("consumer key"
+      ,"dpf43f3p2l4k3l03"
+      ,headerParameter(header,"oauth_consumer_key")
+      );
+  }
+  
+  public void testPhotosSignatureBase()
+    throws Exception
+  {
+    RequestTemplate template
+      =new RequestTemplate
+        (photosClient(),new BaseSignatureMethod(),"GET",PHOTOS);
+    String header
+      =template.authorizationHeader
+        ("nnch734d00sl2jdk",TOKEN_SECRET,"kllo9940pd9333jh","1191242096",null);
+    assertEquals
+      ("base"
+      ,"GET&http%3A%2F%2Fphotos.example.net%2Fphotos&file%3Dvacation.jpg"
+        +"%26oauth_consumer_key%3Ddpf43f3p2l4k3l03"
+        +"%26oauth_nonce%3Dkllo9940pd9333jh"
+        +"%26oauth_signature_method%3DHMAC-SHA1"
+        +"%26oauth_timestamp%3D1191242096"
+        +"%26oauth_token%3Dnnch734d00sl2jdk"
+        +"%26oauth_version%3D1.0"
+        +"%26size%3Doriginal"
+      ,headerParameter(header,"oauth_signature")
+      );
+  }
+  
+  /**
+   * RFC 5849 3.4.1.1, merging repeated, empty and encoded parameters from
+   *   the query with the request body
+   */
+  public void testQueryAndBodySignatureBase()
+    throws Exception
+  {
+    Client client=new Client();
+    client.setClientId("9djdj82h48djs9d2");
+    RequestTemplate template
+      =new RequestTemplate(client,new BaseSignatureMethod(),"POST",REQUEST);
+    String header
+      =template.authorizationHeader
+        ("kkk9d7dh3k39sjv7",null,"7d8f3e4a","137131201",requestBody());
+    String base=headerParameter(header,"oauth_signature");
+    assertEquals
+      ("base"
+      ,"POST&http%3A%2F%2Fexample.com%2Frequest&a2%3Dr%2520b%26a3%3D2%2520q"
+        +"%26a3%3Da%26b5%3D%253D%25253D%26c%2540%3D%26c2%3D"
+        +"%26oauth_consumer_key%3D9djdj82h48djs9d2"
+        +"%26oauth_nonce%3D7d8f3e4a"
+        +"%26oauth_signature_method%3DHMAC-SHA1"
+        +"%26oauth_timestamp%3D137131201"
+        +"%26oauth_token%3Dkkk9d7dh3k39sjv7"
+        +"%26oauth_version%3D1.0"
+      ,base
+      );
+    assertEquals
+      ("Signer base"
+      ,Signer.signatureBase
+        ("POST",REQUEST,requestParams("HMAC-SHA1"),requestBody())
+      ,base
+      );
+  }
+  
+  public void testQueryAndBodySignature()
+    throws Exception
+  {
+    Client client=new Client();
+    client.setClientId("9djdj82h48djs9d2");
+    client.setSharedSecret("j49sk3j29djd");
+    String header
+      =client.prepareRequest("POST",REQUEST).authorizationHeader
+        ("kkk9d7dh3k39sjv7","dh893hdasih9","7d8f3e4a","137131201"
+        ,requestBody()
+        );
+    assertEquals
+      ("signature"
+      ,Signer.sign
+        ("POST"
+        ,REQUEST
+        ,requestParams("HMAC-SHA1")
+        ,requestBody()
+        ,new HmacSignatureMethod
+          (HmacSignatureMethod.HMAC_SHA1,"HmacSHA1","j49sk3j29djd",16)
+        ,"dh893hdasih9"
+        )
+      ,headerParameter(header,"oauth_signature")
+      );
+  }
+  
+  /**
+   * RFC 5849 3.4.4: the signature is the encoded client and token secrets
+   */
+  public void testPlaintextSignature()
+    throws Exception
+  {
+    Client client=photosClient();
+    client.setSignatureMethod(PlaintextSignatureMethod.PLAINTEXT);
+    String header
+      =client.prepareRequest("POST",REQUEST).authorizationHeader
+        ("nnch734d00sl2jdk",TOKEN_SECRET,"kllo9940pd9333jh","1191242096"
+        ,requestBody()
+        );
+    assertEquals
+      ("signature"
+      ,CLIENT_SECRET+"&"+TOKEN_SECRET
+      ,headerParameter(header,"oauth_signature")
+      );
+    assertEquals
+      ("signature method"
+      ,"PLAINTEXT"
+      ,headerParameter(header,"oauth_signature_method")
+      );
+  }
+  
+  /**
+   * RFC 5849 3.4.3: an RSASSA-PKCS1-v1_5 SHA-1 signature of the same base
+   *   Signer computes, which verifies with the client's public key
+   */
+  public void testRsaSignature()
+    throws Exception
+  {
+    KeyPairGenerator generator=KeyPairGenerator.getInstance("RSA");
+    generator.initialize(1024);
+    KeyPair keyPair=generator.generateKeyPair();
+    
+    Client client=new Client();
+    client.setClientId("9djdj82h48djs9d2");
+    client.setSignatureMethod(RsaSignatureMethod.RSA_SHA1);
+    client.setRsaPrivateKey(keyPair.getPrivate());
+    String header
+      =client.prepareRequest("POST",REQUEST).authorizationHeader
+        ("kkk9d7dh3k39sjv7",null,"7d8f3e4a","137131201",requestBody());
+    assertEquals
+      ("signature method"
+      ,"RSA-SHA1"
+      ,headerParameter(header,"oauth_signature_method")
+      );
+    
+    Signature verifier=Signature.getInstance("SHA1withRSA");
+    verifier.initVerify(keyPair.getPublic());
+    verifier.update
+      (Signer.signatureBase
+          ("POST",REQUEST,requestParams("RSA-SHA1"),requestBody())
+        .getBytes(StandardCharsets.US_ASCII)
+      );
+    assertTrue
+      ("signature verifies"
+      ,verifier.verify
+        (Base64.getDecoder().decode(headerParameter(header,"oauth_signature")))
+      );
+  }
+}
@@ -0,0 +1,153 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth1;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import spiralcraft.net.http.VariableMap;
+import spiralcraft.oauth.test.TestCase;
+
+/**
+ * Signature base strings and HMAC-SHA1 signatures, checked against the 
+ *   examples of RFC 5849 and OAuth Core 1.0
+ * 
+ * @author mike
+ *
+ */
+public class SignerTest
+  extends TestCase
+{
+  private static final URI PHOTOS
+    =URI.create
+      ("http://photos.example.net/photos?file=vacation.jpg&size=original");
+  private static final String CLIENT_SECRET="kd94hf93k423kf44";
+  private static final String TOKEN_SECRET="pfkkdhi9sl3r4s00";
+  private static final String PHOTOS_BASE
+    ="GET&http%3A%2F%2Fphotos.example.net%2Fphotos&file%3Dvacation.jpg"
+    +"%26oauth_consumer_key%3Ddpf43f3p2l4k3l03"
+    +"%26oauth_nonce%3Dkllo9940pd9333jh"
+    +"%26oauth_signature_method%3DHMAC-SHA1"
+    +"%26oauth_timestamp%3D1191242096"
+    +"%26oauth_token%3Dnnch734d00sl2jdk"
+    +"%26oauth_version%3D1.0"
+    +"%26size%3Doriginal";
+  private static final String PHOTOS_SIGNATURE="tR3+Ty81lMeYAr/Fid0kMTYa/WM=";
+  
+  private static VariableMap photosParams()
+  {
+    VariableMap params=new VariableMap();
+    params.add("oauth_consumer_key","dpf43f3p2l4k3l03");
+    params.add("oauth_token","nnch734d00sl2jdk");
+    params.add("oauth_signature_method","HMAC-SHA1");
+    params.add("oauth_timestamp","1191242096");
+    params.add("oauth_nonce","kllo9940pd9333jh");
+    params.add("oauth_version","1.0");
+    return params;
+  }
+  
+  /**
+   * RFC 5849 3.4.1.1, including repeated, empty and encoded parameters
+   *   from the query and the body
+   */
+  public void testRfc5849SignatureBase()
+    throws Exception
+  {
+    VariableMap params=new VariableMap();
+    params.add("oauth_consumer_key","9djdj82h48djs9d2");
+    params.add("oauth_token","kkk9d7dh3k39sjv7");
+    params.add("oauth_signature_method","HMAC-SHA1");
+    params.add("oauth_timestamp","137131201");
+    params.add("oauth_nonce","7d8f3e4a");
+    VariableMap body=new VariableMap();
+    body.add("c2","");
+    body.add("a3","2 q");
+    
+    assertEquals
+      ("base"
+      ,"POST&http%3A%2F%2Fexample.com%2Frequest&a2%3Dr%2520b%26a3%3D2%2520q"
+        +"%26a3%3Da%26b5%3D%253D%25253D%26c%2540%3D%26c2%3D"
+        +"%26oauth_consumer_key%3D9djdj82h48djs9d2"
+        +"%26oauth_nonce%3D7d8f3e4a"
+        +"%26oauth_signature_method%3DHMAC-SHA1"
+        +"%26oauth_timestamp%3D137131201"
+        +"%26oauth_token%3Dkkk9d7dh3k39sjv7"
+      ,Signer.signatureBase
+        ("POST"
+        ,URI.create
+          ("http://example.com/request?b5=%3D%253D&a3=a&c%40=&a2=r%20b")
+        ,params
+        ,body
+        )
+      );
+  }
+  
+  public void testSignatureBase()
+    throws Exception
+  {
+    assertEquals
+      ("base"
+      ,PHOTOS_BASE
+      ,Signer.signatureBase("GET",PHOTOS,photosParams(),null)
+      );
+  }
+  
+  public void testStreamedSignature()
+    throws Exception
+  {
+    Mac mac=Mac.getInstance("HmacSHA1");
+    mac.init
+      (new SecretKeySpec
+        ((CLIENT_SECRET+"&"+TOKEN_SECRET).getBytes(StandardCharsets.US_ASCII)
+        ,"HmacSHA1"
+        )
+      );
+    assertEquals
+      ("signature"
+      ,PHOTOS_SIGNATURE
+      ,Signer.signHMAC_SHA1("GET",PHOTOS,photosParams(),null,mac)
+      );
+  }
+  
+  public void testSignatureMethod()
+    throws Exception
+  {
+    HmacSignatureMethod method
+      =new HmacSignatureMethod
+        (HmacSignatureMethod.HMAC_SHA1,"HmacSHA1",CLIENT_SECRET,16);
+    for (int i=0;i<2;i++)
+    {
+      assertEquals
+        ("signature "+i
+        ,PHOTOS_SIGNATURE
+        ,Signer.sign
+          ("GET",PHOTOS,photosParams(),null,method,TOKEN_SECRET)
+        );
+    }
+  }
+  
+  public void testSignedBaseString()
+    throws Exception
+  {
+    assertEquals
+      ("signature"
+      ,PHOTOS_SIGNATURE
+      ,Signer.signHMAC_SHA1(PHOTOS_BASE,CLIENT_SECRET,TOKEN_SECRET)
+      );
+  }
+}
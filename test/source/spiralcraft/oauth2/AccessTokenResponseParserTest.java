@@ -0,0 +1,237 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth2;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import spiralcraft.oauth.http.Response;
+import spiralcraft.oauth.test.TestCase;
+
+/**
+ * Token endpoint responses read by the dedicated parser, and the bodies it
+ *   leaves to the general purpose JSON parser
+ * 
+ * @author mike
+ *
+ */
+public class AccessTokenResponseParserTest
+  extends TestCase
+{
+  private static final String FORM="application/x-www-form-urlencoded";
+  
+  private static AccessTokenResponse parse(String body,String contentType)
+  { 
+    return AccessTokenResponseParser.parse
+      (body.getBytes(StandardCharsets.UTF_8),contentType);
+  }
+  
+  public void testTokenResponse()
+    throws Exception
+  {
+    AccessTokenResponse response
+      =parse
+        (" {\"access_token\":\"2YotnFZFEjr1zCsicMWpAA\""
+        +",\"token_type\":\"Bearer\",\"expires_in\":3600"
+        +",\"refresh_token\":\"tGzv3JOkF0XG5Qx2TlKWIA\""
+        +",\"scope\":\"read write\",\"id_token\":null} \n"
+        ,"application/json"
+        );
+    assertEquals("access token","2YotnFZFEjr1zCsicMWpAA",response.accessToken);
+    assertEquals("token type","Bearer",response.tokenType);
+    assertEquals("expires in",3600,response.expiresIn);
+    assertEquals
+      ("refresh token","tGzv3JOkF0XG5Qx2TlKWIA",response.refreshToken);
+    assertEquals("scope","read write",response.scope);
+    assertEquals("id token",null,response.idToken);
+  }
+  
+  public void testErrorResponse()
+    throws Exception
+  {
+    AccessTokenResponse response
+      =parse
+        ("{\"error\":\"invalid_grant\""
+        +",\"error_description\":\"Code \\\"expired\\\"\\n\""
+        +",\"error_uri\":\"https:\\/\\/example.com\\/errors\"}"
+        ,null
+        );
+    assertEquals("error","invalid_grant",response.error);
+    assertEquals
+      ("description","Code \"expired\"\n",response.errorDescription);
+    assertEquals("uri","https://example.com/errors",response.errorUri);
+    assertTrue
+      ("toString has the uri"
+      ,response.toString().contains("errorUri=https://example.com/errors")
+      );
+  }
+  
+  public void testEscapedNames()
+    throws Exception
+  {
+    AccessTokenResponse response
+      =parse
+        ("{\"access\\u005ftoken\":\"abc\""
+        +",\"refresh_\\u0074oken\":\"def\""
+        +",\"\\u0065xt\\\"ra\":\"ignored\""
+        +",\"token_type\":\"Bearer\"}"
+        ,"application/json"
+        );
+    assertEquals("access token","abc",response.accessToken);
+    assertEquals("refresh token","def",response.refreshToken);
+    assertEquals("token type","Bearer",response.tokenType);
+  }
+  
+  public void testEscapedValues()
+    throws Exception
+  {
+    AccessTokenResponse response
+      =parse
+        ("{\"access_token\":\"a\\u00e9\\ud83d\\ude00\\tb\"}"
+        ,"application/json"
+        );
+    assertEquals
+      ("access token"
+      ,"a\u00e9"+new String(Character.toChars(0x1F600))+"\tb"
+      ,response.accessToken
+      );
+  }
+  
+  public void testNestedUnknownValues()
+    throws Exception
+  {
+    AccessTokenResponse response
+      =parse
+        ("{\"ext\":{\"a\":[1,{\"b\":\"}]\\\"\"},[]],\"c\":null,\"d\":{}}"
+        +",\"access_token\":\"abc\""
+        +",\"flags\":[true,false,-1.5e3,\"x\"]"
+        +",\"token_type\":\"Bearer\"}"
+        ,"application/json"
+        );
+    assertEquals("access token","abc",response.accessToken);
+    assertEquals("token type","Bearer",response.tokenType);
+  }
+  
+  public void testExpiresInString()
+    throws Exception
+  {
+    assertEquals
+      ("string"
+      ,3600
+      ,parse("{\"expires_in\":\"3600\"}","application/json").expiresIn
+      );
+    assertEquals
+      ("fraction"
+      ,59
+      ,parse("{\"expires_in\":59.5}","application/json").expiresIn
+      );
+    assertEquals
+      ("null"
+      ,0
+      ,parse("{\"expires_in\":null}","application/json").expiresIn
+      );
+  }
+  
+  public void testFormBody()
+    throws Exception
+  {
+    AccessTokenResponse response
+      =parse
+        ("access_token=a%2Bb%3D&token_type=bearer&expires_in=60"
+        +"&scope=read+write&unknown=%7E&empty&refresh_token=\r\n"
+        ,FORM+"; charset=UTF-8"
+        );
+    assertEquals("access token","a+b=",response.accessToken);
+    assertEquals("token type","bearer",response.tokenType);
+    assertEquals("expires in",60,response.expiresIn);
+    assertEquals("scope","read write",response.scope);
+    assertEquals("refresh token","",response.refreshToken);
+  }
+  
+  /**
+   * Some providers send form encoded responses as text/plain
+   */
+  public void testPlainTextFormBody()
+    throws Exception
+  {
+    AccessTokenResponse response
+      =parse("access_token=abc&scope=user","text/plain; charset=utf-8");
+    assertEquals("access token","abc",response.accessToken);
+    assertEquals("scope","user",response.scope);
+    assertEquals("plain text",null,parse("abc","text/plain"));
+  }
+  
+  /**
+   * Bodies the dedicated parser doesn't understand are left to the general
+   *   purpose parser
+   */
+  public void testMalformedNotParsed()
+    throws Exception
+  {
+    String[] bodies
+      ={"{\"access_token\":\"abc\""
+      ,"{\"access_token\":\"abc\",}"
+      ,"{\"access_token\":\"abc\"} {}"
+      ,"{\"access_token\" \"abc\"}"
+      ,"{access_token:\"abc\"}"
+      ,"{\"access_token\":\"ab\\xc\"}"
+      ,"{\"access_token\":\"\\u12\"}"
+      ,"{\"access_token\":{\"a\":1}}"
+      ,"{\"access_token\":true}"
+      ,"{\"expires_in\":\"soon\"}"
+      ,"{\"expires_in\":-1}"
+      ,"{\"ext\":[1,2}"
+      ,"{\"ext\":tru}"
+      ,"[{\"access_token\":\"abc\"}]"
+      ,""
+      };
+    for (String body:bodies)
+    { assertEquals(body,null,parse(body,"application/json"));
+    }
+    assertEquals
+      ("bad form escape"
+      ,null
+      ,parse("access_token=%4",FORM)
+      );
+    assertEquals
+      ("bad form expiry"
+      ,null
+      ,parse("expires_in=soon",FORM)
+      );
+  }
+  
+  public void testFromResponse()
+    throws Exception
+  {
+    Map<String,List<String>> headers
+      =Collections.singletonMap
+        ("Content-Type",Collections.singletonList(FORM));
+    AccessTokenResponse response
+      =AccessTokenResponse.fromResponse
+        (new Response
+          (URI.create("https://example.com/token")
+          ,200
+          ,"OK"
+          ,headers
+          ,"access_token=abc&expires_in=10".getBytes(StandardCharsets.UTF_8)
+          )
+        );
+    assertEquals("access token","abc",response.accessToken);
+    assertEquals("expires in",10,response.expiresIn);
+  }
+}
@@ -0,0 +1,232 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth2;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import spiralcraft.oauth.test.TestCase;
+
+/**
+ * Acceptance and rejection of HS256 JWTs by algorithm, signature, 
+ *   validity period, issuer and audience
+ * 
+ * @author mike
+ *
+ */
+public class JwtVerifierTest
+  extends TestCase
+{
+  private static final byte[] SECRET
+    ="0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+  private static final Base64.Encoder ENCODER
+    =Base64.getUrlEncoder().withoutPadding();
+  
+  private final JwtVerifier verifier=new JwtVerifier(null,SECRET);
+  private final long now=System.currentTimeMillis()/1000;
+  
+  {
+    verifier.setIssuer("https://issuer.example");
+    verifier.setAudience("app");
+  }
+  
+  private static String part(String json)
+  { return ENCODER.encodeToString(json.getBytes(StandardCharsets.UTF_8));
+  }
+  
+  private static String sign(String header,String claims,byte[] secret)
+    throws Exception
+  {
+    String input=part(header)+"."+part(claims);
+    Mac mac=Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(secret,"HmacSHA256"));
+    return input+"."
+      +ENCODER.encodeToString
+        (mac.doFinal(input.getBytes(StandardCharsets.US_ASCII)));
+  }
+  
+  private String claims(long exp,String aud)
+  {
+    return "{\"iss\":\"https://issuer.example\""
+      +",\"sub\":\"user-1\""
+      +",\"aud\":"+aud
+      +",\"iat\":"+now
+      +",\"exp\":"+exp
+      +"}";
+  }
+  
+  private String token(String claims)
+    throws Exception
+  { return sign("{\"alg\":\"HS256\",\"typ\":\"JWT\"}",claims,SECRET);
+  }
+  
+  private void assertRejected(String message,final String token)
+  {
+    assertThrows
+      (message
+      ,GeneralSecurityException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+          throws Exception
+        { verifier.verify(token);
+        }
+      }
+      );
+  }
+  
+  public void testValidTokenAccepted()
+    throws Exception
+  {
+    TokenPrincipal principal
+      =verifier.verify(token(claims(now+300,"\"app\"")));
+    assertEquals("subject","user-1",principal.getSubject());
+    assertEquals("issuer","https://issuer.example",principal.getIssuer());
+  }
+  
+  public void testAudienceListAccepted()
+    throws Exception
+  { verifier.verify(token(claims(now+300,"[\"other\",\"app\"]")));
+  }
+  
+  public void testAlgNoneRejected()
+    throws Exception
+  {
+    String unsigned
+      =part("{\"alg\":\"none\"}")+"."+part(claims(now+300,"\"app\""))+".";
+    assertRejected("alg none",unsigned);
+  }
+  
+  public void testUnconfiguredAlgRejected()
+    throws Exception
+  {
+    assertRejected
+      ("RS256 without a key set"
+      ,sign("{\"alg\":\"RS256\"}",claims(now+300,"\"app\""),SECRET)
+      );
+  }
+  
+  public void testRestrictedAlgRejected()
+    throws Exception
+  {
+    verifier.setAlgorithms(JwtVerifier.RS256);
+    assertRejected("HS256 not allowed",token(claims(now+300,"\"app\"")));
+  }
+  
+  public void testCritHeaderRejected()
+    throws Exception
+  {
+    assertRejected
+      ("crit"
+      ,sign
+        ("{\"alg\":\"HS256\",\"crit\":[\"b64\"]}"
+        ,claims(now+300,"\"app\"")
+        ,SECRET
+        )
+      );
+  }
+  
+  public void testBadSignatureRejected()
+    throws Exception
+  {
+    assertRejected
+      ("other secret"
+      ,sign
+        ("{\"alg\":\"HS256\"}"
+        ,claims(now+300,"\"app\"")
+        ,"another secret of 32 characters".getBytes(StandardCharsets.UTF_8)
+        )
+      );
+    
+    String token=token(claims(now+300,"\"app\""));
+    int dot=token.indexOf('.');
+    String altered
+      =token.substring(0,dot+1)
+      +part(claims(now+300,"\"admin\""))
+      +token.substring(token.lastIndexOf('.'));
+    assertRejected("altered claims",altered);
+  }
+  
+  public void testExpiredRejected()
+    throws Exception
+  { 
+    verifier.setClockSkew(0);
+    assertRejected("expired",token(claims(now-10,"\"app\"")));
+  }
+  
+  public void testExpiryWithinClockSkewAccepted()
+    throws Exception
+  { 
+    verifier.setClockSkew(60000);
+    verifier.verify(token(claims(now-10,"\"app\"")));
+  }
+  
+  public void testMissingExpiryRejected()
+    throws Exception
+  {
+    assertRejected
+      ("no exp"
+      ,token("{\"iss\":\"https://issuer.example\",\"aud\":\"app\"}")
+      );
+  }
+  
+  public void testNotYetValidRejected()
+    throws Exception
+  {
+    assertRejected
+      ("nbf"
+      ,token
+        ("{\"iss\":\"https://issuer.example\",\"aud\":\"app\""
+        +",\"nbf\":"+(now+3600)
+        +",\"exp\":"+(now+7200)
+        +"}"
+        )
+      );
+  }
+  
+  public void testWrongAudienceRejected()
+    throws Exception
+  { 
+    assertRejected("aud",token(claims(now+300,"\"other\"")));
+    assertRejected("aud list",token(claims(now+300,"[\"other\"]")));
+  }
+  
+  public void testWrongIssuerRejected()
+    throws Exception
+  {
+    assertRejected
+      ("iss"
+      ,token
+        ("{\"iss\":\"https://evil.example\",\"aud\":\"app\",\"exp\":"
+        +(now+300)
+        +"}"
+        )
+      );
+  }
+  
+  public void testMalformedRejected()
+  {
+    assertRejected("two parts","abc.def");
+    assertRejected("four parts","a.b.c.d");
+    assertRejected("not JSON",part("alg")+"."+part("{}")+".sig");
+    assertFalse("isJwt",JwtVerifier.isJwt("abc.def"));
+    assertTrue("isJwt",JwtVerifier.isJwt("a.b.c"));
+  }
+}
@@ -0,0 +1,247 @@
+//
+//Copyright (c) 2012 Michael Toth
+//Spiralcraft Inc., All Rights Reserved
+//
+//This package is part of the Spiralcraft project and is licensed under
+//a multiple-license framework.
+//
+//You may not use this file except in compliance with the terms found in the
+//SPIRALCRAFT-LICENSE.txt file at the top of this distribution, or available
+//at http://www.spiralcraft.org/licensing/SPIRALCRAFT-LICENSE.txt.
+//
+//Unless otherwise agreed to in writing, this software is distributed on an
+//"AS IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or implied.
+//
+package spiralcraft.oauth2;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import spiralcraft.oauth.test.TestCase;
+
+/**
+ * Signed state tamper, replay, expiry and user agent binding
+ * 
+ * @author mike
+ *
+ */
+public class StateCodecTest
+  extends TestCase
+{
+  private static final URI CALLBACK=URI.create("https://app.example/callback");
+  private static final URI RETURN=URI.create("https://app.example/home");
+  
+  private final StateCodec codec=codec("0123456789abcdef0123456789abcdef");
+  
+  private static StateCodec codec(String secret)
+  { return new StateCodec(secret.getBytes(StandardCharsets.UTF_8));
+  }
+  
+  public void testRoundTrip()
+    throws Exception
+  {
+    String binding=codec.newBinding();
+    StateCodec.State state
+      =codec.decode(codec.encode(CALLBACK,RETURN,binding),binding);
+    assertEquals("callback",CALLBACK,state.getCallbackURI());
+    assertEquals("return",RETURN,state.getReturnURI());
+  }
+  
+  public void testNullURIs()
+    throws Exception
+  {
+    String binding=codec.newBinding();
+    StateCodec.State state
+      =codec.decode(codec.encode(null,null,binding),binding);
+    assertEquals("callback",null,state.getCallbackURI());
+    assertEquals("return",null,state.getReturnURI());
+  }
+  
+  public void testTamperedPayloadRejected()
+    throws Exception
+  {
+    final String binding=codec.newBinding();
+    String token=codec.encode(CALLBACK,RETURN,binding);
+    char[] chars=token.toCharArray();
+    chars[5]=chars[5]=='A'?'B':'A';
+    final String tampered=new String(chars);
+    assertThrows
+      ("tampered payload"
+      ,GeneralSecurityException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+          throws Exception
+        { codec.decode(tampered,binding);
+        }
+      }
+      );
+  }
+  
+  public void testOtherSecretRejected()
+    throws Exception
+  {
+    final String binding=codec.newBinding();
+    final String token
+      =codec("fedcba9876543210fedcba9876543210")
+        .encode(CALLBACK,RETURN,binding);
+    assertThrows
+      ("signed with another secret"
+      ,GeneralSecurityException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+          throws Exception
+        { codec.decode(token,binding);
+        }
+      }
+      );
+  }
+  
+  public void testMalformedRejected()
+  {
+    for (final String token
+        :new String[] {"","nodot","a.b.c","!!!.???",".",null}
+        )
+    {
+      assertThrows
+        ("malformed "+token
+        ,GeneralSecurityException.class
+        ,new Block()
+        {
+          @Override
+          public void run()
+            throws Exception
+          { codec.decode(token,codec.newBinding());
+          }
+        }
+        );
+    }
+  }
+  
+  public void testReplayRejected()
+    throws Exception
+  {
+    final String binding=codec.newBinding();
+    final String token=codec.encode(CALLBACK,RETURN,binding);
+    codec.decode(token,binding);
+    assertThrows
+      ("replayed state"
+      ,GeneralSecurityException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+          throws Exception
+        { codec.decode(token,binding);
+        }
+      }
+      );
+  }
+  
+  public void testExpiredRejected()
+    throws Exception
+  {
+    codec.setTimeout(0);
+    final String binding=codec.newBinding();
+    final String token=codec.encode(CALLBACK,RETURN,binding);
+    assertThrows
+      ("expired state"
+      ,GeneralSecurityException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+          throws Exception
+        { codec.decode(token,binding);
+        }
+      }
+      );
+  }
+  
+  public void testOtherBindingRejected()
+    throws Exception
+  {
+    final String token=codec.encode(CALLBACK,RETURN,codec.newBinding());
+    assertThrows
+      ("state presented by another user agent"
+      ,GeneralSecurityException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+          throws Exception
+        { codec.decode(token,codec.newBinding());
+        }
+      }
+      );
+    assertThrows
+      ("state presented without a binding"
+      ,GeneralSecurityException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+          throws Exception
+        { codec.decode(token,null);
+        }
+      }
+      );
+  }
+  
+  public void testRejectedBindingDoesNotConsumeState()
+    throws Exception
+  {
+    final String binding=codec.newBinding();
+    final String token=codec.encode(CALLBACK,RETURN,binding);
+    try
+    { codec.decode(token,codec.newBinding());
+    }
+    catch (GeneralSecurityException x)
+    { // expected
+    }
+    codec.decode(token,binding);
+  }
+  
+  public void testUnboundEncodeRejected()
+  {
+    assertThrows
+      ("unbound state"
+      ,GeneralSecurityException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+          throws Exception
+        { codec.encode(CALLBACK,RETURN,null);
+        }
+      }
+      );
+  }
+  
+  public void testBindingFormat()
+  {
+    assertTrue("new binding",StateCodec.isBinding(codec.newBinding()));
+    assertFalse("null",StateCodec.isBinding(null));
+    assertFalse("short",StateCodec.isBinding("abc"));
+    assertFalse("bad chars",StateCodec.isBinding("aaaaaaaaaaaaaaaaaaaa;="));
+  }
+  
+  public void testShortSecretRejected()
+  {
+    assertThrows
+      ("short secret"
+      ,IllegalArgumentException.class
+      ,new Block()
+      {
+        @Override
+        public void run()
+        { codec("too short");
+        }
+      }
+      );
+  }
+}